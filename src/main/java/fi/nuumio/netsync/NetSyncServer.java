@@ -26,13 +26,21 @@ import org.apache.commons.cli.ParseException;
 
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 
+import fi.nuumio.netsync.client.ClientStartFailedException;
+import fi.nuumio.netsync.client.SyncClient;
 import fi.nuumio.netsync.server.ServerStartException;
+import fi.nuumio.netsync.server.SyncAgent;
 import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.NodeId;
 import fi.nuumio.netsync.util.ServerSettings;
 
 /**
- * Executable NetSyncServer.
+ * Executable NetSyncServer. With upstream option server runs as a per-host agent of upstream
+ * server.
  */
 public class NetSyncServer {
     private static final HelpFormatter formatter = new HelpFormatter();
@@ -49,7 +57,19 @@ public class NetSyncServer {
                 .longOpt("port")
                 .desc("bind to given port")
                 .build();
+        final Option upstream = Option.builder("u").argName("host[:port]")
+                .hasArg()
+                .longOpt("upstream")
+                .desc("run as agent of given upstream server")
+                .build();
+        final Option id = Option.builder("i").argName("id")
+                .hasArg()
+                .longOpt("id")
+                .desc("agent's client id in upstream server, defaults to host name")
+                .build();
         options.addOption(port);
+        options.addOption(upstream);
+        options.addOption(id);
         final CommandLineParser parser = new DefaultParser();
         CommandLine line = null;
         try {
@@ -70,9 +90,32 @@ public class NetSyncServer {
         }
 
         final SyncServer server = new SyncServer(settings);
+        final SyncAgent agent;
+        if (line.hasOption("upstream")) {
+            final ClientSettings clientSettings = new ClientSettings();
+            final String[] hostPort = line.getOptionValue("upstream").split(":", 2);
+            if (hostPort.length > 1) {
+                try {
+                    clientSettings.setServerPort(Integer.valueOf(hostPort[1]));
+                } catch (final NumberFormatException e) {
+                    System.err.println("Cannot make integer from " + hostPort[1]);
+                    printUsage(System.err, options);
+                    System.exit(2);
+                }
+            }
+            final NodeId agentId = new NodeId(line.getOptionValue("id", getHostName()));
+            agent = new SyncAgent(server,
+                    new SyncClient(hostPort[0], agentId, clientSettings));
+        } else {
+            agent = null;
+        }
         try {
-            server.start();
-        } catch (final ServerStartException e) {
+            if (agent != null) {
+                agent.start();
+            } else {
+                server.start();
+            }
+        } catch (final ServerStartException | ClientStartFailedException e) {
             System.err.println("Failed to start server");
             e.printStackTrace();
         }
@@ -84,12 +127,24 @@ public class NetSyncServer {
                 } catch (final InterruptedException e) {
                     System.out.println("Stopping: " + e.getMessage());
                     Thread.currentThread().interrupt();
-                    server.stop();
+                    if (agent != null) {
+                        agent.stop();
+                    } else {
+                        server.stop();
+                    }
                 }
             }
         }
     }
 
+    private static String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (final UnknownHostException e) {
+            return "agent";
+        }
+    }
+
     private static void printUsage(final PrintStream stream, final Options options) {
         final PrintWriter writer = new PrintWriter(stream);
         formatter.printUsage(writer, 72, "NetSyncServer", options);
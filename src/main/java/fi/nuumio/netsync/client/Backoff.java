@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.client;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with decorrelated jitter. Each delay is picked at random between base
+ * delay and three times the previous delay, capped to max delay, so that clients turned away at
+ * the same moment spread out instead of retrying together.
+ */
+class Backoff {
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final Random mRandom;
+    private long mDelay;
+
+    Backoff(final long baseDelay, final long maxDelay, final Random random) {
+        if (baseDelay < 1 || maxDelay < baseDelay) {
+            throw new IllegalArgumentException("Need 1 <= baseDelay <= maxDelay");
+        }
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mRandom = random;
+        mDelay = baseDelay;
+    }
+
+    /**
+     * @param minDelay Delay in ms that must at least be waited, e.g. server's retry after hint
+     * @return delay in ms before next attempt
+     */
+    long next(final long minDelay) {
+        final long low = Math.min(Math.max(mBaseDelay, minDelay), mMaxDelay);
+        final long high = Math.min(Math.max(low, mDelay * 3), mMaxDelay);
+        mDelay = low + (long) (mRandom.nextDouble() * (high - low));
+        // Cap doesn't override what server asked for
+        return Math.max(mDelay, minDelay);
+    }
+}
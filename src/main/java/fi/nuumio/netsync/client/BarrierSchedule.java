@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.client;
+
+import fi.nuumio.netsync.protocol.message.group.SyncAck;
+import fi.nuumio.netsync.protocol.message.group.SyncNotify;
+import fi.nuumio.netsync.protocol.message.group.SyncResponse;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.TimeUtils;
+
+/**
+ * Handle to a barrier schedule. Returned by {@link SyncGroup#startSchedule}.
+ * <p>
+ * Schedule is an ordered list of phases declared once when it's started. Members then only tell
+ * server when they arrive to the next phase and server pushes each phase release to all members
+ * when whole group has arrived. Server arms the timeout of each phase when previous one is
+ * released. Schedule ends when its last phase is released or a phase times out.
+ */
+public class BarrierSchedule {
+    public static final int NO_PHASE = -1;
+    private final SyncGroup mGroup;
+    private final NodeId mId;
+    private final NodeId[] mPhases;
+    private final long mPhaseTimeout;
+    private SyncResponse.Code mStartCode;
+    private int mPhase;
+    private int mArrivedPhase;
+    private int mReleasedPhase;
+    private long mReleaseTime;
+    private boolean mTimedOut;
+    private boolean mStopped;
+
+    BarrierSchedule(final SyncGroup group, final NodeId id, final NodeId[] phases,
+                    final long phaseTimeout) {
+        mGroup = group;
+        mId = id;
+        mPhases = phases;
+        mPhaseTimeout = phaseTimeout;
+        mStartCode = null;
+        mPhase = 0;
+        mArrivedPhase = NO_PHASE;
+        mReleasedPhase = NO_PHASE;
+        mReleaseTime = SyncNotify.NO_RELEASE_TIME;
+        mTimedOut = false;
+        mStopped = false;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
+                mId.asString() + "#" + mPhase + "/" + mPhases.length + "]";
+    }
+
+    /**
+     * Tell others that this member has arrived to current phase. Does nothing if already arrived
+     * or if schedule has ended.
+     *
+     * @throws GroupSyncException if sending arrival failed
+     */
+    public void arrive() throws GroupSyncException {
+        final int phase;
+        synchronized (this) {
+            if (isEnded() || mPhase == mArrivedPhase) {
+                return;
+            }
+            phase = mPhase;
+            mArrivedPhase = phase;
+        }
+        mGroup.sendAck(mId, SyncAck.Code.ARRIVE, phase);
+    }
+
+    /**
+     * Arrive to current phase (if not already done) and wait until it's released. Returns at
+     * release time of the phase and moves to next phase.
+     *
+     * @param timeout Max time to wait in ms
+     * @return index of released phase or {@link #NO_PHASE} on timeout or if schedule has ended
+     * @throws GroupSyncException if sending arrival failed
+     */
+    public int awaitPhase(final long timeout) throws GroupSyncException {
+        arrive();
+        final TimeUtils.StopWatch watch = new TimeUtils.StopWatch();
+        final int phase;
+        final long releaseTime;
+        synchronized (this) {
+            while (mReleasedPhase < mPhase && !isEnded() && watch.hasTimeLeft(timeout)) {
+                try {
+                    wait(watch.getTimeLeft(timeout));
+                } catch (final InterruptedException e) {
+                    Log.w("Phase wait interrupted", e);
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (mReleasedPhase < mPhase) {
+                return NO_PHASE;
+            }
+            phase = mPhase;
+            releaseTime = mReleaseTime;
+            mPhase++;
+        }
+        mGroup.waitRelease(releaseTime);
+        return phase;
+    }
+
+    public NodeId getId() {
+        return mId;
+    }
+
+    /**
+     * @return index of phase this member arrives to next
+     */
+    public synchronized int getPhase() {
+        return mPhase;
+    }
+
+    /**
+     * @return id of phase this member arrives to next or null if all phases are done
+     */
+    public synchronized NodeId getPhaseId() {
+        return mPhase < mPhases.length ? mPhases[mPhase] : null;
+    }
+
+    public long getPhaseTimeout() {
+        return mPhaseTimeout;
+    }
+
+    public NodeId[] getPhases() {
+        return mPhases.clone();
+    }
+
+    /**
+     * @return true if a phase timed out before whole group arrived to it
+     */
+    public synchronized boolean hasTimedOut() {
+        return mTimedOut;
+    }
+
+    /**
+     * @return true if all phases have been passed
+     */
+    public synchronized boolean isDone() {
+        return mPhase >= mPhases.length;
+    }
+
+    public synchronized boolean isStopped() {
+        return mStopped;
+    }
+
+    /**
+     * Stop following schedule. Remaining phases are no longer waited for this member.
+     *
+     * @throws GroupSyncException if sending leave to server failed
+     */
+    public void stop() throws GroupSyncException {
+        setStopped();
+        mGroup.removeSchedule(this);
+        mGroup.sendAck(mId, SyncAck.Code.LEAVE, mPhase);
+    }
+
+    synchronized SyncResponse.Code awaitStart(final long timeout) {
+        final TimeUtils.StopWatch watch = new TimeUtils.StopWatch();
+        while (null == mStartCode && !mStopped && watch.hasTimeLeft(timeout)) {
+            try {
+                wait(watch.getTimeLeft(timeout));
+            } catch (final InterruptedException e) {
+                Log.w("Schedule start interrupted", e);
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return mStartCode;
+    }
+
+    synchronized void handlePhase(final int phase, final long releaseTime) {
+        if (phase <= mReleasedPhase) {
+            Log.d("Stale phase scrapped: " + phase + " " + this);
+            return;
+        }
+        mReleasedPhase = phase;
+        mReleaseTime = releaseTime;
+        notifyAll();
+    }
+
+    synchronized void handlePhaseTimeout(final int phase) {
+        Log.d("Phase " + phase + " timed out: " + this);
+        mTimedOut = true;
+        notifyAll();
+    }
+
+    synchronized void handleStartResponse(final SyncResponse.Code code, final int phase) {
+        mStartCode = code;
+        // Phases released before joining are skipped
+        if (phase > mPhase) {
+            mPhase = phase;
+            mReleasedPhase = phase - 1;
+        }
+        notifyAll();
+    }
+
+    synchronized void setStopped() {
+        mStopped = true;
+        notifyAll();
+    }
+
+    private boolean isEnded() {
+        return mStopped || mTimedOut || mPhase >= mPhases.length;
+    }
+}
@@ -17,7 +17,32 @@
 package fi.nuumio.netsync.client;
 
 public class ClientStartFailedException extends Exception {
+    private final boolean mRetryable;
+    private final long mRetryAfter;
+
     ClientStartFailedException(final String message) {
+        this(message, false, 0);
+    }
+
+    ClientStartFailedException(final String message, final boolean retryable,
+                               final long retryAfter) {
         super(message);
+        mRetryable = retryable;
+        mRetryAfter = retryAfter;
+    }
+
+    /**
+     * @return time in ms server asked client to wait before trying again, 0 if server gave none
+     */
+    public long getRetryAfter() {
+        return mRetryAfter;
+    }
+
+    /**
+     * @return true if start may succeed when tried again later, e.g. server was full or could
+     * not be reached
+     */
+    public boolean isRetryable() {
+        return mRetryable;
     }
 }
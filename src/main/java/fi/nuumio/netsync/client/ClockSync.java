@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.client;
+
+import java.io.IOException;
+
+import fi.nuumio.netsync.protocol.message.Packet;
+import fi.nuumio.netsync.protocol.message.service.ClockSyncRequest;
+import fi.nuumio.netsync.protocol.message.service.ClockSyncResponse;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.TimeUtils;
+
+import static fi.nuumio.netsync.util.Token.NULL_TOKEN;
+
+/**
+ * Estimates offset of local monotonic clock to server's clock with NTP style ping exchange.
+ * Pings are sent in bursts and the sample with smallest round trip time is used as it has the
+ * least queuing error.
+ * <p>
+ * Bursts are driven by client's IO thread. Offset may be read from any thread.
+ */
+class ClockSync {
+    private final SyncConnection mConnection;
+    private final int mSamples;
+    private final long mInterval;
+    private volatile boolean mSynced;
+    private volatile long mOffset;
+    private long mBestRtt;
+    private long mBestOffset;
+    private int mSampleCount;
+    private long mBurstStart;
+    private boolean mRunning;
+
+    ClockSync(final SyncConnection connection, final int samples, final long interval) {
+        mConnection = connection;
+        mSamples = samples;
+        mInterval = interval;
+        mSynced = false;
+        mOffset = 0;
+        mRunning = false;
+        resetBurst();
+    }
+
+    void addSample(final long clientSend, final long serverReceive, final long serverSend,
+                   final long clientReceive) {
+        mSampleCount++;
+        final long rtt = (clientReceive - clientSend) - (serverSend - serverReceive);
+        if (rtt < 0 || rtt >= mBestRtt) {
+            return;
+        }
+        mBestRtt = rtt;
+        mBestOffset = ((serverReceive - clientSend) + (serverSend - clientReceive)) / 2;
+    }
+
+    long getBestOffset() {
+        return mBestOffset;
+    }
+
+    /**
+     * @return offset in ns to add to local monotonic time to get server's time
+     */
+    long getOffset() {
+        return mOffset;
+    }
+
+    void handleResponse(final ClockSyncResponse response, final long receiveTime) {
+        if (!mRunning) {
+            return;
+        }
+        addSample(response.getClientSendTime(), response.getServerReceiveTime(),
+                response.getServerSendTime(), receiveTime);
+        if (mSampleCount < mSamples) {
+            sendRequest();
+        } else {
+            mOffset = mBestOffset;
+            mSynced = true;
+            mRunning = false;
+            Log.d("Clock synced: offset " + mOffset + " ns, rtt " + mBestRtt + " ns");
+        }
+    }
+
+    boolean isSynced() {
+        return mSynced;
+    }
+
+    /**
+     * Start new burst if previous one is old enough (or stuck).
+     */
+    void maybeResync() {
+        if (mInterval > 0 && TimeUtils.msTime() - mBurstStart >= mInterval) {
+            start();
+        }
+    }
+
+    void start() {
+        if (mSamples < 1) {
+            return;
+        }
+        resetBurst();
+        mRunning = true;
+        sendRequest();
+    }
+
+    /**
+     * @param serverTime Server's monotonic time in ns
+     * @return local monotonic time in ns matching given server time
+     */
+    long toLocalTime(final long serverTime) {
+        return serverTime - mOffset;
+    }
+
+    private void resetBurst() {
+        mBestRtt = Long.MAX_VALUE;
+        mBestOffset = 0;
+        mSampleCount = 0;
+        mBurstStart = TimeUtils.msTime();
+    }
+
+    private void sendRequest() {
+        // Clock is per connection, no need to tell which client asks
+        final Packet<ClockSyncRequest> packet = new Packet<>(ClockSyncRequest.class, NULL_TOKEN);
+        packet.getMessage().setClientSendTime(System.nanoTime());
+        try {
+            mConnection.send(packet);
+        } catch (final IOException e) {
+            Log.e("Clock sync send failed", e);
+            mRunning = false;
+        }
+    }
+}
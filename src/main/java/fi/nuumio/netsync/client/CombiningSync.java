@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import fi.nuumio.netsync.protocol.message.group.SyncType;
+import fi.nuumio.netsync.util.Log;
+
+/**
+ * Combines arrivals of local parties (threads or components of one JVM) to sync points of a
+ * group. Client arrives to server once when all local parties have arrived and the result of
+ * that arrival is given to each of them. Server sees the client as one member however many
+ * local parties sync through it.
+ * <p>
+ * Local parties must use the same sync type for the same sync point.
+ */
+public class CombiningSync {
+    private final SyncGroup mGroup;
+    private final int mParties;
+    private final HashMap<String, Round> mRounds;
+
+    /**
+     * @param group   Joined group to sync in
+     * @param parties Number of local parties arriving to each sync point
+     */
+    public CombiningSync(final SyncGroup group, final int parties) {
+        if (parties < 1) {
+            throw new IllegalArgumentException("parties must be >= 1");
+        }
+        mGroup = group;
+        mParties = parties;
+        mRounds = new HashMap<>();
+    }
+
+    /**
+     * Arrive to sync point as one of local parties. If all local parties don't arrive in timeout
+     * returned future fails with {@link GroupSyncException}.
+     *
+     * @param syncPoint Sync point id
+     * @param type      Sync type
+     * @param timeout   Timeout for local parties to arrive and for sync point in server
+     * @return Future completed with handle of combined arrival when sync finishes
+     * @throws GroupSyncException if type doesn't match other local arrivals, not joined to group
+     *                            or sending arrival failed
+     */
+    public SyncFuture<SyncHandle> arriveAsync(final String syncPoint, final SyncType type,
+                                              final long timeout) throws GroupSyncException {
+        final SyncFuture<SyncHandle> future = new SyncFuture<>();
+        final Round round;
+        synchronized (mRounds) {
+            final Round pending = mRounds.get(syncPoint);
+            if (pending != null && pending.mType != type) {
+                throw new GroupSyncException("Sync type " + type + " doesn't match local arrivals: "
+                        + pending.mType);
+            }
+            if (null == pending) {
+                round = new Round(syncPoint, type);
+                mRounds.put(syncPoint, round);
+            } else {
+                round = pending;
+            }
+            round.mFutures.add(future);
+            if (round.mFutures.size() < mParties) {
+                if (null == round.mTimeoutTask) {
+                    startTimeout(round, timeout);
+                }
+                return future;
+            }
+            mRounds.remove(syncPoint);
+        }
+        // Last local party arrives for all
+        if (round.mTimeoutTask != null) {
+            round.mTimeoutTask.cancel();
+        }
+        final SyncFuture<SyncHandle> upstream;
+        try {
+            upstream = mGroup.syncAsync(syncPoint, type, timeout);
+        } catch (final GroupSyncException e) {
+            round.fail(e);
+            throw e;
+        }
+        upstream.addListener(new SyncFuture.Listener<SyncHandle>() {
+            @Override
+            public void onComplete(final SyncFuture<SyncHandle> completed) {
+                if (completed.isSuccess()) {
+                    round.complete(getResult(completed));
+                } else {
+                    round.fail(completed.getError() != null ? completed.getError() :
+                            new GroupSyncException("Sync cancelled"));
+                }
+            }
+        });
+        return future;
+    }
+
+    public SyncGroup getGroup() {
+        return mGroup;
+    }
+
+    public int getParties() {
+        return mParties;
+    }
+
+    /**
+     * Blocking version of {@link #arriveAsync}.
+     *
+     * @return true if sync succeeded
+     * @throws GroupSyncException if type doesn't match other local arrivals, not joined to group
+     *                            or sending arrival failed
+     */
+    public boolean waitSync(final String syncPoint, final SyncType type, final long timeout)
+            throws GroupSyncException {
+        final SyncFuture<SyncHandle> future = arriveAsync(syncPoint, type, timeout);
+        // Local parties and server may both take their timeout
+        final long maxWait = timeout * 2 + mGroup.getClient().getSettings().getSyncExtraLatency();
+        try {
+            return future.get(maxWait, TimeUnit.MILLISECONDS).isSuccess();
+        } catch (final InterruptedException e) {
+            Log.w("Interrupted in combined sync", e);
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+            Log.d("Combined sync failed: " + e.getCause());
+        } catch (final TimeoutException e) {
+            Log.d("Combined sync wait timed out: " + syncPoint);
+        }
+        return false;
+    }
+
+    private static SyncHandle getResult(final SyncFuture<SyncHandle> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException | ExecutionException e) {
+            // Future is done and successful, can't happen
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void startTimeout(final Round round, final long timeout) {
+        round.mTimeoutTask = mGroup.getClient().schedule(timeout, new Runnable() {
+            @Override
+            public void run() {
+                final int arrived;
+                synchronized (mRounds) {
+                    if (mRounds.get(round.mSyncPoint) != round) {
+                        return;
+                    }
+                    mRounds.remove(round.mSyncPoint);
+                    arrived = round.mFutures.size();
+                }
+                round.fail(new GroupSyncException("Only " + arrived + " / " + mParties +
+                        " local parties arrived to " + round.mSyncPoint));
+            }
+        });
+    }
+
+    private static class Round {
+        final String mSyncPoint;
+        final SyncType mType;
+        final List<SyncFuture<SyncHandle>> mFutures;
+        Scheduler.Task mTimeoutTask;
+
+        Round(final String syncPoint, final SyncType type) {
+            mSyncPoint = syncPoint;
+            mType = type;
+            mFutures = new ArrayList<>();
+            mTimeoutTask = null;
+        }
+
+        void complete(final SyncHandle handle) {
+            for (final SyncFuture<SyncHandle> future : mFutures) {
+                future.complete(handle);
+            }
+        }
+
+        void fail(final Exception error) {
+            for (final SyncFuture<SyncHandle> future : mFutures) {
+                future.fail(error);
+            }
+        }
+    }
+}
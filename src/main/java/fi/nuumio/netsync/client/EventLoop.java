@@ -0,0 +1,220 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.client;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.LoggableThread;
+
+/**
+ * One I/O thread and selector multiplexing channels of any number of connections. All I/O,
+ * timeouts and scheduled tasks of attached connections and their clients are run in loop's
+ * thread.
+ */
+class EventLoop {
+    private final String mName;
+    private final ArrayDeque<Runnable> mTasks;
+    private final List<SyncConnection> mConnections;
+    private LoggableThread mThread;
+    private volatile Selector mSelector;
+    private volatile boolean mRunning;
+
+    EventLoop(final String name) {
+        mName = name;
+        mTasks = new ArrayDeque<>();
+        mConnections = new ArrayList<>();
+        mThread = null;
+        mSelector = null;
+        mRunning = false;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
+                mName + "]";
+    }
+
+    synchronized void attach(final SyncConnection connection) {
+        // Reconnecting connection attaches again
+        if (!mConnections.contains(connection)) {
+            mConnections.add(connection);
+        }
+    }
+
+    synchronized void detach(final SyncConnection connection) {
+        mConnections.remove(connection);
+    }
+
+    /**
+     * Run task in loop's thread. Task is run in calling thread if loop is not running.
+     *
+     * @param task Task to run
+     */
+    void execute(final Runnable task) {
+        synchronized (mTasks) {
+            if (mRunning) {
+                mTasks.add(task);
+                wakeup();
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * @return number of clients using connections attached to loop
+     */
+    synchronized int getClientCount() {
+        int count = 0;
+        for (final SyncConnection connection : mConnections) {
+            count += connection.getClientCount();
+        }
+        return count;
+    }
+
+    Selector getSelector() {
+        return mSelector;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == mThread;
+    }
+
+    boolean isRunning() {
+        return mRunning;
+    }
+
+    synchronized void start() throws IOException {
+        if (mRunning) {
+            return;
+        }
+        mSelector = Selector.open();
+        mThread = new LoggableThread(new Runnable() {
+            @Override
+            public void run() {
+                EventLoop.this.run();
+            }
+        });
+        mThread.setLoggableName(mName);
+        synchronized (mTasks) {
+            mRunning = true;
+        }
+        mThread.start();
+    }
+
+    /**
+     * Stop loop and close all connections attached to it.
+     */
+    void stop() {
+        final LoggableThread thread;
+        synchronized (this) {
+            thread = mThread;
+            synchronized (mTasks) {
+                mRunning = false;
+            }
+            wakeup();
+        }
+        if (thread != null && thread.isAlive() && !inLoop()) {
+            try {
+                thread.join();
+            } catch (final InterruptedException e) {
+                Log.w("Interrupted in event loop stop", e);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    void wakeup() {
+        final Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private synchronized List<SyncConnection> getConnections() {
+        return new ArrayList<>(mConnections);
+    }
+
+    private void run() {
+        Log.v("Event loop start: " + this);
+        try {
+            while (mRunning) {
+                runTasks();
+                long selectTimeout = Long.MAX_VALUE;
+                for (final SyncConnection connection : getConnections()) {
+                    selectTimeout = Math.min(selectTimeout, connection.getTimeToNextWork());
+                }
+                // Scheduler may have due task already, select(0) would block
+                mSelector.select(Math.max(1, selectTimeout));
+                final Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.attachment() instanceof SyncConnection) {
+                        ((SyncConnection) key.attachment()).handleKey(key);
+                    }
+                }
+                for (final SyncConnection connection : getConnections()) {
+                    connection.doHousekeeping();
+                }
+            }
+        } catch (final IOException e) {
+            Log.e("Got exception from event loop", e);
+        } finally {
+            synchronized (mTasks) {
+                mRunning = false;
+            }
+            // Tasks may close connections so run them before closing rest
+            runTasks();
+            for (final SyncConnection connection : getConnections()) {
+                connection.close();
+            }
+            try {
+                mSelector.close();
+            } catch (final IOException e) {
+                Log.w("Selector close failed", e);
+            }
+            Log.v("Event loop stop: " + this);
+            mThread.cleanUp();
+        }
+    }
+
+    private void runTasks() {
+        while (true) {
+            final Runnable task;
+            synchronized (mTasks) {
+                task = mTasks.poll();
+            }
+            if (null == task) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (final RuntimeException e) {
+                Log.e("Event loop task failed: " + this, e);
+            }
+        }
+    }
+}
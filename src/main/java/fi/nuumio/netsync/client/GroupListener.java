@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.client;
+
+import fi.nuumio.netsync.util.NodeId;
+
+/**
+ * Receives events of a {@link SyncGroup}. Registered with {@link SyncGroup#addListener} and
+ * called on the executor given there, so applications can follow group state without blocking
+ * threads. Events of one group are submitted to executor in the order they happened.
+ * <p>
+ * Override the events of interest, the rest do nothing.
+ */
+public abstract class GroupListener {
+    /**
+     * Client is no longer member of the group. It left, server closed the group or client was
+     * dropped from it.
+     *
+     * @param group Group
+     */
+    public void onClosed(final SyncGroup group) {
+    }
+
+    /**
+     * @param group      Group
+     * @param member     Member that joined, possibly this client
+     * @param membership Membership after join
+     */
+    public void onMemberJoined(final SyncGroup group, final NodeId member,
+                               final MembershipSnapshot membership) {
+    }
+
+    /**
+     * @param group      Group
+     * @param member     Member that left
+     * @param membership Membership after leave
+     */
+    public void onMemberLeft(final SyncGroup group, final NodeId member,
+                             final MembershipSnapshot membership) {
+    }
+
+    /**
+     * Arrival of this client at a sync point finished, successfully or not.
+     *
+     * @param group  Group
+     * @param result Outcome of sync
+     */
+    public void onSync(final SyncGroup group, final SyncResult result) {
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.client;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import fi.nuumio.netsync.util.NodeId;
+
+/**
+ * Immutable view of group's members at one point in time. Group publishes a new snapshot with
+ * a greater epoch each time its membership changes so snapshots can be read without locking
+ * and compared to tell if anything has changed.
+ */
+public class MembershipSnapshot {
+    static final MembershipSnapshot EMPTY = new MembershipSnapshot(0, new NodeId[0]);
+    private final long mEpoch;
+    private final Set<NodeId> mMembers;
+
+    MembershipSnapshot(final long epoch, final NodeId[] members) {
+        final Set<NodeId> set = new TreeSet<>();
+        Collections.addAll(set, members);
+        mEpoch = epoch;
+        mMembers = Collections.unmodifiableSet(set);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[#" +
+                mEpoch + mMembers + "]";
+    }
+
+    public boolean contains(final NodeId id) {
+        return mMembers.contains(id);
+    }
+
+    /**
+     * @return number of membership changes seen before this snapshot
+     */
+    public long getEpoch() {
+        return mEpoch;
+    }
+
+    /**
+     * @return unmodifiable set of members in id order
+     */
+    public Set<NodeId> getMembers() {
+        return mMembers;
+    }
+
+    public int size() {
+        return mMembers.size();
+    }
+}
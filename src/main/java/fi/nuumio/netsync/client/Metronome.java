@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.client;
+
+import fi.nuumio.netsync.protocol.message.group.SyncAck;
+import fi.nuumio.netsync.protocol.message.group.SyncNotify;
+import fi.nuumio.netsync.protocol.message.group.SyncResponse;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.TimeUtils;
+
+/**
+ * Handle to a server driven metronome. Returned by {@link SyncGroup#startMetronome}.
+ * <p>
+ * Server ticks all members following the metronome at fixed rate. Members acknowledge a tick
+ * when they have finished the step it started and each tick tells which members acknowledged
+ * the previous one. This lets members progress in lockstep without a sync round trip per step.
+ */
+public class Metronome {
+    public static final int NO_TICK = -1;
+    private static final NodeId[] NO_MEMBERS = new NodeId[0];
+    private final SyncGroup mGroup;
+    private final NodeId mSyncPoint;
+    private final long mPeriod;
+    private SyncResponse.Code mStartCode;
+    private int mLatestTick;
+    private NodeId[] mLatestAcked;
+    private long mLatestReleaseTime;
+    private int mTick;
+    private NodeId[] mAcked;
+    private int mAckedTick;
+    private boolean mStopped;
+
+    Metronome(final SyncGroup group, final NodeId syncPoint, final long period) {
+        mGroup = group;
+        mSyncPoint = syncPoint;
+        mPeriod = period;
+        mStartCode = null;
+        mLatestTick = 0;
+        mLatestAcked = NO_MEMBERS;
+        mLatestReleaseTime = SyncNotify.NO_RELEASE_TIME;
+        mTick = 0;
+        mAcked = NO_MEMBERS;
+        mAckedTick = 0;
+        mStopped = false;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
+                mSyncPoint.asString() + "#" + mTick + "/" + mPeriod + "ms]";
+    }
+
+    /**
+     * Acknowledge current tick, i.e. tell others that this member has finished its step. Does
+     * nothing if current tick is already acknowledged.
+     *
+     * @throws GroupSyncException if sending ack failed
+     */
+    public void ack() throws GroupSyncException {
+        final int tick;
+        synchronized (this) {
+            if (mStopped || mTick == mAckedTick) {
+                return;
+            }
+            tick = mTick;
+            mAckedTick = tick;
+        }
+        mGroup.sendAck(mSyncPoint, SyncAck.Code.ACK, tick);
+    }
+
+    /**
+     * Acknowledge current tick (if not already done) and wait for the next one. Ticks that
+     * arrived while not waiting are skipped so returned tick may be more than one greater than
+     * previous one.
+     *
+     * @param timeout Max time to wait in ms
+     * @return number of new tick or {@link #NO_TICK} on timeout or if metronome was stopped
+     * @throws GroupSyncException if sending ack failed
+     */
+    public int awaitTick(final long timeout) throws GroupSyncException {
+        ack();
+        final TimeUtils.StopWatch watch = new TimeUtils.StopWatch();
+        final int tick;
+        final long releaseTime;
+        synchronized (this) {
+            while (!mStopped && mLatestTick <= mTick && watch.hasTimeLeft(timeout)) {
+                try {
+                    wait(watch.getTimeLeft(timeout));
+                } catch (final InterruptedException e) {
+                    Log.w("Tick wait interrupted", e);
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (mStopped || mLatestTick <= mTick) {
+                return NO_TICK;
+            }
+            mTick = mLatestTick;
+            mAcked = mLatestAcked;
+            tick = mTick;
+            releaseTime = mLatestReleaseTime;
+        }
+        mGroup.waitRelease(releaseTime);
+        return tick;
+    }
+
+    /**
+     * @return members that acknowledged the tick before current one, ordered by their slot in
+     * group
+     */
+    public synchronized NodeId[] getAckedMembers() {
+        return mAcked;
+    }
+
+    public long getPeriod() {
+        return mPeriod;
+    }
+
+    public NodeId getSyncPoint() {
+        return mSyncPoint;
+    }
+
+    /**
+     * @return number of tick last returned by {@link #awaitTick}
+     */
+    public synchronized int getTick() {
+        return mTick;
+    }
+
+    public synchronized boolean isStopped() {
+        return mStopped;
+    }
+
+    /**
+     * Stop following metronome. Server stops ticking when last member stops.
+     *
+     * @throws GroupSyncException if sending leave to server failed
+     */
+    public void stop() throws GroupSyncException {
+        setStopped();
+        mGroup.removeMetronome(this);
+        mGroup.sendAck(mSyncPoint, SyncAck.Code.LEAVE, mTick);
+    }
+
+    synchronized SyncResponse.Code awaitStart(final long timeout) {
+        final TimeUtils.StopWatch watch = new TimeUtils.StopWatch();
+        while (null == mStartCode && !mStopped && watch.hasTimeLeft(timeout)) {
+            try {
+                wait(watch.getTimeLeft(timeout));
+            } catch (final InterruptedException e) {
+                Log.w("Metronome start interrupted", e);
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return mStartCode;
+    }
+
+    synchronized void handleStartResponse(final SyncResponse.Code code, final int tick) {
+        mStartCode = code;
+        // Ticks before joining can't be waited or acknowledged
+        if (tick > mLatestTick) {
+            mLatestTick = tick;
+            mTick = tick;
+            mAckedTick = tick;
+        }
+        notifyAll();
+    }
+
+    synchronized void handleTick(final int tick, final NodeId[] acked, final long releaseTime) {
+        if (tick <= mLatestTick) {
+            Log.d("Stale tick scrapped: " + tick + " " + this);
+            return;
+        }
+        mLatestTick = tick;
+        mLatestAcked = acked;
+        mLatestReleaseTime = releaseTime;
+        notifyAll();
+    }
+
+    synchronized void setStopped() {
+        mStopped = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.client;
+
+import java.nio.ByteBuffer;
+
+import fi.nuumio.netsync.protocol.message.Packet;
+import fi.nuumio.netsync.protocol.message.group.SyncRequest;
+import fi.nuumio.netsync.protocol.message.group.SyncType;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.Token;
+
+/**
+ * Sync point arrival prepared by {@link SyncGroup#prepare} for repeated use. Sync request is
+ * encoded once and only its sequence number is updated for each arrival once server has
+ * answered to previous one.
+ * <p>
+ * Prepared sync is not thread safe. Each thread should prepare its own.
+ */
+public class PreparedSync {
+    private final SyncGroup mGroup;
+    private final NodeId mSyncPoint;
+    private final SyncType mType;
+    private final long mTimeout;
+    private Packet<SyncRequest> mPacket;
+    private ByteBuffer mEncoded;
+    private SyncHandle mHandle;
+
+    PreparedSync(final SyncGroup group, final NodeId syncPoint, final SyncType type,
+                 final long timeout) {
+        mGroup = group;
+        mSyncPoint = syncPoint;
+        mType = type;
+        mTimeout = timeout;
+        mPacket = null;
+        mEncoded = null;
+        mHandle = null;
+    }
+
+    /**
+     * Arrive at prepared sync point without waiting for other members.
+     *
+     * @return Handle to be used with {@link SyncGroup#await}
+     * @throws GroupSyncException if not joined to group or sending arrival failed
+     * @see SyncGroup#arrive(String, SyncType, long)
+     */
+    public SyncHandle arrive() throws GroupSyncException {
+        // Rejected arrival must not touch frame that may still be sent
+        if (mGroup.isArriving(mSyncPoint)) {
+            throw new IllegalStateException("Already waiting for sync " + mSyncPoint.asString());
+        }
+        if (canPatch()) {
+            mPacket.renumber();
+            mPacket.patchSequenceNumber(mEncoded);
+        } else {
+            mPacket = mGroup.createSyncRequest(mSyncPoint, mType, mTimeout, null, null);
+            mEncoded = mPacket.encode();
+        }
+        mHandle = mGroup.arrive(mSyncPoint, mTimeout, mPacket, mEncoded);
+        return mHandle;
+    }
+
+    public String getSyncPoint() {
+        return mSyncPoint.asString();
+    }
+
+    /**
+     * @return true if previous frame can be reused. Server has answered to it only once it's
+     * written and no longer renumbered by I/O thread. Client gets new token when it registers
+     * again.
+     */
+    private boolean canPatch() {
+        final Token token = mGroup.getClient().getToken();
+        return mHandle != null && mHandle.isDone() && mHandle.isJoined() &&
+                token.equals(mPacket.getMessage().getSourceToken());
+    }
+
+    /**
+     * Arrive at prepared sync point and wait for other members.
+     *
+     * @return true if all members arrived, false on timeout, error or if group was closed
+     * @throws GroupSyncException if not joined to group or sending arrival failed
+     * @see SyncGroup#waitSync(String, SyncType, long)
+     */
+    public boolean waitSync() throws GroupSyncException {
+        return mGroup.waitSync(arrive());
+    }
+
+    /**
+     * Arrive at prepared sync point and wait for other members.
+     *
+     * @return Outcome and timing of sync
+     * @throws GroupSyncException if not joined to group or sending arrival failed
+     * @see SyncGroup#waitSyncResult(String, SyncType, long)
+     */
+    public SyncResult waitSyncResult() throws GroupSyncException {
+        final SyncHandle handle = arrive();
+        mGroup.waitSync(handle);
+        return handle.getResult();
+    }
+}
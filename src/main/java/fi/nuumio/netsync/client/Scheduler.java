@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.client;
+
+import java.util.PriorityQueue;
+
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.TimeUtils;
+
+/**
+ * Timer queue run by client's I/O thread. Drives timeouts and completions of asynchronous
+ * operations so that they don't need a waiting thread each.
+ */
+class Scheduler {
+    private final PriorityQueue<Task> mTasks;
+    private long mSequence;
+
+    Scheduler() {
+        mTasks = new PriorityQueue<>();
+        mSequence = 0;
+    }
+
+    /**
+     * @return ms until next task is due, 0 if one is due already or Long.MAX_VALUE if there are
+     * no tasks
+     */
+    synchronized long getTimeToNext() {
+        final Task task = mTasks.peek();
+        if (null == task) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, task.mTriggerTime - TimeUtils.msTime());
+    }
+
+    /**
+     * Run all tasks regardless of their trigger time. Used when I/O thread stops so that no
+     * operation is left pending.
+     */
+    void runAll() {
+        Task task;
+        while ((task = poll(Long.MAX_VALUE)) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Run tasks that are due. Tasks are run without holding scheduler's lock so they may
+     * schedule new tasks.
+     */
+    void runDue() {
+        final long now = TimeUtils.msTime();
+        Task task;
+        while ((task = poll(now)) != null) {
+            task.run();
+        }
+    }
+
+    synchronized Task schedule(final long delayMs, final Runnable runnable) {
+        if (delayMs < 0) {
+            throw new IllegalArgumentException("Task delay must be >= 0");
+        }
+        final Task task = new Task(TimeUtils.msTime() + delayMs, mSequence++, runnable);
+        mTasks.add(task);
+        return task;
+    }
+
+    private synchronized Task poll(final long now) {
+        final Task task = mTasks.peek();
+        if (null == task || task.mTriggerTime > now) {
+            return null;
+        }
+        return mTasks.poll();
+    }
+
+    static class Task implements Comparable<Task> {
+        private final long mTriggerTime;
+        private final long mSequence;
+        private final Runnable mRunnable;
+        private volatile boolean mCancelled;
+
+        private Task(final long triggerTime, final long sequence, final Runnable runnable) {
+            mTriggerTime = triggerTime;
+            mSequence = sequence;
+            mRunnable = runnable;
+            mCancelled = false;
+        }
+
+        @Override
+        public int compareTo(final Task other) {
+            if (mTriggerTime != other.mTriggerTime) {
+                return mTriggerTime > other.mTriggerTime ? 1 : -1;
+            } else if (mSequence != other.mSequence) {
+                return mSequence > other.mSequence ? 1 : -1;
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
+                    "mTriggerTime=" + mTriggerTime +
+                    ",mCancelled=" + mCancelled +
+                    "]";
+        }
+
+        /**
+         * Cancel task. Cancelled task is dropped when it's due.
+         */
+        void cancel() {
+            mCancelled = true;
+        }
+
+        boolean isCancelled() {
+            return mCancelled;
+        }
+
+        private void run() {
+            if (mCancelled) {
+                return;
+            }
+            try {
+                mRunnable.run();
+            } catch (final RuntimeException e) {
+                Log.e("Scheduled task failed: " + this, e);
+            }
+        }
+    }
+}
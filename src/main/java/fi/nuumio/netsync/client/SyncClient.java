@@ -17,15 +17,15 @@
 package fi.nuumio.netsync.client;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.Iterator;
-
-import fi.nuumio.netsync.protocol.MessageHandler;
-import fi.nuumio.netsync.protocol.Messenger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
 import fi.nuumio.netsync.protocol.message.Message;
 import fi.nuumio.netsync.protocol.message.Packet;
 import fi.nuumio.netsync.protocol.message.Request;
@@ -34,64 +34,92 @@ import fi.nuumio.netsync.protocol.message.group.JoinResponse;
 import fi.nuumio.netsync.protocol.message.group.LeaveResponse;
 import fi.nuumio.netsync.protocol.message.group.SyncNotify;
 import fi.nuumio.netsync.protocol.message.group.SyncResponse;
-import fi.nuumio.netsync.protocol.message.service.RegisterRequest;
 import fi.nuumio.netsync.protocol.message.service.RegisterResponse;
 import fi.nuumio.netsync.util.ClientSettings;
 import fi.nuumio.netsync.util.Log;
-import fi.nuumio.netsync.util.LoggableThread;
 import fi.nuumio.netsync.util.NodeId;
 import fi.nuumio.netsync.util.TimeUtils;
 import fi.nuumio.netsync.util.Token;
 
-import static fi.nuumio.netsync.protocol.Messenger.ReadMessageResult.CLOSE;
 import static fi.nuumio.netsync.util.Token.NULL_TOKEN;
 
 /**
  * SyncClient client is the main class for satisfying your synchronization needs.
  * <p>
  * Create new SyncClient, start(), createGroup(), join(), and waitSync().
+ * <p>
+ * Each client runs its I/O in its own thread unless it's given a {@link SyncClientRuntime} to
+ * share with other clients. Clients may also share one {@link SyncConnection} to server.
  */
 public class SyncClient {
     private final NodeId mClientId;
     private final ClientSettings mSettings;
-    private final String mServerAddress;
-    private final int mServerPort;
-    private final LoggableThread mThread;
-    private final HashMap<NodeId, SyncGroup> mGroups;
+    private final SyncConnection mConnection;
+    // Groups are created by application threads and looked up by I/O thread
+    private final Map<NodeId, SyncGroup> mGroups;
+    private final Scheduler mScheduler;
+    private volatile List<SyncGroup> mBootstrapGroups;
     private volatile RegisterResponse.Code mRegistrationStatus;
+    private volatile long mRetryAfter;
     private volatile boolean mMainLoopRunning;
-    private Token mToken;
-    private SelectionKey mMainKey;
-    private Messenger<? extends Message> mMessenger;
-    private SocketChannel mChannel;
-    private Selector mSelector;
+    private volatile Token mToken;
+    private volatile Token mResumeToken;
 
     public SyncClient(final String serverAddress, final NodeId id, final ClientSettings settings) {
+        this(serverAddress, id, settings, null);
+    }
+
+    /**
+     * Create client that runs in given runtime's threads.
+     *
+     * @param serverAddress Server address
+     * @param id            Client id
+     * @param settings      Client settings
+     * @param runtime       Runtime shared with other clients or null to run client in its own
+     *                      thread
+     */
+    public SyncClient(final String serverAddress, final NodeId id, final ClientSettings settings,
+                      final SyncClientRuntime runtime) {
+        this(new String[]{serverAddress}, id, settings, runtime);
+    }
+
+    /**
+     * Create client that fails over between servers. Client connects to first server address
+     * that answers.
+     *
+     * @param serverAddresses Server addresses in preferred order
+     * @param id              Client id
+     * @param settings        Client settings
+     * @param runtime         Runtime shared with other clients or null to run client in its own
+     *                        thread
+     */
+    public SyncClient(final String[] serverAddresses, final NodeId id,
+                      final ClientSettings settings, final SyncClientRuntime runtime) {
+        this(id, new SyncConnection(serverAddresses, settings, runtime, "SyncClient-" + id));
+    }
+
+    /**
+     * Create client that registers over given connection. Connection's settings are used.
+     *
+     * @param id         Client id
+     * @param connection Connection shared with other clients
+     */
+    public SyncClient(final NodeId id, final SyncConnection connection) {
         mClientId = id;
-        mSettings = settings;
-        mServerAddress = serverAddress;
-        mServerPort = mSettings.getServerPort();
-        mThread = new LoggableThread(new Runnable() {
-            @Override
-            public void run() {
-                SyncClient.this.run();
-            }
-        });
-        mThread.setLoggableName(mThread.getName() + "-" + id);
-        mGroups = new HashMap<>();
+        mSettings = connection.getSettings();
+        mConnection = connection;
+        mGroups = new ConcurrentHashMap<>();
+        mScheduler = new Scheduler();
+        mBootstrapGroups = Collections.emptyList();
         mRegistrationStatus = null;
         mMainLoopRunning = false;
         mToken = NULL_TOKEN;
-        mMainKey = null;
-        mMessenger = null;
-        mChannel = null;
-        mSelector = null;
+        mResumeToken = NULL_TOKEN;
     }
 
     public SyncGroup createGroup(final NodeId groupId, final Token groupToken) {
-        SyncGroup group;
-        if (mGroups.containsKey(groupId)) {
-            group = mGroups.get(groupId);
+        SyncGroup group = mGroups.get(groupId);
+        if (group != null) {
             if (groupToken.equals(group.getToken())) {
                 // We already have joined this group
                 return group;
@@ -110,70 +138,115 @@ public class SyncClient {
         return group;
     }
 
+    /**
+     * @return estimated offset in ns from local monotonic clock to server's clock
+     */
+    public long getClockOffset() {
+        return mConnection.getClockOffset();
+    }
+
     public NodeId getId() {
         return mClientId;
     }
 
+    /**
+     * @return true if clock offset to server has been estimated and sync points can be released
+     * at scheduled time
+     */
+    public boolean isClockSynced() {
+        return mConnection.isClockSynced();
+    }
+
     public boolean isRegistered() {
-        return RegisterResponse.Code.ACCEPTED == mRegistrationStatus;
+        return RegisterResponse.Code.ACCEPTED == mRegistrationStatus ||
+                RegisterResponse.Code.RESUMED == mRegistrationStatus;
     }
 
+    /**
+     * Register client to server. If server is full or can't be reached start is retried with
+     * growing, randomized delays for up to clientStartRetryTimeout ms. Delays are at least what
+     * server asked for and client turns to server's alternate address if it gave one.
+     *
+     * @throws ClientStartFailedException if registration failed
+     */
     public void start() throws ClientStartFailedException {
-        Log.d("Starting client " + this);
-        clearRegistration();
-        mMainLoopRunning = true;
-        mThread.start();
+        final long retryTimeout = mSettings.getClientStartRetryTimeout();
         final TimeUtils.StopWatch watch = new TimeUtils.StopWatch();
-        boolean interrupted = false;
-        while (isRegistering() && watch.hasTimeLeft(mSettings.getClientRegisterTimeout())) {
+        Backoff backoff = null;
+        while (true) {
             try {
-                synchronized (this) {
-                    wait(watch.getTimeLeft(mSettings.getClientRegisterTimeout()));
+                startOnce();
+                return;
+            } catch (final ClientStartFailedException e) {
+                if (!e.isRetryable() || !watch.hasTimeLeft(retryTimeout)) {
+                    throw e;
+                }
+                if (null == backoff) {
+                    backoff = new Backoff(mSettings.getClientStartRetryBaseDelay(),
+                            mSettings.getClientStartRetryMaxDelay(), new Random());
+                }
+                final long delay = backoff.next(e.getRetryAfter());
+                if (delay >= watch.getTimeLeft(retryTimeout)) {
+                    throw e;
+                }
+                Log.d("Start failed (" + e.getMessage() + "), retrying in " + delay + " ms: " +
+                        this);
+                try {
+                    Thread.sleep(delay);
+                } catch (final InterruptedException ie) {
+                    Log.w("Interrupted in start", ie);
+                    Thread.currentThread().interrupt();
+                    throw e;
                 }
-            } catch (final InterruptedException e) {
-                Log.w("Interrupted in start", e);
-                interrupted = true;
-                Thread.currentThread().interrupt();
             }
         }
-        if (!isRegistered()) {
-            stop();
-            if (interrupted) {
-                throw new ClientStartFailedException(
-                        "Registration failure: Interrupted");
-            } else if (getRegistrationStatus() != null) {
-                throw new ClientStartFailedException
-                        ("Registration failure: " + getRegistrationStatus());
-            } else {
-                throw new ClientStartFailedException
-                        ("Registration failure: Connection lost. Server full?");
+    }
+
+    /**
+     * Start client and join given groups in the same round trip as registration. Groups are
+     * created with {@link #createGroup} before calling this. Members of joined groups are known
+     * when this returns.
+     *
+     * @param groups Groups to join
+     * @throws ClientStartFailedException if registration failed
+     * @throws GroupJoinException         if joining some group failed
+     */
+    public void startAndJoin(final SyncGroup... groups)
+            throws ClientStartFailedException, GroupJoinException {
+        for (final SyncGroup group : groups) {
+            if (mGroups.get(group.getId()) != group) {
+                throw new IllegalArgumentException("Group not created by this client: " + group);
             }
         }
-        Log.d("Started client " + this);
+        mBootstrapGroups = Arrays.asList(groups);
+        try {
+            start();
+        } finally {
+            mBootstrapGroups = Collections.emptyList();
+        }
+        for (final SyncGroup group : groups) {
+            group.finishBootstrapJoin();
+        }
     }
 
     public void stop() {
         Log.d("Stopping client " + this);
         mRegistrationStatus = null;
-        if (mMainKey != null) {
-            mMainKey.cancel();
-        }
-        if (mChannel != null && mChannel.isOpen()) {
-            try {
-                mChannel.close();
-            } catch (final IOException e) {
-                Log.w("Channel close failed when stopping", e);
-            }
-        }
-        if (mThread.isAlive()) {
-            try {
-                mThread.join();
-            } catch (final InterruptedException e) {
-                Log.w("Interrupted in stop", e);
-                Thread.currentThread().interrupt();
+        mConnection.detach(this);
+        if (!mConnection.inLoop()) {
+            synchronized (this) {
+                while (mMainLoopRunning) {
+                    try {
+                        wait(mSettings.getClientSelectTimeout());
+                    } catch (final InterruptedException e) {
+                        Log.w("Interrupted in stop", e);
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
             }
+            mConnection.maybeStopRuntime();
         }
-        mThread.cleanUp();
         Log.d("Stopped client " + this);
     }
 
@@ -183,107 +256,96 @@ public class SyncClient {
     }
 
     void cancel(Packet<? extends Request> packet) {
-        mMessenger.cancel(packet);
+        mConnection.cancel(packet);
     }
 
-    ClientSettings getSettings() {
-        return mSettings;
+    /**
+     * Mark client stopped after it's removed from its connection. Run in event loop's thread.
+     */
+    void close() {
+        mToken = NULL_TOKEN;
+        if (mMainLoopRunning) {
+            Log.v("Main loop stop for client " + this);
+        }
+        mMainLoopRunning = false;
+        // Time out pending asynchronous operations now that nothing completes them
+        mScheduler.runAll();
+        synchronized (this) {
+            notifyAll();
+        }
     }
 
-    Token getToken() {
-        return mToken;
+    /**
+     * Do periodic work of client. Run in event loop's thread after each select.
+     */
+    void doHousekeeping() {
+        mScheduler.runDue();
     }
 
-    void send(Packet<? extends Message> packet) throws IOException {
-        mMessenger.send(packet);
+    /**
+     * @return groups to join in register request, empty if none
+     */
+    List<SyncGroup> getBootstrapGroups() {
+        return mBootstrapGroups;
     }
 
-    private void clearRegistration() {
-        mRegistrationStatus = null;
+    ClientSettings getSettings() {
+        return mSettings;
     }
 
-    private void doConnect() throws IOException {
-        final InetSocketAddress serverAddress = new InetSocketAddress(mServerAddress, mServerPort);
-        mChannel.configureBlocking(false);
-        mChannel.connect(serverAddress);
-        mChannel.register(mSelector, SelectionKey.OP_CONNECT);
-
-        if (mSelector.select(mSettings.getClientConnectTimeout()) < 1) {
-            mChannel.close();
-            throw new IOException("Connection timed out");
-        }
-
-        // We should have only one key but let's loop anyway
-        final Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
-        while (keys.hasNext()) {
-            final SelectionKey key = keys.next();
-            keys.remove();
-            if (!key.isConnectable()) {
-                continue;
-            }
-            final SocketChannel connectedChannel = (SocketChannel) key.channel();
-            if (connectedChannel.isConnectionPending()) {
-                connectedChannel.finishConnect();
-                connectedChannel.configureBlocking(false);
-            }
-        }
+    /**
+     * @return ms until client has work to do in event loop
+     */
+    long getTimeToNextWork() {
+        return mScheduler.getTimeToNext();
+    }
 
-        // New our channel should be connected
-        if (!mChannel.isConnected()) {
-            throw new IOException("Connect failed");
-        }
-        mMessenger = new Messenger<>(mChannel);
-        setHandlers();
-    }
-
-    private void doSelect() throws IOException {
-        mMainKey = mChannel.register(mSelector, SelectionKey.OP_READ);
-        mMainKey.attach(mMessenger);
-        while (mMainKey.isValid()) {
-            mSelector.select(mSettings.getClientSelectTimeout());
-            final Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
-            while (keys.hasNext()) {
-                SelectionKey key = keys.next();
-                keys.remove();
-                if (!key.isReadable()) {
-                    continue;
-                }
-                if (key.attachment() == mMessenger && mMessenger.read() == CLOSE) {
-                    Log.v("Client closing: " + this);
-                    mChannel.close();
-                }
-            }
-        }
+    /**
+     * @return token to resume registration with after reconnect or NULL_TOKEN if client has not
+     * registered
+     */
+    Token getResumeToken() {
+        return mResumeToken;
     }
 
-    private RegisterResponse.Code getRegistrationStatus() {
-        return mRegistrationStatus;
+    Token getToken() {
+        return mToken;
     }
 
-    private void handleGroupNotify(final Packet<GroupNotify> packet) {
+    void handleGroupNotify(final Packet<GroupNotify> packet) {
         Log.v("Got group notify: " + packet);
         final NodeId groupId = packet.getMessage().getGroupId();
         final Token groupToken = packet.getMessage().getGroupToken();
+        final GroupNotify.Code code = packet.getMessage().getNotifyCode();
         final NodeId[] members = packet.getMessage().getMembers();
-        if (mGroups.containsKey(groupId)) {
-            final SyncGroup group = mGroups.get(groupId);
-            if (group.getToken().equals(groupToken)) {
-                group.setMembers(members);
-            } else {
+        final SyncGroup group = mGroups.get(groupId);
+        if (group != null) {
+            if ((!group.isJoined() || group.isLeaving() || group.isRejoining()) &&
+                    !Arrays.asList(members).contains(mClientId)) {
+                // Notify is for other clients of our connection, our join or leave response
+                // follows
+                Log.v("Notify to group not joined scrapped: " + groupId);
+            } else if (!group.getToken().equals(groupToken)) {
                 Log.e("Notify to unauthorized group: " + groupId);
+            } else if (GroupNotify.Code.JOIN == code) {
+                group.addMembers(members);
+            } else if (GroupNotify.Code.LEAVE == code) {
+                group.removeMembers(members);
+            } else {
+                group.setMembers(members);
             }
         } else {
             Log.e("Notify to unknown group: " + groupId);
         }
     }
 
-    private void handleJoinResponse(final Packet<JoinResponse> packet) {
+    void handleJoinResponse(final Packet<JoinResponse> packet) {
         Log.v("Got join response: " + packet + ": " + packet.getMessage().getCode());
         final NodeId groupId = packet.getMessage().getGroupId();
         final Token groupToken = packet.getMessage().getGroupToken();
         final JoinResponse.Code result = packet.getMessage().getCode();
-        if (mGroups.containsKey(groupId)) {
-            final SyncGroup group = mGroups.get(groupId);
+        final SyncGroup group = mGroups.get(groupId);
+        if (group != null) {
             if (group.getToken().equals(groupToken)) {
                 group.setJoinStatus(result);
             } else {
@@ -294,12 +356,12 @@ public class SyncClient {
         }
     }
 
-    private void handleLeaveResponse(final Packet<LeaveResponse> packet) {
+    void handleLeaveResponse(final Packet<LeaveResponse> packet) {
         Log.v("Got leave response: " + packet + ": " + packet.getMessage().getCode());
         final NodeId groupId = packet.getMessage().getGroupId();
         final Token groupToken = packet.getMessage().getGroupToken();
-        if (mGroups.containsKey(groupId)) {
-            final SyncGroup group = mGroups.get(groupId);
+        final SyncGroup group = mGroups.get(groupId);
+        if (group != null) {
             if (group.getToken().equals(groupToken)) {
                 group.setJoinStatus(null);
             } else {
@@ -310,26 +372,35 @@ public class SyncClient {
         }
     }
 
-    private void handleRegisterResponse(final Packet<RegisterResponse> packet) {
+    void handleRegisterResponse(final Packet<RegisterResponse> packet) {
         Log.v("Got register response: " + packet + ": " + packet.getMessage().getCode() +
                 " / " + packet.getMessage().getClientToken());
         mToken = packet.getMessage().getClientToken();
+        mRetryAfter = packet.getMessage().getRetryAfter();
+        final String alternateServer = packet.getMessage().getAlternateServer();
+        if (!alternateServer.isEmpty()) {
+            Log.d("Server suggests " + alternateServer + " instead: " + this);
+            mConnection.setAlternateServer(alternateServer);
+        }
         mRegistrationStatus = packet.getMessage().getCode();
+        if (isRegistered()) {
+            mResumeToken = packet.getMessage().getResumeToken();
+            handleBootstrapJoins(packet.getMessage());
+        }
         synchronized (this) {
             this.notifyAll();
         }
     }
 
-    private void handleSyncNotify(final Packet<SyncNotify> packet) {
+    void handleSyncNotify(final Packet<SyncNotify> packet) {
         Log.v("Got sync notify: " + packet);
-        final NodeId syncPoint = packet.getMessage().getSyncPoint();
-        final SyncNotify.Code code = packet.getMessage().getSyncCode();
-        final NodeId groupId = packet.getMessage().getGroupId();
-        final Token groupToken = packet.getMessage().getGroupToken();
-        if (mGroups.containsKey(groupId)) {
-            final SyncGroup group = mGroups.get(groupId);
+        final SyncNotify notify = packet.getMessage();
+        final NodeId groupId = notify.getGroupId();
+        final Token groupToken = notify.getGroupToken();
+        final SyncGroup group = mGroups.get(groupId);
+        if (group != null) {
             if (group.getToken().equals(groupToken)) {
-                group.handleSyncPointNotify(syncPoint, code);
+                group.handleSyncPointNotify(notify);
             } else {
                 Log.e("Sync notify to unauthorized group: " + groupId);
             }
@@ -338,16 +409,15 @@ public class SyncClient {
         }
     }
 
-    private void handleSyncResponse(Packet<SyncResponse> packet) {
+    void handleSyncResponse(Packet<SyncResponse> packet) {
         Log.v("Got sync response: " + packet);
-        final NodeId syncPoint = packet.getMessage().getSyncPoint();
-        final SyncResponse.Code code = packet.getMessage().getCode();
-        final NodeId groupId = packet.getMessage().getGroupId();
-        final Token groupToken = packet.getMessage().getGroupToken();
-        if (mGroups.containsKey(groupId)) {
-            final SyncGroup group = mGroups.get(groupId);
+        final SyncResponse response = packet.getMessage();
+        final NodeId groupId = response.getGroupId();
+        final Token groupToken = response.getGroupToken();
+        final SyncGroup group = mGroups.get(groupId);
+        if (group != null) {
             if (group.getToken().equals(groupToken)) {
-                group.handleSyncPointResponse(syncPoint, code);
+                group.handleSyncPointResponse(response);
             } else {
                 Log.e("Sync response to unauthorized group: " + groupId);
             }
@@ -356,76 +426,186 @@ public class SyncClient {
         }
     }
 
-    private boolean isRegistering() {
-        return null == mRegistrationStatus && mMainLoopRunning;
+    boolean hasGroup(final NodeId groupId) {
+        return mGroups.containsKey(groupId);
     }
 
-    private void run() {
-        try (
-                final SocketChannel channel = SocketChannel.open();
-                final Selector selector = Selector.open()
-        ) {
-            mChannel = channel;
-            mSelector = selector;
-            doConnect();
-            Log.v("Registering client " + this);
-            sendRegister();
-            Log.v("Main loop start for client " + this);
-            doSelect();
-            Log.v("Main loop stop for client " + this);
-        } catch (final IOException e) {
-            Log.e("Got exception from main loop", e);
-        } finally {
-            mMainLoopRunning = false;
-            synchronized (this) {
-                notifyAll();
-            }
+    boolean isClockSyncing() {
+        return mSettings.getClientClockSyncSamples() > 0 && !mConnection.isClockSynced() &&
+                mMainLoopRunning;
+    }
+
+
+    /**
+     * Wake up start() waiting for clock sync. Run in event loop's thread.
+     */
+    void onClockSynced() {
+        synchronized (this) {
+            notifyAll();
         }
     }
 
-    private void sendRegister() throws IOException {
-        Packet<RegisterRequest> message = new Packet<>(RegisterRequest.class, mToken);
-        RegisterRequest request = message.getMessage();
-        request.setClientId(mClientId);
-        send(message);
+    /**
+     * Join groups again after client registered anew over a new connection. Run in event loop's
+     * thread.
+     */
+    void replayGroups() {
+        Log.d("Replaying groups of reconnected client " + this);
+        for (final SyncGroup group : getGroups()) {
+            group.replayJoin();
+        }
     }
 
-    private void setHandlers() {
-        mMessenger.setHandler(new MessageHandler<RegisterResponse>(RegisterResponse.class) {
-            @Override
-            public void handleMessage(final Packet<RegisterResponse> packet) {
-                handleRegisterResponse(packet);
-            }
-        });
-        mMessenger.setHandler(new MessageHandler<JoinResponse>(JoinResponse.class) {
-            @Override
-            public void handleMessage(final Packet<JoinResponse> packet) {
-                handleJoinResponse(packet);
-            }
-        });
-        mMessenger.setHandler(new MessageHandler<LeaveResponse>(LeaveResponse.class) {
-            @Override
-            public void handleMessage(final Packet<LeaveResponse> packet) {
-                handleLeaveResponse(packet);
+    /**
+     * Arrive again to pending sync points after {@link #replayGroups()}. Run in event loop's
+     * thread.
+     */
+    void replaySyncs() {
+        for (final SyncGroup group : getGroups()) {
+            group.replaySyncs();
+        }
+    }
+
+    /**
+     * Prepare pending arrivals for messages server buffered while client's connection was lost.
+     * Run in event loop's thread.
+     */
+    void resumeSyncs() {
+        for (final SyncGroup group : getGroups()) {
+            group.resumeSyncs();
+        }
+    }
+
+    /**
+     * Schedule task to be run by client's I/O thread.
+     *
+     * @param delayMs  Delay in ms
+     * @param runnable Task to run
+     * @return Scheduled task that can be cancelled
+     */
+    Scheduler.Task schedule(final long delayMs, final Runnable runnable) {
+        final Scheduler.Task task = mScheduler.schedule(delayMs, runnable);
+        if (!mMainLoopRunning) {
+            // Nobody would run it
+            mScheduler.runAll();
+        } else {
+            mConnection.wakeup();
+        }
+        return task;
+    }
+
+    void send(Packet<? extends Message> packet) throws IOException {
+        mConnection.send(packet);
+    }
+
+    void send(final Packet<? extends Message> packet, final ByteBuffer encoded)
+            throws IOException {
+        mConnection.send(packet, encoded);
+    }
+
+    /**
+     * @param serverTime Server's monotonic time in ns
+     * @return matching local System.nanoTime() time or SyncNotify.NO_RELEASE_TIME if clock is not
+     * synced
+     */
+    long toLocalTime(final long serverTime) {
+        return mConnection.toLocalTime(serverTime);
+    }
+
+    private void clearRegistration() {
+        mRegistrationStatus = null;
+        mRetryAfter = 0;
+        mResumeToken = NULL_TOKEN;
+    }
+
+    private List<SyncGroup> getGroups() {
+        return new ArrayList<>(mGroups.values());
+    }
+
+    /**
+     * Set join results and members of groups joined in register request. Run in event loop's
+     * thread.
+     */
+    private void handleBootstrapJoins(final RegisterResponse response) {
+        final List<SyncGroup> groups = mBootstrapGroups;
+        final JoinResponse.Code[] codes = response.getJoinCodes();
+        final NodeId[][] members = response.getMembers();
+        // Server that doesn't know bootstrap joins returns no results, groups are joined later
+        for (int i = 0; i < Math.min(groups.size(), codes.length); i++) {
+            final SyncGroup group = groups.get(i);
+            group.setJoinStatus(codes[i]);
+            if (JoinResponse.Code.ACCEPTED == codes[i]) {
+                group.setMembers(members[i]);
             }
-        });
-        mMessenger.setHandler(new MessageHandler<GroupNotify>(GroupNotify.class) {
-            @Override
-            public void handleMessage(final Packet<GroupNotify> packet) {
-                handleGroupNotify(packet);
+        }
+        mBootstrapGroups = Collections.emptyList();
+    }
+
+    private RegisterResponse.Code getRegistrationStatus() {
+        return mRegistrationStatus;
+    }
+
+    private boolean isRegistering() {
+        return null == mRegistrationStatus && mMainLoopRunning;
+    }
+
+    private void startOnce() throws ClientStartFailedException {
+        Log.d("Starting client " + this);
+        clearRegistration();
+        mMainLoopRunning = true;
+        try {
+            mConnection.attach(this);
+        } catch (final IOException e) {
+            Log.e("Event loop start failed", e);
+            mMainLoopRunning = false;
+            throw new ClientStartFailedException("Event loop start failed: " + e.getMessage());
+        }
+        final TimeUtils.StopWatch watch = new TimeUtils.StopWatch();
+        boolean interrupted = false;
+        while (isRegistering() && watch.hasTimeLeft(mSettings.getClientRegisterTimeout())) {
+            try {
+                synchronized (this) {
+                    wait(watch.getTimeLeft(mSettings.getClientRegisterTimeout()));
+                }
+            } catch (final InterruptedException e) {
+                Log.w("Interrupted in start", e);
+                interrupted = true;
+                Thread.currentThread().interrupt();
             }
-        });
-        mMessenger.setHandler(new MessageHandler<SyncResponse>(SyncResponse.class) {
-            @Override
-            public void handleMessage(final Packet<SyncResponse> packet) {
-                handleSyncResponse(packet);
+        }
+        // Wait for initial clock offset estimation so that first sync is released on time. Client
+        // works without it too, just with less accurate release.
+        while (isRegistered() && isClockSyncing() &&
+                watch.hasTimeLeft(mSettings.getClientRegisterTimeout())) {
+            try {
+                synchronized (this) {
+                    wait(watch.getTimeLeft(mSettings.getClientRegisterTimeout()));
+                }
+            } catch (final InterruptedException e) {
+                Log.w("Interrupted in start", e);
+                interrupted = true;
+                Thread.currentThread().interrupt();
+                break;
             }
-        });
-        mMessenger.setHandler(new MessageHandler<SyncNotify>(SyncNotify.class) {
-            @Override
-            public void handleMessage(final Packet<SyncNotify> packet) {
-                handleSyncNotify(packet);
+        }
+        if (isRegistered() && isClockSyncing()) {
+            Log.w("Clock sync not ready at start: " + this);
+        }
+        if (!isRegistered()) {
+            final RegisterResponse.Code status = getRegistrationStatus();
+            final long retryAfter = mRetryAfter;
+            stop();
+            if (interrupted) {
+                throw new ClientStartFailedException(
+                        "Registration failure: Interrupted");
+            } else if (status != null) {
+                throw new ClientStartFailedException("Registration failure: " + status,
+                        RegisterResponse.Code.SERVER_FULL == status, retryAfter);
+            } else {
+                throw new ClientStartFailedException(
+                        "Registration failure: Connection lost. Server full?", true, 0);
             }
-        });
+        }
+        Log.d("Started client " + this);
     }
 }
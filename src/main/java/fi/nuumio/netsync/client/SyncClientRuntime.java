@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.client;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event loop group shared by SyncClients. By default each SyncClient has its own I/O thread and
+ * selector. Clients created with a runtime share runtime's threads instead so that a large
+ * number of clients can run in one JVM with only a handful of threads.
+ * <p>
+ * Clients are assigned to runtime's loops round-robin when they start. Loops are started when
+ * first client needs them. Callbacks of clients (e.g. {@link SyncFuture} listeners) are run in
+ * loop's thread and block all clients of that loop while running.
+ */
+public class SyncClientRuntime {
+    private static final AtomicInteger sRuntimeCount = new AtomicInteger();
+    private final EventLoop[] mLoops;
+    private int mNext;
+
+    /**
+     * @param threads Number of I/O threads
+     */
+    public SyncClientRuntime(final int threads) {
+        this("SyncClientRuntime-" + sRuntimeCount.incrementAndGet(), threads);
+    }
+
+    SyncClientRuntime(final String name, final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1");
+        }
+        mLoops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            mLoops[i] = new EventLoop(threads > 1 ? name + "-" + i : name);
+        }
+        mNext = 0;
+    }
+
+    /**
+     * @return number of clients currently running in this runtime
+     */
+    public int getClientCount() {
+        int count = 0;
+        for (final EventLoop loop : mLoops) {
+            count += loop.getClientCount();
+        }
+        return count;
+    }
+
+    public int getThreadCount() {
+        return mLoops.length;
+    }
+
+    /**
+     * Stop all threads of runtime. Clients still running in it are closed.
+     */
+    public void stop() {
+        for (final EventLoop loop : mLoops) {
+            loop.stop();
+        }
+    }
+
+    /**
+     * @return next loop for a starting client, started if not running already
+     * @throws IOException if loop's selector could not be opened
+     */
+    synchronized EventLoop nextLoop() throws IOException {
+        final EventLoop loop = mLoops[mNext];
+        mNext = (mNext + 1) % mLoops.length;
+        loop.start();
+        return loop;
+    }
+}
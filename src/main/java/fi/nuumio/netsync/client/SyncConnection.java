@@ -0,0 +1,894 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import fi.nuumio.netsync.protocol.MessageHandler;
+import fi.nuumio.netsync.protocol.Messenger;
+import fi.nuumio.netsync.protocol.message.Message;
+import fi.nuumio.netsync.protocol.message.Packet;
+import fi.nuumio.netsync.protocol.message.Request;
+import fi.nuumio.netsync.protocol.message.Response;
+import fi.nuumio.netsync.protocol.message.group.GroupNotify;
+import fi.nuumio.netsync.protocol.message.group.JoinResponse;
+import fi.nuumio.netsync.protocol.message.group.LeaveResponse;
+import fi.nuumio.netsync.protocol.message.group.SyncNotify;
+import fi.nuumio.netsync.protocol.message.group.SyncResponse;
+import fi.nuumio.netsync.protocol.message.service.ClockSyncResponse;
+import fi.nuumio.netsync.protocol.message.service.RegisterRequest;
+import fi.nuumio.netsync.protocol.message.service.RegisterResponse;
+import fi.nuumio.netsync.protocol.message.service.Unregister;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.TimeUtils;
+import fi.nuumio.netsync.util.Token;
+
+import static fi.nuumio.netsync.protocol.Messenger.ReadMessageResult.CLOSE;
+import static fi.nuumio.netsync.util.Token.NULL_TOKEN;
+
+/**
+ * Connection to server shared by SyncClients. Each client registers its own id over the
+ * connection and server addresses client's group messages by client's token, so co-located
+ * clients need only one socket and one clock sync.
+ * <p>
+ * Connection is opened when first client starts and closed when last one stops. SyncClient
+ * created without a connection gets a connection of its own.
+ * <p>
+ * Connection may be given several server addresses. They are tried in order, or shuffled, with
+ * a new attempt started every connect attempt delay while earlier ones are pending or at once
+ * when one fails. First attempt to connect wins and the rest are closed.
+ * <p>
+ * Lost connection is opened again with growing delay until reconnect timeout. Clients then resume
+ * their registrations. If server has already dropped them they register anew and replay their
+ * group memberships and pending arrivals.
+ * <p>
+ * Only event loop's thread writes to channel. Packets sent from other threads are queued and
+ * loop is woken up to write them.
+ */
+public class SyncConnection {
+    private final ClientSettings mSettings;
+    private final String[] mServerAddresses;
+    private final int mServerPort;
+    private final SyncClientRuntime mRuntime;
+    private final boolean mOwnRuntime;
+    private final List<SyncClient> mClients;
+    private final HashMap<Token, SyncClient> mRegistered;
+    private final HashMap<RegisterRequest, SyncClient> mRegistering;
+    private final List<SyncClient> mReconnected;
+    // Pending connect attempts and the addresses they connect to
+    private final HashMap<SelectionKey, InetSocketAddress> mAttempts;
+    private final ClockSync mClockSync;
+    private final Scheduler mScheduler;
+    private final ConcurrentLinkedQueue<Outbound> mOutbound;
+    // Set when loop has been woken up to write queued packets
+    private final AtomicBoolean mFlushPending;
+    private volatile EventLoop mLoop;
+    private SelectionKey mKey;
+    private volatile Messenger<? extends Message> mMessenger;
+    private volatile String mAlternateServer;
+    private SocketChannel mChannel;
+    // Addresses not yet tried while connecting, null when not connecting
+    private ArrayDeque<InetSocketAddress> mEndpoints;
+    private TimeUtils.StopWatch mReconnectWatch;
+    private long mReconnectDelay;
+
+    public SyncConnection(final String serverAddress, final ClientSettings settings) {
+        this(serverAddress, settings, null);
+    }
+
+    /**
+     * Create connection that runs in given runtime's threads.
+     *
+     * @param serverAddress Server address
+     * @param settings      Client settings
+     * @param runtime       Runtime shared with other connections or null to run connection in
+     *                      its own thread
+     */
+    public SyncConnection(final String serverAddress, final ClientSettings settings,
+                          final SyncClientRuntime runtime) {
+        this(new String[]{serverAddress}, settings, runtime);
+    }
+
+    /**
+     * Create connection that fails over between servers.
+     *
+     * @param serverAddresses Server addresses in preferred order
+     * @param settings        Client settings
+     * @param runtime         Runtime shared with other connections or null to run connection in
+     *                        its own thread
+     */
+    public SyncConnection(final String[] serverAddresses, final ClientSettings settings,
+                          final SyncClientRuntime runtime) {
+        this(serverAddresses, settings, runtime, "SyncConnection");
+    }
+
+    SyncConnection(final String[] serverAddresses, final ClientSettings settings,
+                   final SyncClientRuntime runtime, final String name) {
+        if (0 == serverAddresses.length) {
+            throw new IllegalArgumentException("At least one server address is needed");
+        }
+        mSettings = settings;
+        mServerAddresses = Arrays.copyOf(serverAddresses, serverAddresses.length);
+        mServerPort = mSettings.getServerPort();
+        if (null == runtime) {
+            mRuntime = new SyncClientRuntime(name, 1);
+            mOwnRuntime = true;
+        } else {
+            mRuntime = runtime;
+            mOwnRuntime = false;
+        }
+        mClients = new ArrayList<>();
+        mRegistered = new HashMap<>();
+        mRegistering = new HashMap<>();
+        mReconnected = new ArrayList<>();
+        mAttempts = new HashMap<>();
+        mClockSync = new ClockSync(this, mSettings.getClientClockSyncSamples(),
+                mSettings.getClientClockSyncInterval());
+        mScheduler = new Scheduler();
+        mOutbound = new ConcurrentLinkedQueue<>();
+        mFlushPending = new AtomicBoolean(false);
+        mLoop = null;
+        mKey = null;
+        mMessenger = null;
+        mChannel = null;
+        mEndpoints = null;
+        mReconnectWatch = null;
+        mReconnectDelay = 0;
+    }
+
+    /**
+     * @return number of clients using this connection
+     */
+    public synchronized int getClientCount() {
+        return mClients.size();
+    }
+
+    /**
+     * @return estimated offset in ns from local monotonic clock to server's clock
+     */
+    public long getClockOffset() {
+        return mClockSync.getOffset();
+    }
+
+    /**
+     * @return true if clock offset to server has been estimated
+     */
+    public boolean isClockSynced() {
+        return mClockSync.isSynced();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
+                Arrays.toString(mServerAddresses) + ":" + mServerPort + "]";
+    }
+
+    /**
+     * Add client to connection and register it to server. Connection is opened if needed.
+     *
+     * @param client Starting client
+     * @throws IOException if event loop could not be started
+     */
+    void attach(final SyncClient client) throws IOException {
+        final EventLoop loop;
+        synchronized (this) {
+            if (null == mLoop) {
+                mLoop = mRuntime.nextLoop();
+            }
+            loop = mLoop;
+        }
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                addClient(client);
+            }
+        });
+    }
+
+    void cancel(final Packet<? extends Request> packet) {
+        // Request still in queue is not sent at all
+        for (final Outbound outbound : mOutbound) {
+            if (outbound.mPacket == packet) {
+                mOutbound.remove(outbound);
+            }
+        }
+        final Messenger<? extends Message> messenger = mMessenger;
+        if (messenger != null) {
+            messenger.cancel(packet);
+        }
+    }
+
+    /**
+     * Close connection and all its clients. Run in event loop's thread.
+     */
+    void close() {
+        closeChannel();
+        mReconnectWatch = null;
+        final List<SyncClient> clients;
+        synchronized (this) {
+            if (mLoop != null) {
+                mLoop.detach(this);
+                mLoop = null;
+            }
+            clients = new ArrayList<>(mClients);
+            mClients.clear();
+        }
+        mRegistered.clear();
+        mRegistering.clear();
+        mReconnected.clear();
+        // Time out pending work now that nothing completes it
+        mScheduler.runAll();
+        for (final SyncClient client : clients) {
+            client.close();
+        }
+    }
+
+    /**
+     * Remove client from connection. Server is told to drop the client unless it was the last
+     * one in which case connection is closed.
+     *
+     * @param client Stopping client
+     */
+    void detach(final SyncClient client) {
+        final EventLoop loop = mLoop;
+        if (null == loop) {
+            client.close();
+            return;
+        }
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                removeClient(client);
+            }
+        });
+    }
+
+    /**
+     * Do periodic work of connection and its clients. Run in event loop's thread after each
+     * select.
+     */
+    void doHousekeeping() {
+        if (mFlushPending.getAndSet(false)) {
+            try {
+                flushOutbound();
+            } catch (final IOException e) {
+                Log.e("Queued message send failed", e);
+                connectionLost();
+            }
+        }
+        if (mMessenger != null && !mRegistered.isEmpty()) {
+            mClockSync.maybeResync();
+        }
+        mScheduler.runDue();
+        for (final SyncClient client : getClients()) {
+            client.doHousekeeping();
+        }
+    }
+
+    ClientSettings getSettings() {
+        return mSettings;
+    }
+
+    /**
+     * @return ms until connection or any of its clients has work to do in event loop
+     */
+    long getTimeToNextWork() {
+        long time = Math.min(mScheduler.getTimeToNext(), mSettings.getClientSelectTimeout());
+        for (final SyncClient client : getClients()) {
+            time = Math.min(time, client.getTimeToNextWork());
+        }
+        return time;
+    }
+
+    /**
+     * Handle selected key of connection's channel. Run in event loop's thread.
+     */
+    void handleKey(final SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                finishAttempt(key);
+                return;
+            }
+            if (key.isWritable() && mMessenger.flush()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            if (key.isReadable() && mMessenger.read() == CLOSE) {
+                Log.v("Connection closing: " + this);
+                connectionLost();
+            }
+        } catch (final IOException e) {
+            Log.e("Got exception from main loop", e);
+            connectionLost();
+        }
+    }
+
+    boolean inLoop() {
+        final EventLoop loop = mLoop;
+        return loop != null && loop.inLoop();
+    }
+
+    /**
+     * Stop connection's own runtime if connection is closed. Must not be called from event
+     * loop's thread.
+     */
+    void maybeStopRuntime() {
+        if (mOwnRuntime && 0 == getClientCount()) {
+            mRuntime.stop();
+        }
+    }
+
+    /**
+     * Send packet to server. Packet is written at once in event loop's thread. Packets from other
+     * threads are queued in order and written by event loop.
+     *
+     * @param packet Packet to send
+     * @throws IOException if connection is down or writing fails
+     */
+    void send(final Packet<? extends Message> packet) throws IOException {
+        send(packet, null);
+    }
+
+    /**
+     * Send packet that is already encoded. Encoded buffer must not be modified until packet has
+     * been written.
+     *
+     * @param packet  Packet to send
+     * @param encoded Packet encoded with {@link Packet#encode()} or null to encode when written
+     * @throws IOException if connection is down or writing fails
+     */
+    void send(final Packet<? extends Message> packet, final ByteBuffer encoded)
+            throws IOException {
+        if (null == mMessenger) {
+            throw new IOException("Not connected: " + this);
+        }
+        mOutbound.add(new Outbound(packet, encoded));
+        if (inLoop()) {
+            flushOutbound();
+        } else if (mFlushPending.compareAndSet(false, true)) {
+            wakeup();
+        }
+    }
+
+    /**
+     * Set server that is tried first on next connect. Full server may point its clients to
+     * another one.
+     *
+     * @param alternateServer Address of server to try first
+     */
+    void setAlternateServer(final String alternateServer) {
+        mAlternateServer = alternateServer;
+    }
+
+    /**
+     * @param serverTime Server's monotonic time in ns
+     * @return matching local System.nanoTime() time or SyncNotify.NO_RELEASE_TIME if clock is not
+     * synced
+     */
+    long toLocalTime(final long serverTime) {
+        if (SyncNotify.NO_RELEASE_TIME == serverTime || !mClockSync.isSynced()) {
+            return SyncNotify.NO_RELEASE_TIME;
+        }
+        return mClockSync.toLocalTime(serverTime);
+    }
+
+    void wakeup() {
+        final EventLoop loop = mLoop;
+        if (loop != null && !loop.inLoop()) {
+            loop.wakeup();
+        }
+    }
+
+    private void addClient(final SyncClient client) {
+        synchronized (this) {
+            mClients.add(client);
+        }
+        if (null == mChannel && null == mEndpoints) {
+            open();
+        } else if (mMessenger != null) {
+            register(client);
+        }
+        // Otherwise client is registered when connected
+    }
+
+    private void cancelAttempts() {
+        for (final SelectionKey key : mAttempts.keySet()) {
+            closeAttempt(key);
+        }
+        mAttempts.clear();
+    }
+
+    private static void closeAttempt(final SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (final IOException e) {
+            Log.w("Channel close failed when closing connect attempt", e);
+        }
+    }
+
+    private void closeChannel() {
+        mEndpoints = null;
+        cancelAttempts();
+        if (mKey != null) {
+            mKey.cancel();
+            mKey = null;
+        }
+        if (mChannel != null && mChannel.isOpen()) {
+            try {
+                mChannel.close();
+            } catch (final IOException e) {
+                Log.w("Channel close failed when closing connection", e);
+            }
+        }
+        mChannel = null;
+        mMessenger = null;
+        // Queued packets carry tokens of lost registrations
+        mOutbound.clear();
+    }
+
+    /**
+     * Reconnect lost connection after a delay or close connection and its clients if it never
+     * got up, reconnect is disabled or reconnect timeout has passed.
+     */
+    private void connectionLost() {
+        final long timeout = mSettings.getClientReconnectTimeout();
+        if (null == mReconnectWatch) {
+            if (mRegistered.isEmpty() || timeout <= 0) {
+                close();
+                return;
+            }
+            mReconnectWatch = new TimeUtils.StopWatch();
+            mReconnectDelay = mSettings.getClientReconnectDelay();
+        }
+        if (!mReconnectWatch.hasTimeLeft(timeout)) {
+            Log.e("Reconnect timed out: " + this);
+            close();
+            return;
+        }
+        closeChannel();
+        mRegistering.clear();
+        mReconnected.clear();
+        final long delay = Math.min(mReconnectDelay, mReconnectWatch.getTimeLeft(timeout));
+        mReconnectDelay *= 2;
+        Log.d("Connection lost, reconnecting in " + delay + " ms: " + this);
+        mScheduler.schedule(delay, new Runnable() {
+            @Override
+            public void run() {
+                // Connection may have been closed while waiting
+                if (null == mChannel && null == mEndpoints && mLoop != null) {
+                    open();
+                }
+            }
+        });
+    }
+
+    /**
+     * Start connect attempt to next untried address. Next attempt is started after attempt delay
+     * unless this one connects first. Failing attempts move to next address at once. Run in event
+     * loop's thread.
+     */
+    private void connectNext() throws IOException {
+        final ArrayDeque<InetSocketAddress> endpoints = mEndpoints;
+        while (endpoints != null && endpoints == mEndpoints && !endpoints.isEmpty()) {
+            final InetSocketAddress endpoint = endpoints.poll();
+            final SelectionKey key = startAttempt(endpoint);
+            if (null == key) {
+                continue;
+            }
+            if (((SocketChannel) key.channel()).isConnected()) {
+                onAttemptConnected(key);
+            } else if (!endpoints.isEmpty()) {
+                mScheduler.schedule(mSettings.getClientConnectAttemptDelay(), new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            connectNext();
+                        } catch (final IOException e) {
+                            Log.e("Connect failed", e);
+                            connectionLost();
+                        }
+                    }
+                });
+            }
+            return;
+        }
+        if (endpoints != null && endpoints == mEndpoints && mAttempts.isEmpty()) {
+            Log.e("Could not connect to any server: " + this);
+            mEndpoints = null;
+            connectionLost();
+        }
+    }
+
+    private void finishAttempt(final SelectionKey key) throws IOException {
+        final InetSocketAddress endpoint = mAttempts.get(key);
+        if (null == endpoint) {
+            return;
+        }
+        final boolean connected;
+        try {
+            connected = ((SocketChannel) key.channel()).finishConnect();
+        } catch (final IOException e) {
+            Log.w("Connect to " + endpoint + " failed", e);
+            mAttempts.remove(key);
+            closeAttempt(key);
+            connectNext();
+            return;
+        }
+        if (connected) {
+            onAttemptConnected(key);
+        }
+    }
+
+    /**
+     * Write queued packets to channel. Channel is watched for writability if it doesn't take all
+     * data at once.
+     */
+    private void flushOutbound() throws IOException {
+        Outbound outbound;
+        while ((outbound = mOutbound.poll()) != null) {
+            final Messenger<? extends Message> messenger = mMessenger;
+            if (null == messenger) {
+                Log.w("Connection lost, queued message dropped: " + outbound.mPacket);
+            } else if (null == outbound.mEncoded) {
+                messenger.send(outbound.mPacket);
+            } else {
+                messenger.send(outbound.mPacket, outbound.mEncoded);
+            }
+        }
+        if (mKey != null && mKey.isValid() && mMessenger != null &&
+                mMessenger.hasPendingWrites()) {
+            mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * @return registered client that sent given request or null if there's none
+     */
+    private SyncClient getClient(final Response<? extends Request> response) {
+        final Request<?> request = response.getOriginalRequest();
+        final SyncClient client = null == request ? null :
+                mRegistered.get(((Message) request).getSourceToken());
+        if (null == client) {
+            Log.w("Response to unknown client dropped: " + response);
+        }
+        return client;
+    }
+
+    private synchronized List<SyncClient> getClients() {
+        return new ArrayList<>(mClients);
+    }
+
+    private List<SyncClient> getClients(final NodeId groupId) {
+        final List<SyncClient> clients = new ArrayList<>();
+        for (final SyncClient client : mRegistered.values()) {
+            if (client.hasGroup(groupId)) {
+                clients.add(client);
+            }
+        }
+        if (clients.isEmpty()) {
+            Log.e("Notify to unknown group: " + groupId);
+        }
+        return clients;
+    }
+
+    private void handleClockSyncResponse(final Packet<ClockSyncResponse> packet) {
+        final long receiveTime = System.nanoTime();
+        Log.v("Got clock sync response: " + packet);
+        final boolean wasSynced = mClockSync.isSynced();
+        mClockSync.handleResponse(packet.getMessage(), receiveTime);
+        if (!wasSynced && mClockSync.isSynced()) {
+            for (final SyncClient client : getClients()) {
+                client.onClockSynced();
+            }
+        }
+    }
+
+    private void handleRegisterResponse(final Packet<RegisterResponse> packet) {
+        final RegisterResponse response = packet.getMessage();
+        final SyncClient client = mRegistering.remove(response.getOriginalRequest());
+        if (null == client) {
+            Log.w("Register response to unknown client dropped: " + packet);
+            return;
+        }
+        final RegisterResponse.Code code = response.getCode();
+        final boolean reconnected = client.isRegistered();
+        if (RegisterResponse.Code.ACCEPTED == code || RegisterResponse.Code.RESUMED == code) {
+            mReconnectWatch = null;
+            mRegistered.put(response.getClientToken(), client);
+            if (1 == mRegistered.size()) {
+                mClockSync.start();
+            }
+            client.handleRegisterResponse(packet);
+            // Resumed registration has its groups and arrivals still on server
+            if (reconnected && RegisterResponse.Code.ACCEPTED == code) {
+                mReconnected.add(client);
+            } else if (reconnected) {
+                client.resumeSyncs();
+            }
+        } else {
+            client.handleRegisterResponse(packet);
+            if (reconnected) {
+                // Nobody waits for start() of reconnecting client
+                Log.e("Client could not register again: " + client);
+                removeClient(client);
+            }
+        }
+        if (mRegistering.isEmpty() && !mReconnected.isEmpty()) {
+            replay();
+        }
+    }
+
+    private void onAttemptConnected(final SelectionKey key) throws IOException {
+        final InetSocketAddress endpoint = mAttempts.remove(key);
+        cancelAttempts();
+        mEndpoints = null;
+        mKey = key;
+        mChannel = (SocketChannel) key.channel();
+        Log.d("Connected to " + endpoint + ": " + this);
+        onConnected();
+    }
+
+    private void onConnected() throws IOException {
+        mKey.interestOps(SelectionKey.OP_READ);
+        mMessenger = new Messenger<>(mChannel);
+        setHandlers();
+        Log.v("Connected " + this);
+        // Clients get new tokens unless their registrations are resumed
+        mRegistered.clear();
+        for (final SyncClient client : getClients()) {
+            register(client);
+        }
+    }
+
+    /**
+     * Open connection to server. Run in event loop's thread.
+     */
+    private void open() {
+        mLoop.attach(this);
+        final ArrayDeque<InetSocketAddress> endpoints = resolveEndpoints();
+        mEndpoints = endpoints;
+        // Whole connect may take connect timeout however many addresses there are
+        mScheduler.schedule(mSettings.getClientConnectTimeout(), new Runnable() {
+            @Override
+            public void run() {
+                if (endpoints == mEndpoints) {
+                    Log.e("Connection timed out: " + SyncConnection.this);
+                    mEndpoints = null;
+                    cancelAttempts();
+                    connectionLost();
+                }
+            }
+        });
+        try {
+            connectNext();
+        } catch (final IOException e) {
+            Log.e("Connect failed", e);
+            connectionLost();
+        }
+    }
+
+    private void register(final SyncClient client) {
+        final Packet<RegisterRequest> packet = new Packet<>(RegisterRequest.class, NULL_TOKEN);
+        final RegisterRequest request = packet.getMessage();
+        request.setClientId(client.getId());
+        request.setResumeToken(client.getResumeToken());
+        final List<SyncGroup> groups = client.getBootstrapGroups();
+        if (!groups.isEmpty()) {
+            final NodeId[] groupIds = new NodeId[groups.size()];
+            final Token[] groupTokens = new Token[groups.size()];
+            for (int i = 0; i < groupIds.length; i++) {
+                groupIds[i] = groups.get(i).getId();
+                groupTokens[i] = groups.get(i).getToken();
+            }
+            request.setGroups(groupIds, groupTokens);
+        }
+        mRegistering.put(request, client);
+        Log.v("Registering client " + client);
+        try {
+            send(packet);
+        } catch (final IOException e) {
+            Log.e("Register send failed", e);
+            if (mChannel != null) {
+                connectionLost();
+            }
+        }
+    }
+
+    private void removeClient(final SyncClient client) {
+        final boolean last;
+        synchronized (this) {
+            if (!mClients.remove(client)) {
+                last = false;
+            } else {
+                last = mClients.isEmpty();
+            }
+        }
+        final Token token = client.getToken();
+        // Server keeps clients of lost connections for a while, tell it that this one is gone
+        if (mRegistered.remove(token) != null && mMessenger != null) {
+            try {
+                send(new Packet<>(Unregister.class, token));
+            } catch (final IOException e) {
+                Log.e("Unregister send failed", e);
+            }
+        }
+        if (last) {
+            close();
+        }
+        client.close();
+    }
+
+    /**
+     * Replay groups and then arrivals of all reconnected clients so that members sharing this
+     * connection are back in their groups before any arrival completes a sync point.
+     */
+    private void replay() {
+        final List<SyncClient> clients = new ArrayList<>(mReconnected);
+        mReconnected.clear();
+        for (final SyncClient client : clients) {
+            client.replayGroups();
+        }
+        for (final SyncClient client : clients) {
+            client.replaySyncs();
+        }
+    }
+
+    /**
+     * @return all addresses server names resolve to, in order of names. Alternate server
+     * suggested by a full server comes first and is then forgotten.
+     */
+    private ArrayDeque<InetSocketAddress> resolveEndpoints() {
+        final List<String> names = new ArrayList<>(Arrays.asList(mServerAddresses));
+        if (mSettings.getClientShuffleServers()) {
+            Collections.shuffle(names);
+        }
+        final String alternateServer = mAlternateServer;
+        // Suggestion is good for one connect only, later ones use configured order
+        mAlternateServer = null;
+        if (alternateServer != null) {
+            names.remove(alternateServer);
+            names.add(0, alternateServer);
+        }
+        final ArrayDeque<InetSocketAddress> endpoints = new ArrayDeque<>();
+        for (final String name : names) {
+            try {
+                for (final InetAddress address : InetAddress.getAllByName(name)) {
+                    endpoints.add(new InetSocketAddress(address, mServerPort));
+                }
+            } catch (final UnknownHostException e) {
+                Log.w("Could not resolve server address " + name, e);
+            }
+        }
+        return endpoints;
+    }
+
+    private void setHandlers() {
+        mMessenger.setHandler(new MessageHandler<RegisterResponse>(RegisterResponse.class) {
+            @Override
+            public void handleMessage(final Packet<RegisterResponse> packet) {
+                handleRegisterResponse(packet);
+            }
+        });
+        mMessenger.setHandler(new MessageHandler<JoinResponse>(JoinResponse.class) {
+            @Override
+            public void handleMessage(final Packet<JoinResponse> packet) {
+                final SyncClient client = getClient(packet.getMessage());
+                if (client != null) {
+                    client.handleJoinResponse(packet);
+                }
+            }
+        });
+        mMessenger.setHandler(new MessageHandler<LeaveResponse>(LeaveResponse.class) {
+            @Override
+            public void handleMessage(final Packet<LeaveResponse> packet) {
+                final SyncClient client = getClient(packet.getMessage());
+                if (client != null) {
+                    client.handleLeaveResponse(packet);
+                }
+            }
+        });
+        mMessenger.setHandler(new MessageHandler<SyncResponse>(SyncResponse.class) {
+            @Override
+            public void handleMessage(final Packet<SyncResponse> packet) {
+                final SyncClient client = getClient(packet.getMessage());
+                if (client != null) {
+                    client.handleSyncResponse(packet);
+                }
+            }
+        });
+        // Server sends notifies once per connection, every client in the group gets them
+        mMessenger.setHandler(new MessageHandler<GroupNotify>(GroupNotify.class) {
+            @Override
+            public void handleMessage(final Packet<GroupNotify> packet) {
+                for (final SyncClient client : getClients(packet.getMessage().getGroupId())) {
+                    client.handleGroupNotify(packet);
+                }
+            }
+        });
+        mMessenger.setHandler(new MessageHandler<SyncNotify>(SyncNotify.class) {
+            @Override
+            public void handleMessage(final Packet<SyncNotify> packet) {
+                for (final SyncClient client : getClients(packet.getMessage().getGroupId())) {
+                    client.handleSyncNotify(packet);
+                }
+            }
+        });
+        mMessenger.setHandler(new MessageHandler<ClockSyncResponse>(ClockSyncResponse.class) {
+            @Override
+            public void handleMessage(final Packet<ClockSyncResponse> packet) {
+                handleClockSyncResponse(packet);
+            }
+        });
+    }
+
+    /**
+     * @return key of started connect attempt or null if connecting to address failed at once
+     */
+    private SelectionKey startAttempt(final InetSocketAddress endpoint) {
+        Log.v("Connecting to " + endpoint + ": " + this);
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.connect(endpoint);
+            final SelectionKey key =
+                    channel.register(mLoop.getSelector(), SelectionKey.OP_CONNECT, this);
+            mAttempts.put(key, endpoint);
+            return key;
+        } catch (final IOException e) {
+            Log.w("Connect to " + endpoint + " failed", e);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (final IOException ce) {
+                    Log.w("Channel close failed after failed connect", ce);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Packet waiting in queue for event loop to write it.
+     */
+    private static class Outbound {
+        private final Packet<? extends Message> mPacket;
+        private final ByteBuffer mEncoded;
+
+        private Outbound(final Packet<? extends Message> packet, final ByteBuffer encoded) {
+            mPacket = packet;
+            mEncoded = encoded;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.TimeUtils;
+
+/**
+ * Result of an asynchronous group operation. Futures are completed by client's I/O thread and
+ * listeners added with {@link #addListener} are run in that thread so they must not block.
+ *
+ * @param <V> Type of result
+ */
+public class SyncFuture<V> implements Future<V> {
+    private final List<Listener<V>> mListeners;
+    private V mValue;
+    private Exception mError;
+    private boolean mDone;
+    private boolean mCancelled;
+
+    SyncFuture() {
+        mListeners = new ArrayList<>();
+        mValue = null;
+        mError = null;
+        mDone = false;
+        mCancelled = false;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
+                (mDone ? (mCancelled ? "cancelled" : mError != null ? mError : mValue) : "pending")
+                + "]";
+    }
+
+    /**
+     * Add listener to be called when future completes. If future is already done listener is
+     * called immediately in calling thread.
+     *
+     * @param listener Listener to add
+     */
+    public void addListener(final Listener<V> listener) {
+        synchronized (this) {
+            if (!mDone) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return finish(null, null, true);
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        synchronized (this) {
+            while (!mDone) {
+                wait();
+            }
+        }
+        return getResult();
+    }
+
+    @Override
+    public V get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final long timeoutMs = unit.toMillis(timeout);
+        final TimeUtils.StopWatch watch = new TimeUtils.StopWatch();
+        synchronized (this) {
+            while (!mDone && watch.hasTimeLeft(timeoutMs)) {
+                wait(watch.getTimeLeft(timeoutMs));
+            }
+            if (!mDone) {
+                throw new TimeoutException("Future not done in " + timeoutMs + " ms");
+            }
+        }
+        return getResult();
+    }
+
+    /**
+     * @return exception future failed with or null if it's not done or it succeeded
+     */
+    public synchronized Exception getError() {
+        return mError;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * @return true if future completed with a result
+     */
+    public synchronized boolean isSuccess() {
+        return mDone && !mCancelled && null == mError;
+    }
+
+    boolean complete(final V value) {
+        return finish(value, null, false);
+    }
+
+    boolean fail(final Exception error) {
+        return finish(null, error, false);
+    }
+
+    private boolean finish(final V value, final Exception error, final boolean cancelled) {
+        final List<Listener<V>> listeners;
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mValue = value;
+            mError = error;
+            mCancelled = cancelled;
+            mDone = true;
+            listeners = new ArrayList<>(mListeners);
+            mListeners.clear();
+            notifyAll();
+        }
+        for (final Listener<V> listener : listeners) {
+            notifyListener(listener);
+        }
+        return true;
+    }
+
+    private synchronized V getResult() throws ExecutionException {
+        if (mCancelled) {
+            throw new CancellationException("Future was cancelled");
+        }
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return mValue;
+    }
+
+    private void notifyListener(final Listener<V> listener) {
+        try {
+            listener.onComplete(this);
+        } catch (final RuntimeException e) {
+            Log.e("Future listener failed: " + this, e);
+        }
+    }
+
+    public interface Listener<V> {
+        void onComplete(SyncFuture<V> future);
+    }
+}
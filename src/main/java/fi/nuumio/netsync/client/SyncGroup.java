@@ -17,15 +17,26 @@
 package fi.nuumio.netsync.client;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import fi.nuumio.netsync.protocol.message.Packet;
 import fi.nuumio.netsync.protocol.message.group.JoinRequest;
 import fi.nuumio.netsync.protocol.message.group.JoinResponse;
 import fi.nuumio.netsync.protocol.message.group.LeaveRequest;
+import fi.nuumio.netsync.protocol.message.group.MemberCondition;
+import fi.nuumio.netsync.protocol.message.group.Reduction;
+import fi.nuumio.netsync.protocol.message.group.SyncAck;
 import fi.nuumio.netsync.protocol.message.group.SyncNotify;
 import fi.nuumio.netsync.protocol.message.group.SyncRequest;
 import fi.nuumio.netsync.protocol.message.group.SyncResponse;
@@ -41,16 +52,34 @@ import static fi.nuumio.netsync.protocol.message.group.JoinResponse.Code.ACCEPTE
 
 /**
  * SyncGroup represents a group of SyncClients. Client's in same group can use waitSync() method to
- * synchronized with each other.
+ * synchronized with each other. Split-phase arrive() and await() allow doing other work while
+ * waiting for the other members. Arrivals to different sync points are tracked separately so
+ * several threads may wait on different sync points of the same group at the same time.
+ * <p>
+ * Membership is published as immutable {@link MembershipSnapshot}s that can be read without
+ * locking. Changes and finished syncs can be followed with a {@link GroupListener}.
  */
 public class SyncGroup {
+    // Member waits of all clients of a shared connection get notifies of the group, keep ids
+    // unique within the process
+    private static final AtomicInteger sMemberWaitIds = new AtomicInteger();
     private final NodeId mGroupId;
     private final Token mGroupToken;
-    private final Set<NodeId> mMembers;
-    private final AtomicBoolean mSync;
+    // Guards member waiters and publishing of membership
+    private final Object mMembersLock;
+    private final List<ListenerEntry> mListeners;
+    private final Object mSyncLock;
+    private final HashMap<NodeId, Metronome> mMetronomes;
+    private final HashMap<NodeId, BarrierSchedule> mSchedules;
+    private final HashMap<NodeId, SyncHandle> mPendingSyncs;
+    private final HashMap<NodeId, MemberWaiter> mMemberWaiters;
     private final SyncClient mClient;
-    private JoinResponse.Code mJoinStatus;
-    private SyncCode mSyncCode;
+    private volatile MembershipSnapshot mMembership;
+    private volatile JoinResponse.Code mJoinStatus;
+    private SyncFuture<Void> mJoinFuture;
+    private SyncFuture<Void> mLeaveFuture;
+    private volatile boolean mLeaving;
+    private volatile boolean mRejoining;
 
     SyncGroup(final SyncClient client, final NodeId groupId, final Token groupToken) {
         mClient = client;
@@ -63,21 +92,105 @@ public class SyncGroup {
         mGroupId = groupId;
         mGroupToken = groupToken;
         mJoinStatus = null;
-        mMembers = new TreeSet<>();
-        mSync = new AtomicBoolean(false);
-        mSyncCode = null;
+        mMembersLock = new Object();
+        mListeners = new CopyOnWriteArrayList<>();
+        mMembership = MembershipSnapshot.EMPTY;
+        mSyncLock = new Object();
+        mMetronomes = new HashMap<>();
+        mSchedules = new HashMap<>();
+        mPendingSyncs = new HashMap<>();
+        mMemberWaiters = new HashMap<>();
+        mJoinFuture = null;
+        mLeaveFuture = null;
+        mLeaving = false;
+        mRejoining = false;
     }
 
-    public boolean contains(final NodeId id) {
-        synchronized (mMembers) {
-            return mMembers.contains(id);
+    /**
+     * Add listener for events of this group.
+     *
+     * @param listener Listener
+     * @param executor Executor listener is called on. Executor that runs tasks in calling thread
+     *                 makes listener run in client's I/O thread where it must not block.
+     */
+    public void addListener(final GroupListener listener, final Executor executor) {
+        mListeners.add(new ListenerEntry(listener, executor));
+    }
+
+    /**
+     * Asynchronous version of {@link #waitMembers}. Future fails with {@link GroupSyncException}
+     * if server rejects the wait.
+     *
+     * @param matcher Member count to wait for
+     * @param timeout Max time to wait in ms
+     * @return Future completed with true if member count matched or false on timeout or if group
+     * was left
+     * @throws GroupSyncException if not joined to group or sending wait failed
+     */
+    public SyncFuture<Boolean> awaitMembersAsync(final MemberCount matcher, final long timeout)
+            throws GroupSyncException {
+        if (!isJoined()) {
+            throw new GroupSyncException("Not joined to group");
+        }
+        final NodeId waitId = new NodeId("members#" + sMemberWaitIds.incrementAndGet());
+        final SyncFuture<Boolean> future = new SyncFuture<>();
+        synchronized (mMembersLock) {
+            mMemberWaiters.put(waitId, new MemberWaiter(matcher, future));
+        }
+        final Packet<SyncRequest> packet = new Packet<>(SyncRequest.class, mClient.getToken());
+        final SyncRequest request = packet.getMessage();
+        request.setGroupId(mGroupId);
+        request.setGroupToken(mGroupToken);
+        request.setTimeout(timeout);
+        request.setType(SyncType.MEMBERS);
+        request.setSyncPoint(waitId);
+        request.setCondition(matcher.mCondition);
+        try {
+            mClient.send(packet);
+        } catch (final IOException e) {
+            Log.e("Message send failed: ", e);
+            synchronized (mMembersLock) {
+                mMemberWaiters.remove(waitId);
+            }
+            throw new GroupSyncException("Message send failed", e);
         }
+        // Server times the wait out, local timeout only covers a lost connection
+        final long extraLatency = mClient.getSettings().getSyncExtraLatency();
+        final Scheduler.Task timeoutTask = mClient.schedule(timeout + extraLatency,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        future.complete(matcher.matches());
+                    }
+                });
+        future.addListener(new SyncFuture.Listener<Boolean>() {
+            @Override
+            public void onComplete(final SyncFuture<Boolean> completed) {
+                timeoutTask.cancel();
+                mClient.cancel(packet);
+                synchronized (mMembersLock) {
+                    mMemberWaiters.remove(waitId);
+                }
+            }
+        });
+        return future;
+    }
+
+    public boolean contains(final NodeId id) {
+        return mMembership.contains(id);
     }
 
     public NodeId getId() {
         return mGroupId;
     }
 
+    /**
+     * @return latest membership of group, empty if client is not joined
+     */
+    public MembershipSnapshot getMembership() {
+        return mMembership;
+    }
+
     public Token getToken() {
         return mGroupToken;
     }
@@ -121,20 +234,57 @@ public class SyncGroup {
         }
         mClient.cancel(packet);
         if (!isJoined()) {
-            if (mJoinStatus != null) {
-                switch (mJoinStatus) {
-                    case FAIL_AUTHENTICATION_FAILURE:
-                        throw new GroupJoinException(
-                                "Group join error", GroupJoinException.ErrorCode.GROUP_AUTHENTICATION_ERROR);
-                    case FAIL_GROUP_FULL:
-                        throw new GroupJoinException(
-                                "Group join error", GroupJoinException.ErrorCode.GROUP_FULL);
-                    default:
-                        throw new FatalRuntimeException("Unexpected join status");
-                }
+            throw joinError(mJoinStatus);
+        }
+    }
+
+    /**
+     * Asynchronous version of {@link #join}. Future fails with {@link GroupJoinException}.
+     *
+     * @return Future completed when group is joined
+     */
+    public SyncFuture<Void> joinAsync() {
+        final SyncFuture<Void> future;
+        synchronized (this) {
+            if (isJoined()) {
+                future = new SyncFuture<>();
+                future.complete(null);
+                return future;
+            }
+            if (mJoinFuture != null && !mJoinFuture.isDone()) {
+                return mJoinFuture;
             }
-            throw new GroupJoinException("Join timed out", GroupJoinException.ErrorCode.JOIN_TIMEOUT);
+            future = new SyncFuture<>();
+            mJoinStatus = null;
+            mJoinFuture = future;
         }
+        final Packet<JoinRequest> packet = new Packet<>(JoinRequest.class, mClient.getToken());
+        final JoinRequest request = packet.getMessage();
+        request.setGroupId(mGroupId);
+        request.setGroupToken(mGroupToken);
+        try {
+            mClient.send(packet);
+        } catch (final IOException e) {
+            Log.e("Message send failed: ", e);
+            future.fail(new GroupJoinException("Message send failed",
+                    GroupJoinException.ErrorCode.MESSAGE_SEND_FAILED, e));
+            return future;
+        }
+        final Scheduler.Task timeoutTask = mClient.schedule(
+                mClient.getSettings().getClientGroupMessageTimeout(), new Runnable() {
+                    @Override
+                    public void run() {
+                        future.fail(joinError(null));
+                    }
+                });
+        future.addListener(new SyncFuture.Listener<Void>() {
+            @Override
+            public void onComplete(final SyncFuture<Void> completed) {
+                timeoutTask.cancel();
+                mClient.cancel(packet);
+            }
+        });
+        return future;
     }
 
     public void leave() throws GroupLeaveException {
@@ -145,10 +295,12 @@ public class SyncGroup {
         final LeaveRequest request = packet.getMessage();
         request.setGroupId(mGroupId);
         request.setGroupToken(mGroupToken);
+        mLeaving = true;
         try {
             mClient.send(packet);
         } catch (final IOException e) {
             Log.e("Message send failed: ", e);
+            mLeaving = false;
             throw new GroupLeaveException("Message send failed", e);
         }
         final TimeUtils.StopWatch watch = new TimeUtils.StopWatch();
@@ -163,209 +315,1119 @@ public class SyncGroup {
                 }
             }
         }
+        mLeaving = false;
         mClient.cancel(packet);
         if (isJoined()) {
             throw new GroupLeaveException("Leave timed out");
         }
     }
 
-    public boolean waitMembers(final MemberCount matcher, final long timeout) throws GroupSyncException {
-        final TimeUtils.StopWatch watch = new TimeUtils.StopWatch();
-        if (!isJoined()) {
-            throw new GroupSyncException("Not joined to group");
+    /**
+     * Asynchronous version of {@link #leave}. Future fails with {@link GroupLeaveException}.
+     *
+     * @return Future completed when group is left
+     */
+    public SyncFuture<Void> leaveAsync() {
+        final SyncFuture<Void> future;
+        synchronized (this) {
+            if (!isJoined()) {
+                future = new SyncFuture<>();
+                future.complete(null);
+                return future;
+            }
+            if (mLeaveFuture != null && !mLeaveFuture.isDone()) {
+                return mLeaveFuture;
+            }
+            future = new SyncFuture<>();
+            mLeaveFuture = future;
         }
-        synchronized (mMembers) {
-            while (!matcher.matches() && watch.hasTimeLeft(timeout) && isJoined()) {
-                try {
-                    mMembers.wait(watch.getTimeLeft(timeout));
-                } catch (final InterruptedException e) {
-                    Log.w("Member count wait interrupted", e);
-                    Thread.currentThread().interrupt();
-                }
+        final Packet<LeaveRequest> packet = new Packet<>(LeaveRequest.class, mClient.getToken());
+        final LeaveRequest request = packet.getMessage();
+        request.setGroupId(mGroupId);
+        request.setGroupToken(mGroupToken);
+        mLeaving = true;
+        try {
+            mClient.send(packet);
+        } catch (final IOException e) {
+            Log.e("Message send failed: ", e);
+            mLeaving = false;
+            future.fail(new GroupLeaveException("Message send failed", e));
+            return future;
+        }
+        final Scheduler.Task timeoutTask = mClient.schedule(
+                mClient.getSettings().getClientGroupMessageTimeout(), new Runnable() {
+                    @Override
+                    public void run() {
+                        future.fail(new GroupLeaveException("Leave timed out"));
+                    }
+                });
+        future.addListener(new SyncFuture.Listener<Void>() {
+            @Override
+            public void onComplete(final SyncFuture<Void> completed) {
+                timeoutTask.cancel();
+                mLeaving = false;
+                mClient.cancel(packet);
+            }
+        });
+        return future;
+    }
+
+    public void removeListener(final GroupListener listener) {
+        for (final ListenerEntry entry : mListeners) {
+            if (entry.mListener == listener) {
+                mListeners.remove(entry);
             }
         }
-        return matcher.matches();
     }
 
-    public boolean waitSync(final String syncPoint, final SyncType type, final long timeout)
+    /**
+     * Start following a metronome. Server creates the metronome when first member starts it and
+     * ticks all members following it every period ms. Use {@link Metronome#awaitTick} to wait
+     * for ticks.
+     *
+     * @param syncPoint Metronome id
+     * @param period    Tick period in ms. Must match period of already running metronome.
+     * @return Metronome handle
+     * @throws GroupSyncException if not joined to group or starting failed
+     */
+    public Metronome startMetronome(final String syncPoint, final long period)
             throws GroupSyncException {
-        if (mSync.get()) {
-            throw new IllegalStateException("Already waiting for sync");
-        }
         if (!isJoined()) {
             throw new GroupSyncException("Not joined to group");
         }
+        final NodeId syncPointId = new NodeId(syncPoint);
+        final Metronome metronome = new Metronome(this, syncPointId, period);
+        synchronized (mMetronomes) {
+            if (mMetronomes.containsKey(syncPointId)) {
+                throw new IllegalStateException("Already following metronome " + syncPoint);
+            }
+            mMetronomes.put(syncPointId, metronome);
+        }
+        final Packet<SyncRequest> packet = new Packet<>(SyncRequest.class, mClient.getToken());
+        final SyncRequest request = packet.getMessage();
+        request.setGroupId(mGroupId);
+        request.setGroupToken(mGroupToken);
+        request.setTimeout(period);
+        request.setType(SyncType.TICK);
+        request.setSyncPoint(syncPointId);
+        try {
+            mClient.send(packet);
+        } catch (final IOException e) {
+            Log.e("Message send failed: ", e);
+            removeMetronome(metronome);
+            throw new GroupSyncException("Message send failed", e);
+        }
+        final SyncResponse.Code code =
+                metronome.awaitStart(mClient.getSettings().getClientGroupMessageTimeout());
+        mClient.cancel(packet);
+        if (code != SyncResponse.Code.CREATED && code != SyncResponse.Code.JOINED) {
+            metronome.setStopped();
+            removeMetronome(metronome);
+            throw new GroupSyncException("Metronome start failed: " + code);
+        }
+        return metronome;
+    }
 
+    /**
+     * Start following a barrier schedule. Server creates the schedule when first member starts
+     * it and releases each phase when all group members have arrived to it. Use
+     * {@link BarrierSchedule#awaitPhase} to arrive to phases in order.
+     *
+     * @param schedule     Schedule id
+     * @param phases       Phase ids in order. Must match phases of already started schedule.
+     * @param phaseTimeout Max time in ms each phase may take. Must match timeout of already
+     *                     started schedule.
+     * @return Schedule handle
+     * @throws GroupSyncException if not joined to group or starting failed
+     */
+    public BarrierSchedule startSchedule(final String schedule, final String[] phases,
+                                         final long phaseTimeout) throws GroupSyncException {
+        if (!isJoined()) {
+            throw new GroupSyncException("Not joined to group");
+        }
+        final NodeId scheduleId = new NodeId(schedule);
+        final NodeId[] phaseIds = new NodeId[phases.length];
+        for (int i = 0; i < phases.length; i++) {
+            phaseIds[i] = new NodeId(phases[i]);
+        }
+        final BarrierSchedule handle =
+                new BarrierSchedule(this, scheduleId, phaseIds, phaseTimeout);
+        synchronized (mSchedules) {
+            if (mSchedules.containsKey(scheduleId)) {
+                throw new IllegalStateException("Already following schedule " + schedule);
+            }
+            mSchedules.put(scheduleId, handle);
+        }
         final Packet<SyncRequest> packet = new Packet<>(SyncRequest.class, mClient.getToken());
         final SyncRequest request = packet.getMessage();
         request.setGroupId(mGroupId);
         request.setGroupToken(mGroupToken);
-        request.setTimeout(timeout);
-        request.setType(type);
-        request.setSyncPoint(new NodeId(syncPoint));
+        request.setTimeout(phaseTimeout);
+        request.setType(SyncType.SCHEDULE);
+        request.setSyncPoint(scheduleId);
+        request.setMembers(phaseIds);
         try {
             mClient.send(packet);
         } catch (final IOException e) {
             Log.e("Message send failed: ", e);
+            removeSchedule(handle);
             throw new GroupSyncException("Message send failed", e);
         }
+        final SyncResponse.Code code =
+                handle.awaitStart(mClient.getSettings().getClientGroupMessageTimeout());
+        mClient.cancel(packet);
+        if (code != SyncResponse.Code.CREATED && code != SyncResponse.Code.JOINED) {
+            handle.setStopped();
+            removeSchedule(handle);
+            throw new GroupSyncException("Schedule start failed: " + code);
+        }
+        return handle;
+    }
 
-        mSyncCode = null;
-        final TimeUtils.StopWatch watch = new TimeUtils.StopWatch();
+    /**
+     * Asynchronous version of {@link #waitSync}. Future is completed with the arrival's handle
+     * when sync finishes, successfully or not, at scheduled release time of the sync. Release
+     * time is followed with ms precision.
+     *
+     * @param syncPoint Sync point id
+     * @param type      Sync type
+     * @param timeout   Sync point timeout in server
+     * @return Future completed with handle of the arrival
+     * @throws GroupSyncException if not joined to group or sending arrival failed
+     */
+    public SyncFuture<SyncHandle> syncAsync(final String syncPoint, final SyncType type,
+                                            final long timeout) throws GroupSyncException {
+        return syncAsync(syncPoint, type, timeout, null, null);
+    }
+
+    /**
+     * Asynchronous version of {@link #arrive(String, SyncType, long, Reduction, byte[])} and
+     * {@link #await}.
+     *
+     * @param syncPoint    Sync point id
+     * @param type         Sync type
+     * @param timeout      Sync point timeout in server
+     * @param contribution This member's contribution to reduction, may be null
+     * @param gatherData   Data shared with other members, may be null
+     * @return Future completed with handle of the arrival
+     * @throws GroupSyncException if not joined to group or sending arrival failed
+     */
+    public SyncFuture<SyncHandle> syncAsync(final String syncPoint, final SyncType type,
+                                            final long timeout, final Reduction contribution,
+                                            final byte[] gatherData) throws GroupSyncException {
+        final SyncHandle handle = arrive(syncPoint, type, timeout, contribution, gatherData);
+        final SyncFuture<SyncHandle> future = new SyncFuture<>();
         final long extraLatency = mClient.getSettings().getSyncExtraLatency();
-        synchronized (mSync) {
-            mSync.set(true);
-            while (isWaitingSync() && watch.hasTimeLeft(timeout + extraLatency)) {
+        final Scheduler.Task timeoutTask = mClient.schedule(handle.getTimeLeft(extraLatency),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (mSyncLock) {
+                            completeSync(handle, SyncHandle.State.TIMEOUT);
+                        }
+                    }
+                });
+        future.addListener(new SyncFuture.Listener<SyncHandle>() {
+            @Override
+            public void onComplete(final SyncFuture<SyncHandle> completed) {
+                timeoutTask.cancel();
+                if (completed.isCancelled()) {
+                    // Give up on this arrival so that next one can be made
+                    synchronized (mSyncLock) {
+                        completeSync(handle, SyncHandle.State.TIMEOUT);
+                    }
+                }
+            }
+        });
+        synchronized (mSyncLock) {
+            handle.setFuture(future);
+            if (handle.isDone()) {
+                // Completed before we got here
+                completeFuture(handle);
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Wait until member count of group matches. Server evaluates the count as members join and
+     * leave and tells once it matches so waiting doesn't depend on every membership change.
+     *
+     * @param matcher Member count to wait for
+     * @param timeout Max time to wait in ms
+     * @return true if member count matched, false on timeout or if group was left
+     * @throws GroupSyncException if not joined to group or server rejected the wait
+     */
+    public boolean waitMembers(final MemberCount matcher, final long timeout)
+            throws GroupSyncException {
+        final SyncFuture<Boolean> future = awaitMembersAsync(matcher, timeout);
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Log.w("Member count wait interrupted", e);
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            return matcher.matches();
+        } catch (final ExecutionException e) {
+            throw (GroupSyncException) e.getCause();
+        }
+    }
+
+    /**
+     * Arrive at a sync point without waiting for other members. Use {@link #await} to wait
+     * for the result. Only one arrival per sync point may be pending at a time but arrivals to
+     * different sync points may be pending concurrently, e.g. from different threads.
+     *
+     * @param syncPoint Sync point id
+     * @param type      Sync type
+     * @param timeout   Sync point timeout in server
+     * @return Handle to be used with {@link #await}
+     * @throws GroupSyncException if not joined to group or sending arrival failed
+     */
+    public SyncHandle arrive(final String syncPoint, final SyncType type, final long timeout)
+            throws GroupSyncException {
+        return arrive(syncPoint, type, timeout, null);
+    }
+
+    /**
+     * Arrive at a sync point with a value to be reduced by server. Reduced value of all members
+     * is available from {@link SyncHandle#getReduction()} after successful {@link #await}.
+     *
+     * @param syncPoint    Sync point id
+     * @param type         Sync type
+     * @param timeout      Sync point timeout in server
+     * @param contribution This member's contribution to reduction, may be null
+     * @return Handle to be used with {@link #await}
+     * @throws GroupSyncException if not joined to group or sending arrival failed
+     */
+    public SyncHandle arrive(final String syncPoint, final SyncType type, final long timeout,
+                             final Reduction contribution) throws GroupSyncException {
+        return arrive(syncPoint, type, timeout, contribution, null);
+    }
+
+    /**
+     * Arrive at a sync point with data to be shared with other members. Data of all members is
+     * available from {@link SyncHandle#getGathered()} after successful {@link #await}.
+     *
+     * @param syncPoint    Sync point id
+     * @param type         Sync type
+     * @param timeout      Sync point timeout in server
+     * @param contribution This member's contribution to reduction, may be null
+     * @param gatherData   Data shared with other members, may be null. Max size is limited by
+     *                     server.
+     * @return Handle to be used with {@link #await}
+     * @throws GroupSyncException if not joined to group or sending arrival failed
+     */
+    public SyncHandle arrive(final String syncPoint, final SyncType type, final long timeout,
+                             final Reduction contribution, final byte[] gatherData)
+            throws GroupSyncException {
+        final NodeId syncPointId = new NodeId(syncPoint);
+        return arrive(syncPointId, timeout,
+                createSyncRequest(syncPointId, type, timeout, contribution, gatherData), null);
+    }
+
+    /**
+     * Wait for other members to arrive at sync point given handle refers to.
+     * <p>
+     * Waiting is done as configured by {@link ClientSettings#getClientWaitStrategy()}.
+     *
+     * @param handle  Handle from {@link #arrive}
+     * @param timeout Max time to wait in ms
+     * @return true if all members arrived, false on timeout, error or if group was closed
+     */
+    public boolean await(final SyncHandle handle, final long timeout) {
+        final TimeUtils.StopWatch watch = new TimeUtils.StopWatch();
+        final ClientSettings settings = mClient.getSettings();
+        final WaitStrategy strategy = settings.getClientWaitStrategy();
+        if (strategy != WaitStrategy.BLOCKING) {
+            spin(handle, strategy, settings.getClientWaitSpinTime(), watch, timeout);
+        }
+        synchronized (mSyncLock) {
+            while (!handle.isDone() && isJoined() && watch.hasTimeLeft(timeout)) {
                 try {
-                    mSync.wait(watch.getTimeLeft(timeout + extraLatency));
+                    mSyncLock.wait(watch.getTimeLeft(timeout));
                 } catch (final InterruptedException e) {
                     Log.w("Sync wait interrupted", e);
                     Thread.currentThread().interrupt();
                 }
             }
         }
-        if (mSyncCode != null) {
-            Log.d("Got sync code: " + mSyncCode);
+        if (handle.isSuccess()) {
+            waitRelease(handle.getReleaseTime());
+        }
+        handle.setWakeTime(System.nanoTime());
+        if (handle.isDone()) {
+            Log.d("Got sync state: " + handle + " in " + handle.elapsed() + " ms");
         } else if (!isJoined()) {
-            Log.d("Group closed during sync (tool " + watch.elapsed() + " ms)");
+            Log.d("Group closed during sync (took " + handle.elapsed() + " ms)");
         } else {
-            Log.d("Sync timed out in " + watch.elapsed() + " ms");
-        }
-        if (mSync.get()) {
-            mSync.set(false);
-            return false;
-        }
-        return true;
-    }
-
-    void handleSyncPointNotify(NodeId syncPoint, SyncNotify.Code code) {
-        synchronized (mSync) {
-            if (mSync.get()) {
-                switch (code) {
-                    case SUCCESS:
-                        mSyncCode = SyncCode.SUCCESS;
-                        mSync.set(false);
-                        mSync.notifyAll();
-                        break;
-                    case TIMEOUT:
-                        mSyncCode = SyncCode.TIMEOUT;
-                        mSync.notifyAll();
-                        break;
-                    case JOIN: // Fall-through
-                    case LEAVE:
-                        break;
+            Log.d("Sync wait timed out in " + watch.elapsed() + " ms");
+        }
+        return handle.isSuccess();
+    }
+
+    /**
+     * Prepare arrivals to a sync point that is used over and over again, e.g. in a loop. Sync
+     * request of prepared sync is encoded only once.
+     *
+     * @param syncPoint Sync point id
+     * @param type      Sync type
+     * @param timeout   Sync point timeout in server
+     * @return Prepared sync for arriving to sync point
+     */
+    public PreparedSync prepare(final String syncPoint, final SyncType type, final long timeout) {
+        return new PreparedSync(this, new NodeId(syncPoint), type, timeout);
+    }
+
+    public boolean waitSync(final String syncPoint, final SyncType type, final long timeout)
+            throws GroupSyncException {
+        return waitSync(arrive(syncPoint, type, timeout));
+    }
+
+    /**
+     * Same as {@link #waitSync} but tells how sync went and where time went.
+     *
+     * @param syncPoint Sync point id
+     * @param type      Sync type
+     * @param timeout   Sync point timeout in server
+     * @return Outcome and timing of sync
+     * @throws GroupSyncException if not joined to group or sending arrival failed
+     */
+    public SyncResult waitSyncResult(final String syncPoint, final SyncType type,
+                                     final long timeout) throws GroupSyncException {
+        final SyncHandle handle = arrive(syncPoint, type, timeout);
+        waitSync(handle);
+        return handle.getResult();
+    }
+
+    /**
+     * Arrive at a sync point with request built by caller.
+     *
+     * @param syncPointId Sync point id
+     * @param timeout     Sync point timeout in server
+     * @param packet      Sync request
+     * @param encoded     Sync request encoded in advance or null
+     * @return Handle to be used with {@link #await}
+     * @throws GroupSyncException if not joined to group or sending arrival failed
+     */
+    SyncHandle arrive(final NodeId syncPointId, final long timeout,
+                      final Packet<SyncRequest> packet, final ByteBuffer encoded)
+            throws GroupSyncException {
+        if (!isJoined()) {
+            throw new GroupSyncException("Not joined to group");
+        }
+        final long extraLatency = mClient.getSettings().getSyncExtraLatency();
+        final SyncHandle handle = new SyncHandle(syncPointId, mClient.getId(), timeout);
+        synchronized (mSyncLock) {
+            final SyncHandle pending = mPendingSyncs.get(syncPointId);
+            if (pending != null && !pending.isDone()) {
+                if (!pending.hasExpired(extraLatency)) {
+                    throw new IllegalStateException(
+                            "Already waiting for sync " + syncPointId.asString());
                 }
+                Log.d("Abandoning expired sync: " + pending);
+                completeSync(pending, SyncHandle.State.TIMEOUT);
+            }
+            // Set before sending so that fast response doesn't get scrapped
+            mPendingSyncs.put(syncPointId, handle);
+        }
+        handle.setRequest(packet.getMessage());
+        handle.setSendTime(System.nanoTime());
+        try {
+            mClient.send(packet, encoded);
+        } catch (final IOException e) {
+            Log.e("Message send failed: ", e);
+            synchronized (mSyncLock) {
+                completeSync(handle, SyncHandle.State.ERROR);
+            }
+            throw new GroupSyncException("Message send failed", e);
+        }
+        return handle;
+    }
+
+    Packet<SyncRequest> createSyncRequest(final NodeId syncPointId, final SyncType type,
+                                          final long timeout, final Reduction contribution,
+                                          final byte[] gatherData) {
+        final Packet<SyncRequest> packet = new Packet<>(SyncRequest.class, mClient.getToken());
+        final SyncRequest request = packet.getMessage();
+        request.setGroupId(mGroupId);
+        request.setGroupToken(mGroupToken);
+        request.setTimeout(timeout);
+        request.setType(type);
+        request.setSyncPoint(syncPointId);
+        request.setReduction(contribution);
+        request.setGatherData(gatherData);
+        return packet;
+    }
+
+    void handleSyncPointNotify(final SyncNotify notify) {
+        final NodeId syncPoint = notify.getSyncPoint();
+        final int generation = notify.getGeneration();
+        if (SyncNotify.Code.TICK == notify.getSyncCode()) {
+            final Metronome metronome;
+            synchronized (mMetronomes) {
+                metronome = mMetronomes.get(syncPoint);
+            }
+            if (metronome != null) {
+                metronome.handleTick(generation, notify.getMembers(),
+                        mClient.toLocalTime(notify.getReleaseTime()));
             } else {
+                Log.d("Tick to unknown metronome scrapped: " + syncPoint);
+            }
+            return;
+        }
+        if (SyncNotify.Code.PHASE == notify.getSyncCode() ||
+                SyncNotify.Code.PHASE_TIMEOUT == notify.getSyncCode()) {
+            handleSchedulePhase(notify);
+            return;
+        }
+        if (SyncNotify.Code.MEMBERS == notify.getSyncCode() ||
+                SyncNotify.Code.MEMBERS_TIMEOUT == notify.getSyncCode()) {
+            completeMemberWait(syncPoint, SyncNotify.Code.MEMBERS == notify.getSyncCode(), null);
+            return;
+        }
+        synchronized (mSyncLock) {
+            final SyncHandle handle = mPendingSyncs.get(syncPoint);
+            if (null == handle || handle.isDone()) {
+                Log.d("Not waiting sync, notify scrapped for " + syncPoint);
+                return;
+            }
+            if (!handle.isJoined() && handle.isResumed()) {
+                // Response went down with old connection, server has buffered the rest
+                handle.setJoined(generation);
+            }
+            // Server always responds to our arrival before it sends round ending notifies so
+            // anything before the response or from another generation is stale.
+            if (!handle.isJoined() || generation != handle.getGeneration()) {
+                Log.d("Stale notify scrapped for " + syncPoint + "#" + generation);
+                return;
+            }
+            switch (notify.getSyncCode()) {
+                case SUCCESS:
+                    handle.setReduction(notify.getReduction());
+                    handle.setGathered(notify.getMembers(), notify.getGathered());
+                    handle.setReleaseTime(mClient.toLocalTime(notify.getReleaseTime()));
+                    handle.setTriggered(mClient.toLocalTime(notify.getTriggerTime()),
+                            notify.getWaitTimes());
+                    completeSync(handle, SyncHandle.State.SUCCESS);
+                    break;
+                case TIMEOUT:
+                    completeSync(handle, SyncHandle.State.TIMEOUT);
+                    break;
+                case JOIN: // Fall-through
+                case LEAVE: // Fall-through
+                case TICK: // Fall-through
+                case PHASE: // Fall-through
+                case PHASE_TIMEOUT: // Fall-through
+                case MEMBERS: // Fall-through
+                case MEMBERS_TIMEOUT:
+                    break;
+            }
+        }
+    }
+
+    void handleSyncPointResponse(final SyncResponse response) {
+        final NodeId syncPoint = response.getSyncPoint();
+        final SyncRequest request = response.getOriginalRequest();
+        if (request != null && SyncType.TICK == request.getType()) {
+            final Metronome metronome;
+            synchronized (mMetronomes) {
+                metronome = mMetronomes.get(syncPoint);
+            }
+            if (metronome != null) {
+                metronome.handleStartResponse(response.getCode(), response.getGeneration());
+            }
+            return;
+        }
+        if (request != null && SyncType.MEMBERS == request.getType()) {
+            switch (response.getCode()) {
+                case MATCHED:
+                    completeMemberWait(syncPoint, true, null);
+                    break;
+                case EXPIRED:
+                    completeMemberWait(syncPoint, false, null);
+                    break;
+                case FAIL_AUTHENTICATION_FAILURE: // Fall-through
+                case FAIL_INVALID_REQUEST:
+                    completeMemberWait(syncPoint, false,
+                            new GroupSyncException("Member wait failed: " + response.getCode()));
+                    break;
+                default:
+                    break;
+            }
+            return;
+        }
+        if (request != null && SyncType.SCHEDULE == request.getType()) {
+            final BarrierSchedule schedule;
+            synchronized (mSchedules) {
+                schedule = mSchedules.get(syncPoint);
+            }
+            if (schedule != null) {
+                schedule.handleStartResponse(response.getCode(), response.getGeneration());
+            }
+            return;
+        }
+        synchronized (mSyncLock) {
+            final SyncHandle handle = mPendingSyncs.get(syncPoint);
+            if (null == handle || handle.isDone()) {
                 Log.d("Not waiting sync, response scrapped for " + syncPoint);
+                return;
+            }
+            switch (response.getCode()) {
+                case EXPIRED:
+                    completeSync(handle, SyncHandle.State.TIMEOUT);
+                    break;
+                case FAIL_AUTHENTICATION_FAILURE: // Fall-through
+                case FAIL_INVALID_REQUEST:
+                    completeSync(handle, SyncHandle.State.ERROR);
+                    break;
+                case CREATED: // Fall-trough
+                case JOINED:
+                    handle.setJoined(response.getGeneration());
+                    break;
+                case MATCHED:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Add members server told to have joined. Run in event loop's thread.
+     *
+     * @param joined Joined members
+     */
+    void addMembers(final NodeId[] joined) {
+        final Set<NodeId> members = new TreeSet<>(mMembership.getMembers());
+        Collections.addAll(members, joined);
+        setMembers(members.toArray(new NodeId[members.size()]));
+    }
+
+    /**
+     * Finish join made in client's register request. Group that server did not join is joined
+     * with a join request.
+     *
+     * @throws GroupJoinException if joining failed
+     */
+    void finishBootstrapJoin() throws GroupJoinException {
+        if (null == mJoinStatus) {
+            join();
+        } else if (!isJoined()) {
+            throw joinError(mJoinStatus);
+        }
+    }
+
+    SyncClient getClient() {
+        return mClient;
+    }
+
+    /**
+     * @return true if arrival to sync point is waiting for its result and hasn't expired
+     */
+    boolean isArriving(final NodeId syncPointId) {
+        final long extraLatency = mClient.getSettings().getSyncExtraLatency();
+        synchronized (mSyncLock) {
+            final SyncHandle pending = mPendingSyncs.get(syncPointId);
+            return pending != null && !pending.isDone() && !pending.hasExpired(extraLatency);
+        }
+    }
+
+    /**
+     * @return true if leave request is waiting for server's response
+     */
+    boolean isLeaving() {
+        return mLeaving;
+    }
+
+    /**
+     * @return true if join replayed after reconnect is waiting for server's response
+     */
+    boolean isRejoining() {
+        return mRejoining;
+    }
+
+    /**
+     * Remove members server told to have left. Run in event loop's thread.
+     *
+     * @param left Members that left
+     */
+    void removeMembers(final NodeId[] left) {
+        final Set<NodeId> members = new TreeSet<>(mMembership.getMembers());
+        for (final NodeId member : left) {
+            members.remove(member);
+        }
+        setMembers(members.toArray(new NodeId[members.size()]));
+    }
+
+    void removeMetronome(final Metronome metronome) {
+        synchronized (mMetronomes) {
+            if (mMetronomes.get(metronome.getSyncPoint()) == metronome) {
+                mMetronomes.remove(metronome.getSyncPoint());
+            }
+        }
+    }
+
+    void removeSchedule(final BarrierSchedule schedule) {
+        synchronized (mSchedules) {
+            if (mSchedules.get(schedule.getId()) == schedule) {
+                mSchedules.remove(schedule.getId());
+            }
+        }
+    }
+
+    /**
+     * Join group again over re-established connection. Run in event loop's thread.
+     */
+    void replayJoin() {
+        if (!isJoined() || isLeaving()) {
+            return;
+        }
+        // Notifies of rejoining members don't have us until our join is handled
+        mRejoining = true;
+        final Packet<JoinRequest> packet = new Packet<>(JoinRequest.class, mClient.getToken());
+        final JoinRequest request = packet.getMessage();
+        request.setGroupId(mGroupId);
+        request.setGroupToken(mGroupToken);
+        try {
+            mClient.send(packet);
+        } catch (final IOException e) {
+            // Next reconnect replays again
+            Log.e("Replay send failed: ", e);
+        }
+    }
+
+    /**
+     * Arrive again to pending sync points after {@link #replayJoin()}. Arrivals keep the time
+     * they have left. Run in event loop's thread.
+     */
+    void replaySyncs() {
+        if (!isJoined() || isLeaving()) {
+            return;
+        }
+        final List<SyncHandle> pending = new ArrayList<>();
+        synchronized (mSyncLock) {
+            for (final SyncHandle handle : mPendingSyncs.values()) {
+                // Expired ones are left to local timeout
+                if (!handle.isDone() && handle.getRequest() != null &&
+                        !handle.hasExpired(0)) {
+                    pending.add(handle);
+                }
+            }
+        }
+        for (final SyncHandle handle : pending) {
+            final SyncRequest previous = handle.getRequest();
+            final Packet<SyncRequest> packet = createSyncRequest(previous.getSyncPoint(),
+                    previous.getType(), handle.getTimeLeft(0), previous.getReduction(),
+                    previous.getGatherData());
+            handle.setRequest(packet.getMessage());
+            try {
+                mClient.send(packet);
+            } catch (final IOException e) {
+                Log.e("Replay send failed: ", e);
+                return;
             }
         }
     }
 
-    void handleSyncPointResponse(final NodeId syncPoint, final SyncResponse.Code code) {
-        synchronized (mSync) {
-            if (mSync.get()) {
-                switch (code) {
-                    case EXPIRED:
-                        mSyncCode = SyncCode.TIMEOUT;
-                        mSync.notifyAll();
-                        break;
-                    case FAIL_AUTHENTICATION_FAILURE:
-                        mSyncCode = SyncCode.ERROR;
-                        mSync.notifyAll();
-                        break;
-                    case CREATED: // Fall-trough
-                    case JOINED:
-                        break;
+    /**
+     * Let arrivals that didn't get their response before connection was lost follow server's
+     * round when client's registration is resumed. Run in event loop's thread.
+     */
+    void resumeSyncs() {
+        synchronized (mSyncLock) {
+            for (final SyncHandle handle : mPendingSyncs.values()) {
+                if (!handle.isDone() && !handle.isJoined()) {
+                    handle.setResumed();
                 }
-            } else {
-                Log.d("Not waiting sync, response scrapped for " + syncPoint);
             }
         }
     }
 
+    void sendAck(final NodeId syncPoint, final SyncAck.Code code, final int tick)
+            throws GroupSyncException {
+        final Packet<SyncAck> packet = new Packet<>(SyncAck.class, mClient.getToken());
+        final SyncAck ack = packet.getMessage();
+        ack.setGroupId(mGroupId);
+        ack.setGroupToken(mGroupToken);
+        ack.setSyncPoint(syncPoint);
+        ack.setCode(code);
+        ack.setTick(tick);
+        try {
+            mClient.send(packet);
+        } catch (final IOException e) {
+            Log.e("Message send failed: ", e);
+            throw new GroupSyncException("Message send failed", e);
+        }
+    }
+
     void setJoinStatus(final JoinResponse.Code code) {
-        mJoinStatus = code;
-        synchronized (mMembers) {
+        final SyncFuture<Void> joinFuture;
+        final SyncFuture<Void> leaveFuture;
+        final boolean closed;
+        synchronized (this) {
+            closed = null == code && ACCEPTED == mJoinStatus;
+            mJoinStatus = code;
+            mRejoining = false;
+            if (null == code) {
+                mLeaving = false;
+            }
+            joinFuture = mJoinFuture;
+            leaveFuture = null == code ? mLeaveFuture : null;
+            mJoinFuture = null;
+            if (null == code) {
+                mLeaveFuture = null;
+            }
+        }
+        if (null == code) {
+            // Server drops metronomes and schedules of members leaving group
+            synchronized (mMetronomes) {
+                for (final Metronome metronome : mMetronomes.values()) {
+                    metronome.setStopped();
+                }
+                mMetronomes.clear();
+            }
+            synchronized (mSchedules) {
+                for (final BarrierSchedule schedule : mSchedules.values()) {
+                    schedule.setStopped();
+                }
+                mSchedules.clear();
+            }
+        }
+        synchronized (mMembersLock) {
             // If join status is set to null at leave response, clear all members, as for us it's an
             // empty group not since we left.
             if (null == code) {
-                mMembers.clear();
+                publishMembers(new NodeId[0], false);
             }
-            mMembers.notifyAll();
+            if (closed) {
+                dispatchClosed();
+            }
+            mMembersLock.notifyAll();
         }
         synchronized (this) {
             notifyAll();
         }
-        synchronized (mSync) {
-            mSync.notifyAll();
+        synchronized (mSyncLock) {
+            if (null == code) {
+                // Arrivals can't finish once we're out of group
+                for (final SyncHandle handle : new ArrayList<>(mPendingSyncs.values())) {
+                    completeSync(handle, SyncHandle.State.ERROR);
+                }
+            }
+            mSyncLock.notifyAll();
+        }
+        updateMemberWaiters();
+        if (joinFuture != null) {
+            if (ACCEPTED == code) {
+                joinFuture.complete(null);
+            } else {
+                joinFuture.fail(joinError(code));
+            }
+        }
+        if (leaveFuture != null) {
+            leaveFuture.complete(null);
         }
     }
 
     void setMembers(final NodeId[] members) {
-        synchronized (mMembers) {
-            mMembers.clear();
-            Collections.addAll(mMembers, members);
+        synchronized (mMembersLock) {
+            publishMembers(members, true);
 
             // We may be dropped out by notify (at least close), update joined status
-            if (!mMembers.contains(mClient.getId())) {
+            if (!mMembership.contains(mClient.getId())) {
                 setJoinStatus(null);
             }
-            mMembers.notifyAll();
+            mMembersLock.notifyAll();
+        }
+        updateMemberWaiters();
+    }
+
+    /**
+     * Wait until scheduled release time of successful sync or tick so that all members continue
+     * at the same moment regardless of when they got notified.
+     *
+     * @param releaseTime Local release time or SyncNotify.NO_RELEASE_TIME
+     */
+    void waitRelease(final long releaseTime) {
+        if (SyncNotify.NO_RELEASE_TIME == releaseTime) {
+            return;
         }
+        // Don't trust the estimate further than extra latency we allow
+        final long maxWait =
+                TimeUnit.MILLISECONDS.toNanos(mClient.getSettings().getSyncExtraLatency());
+        TimeUtils.waitUntilNanos(Math.min(releaseTime, System.nanoTime() + maxWait));
     }
 
-    private boolean isWaitingSync() {
-        return isWaitingSyncCode() && isJoined() && mSync.get();
+    /**
+     * Wait for arrival made by {@link #arrive} and give up on it if it doesn't succeed.
+     */
+    boolean waitSync(final SyncHandle handle) {
+        final long extraLatency = mClient.getSettings().getSyncExtraLatency();
+        final boolean success = await(handle, handle.getTimeLeft(extraLatency));
+        if (!success) {
+            // Give up on this arrival so that next one can be made
+            synchronized (mSyncLock) {
+                completeSync(handle, SyncHandle.State.TIMEOUT);
+            }
+        }
+        return success;
+    }
+
+    private static GroupJoinException joinError(final JoinResponse.Code code) {
+        if (null == code) {
+            return new GroupJoinException("Join timed out",
+                    GroupJoinException.ErrorCode.JOIN_TIMEOUT);
+        }
+        switch (code) {
+            case FAIL_AUTHENTICATION_FAILURE:
+                return new GroupJoinException(
+                        "Group join error", GroupJoinException.ErrorCode.GROUP_AUTHENTICATION_ERROR);
+            case FAIL_GROUP_FULL:
+                return new GroupJoinException(
+                        "Group join error", GroupJoinException.ErrorCode.GROUP_FULL);
+            default:
+                throw new FatalRuntimeException("Unexpected join status");
+        }
     }
 
-    private boolean isWaitingSyncCode() {
-        return mSyncCode == null || SyncCode.WAITING == mSyncCode;
+    /**
+     * Finish sync handle and wake up its waiters. Must be called with sync lock held.
+     */
+    private void completeSync(final SyncHandle handle, final SyncHandle.State state) {
+        if (handle.isDone()) {
+            return;
+        }
+        handle.complete(state);
+        if (mPendingSyncs.get(handle.getSyncPoint()) == handle) {
+            mPendingSyncs.remove(handle.getSyncPoint());
+        }
+        mSyncLock.notifyAll();
+        completeFuture(handle);
+        if (!mListeners.isEmpty()) {
+            // Waiting thread updates wake time when it wakes
+            handle.setWakeTime(System.nanoTime());
+            dispatchSync(handle.getResult());
+        }
     }
 
-    private enum SyncCode {
-        WAITING,
-        SUCCESS,
-        TIMEOUT,
-        ERROR
+    /**
+     * Complete future of asynchronous sync at release time. Future is completed by I/O thread
+     * outside sync lock so that its listeners may arrive at next sync point.
+     */
+    private void completeFuture(final SyncHandle handle) {
+        final SyncFuture<SyncHandle> future = handle.getFuture();
+        if (null == future) {
+            return;
+        }
+        long delay = 0;
+        if (handle.isSuccess() && handle.getReleaseTime() != SyncNotify.NO_RELEASE_TIME) {
+            final long untilRelease = TimeUnit.NANOSECONDS.toMillis(
+                    handle.getReleaseTime() - System.nanoTime());
+            delay = Math.max(0, Math.min(untilRelease,
+                    mClient.getSettings().getSyncExtraLatency()));
+        }
+        mClient.schedule(delay, new Runnable() {
+            @Override
+            public void run() {
+                future.complete(handle);
+            }
+        });
     }
 
-    public abstract static class MemberCount {
+    /**
+     * Complete future of member wait with its result from server.
+     */
+    private void completeMemberWait(final NodeId waitId, final boolean matched,
+                                    final GroupSyncException error) {
+        final MemberWaiter waiter;
+        synchronized (mMembersLock) {
+            waiter = mMemberWaiters.remove(waitId);
+        }
+        if (null == waiter) {
+            Log.d("Not waiting members, scrapped result of " + waitId);
+        } else if (error != null) {
+            waiter.mFuture.fail(error);
+        } else {
+            waiter.mFuture.complete(matched);
+        }
+    }
+
+    private void dispatchClosed() {
+        for (final ListenerEntry entry : mListeners) {
+            entry.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    entry.mListener.onClosed(SyncGroup.this);
+                }
+            });
+        }
+    }
+
+    private void dispatchMember(final NodeId member, final boolean joined,
+                                final MembershipSnapshot membership) {
+        for (final ListenerEntry entry : mListeners) {
+            entry.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (joined) {
+                        entry.mListener.onMemberJoined(SyncGroup.this, member, membership);
+                    } else {
+                        entry.mListener.onMemberLeft(SyncGroup.this, member, membership);
+                    }
+                }
+            });
+        }
+    }
+
+    private void dispatchSync(final SyncResult result) {
+        for (final ListenerEntry entry : mListeners) {
+            entry.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    entry.mListener.onSync(SyncGroup.this, result);
+                }
+            });
+        }
+    }
+
+    private void handleSchedulePhase(final SyncNotify notify) {
+        final NodeId scheduleId = notify.getSyncPoint();
+        final BarrierSchedule schedule;
+        synchronized (mSchedules) {
+            schedule = mSchedules.get(scheduleId);
+        }
+        if (null == schedule) {
+            Log.d("Phase of unknown schedule scrapped: " + scheduleId);
+            return;
+        }
+        final int phase = notify.getGeneration();
+        if (SyncNotify.Code.PHASE == notify.getSyncCode()) {
+            schedule.handlePhase(phase, mClient.toLocalTime(notify.getReleaseTime()));
+            if (phase < schedule.getPhases().length - 1) {
+                return;
+            }
+        } else {
+            schedule.handlePhaseTimeout(phase);
+        }
+        // Server has ended the schedule
+        removeSchedule(schedule);
+    }
+
+    /**
+     * Replace membership snapshot with a newer one. Called with members lock held.
+     *
+     * @param members    New members
+     * @param dispatch   true to tell listeners who joined and left
+     */
+    private void publishMembers(final NodeId[] members, final boolean dispatch) {
+        final MembershipSnapshot previous = mMembership;
+        final MembershipSnapshot membership =
+                new MembershipSnapshot(previous.getEpoch() + 1, members);
+        mMembership = membership;
+        if (!dispatch || mListeners.isEmpty()) {
+            return;
+        }
+        for (final NodeId member : previous.getMembers()) {
+            if (!membership.contains(member)) {
+                dispatchMember(member, false, membership);
+            }
+        }
+        for (final NodeId member : membership.getMembers()) {
+            if (!previous.contains(member)) {
+                dispatchMember(member, true, membership);
+            }
+        }
+    }
+
+    /**
+     * Poll handle until it's done, group is left, timeout passes or, unless busy-spinning, spin
+     * time passes.
+     *
+     * @param spinTime Spin time in µs
+     */
+    private void spin(final SyncHandle handle, final WaitStrategy strategy, final long spinTime,
+                      final TimeUtils.StopWatch watch, final long timeout) {
+        final long spinStart = System.nanoTime();
+        final long spinNanos = WaitStrategy.BUSY_SPIN == strategy ? Long.MAX_VALUE :
+                TimeUnit.MICROSECONDS.toNanos(spinTime);
+        while (!handle.isDone() && isJoined() && watch.hasTimeLeft(timeout) &&
+                System.nanoTime() - spinStart < spinNanos) {
+            if (WaitStrategy.YIELDING == strategy) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private void updateMemberWaiters() {
+        if (isJoined()) {
+            return;
+        }
+        // Server forgets waits of members that leave
+        final List<MemberWaiter> finished;
+        synchronized (mMembersLock) {
+            finished = new ArrayList<>(mMemberWaiters.values());
+            mMemberWaiters.clear();
+        }
+        for (final MemberWaiter waiter : finished) {
+            waiter.mFuture.complete(waiter.mMatcher.matches());
+        }
+    }
+
+    /**
+     * Member count condition to wait for with {@link #waitMembers}. Condition is evaluated by
+     * server, {@link #matches()} tells what client's own membership view says.
+     */
+    public static final class MemberCount {
+        private final SyncGroup mGroup;
+        private final MemberCondition mCondition;
+
+        private MemberCount(final SyncGroup group, final MemberCondition.Op op, final int count) {
+            mGroup = group;
+            mCondition = new MemberCondition(op, count);
+        }
+
         public static MemberCount atLeast(final SyncGroup group, final int count) {
             if (count < 1) {
                 throw new IllegalArgumentException("count must be >= 1");
             }
-            return new MemberCount() {
-                @Override
-                boolean matches() {
-                    return group.mMembers.size() >= count;
-                }
-            };
+            return new MemberCount(group, MemberCondition.Op.AT_LEAST, count);
         }
 
         public static MemberCount equalTo(final SyncGroup group, final int count) {
             if (count < 0) {
                 throw new IllegalArgumentException("count must be >= 0");
             }
-            return new MemberCount() {
-                @Override
-                boolean matches() {
-                    return group.mMembers.size() == count;
-                }
-            };
+            return new MemberCount(group, MemberCondition.Op.EQUAL_TO, count);
         }
 
         public static MemberCount lessThan(final SyncGroup group, final int count) {
             if (count < 1) {
                 throw new IllegalArgumentException("count must be >= 1");
             }
-            return new MemberCount() {
-                @Override
-                boolean matches() {
-                    return group.mMembers.size() < count;
-                }
-            };
+            return new MemberCount(group, MemberCondition.Op.LESS_THAN, count);
+        }
+
+        boolean matches() {
+            return mCondition.matches(mGroup.mMembership.size());
+        }
+    }
+
+    private static class ListenerEntry {
+        private final GroupListener mListener;
+        private final Executor mExecutor;
+
+        private ListenerEntry(final GroupListener listener, final Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
         }
+    }
 
-        abstract boolean matches();
+    private static class MemberWaiter {
+        private final MemberCount mMatcher;
+        private final SyncFuture<Boolean> mFuture;
+
+        private MemberWaiter(final MemberCount matcher, final SyncFuture<Boolean> future) {
+            mMatcher = matcher;
+            mFuture = future;
+        }
     }
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.client;
+
+import fi.nuumio.netsync.protocol.message.group.Reduction;
+import fi.nuumio.netsync.protocol.message.group.SyncNotify;
+import fi.nuumio.netsync.protocol.message.group.SyncRequest;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.TimeUtils;
+
+/**
+ * Handle to an arrival at a sync point. Returned by {@link SyncGroup#arrive} and passed to
+ * {@link SyncGroup#await} to wait for the other members.
+ * <p>
+ * Handle state is guarded by the owning {@link SyncGroup}.
+ */
+public class SyncHandle {
+    private final NodeId mSyncPoint;
+    private final NodeId mMemberId;
+    private final long mTimeout;
+    private final TimeUtils.StopWatch mWatch;
+    // Polled by spinning waiters
+    private volatile State mState;
+    private Reduction mReduction;
+    private NodeId[] mMembers;
+    private byte[][] mGathered;
+    private long[] mWaitTimes;
+    private long mReleaseTime;
+    private long mTriggerTime;
+    private long mSendTime;
+    private long mWakeTime;
+    private int mGeneration;
+    private boolean mJoined;
+    private boolean mResumed;
+    private SyncFuture<SyncHandle> mFuture;
+    private SyncRequest mRequest;
+
+    SyncHandle(final NodeId syncPoint, final NodeId memberId, final long timeout) {
+        mSyncPoint = syncPoint;
+        mMemberId = memberId;
+        mTimeout = timeout;
+        mWatch = new TimeUtils.StopWatch();
+        mState = State.WAITING;
+        mReduction = null;
+        mMembers = null;
+        mGathered = null;
+        mWaitTimes = null;
+        mReleaseTime = SyncNotify.NO_RELEASE_TIME;
+        mTriggerTime = SyncNotify.NO_RELEASE_TIME;
+        mSendTime = System.nanoTime();
+        mWakeTime = mSendTime;
+        mGeneration = 0;
+        mJoined = false;
+        mResumed = false;
+        mFuture = null;
+        mRequest = null;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
+                mSyncPoint.asString() + "#" + mGeneration + "/" + mState + "]";
+    }
+
+    /**
+     * @return data shared by members after successful sync in same order as
+     * {@link #getMembers()}, null if sync is not successful or members didn't share any. Data
+     * of members that didn't share any is null.
+     */
+    public byte[][] getGathered() {
+        return isSuccess() ? mGathered : null;
+    }
+
+    /**
+     * @return members that arrived to sync point, ordered by their slot in group, after
+     * successful sync or null if sync is not successful
+     */
+    public NodeId[] getMembers() {
+        return isSuccess() ? mMembers : null;
+    }
+
+    /**
+     * @return value reduced from all members' contributions after successful sync, null if
+     * sync is not successful or members didn't contribute any
+     */
+    public Reduction getReduction() {
+        return isSuccess() ? mReduction : null;
+    }
+
+    /**
+     * @return outcome and timing of sync. Sync that is not done is reported as timed out.
+     */
+    public SyncResult getResult() {
+        final SyncResult.Outcome outcome;
+        switch (mState) {
+            case SUCCESS:
+                outcome = SyncResult.Outcome.SUCCESS;
+                break;
+            case ERROR:
+                outcome = SyncResult.Outcome.ERROR;
+                break;
+            default:
+                outcome = SyncResult.Outcome.TIMEOUT;
+                break;
+        }
+        final boolean success = SyncResult.Outcome.SUCCESS == outcome;
+        return new SyncResult(outcome, mSyncPoint, mMemberId, mGeneration,
+                success ? mMembers : null, success ? mWaitTimes : null, mSendTime,
+                success ? mTriggerTime : SyncNotify.NO_RELEASE_TIME, mWakeTime);
+    }
+
+    public NodeId getSyncPoint() {
+        return mSyncPoint;
+    }
+
+    /**
+     * @return true if sync has finished, successfully or not
+     */
+    public boolean isDone() {
+        return mState != State.WAITING;
+    }
+
+    /**
+     * @return true if all members arrived to sync point
+     */
+    public boolean isSuccess() {
+        return State.SUCCESS == mState;
+    }
+
+    void complete(final State state) {
+        if (!isDone()) {
+            mState = state;
+        }
+    }
+
+    long elapsed() {
+        return mWatch.elapsed();
+    }
+
+    /**
+     * @return future of {@link SyncGroup#syncAsync} or null if arrival was not asynchronous
+     */
+    SyncFuture<SyncHandle> getFuture() {
+        return mFuture;
+    }
+
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * @return local System.nanoTime() time when members are released or
+     * SyncNotify.NO_RELEASE_TIME to release immediately
+     */
+    long getReleaseTime() {
+        return mReleaseTime;
+    }
+
+    /**
+     * @return arrival sent to server, replayed if connection is re-established
+     */
+    SyncRequest getRequest() {
+        return mRequest;
+    }
+
+    State getState() {
+        return mState;
+    }
+
+    long getTimeLeft(final long extraLatency) {
+        return mWatch.getTimeLeft(mTimeout + extraLatency);
+    }
+
+    boolean hasExpired(final long extraLatency) {
+        return !mWatch.hasTimeLeft(mTimeout + extraLatency);
+    }
+
+    boolean isJoined() {
+        return mJoined;
+    }
+
+    /**
+     * @return true if arrival's response may have been lost with connection of resumed client
+     */
+    boolean isResumed() {
+        return mResumed;
+    }
+
+    void setFuture(final SyncFuture<SyncHandle> future) {
+        mFuture = future;
+    }
+
+    void setGathered(final NodeId[] members, final byte[][] gathered) {
+        mMembers = members;
+        mGathered = gathered;
+    }
+
+    void setJoined(final int generation) {
+        mGeneration = generation;
+        mJoined = true;
+    }
+
+    void setReduction(final Reduction reduction) {
+        mReduction = reduction;
+    }
+
+    void setReleaseTime(final long releaseTime) {
+        mReleaseTime = releaseTime;
+    }
+
+    void setRequest(final SyncRequest request) {
+        mRequest = request;
+    }
+
+    void setResumed() {
+        mResumed = true;
+    }
+
+    /**
+     * @param sendTime local System.nanoTime() when arrival was sent
+     */
+    void setSendTime(final long sendTime) {
+        mSendTime = sendTime;
+    }
+
+    /**
+     * @param triggerTime local System.nanoTime() when server triggered sync point or
+     *                    SyncNotify.NO_RELEASE_TIME if not known
+     * @param waitTimes   Time in ns each member waited in server, in same order as members
+     */
+    void setTriggered(final long triggerTime, final long[] waitTimes) {
+        mTriggerTime = triggerTime;
+        mWaitTimes = waitTimes;
+    }
+
+    /**
+     * @param wakeTime local System.nanoTime() when waiting thread woke up
+     */
+    void setWakeTime(final long wakeTime) {
+        mWakeTime = wakeTime;
+    }
+
+    enum State {
+        WAITING,
+        SUCCESS,
+        TIMEOUT,
+        ERROR
+    }
+}
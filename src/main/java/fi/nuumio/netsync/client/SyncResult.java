@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.client;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import fi.nuumio.netsync.protocol.message.group.SyncNotify;
+import fi.nuumio.netsync.util.NodeId;
+
+/**
+ * Outcome of a sync with timing breakdown. Returned by {@link SyncGroup#waitSyncResult} and
+ * {@link SyncHandle#getResult()}.
+ * <p>
+ * Server reports how long each member waited from its arrival until sync point was triggered.
+ * That tells members that arrived late (stragglers) apart from network delay, which shows as
+ * time between server's trigger and local wake. All times are in ns.
+ */
+public class SyncResult {
+    /**
+     * Returned for times that are not known
+     */
+    public static final long NOT_AVAILABLE = -1;
+    private final Outcome mOutcome;
+    private final NodeId mSyncPoint;
+    private final NodeId mMemberId;
+    private final int mGeneration;
+    private final NodeId[] mMembers;
+    private final long[] mWaitTimes;
+    private final long mSendTime;
+    private final long mTriggerTime;
+    private final long mWakeTime;
+
+    SyncResult(final Outcome outcome, final NodeId syncPoint, final NodeId memberId,
+               final int generation, final NodeId[] members, final long[] waitTimes,
+               final long sendTime, final long triggerTime, final long wakeTime) {
+        mOutcome = outcome;
+        mSyncPoint = syncPoint;
+        mMemberId = memberId;
+        mGeneration = generation;
+        mMembers = members;
+        mWaitTimes = waitTimes;
+        mSendTime = sendTime;
+        mTriggerTime = triggerTime;
+        mWakeTime = wakeTime;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
+                mSyncPoint.asString() + "#" + mGeneration + "/" + mOutcome + " wait=" +
+                getServerWaitTime() + " wake=" + getWakeLatency() + "]";
+    }
+
+    /**
+     * @return members in order they arrived to server, first one first, or null if sync was not
+     * successful or server did not report arrivals
+     */
+    public NodeId[] getArrivalOrder() {
+        if (!hasWaitTimes()) {
+            return null;
+        }
+        final Integer[] order = new Integer[mMembers.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // Longest wait arrived first
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer o1, final Integer o2) {
+                final long w1 = mWaitTimes[o1];
+                final long w2 = mWaitTimes[o2];
+                return w1 > w2 ? -1 : (w1 < w2 ? 1 : 0);
+            }
+        });
+        final NodeId[] arrivals = new NodeId[order.length];
+        for (int i = 0; i < order.length; i++) {
+            arrivals[i] = mMembers[order[i]];
+        }
+        return arrivals;
+    }
+
+    /**
+     * @return time from sending arrival until waiting thread woke up
+     */
+    public long getElapsedTime() {
+        return mWakeTime - mSendTime;
+    }
+
+    /**
+     * @return generation (round) of sync point this member took part in
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * @return member whose arrival triggered sync point or null if not known
+     */
+    public NodeId getLastArrival() {
+        final NodeId[] arrivals = getArrivalOrder();
+        return null == arrivals || 0 == arrivals.length ? null : arrivals[arrivals.length - 1];
+    }
+
+    /**
+     * @return members of successful sync ordered by their slot in group or null if sync was not
+     * successful
+     */
+    public NodeId[] getMembers() {
+        return mMembers;
+    }
+
+    public Outcome getOutcome() {
+        return mOutcome;
+    }
+
+    /**
+     * @return local System.nanoTime() when arrival was sent to server
+     */
+    public long getSendTime() {
+        return mSendTime;
+    }
+
+    /**
+     * @return time this member waited in server for the others or {@link #NOT_AVAILABLE}
+     */
+    public long getServerWaitTime() {
+        return getWaitTime(mMemberId);
+    }
+
+    public NodeId getSyncPoint() {
+        return mSyncPoint;
+    }
+
+    /**
+     * @param member Member of sync
+     * @return time member waited in server for the others or {@link #NOT_AVAILABLE}
+     */
+    public long getWaitTime(final NodeId member) {
+        if (hasWaitTimes()) {
+            for (int i = 0; i < mMembers.length; i++) {
+                if (mMembers[i].equals(member)) {
+                    return mWaitTimes[i];
+                }
+            }
+        }
+        return NOT_AVAILABLE;
+    }
+
+    /**
+     * @return time from server triggering sync point until waiting thread woke up, including
+     * release delay, or {@link #NOT_AVAILABLE} if sync was not successful or clock is not synced
+     * with server
+     */
+    public long getWakeLatency() {
+        if (SyncNotify.NO_RELEASE_TIME == mTriggerTime) {
+            return NOT_AVAILABLE;
+        }
+        return mWakeTime - mTriggerTime;
+    }
+
+    public boolean isSuccess() {
+        return Outcome.SUCCESS == mOutcome;
+    }
+
+    private boolean hasWaitTimes() {
+        return mMembers != null && mWaitTimes != null && mWaitTimes.length == mMembers.length;
+    }
+
+    public enum Outcome {
+        /**
+         * All members arrived to sync point
+         */
+        SUCCESS,
+        /**
+         * Sync point timed out in server or waiting gave up
+         */
+        TIMEOUT,
+        /**
+         * Arrival was rejected or could not be sent
+         */
+        ERROR
+    }
+}
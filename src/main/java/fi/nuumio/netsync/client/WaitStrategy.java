@@ -0,0 +1,36 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.client;
+
+/**
+ * How application thread waits for sync point notify in {@link SyncGroup#await}. Spinning
+ * strategies skip the OS wake-up after notify at the cost of keeping a CPU busy.
+ */
+public enum WaitStrategy {
+    /**
+     * Block on sync lock until I/O thread wakes the waiter up
+     */
+    BLOCKING,
+    /**
+     * Yield to other threads while polling handle's state for spin time, then block
+     */
+    YIELDING,
+    /**
+     * Poll handle's state without ever giving up the CPU until sync completes or times out
+     */
+    BUSY_SPIN
+}
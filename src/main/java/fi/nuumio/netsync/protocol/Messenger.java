@@ -19,6 +19,7 @@ package fi.nuumio.netsync.protocol;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 
 import fi.nuumio.netsync.protocol.message.Header;
@@ -36,16 +37,24 @@ import static fi.nuumio.netsync.protocol.Messenger.State.FULLY_READ;
 import static fi.nuumio.netsync.protocol.Messenger.State.READING_DATA;
 import static fi.nuumio.netsync.protocol.Messenger.State.READING_HEADER;
 
+/**
+ * Reads and writes packets of a non-blocking channel. Data that channel doesn't take at once is
+ * kept in order until owner calls {@link #flush()} when channel is writable again.
+ */
 public class Messenger<M extends Message> {
+    // Peer that lets this much data pile up is not reading
+    private static final int MAX_PENDING_WRITE_BYTES = 4 * Constants.MESSAGE_MAX_SIZE;
     private final HashMap<Class<M>, MessageHandler<M>> mHandlers;
     private final HashMap<Integer, Packet<? extends Message>> mPendingRequests;
+    private final ArrayDeque<ByteBuffer> mPendingWrites;
     private final Header mCurrentHeader;
     private final SocketChannel mChannel;
-    private final ByteBuffer mInBuffer;
-    private final ByteBuffer mOutBuffer;
     private final PacketFactory<M> mPacketFactory;
+    private ByteBuffer mInBuffer;
+    private ByteBuffer mOutBuffer;
     private Packet<M> mCurrentPacket;
     private State mState;
+    private int mPendingWriteBytes;
 
     public Messenger(final SocketChannel channel) {
         if (!channel.isOpen() || !channel.isConnected()) {
@@ -54,6 +63,8 @@ public class Messenger<M extends Message> {
         mChannel = channel;
         mHandlers = new HashMap<>();
         mPendingRequests = new HashMap<>();
+        mPendingWrites = new ArrayDeque<>();
+        mPendingWriteBytes = 0;
         mInBuffer = ByteBuffer.allocate(Constants.MESSAGE_BUFFER_SIZE);
         mOutBuffer = ByteBuffer.allocate(Constants.MESSAGE_BUFFER_SIZE);
         mState = READING_HEADER;
@@ -61,7 +72,7 @@ public class Messenger<M extends Message> {
         mPacketFactory = new PacketFactory<>();
     }
 
-    public void cancel(Packet<? extends Request> packet) {
+    public synchronized void cancel(Packet<? extends Request> packet) {
         mPendingRequests.remove(packet.getSequenceNumber());
     }
 
@@ -73,10 +84,36 @@ public class Messenger<M extends Message> {
         }
     }
 
+    /**
+     * Write data left over from earlier sends.
+     *
+     * @return true if all data was written
+     * @throws IOException if writing fails
+     */
+    public synchronized boolean flush() throws IOException {
+        while (!mPendingWrites.isEmpty()) {
+            final ByteBuffer buffer = mPendingWrites.peek();
+            final int written = mChannel.write(buffer);
+            mPendingWriteBytes -= written;
+            if (buffer.hasRemaining()) {
+                return false;
+            }
+            mPendingWrites.poll();
+        }
+        return true;
+    }
+
     public String getRemoteAddressString() {
         return mChannel.socket().getRemoteSocketAddress().toString();
     }
 
+    /**
+     * @return true if some sent data is still waiting for channel to become writable
+     */
+    public synchronized boolean hasPendingWrites() {
+        return !mPendingWrites.isEmpty();
+    }
+
     public ReadMessageResult read() throws IOException {
         if (mChannel.read(mInBuffer) <= 0) {
             Log.d("Connection closed: " + getRemoteAddressString());
@@ -84,19 +121,53 @@ public class Messenger<M extends Message> {
         }
         ReadMessageResult readResult;
         do {
+            // NOTE: Input buffer may be replaced with larger one while reading
             readResult = readMessage(mInBuffer);
         } while (READ_MORE == readResult);
         return readResult;
     }
 
-    public void send(Packet<? extends Message> packet) throws IOException {
+    public synchronized void send(Packet<? extends Message> packet) throws IOException {
+        final int length = packet.length();
+        if (length > mOutBuffer.capacity()) {
+            if (length > Constants.MESSAGE_MAX_SIZE) {
+                throw new IOException("Packet too large (" + length + " bytes): " + packet);
+            }
+            mOutBuffer = ByteBuffer.allocate(bufferSizeFor(length));
+        }
         if (packet.isRequest()) {
+            // Sequence numbers are random, make sure response finds the right request
+            while (mPendingRequests.containsKey(packet.getSequenceNumber())) {
+                packet.renumber();
+            }
             mPendingRequests.put(packet.getSequenceNumber(), packet);
         }
         mOutBuffer.clear();
         packet.put(mOutBuffer);
         mOutBuffer.flip();
-        mChannel.write(mOutBuffer);
+        write(mOutBuffer);
+        Log.v("Sent: " + packet);
+    }
+
+    /**
+     * Send packet that is already encoded with {@link Packet#encode()}. Encoded buffer is not
+     * modified so it can be shared between messengers.
+     *
+     * @param packet  Packet to send
+     * @param encoded Encoded packet
+     * @throws IOException if sending fails
+     */
+    public synchronized void send(Packet<? extends Message> packet, ByteBuffer encoded)
+            throws IOException {
+        if (packet.isRequest()) {
+            if (mPendingRequests.containsKey(packet.getSequenceNumber())) {
+                // Encoded sequence number is taken, renumber and encode again
+                send(packet);
+                return;
+            }
+            mPendingRequests.put(packet.getSequenceNumber(), packet);
+        }
+        write(encoded.duplicate());
         Log.v("Sent: " + packet);
     }
 
@@ -112,16 +183,47 @@ public class Messenger<M extends Message> {
                 getRemoteAddressString() + "]";
     }
 
+    private static int bufferSizeFor(final int length) {
+        int size = Constants.MESSAGE_BUFFER_SIZE;
+        while (size < length) {
+            size *= 2;
+        }
+        return Math.min(size, Constants.MESSAGE_MAX_SIZE);
+    }
+
+    /**
+     * Make sure that message being read fits to input buffer.
+     *
+     * @return false if message is too large to be read
+     */
+    private boolean ensureInCapacity() {
+        final int length = mCurrentHeader.getMessageLength();
+        if (length <= mInBuffer.capacity()) {
+            return true;
+        }
+        if (length > Constants.MESSAGE_MAX_SIZE) {
+            Log.e("Message too large (" + length + " bytes): " + mCurrentHeader);
+            return false;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(bufferSizeFor(length));
+        mInBuffer.flip();
+        buffer.put(mInBuffer);
+        mInBuffer = buffer;
+        return true;
+    }
+
     @SuppressWarnings("unchecked")
     private void handleCurrentMessage() {
         if (mCurrentPacket.isResponse()) {
             final int respSequence = mCurrentPacket.getSequenceNumber();
-            if (mPendingRequests.containsKey(respSequence)) {
-                final Packet<? extends Request> requestPacket =
-                        (Packet<? extends Request>) mPendingRequests.get(respSequence);
+            final Packet<? extends Request> requestPacket;
+            // Requests may be sent from other threads than the one reading
+            synchronized (this) {
+                requestPacket = (Packet<? extends Request>) mPendingRequests.remove(respSequence);
+            }
+            if (requestPacket != null) {
                 Request<? extends Response> request = requestPacket.getMessage();
                 ((Response<Request>) mCurrentPacket.getMessage()).setOriginalRequest(request);
-                mPendingRequests.remove(respSequence);
                 Log.v("Got request for response " + requestPacket);
             } else {
                 Log.e("Dropped response w/o request " + mCurrentPacket);
@@ -174,12 +276,35 @@ public class Messenger<M extends Message> {
             // If we got full message next we read header
             if (FULLY_READ == mState) {
                 mState = READING_HEADER;
+            } else if (READING_DATA == mState && !ensureInCapacity()) {
+                return CLOSE;
             }
             return ReadMessageResult.READ_MORE;
         }
         return EXHAUSTED;
     }
 
+    /**
+     * Write buffer to channel or keep what channel doesn't take for {@link #flush()}. Buffer may
+     * be reused after call.
+     */
+    private void write(final ByteBuffer buffer) throws IOException {
+        if (mPendingWrites.isEmpty()) {
+            mChannel.write(buffer);
+            if (!buffer.hasRemaining()) {
+                return;
+            }
+        }
+        if (mPendingWriteBytes + buffer.remaining() > MAX_PENDING_WRITE_BYTES) {
+            throw new IOException("Too much unsent data to " + getRemoteAddressString());
+        }
+        final ByteBuffer pending = ByteBuffer.allocate(buffer.remaining());
+        pending.put(buffer);
+        pending.flip();
+        mPendingWrites.add(pending);
+        mPendingWriteBytes += pending.remaining();
+    }
+
     public enum ReadMessageResult {
         READ_MORE,
         EXHAUSTED,
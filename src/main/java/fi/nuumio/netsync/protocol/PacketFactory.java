@@ -29,11 +29,15 @@ import fi.nuumio.netsync.protocol.message.group.JoinRequest;
 import fi.nuumio.netsync.protocol.message.group.JoinResponse;
 import fi.nuumio.netsync.protocol.message.group.LeaveRequest;
 import fi.nuumio.netsync.protocol.message.group.LeaveResponse;
+import fi.nuumio.netsync.protocol.message.group.SyncAck;
 import fi.nuumio.netsync.protocol.message.group.SyncNotify;
 import fi.nuumio.netsync.protocol.message.group.SyncRequest;
 import fi.nuumio.netsync.protocol.message.group.SyncResponse;
+import fi.nuumio.netsync.protocol.message.service.ClockSyncRequest;
+import fi.nuumio.netsync.protocol.message.service.ClockSyncResponse;
 import fi.nuumio.netsync.protocol.message.service.RegisterRequest;
 import fi.nuumio.netsync.protocol.message.service.RegisterResponse;
+import fi.nuumio.netsync.protocol.message.service.Unregister;
 import fi.nuumio.netsync.util.Log;
 
 class PacketFactory<T extends Message> {
@@ -52,6 +56,10 @@ class PacketFactory<T extends Message> {
             messageMap.put(SyncRequest.class);
             messageMap.put(SyncResponse.class);
             messageMap.put(SyncNotify.class);
+            messageMap.put(ClockSyncRequest.class);
+            messageMap.put(ClockSyncResponse.class);
+            messageMap.put(SyncAck.class);
+            messageMap.put(Unregister.class);
         } catch (final InstantiationException | IllegalAccessException e) {
             throw new IllegalArgumentException("Init fail", e);
         }
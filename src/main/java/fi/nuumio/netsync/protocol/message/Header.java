@@ -25,13 +25,17 @@ import fi.nuumio.netsync.util.Constants;
 import fi.nuumio.netsync.util.RandomHelper;
 
 public class Header implements Bufferable {
+    // Sequence number follows protocol version and packet length
+    static final int SEQUENCE_NUMBER_OFFSET = Constants.INT_BYTES * 2;
     private static final int PROTOCOL_VERSION_NOT_SET = Integer.MIN_VALUE;
     private static final int SEQN_NOT_SET = Integer.MIN_VALUE;
     private static final int SEQN_UPDATE_FAIL_RANDOM = -1;
     private static final int SEQN_UPDATE_FAIL_NO_GENERATOR = -2;
     private static final int SEQN_MESSAGE_NUMBER_START = 1000;
-    private static final int SEQN_MESSAGE_NUMBER_RANGE = 100;
-    private static final int SEQN_MESSAGE_NUMBER_GAP = 100;
+    // Range must be large enough for all requests in flight in one connection. Clients sharing a
+    // connection can have thousands.
+    private static final int SEQN_MESSAGE_NUMBER_RANGE = 1000000;
+    private static final int SEQN_MESSAGE_NUMBER_GAP = 1000;
     private static final Map<MessageId, SequenceNumberGenerator> sSeqGenerators;
 
     static {
@@ -84,6 +88,10 @@ public class Header implements Bufferable {
         return mMessageId;
     }
 
+    public int getMessageLength() {
+        return mFullPacketLength - length();
+    }
+
     void setMessageId(final MessageId messageId) {
         mMessageId = messageId;
         updateSequenceNumber();
@@ -111,10 +119,6 @@ public class Header implements Bufferable {
                 ",m=" + mMessageId + "]";
     }
 
-    int getMessageLength() {
-        return mFullPacketLength - length();
-    }
-
     void setMessageLength(final int messageLength) {
         mFullPacketLength = messageLength + length();
     }
@@ -135,7 +139,7 @@ public class Header implements Bufferable {
         this.mSequenceNumber = requestHeader.mSequenceNumber;
     }
 
-    private void updateSequenceNumber() {
+    void updateSequenceNumber() {
         final SequenceNumberGenerator generator = sSeqGenerators.get(mMessageId);
         if (generator != null) {
             mSequenceNumber = generator.next();
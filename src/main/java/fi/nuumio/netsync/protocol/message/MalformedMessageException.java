@@ -0,0 +1,27 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.protocol.message;
+
+/**
+ * Thrown when message read from buffer has values that can't be right, e.g. negative or too
+ * large lengths. Message is dropped.
+ */
+public class MalformedMessageException extends RuntimeException {
+    public MalformedMessageException(final String message) {
+        super(message);
+    }
+}
@@ -30,7 +30,11 @@ public enum MessageId {
     GROUP_LEAVE_RESPONSE(7),
     SYNC_REQUEST(8),
     SYNC_RESPONSE(9),
-    SYNC_NOTIFY(10);
+    SYNC_NOTIFY(10),
+    CLOCK_SYNC_REQUEST(11),
+    CLOCK_SYNC_RESPONSE(12),
+    SYNC_ACK(13),
+    UNREGISTER(14);
 
     static final Map<Integer, MessageId> sIntMapping;
 
@@ -16,6 +16,7 @@
 
 package fi.nuumio.netsync.protocol.message;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
 import fi.nuumio.netsync.util.Constants;
@@ -64,6 +65,19 @@ public class Packet<M extends Message> {
         mHeader.setAsResponseTo(request.mHeader);
     }
 
+    /**
+     * Encode packet to a new buffer. Used when same packet is sent to many receivers so that it
+     * needs to be encoded only once.
+     *
+     * @return flipped buffer containing encoded packet
+     */
+    public ByteBuffer encode() {
+        final ByteBuffer buffer = ByteBuffer.allocate(length());
+        put(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
     public boolean get(final ByteBuffer buffer, final boolean isFlipped) {
         final int bytesAvailable;
         if (isFlipped) {
@@ -76,7 +90,14 @@ public class Packet<M extends Message> {
                 buffer.flip();
             }
             if (isSupportedProtocolVersion(mHeader.getProtocolVersion())) {
-                mMessage.get(buffer);
+                final int start = buffer.position();
+                try {
+                    mMessage.get(buffer);
+                } catch (final MalformedMessageException | BufferUnderflowException e) {
+                    Log.e("Malformed message " + mHeader.getMessageId() + " dropped", e);
+                    buffer.position(start + mHeader.getMessageLength());
+                    mMessage = null;
+                }
             } else {
                 Log.d("Message " + mHeader.getMessageId() +
                         " skipped because of unsupported protocol version " +
@@ -114,12 +135,34 @@ public class Packet<M extends Message> {
         return mMessage instanceof Response;
     }
 
+    public int length() {
+        return mHeader.length() + mMessage.length();
+    }
+
+    /**
+     * Write current sequence number of packet to buffer it was earlier encoded to with
+     * {@link #encode()}. Lets encoded request be sent again after {@link #renumber()}.
+     *
+     * @param encoded Flipped buffer containing encoded packet
+     */
+    public void patchSequenceNumber(final ByteBuffer encoded) {
+        encoded.putInt(encoded.position() + Header.SEQUENCE_NUMBER_OFFSET, getSequenceNumber());
+    }
+
     public void put(final ByteBuffer buffer) {
         mHeader.setMessageLength(mMessage.length());
         mHeader.put(buffer);
         mMessage.put(buffer);
     }
 
+    /**
+     * Pick new random sequence number for packet. Used when sequence number is already used by
+     * another request in flight.
+     */
+    public void renumber() {
+        mHeader.updateSequenceNumber();
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) +
@@ -18,6 +18,7 @@ package fi.nuumio.netsync.protocol.message.group;
 
 import java.nio.ByteBuffer;
 
+import fi.nuumio.netsync.util.Constants;
 import fi.nuumio.netsync.util.NodeId;
 import fi.nuumio.netsync.util.Token;
 
@@ -63,7 +64,8 @@ public abstract class BaseSyncMessage extends BaseGroupMemberMessage {
 
     @Override
     public int length() {
-        return super.length() + (mSyncPoint != null ? mSyncPoint.length() : 0);
+        return super.length() + Constants.LONG_BYTES +
+                (mSyncPoint != null ? mSyncPoint.length() : 0);
     }
 
     @Override
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.protocol.message.group;
+
+import java.nio.ByteBuffer;
+
+import fi.nuumio.netsync.protocol.message.MalformedMessageException;
+import fi.nuumio.netsync.util.Constants;
+
+/**
+ * Encoding of optional byte arrays shared at sync points. Length -1 is used for null.
+ */
+final class GatherCodec {
+    private GatherCodec() {
+        // Not to be created
+    }
+
+    static byte[] getBytes(final ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (-1 == length) {
+            return null;
+        }
+        if (length < 0 || length > buffer.remaining()) {
+            throw new MalformedMessageException("Invalid gather data length: " + length);
+        }
+        final byte[] data = new byte[length];
+        buffer.get(data);
+        return data;
+    }
+
+    static int length(final byte[] data) {
+        return Constants.INT_BYTES + (data != null ? data.length : 0);
+    }
+
+    static void putBytes(final ByteBuffer buffer, final byte[] data) {
+        if (data != null) {
+            buffer.putInt(data.length);
+            buffer.put(data);
+        } else {
+            buffer.putInt(-1);
+        }
+    }
+}
@@ -47,6 +47,10 @@ public class GroupNotify extends BaseGroupMemberMessage {
         return MessageId.GROUP_NOTIFY;
     }
 
+    public Code getNotifyCode() {
+        return mCode;
+    }
+
     @Override
     public int getProtocolVersion() {
         return Constants.PROTOCOL_VERSION_1;
@@ -102,9 +106,13 @@ public class GroupNotify extends BaseGroupMemberMessage {
     }
 
     public enum Code {
+        // Members has only those that joined
         JOIN(0),
+        // Members has only those that left
         LEAVE(1),
-        CLOSE(2);
+        CLOSE(2),
+        // Full membership, sent to member that joined
+        MEMBERS(3);
 
         static final Map<Integer, Code> sIntMapping;
 
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.protocol.message.group;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import fi.nuumio.netsync.protocol.message.Bufferable;
+import fi.nuumio.netsync.util.Constants;
+
+/**
+ * Condition on member count of a group. Server evaluates it whenever group's membership changes
+ * and tells the waiting member when it's met.
+ */
+public class MemberCondition implements Bufferable {
+    private Op mOp;
+    private int mCount;
+
+    public MemberCondition(final Op op, final int count) {
+        if (null == op) {
+            throw new IllegalArgumentException("op may not be null");
+        }
+        mOp = op;
+        mCount = count;
+    }
+
+    public MemberCondition(final ByteBuffer buffer) {
+        get(buffer);
+    }
+
+    @Override
+    public void get(final ByteBuffer buffer) {
+        mOp = Op.valueOf(buffer.getInt());
+        mCount = buffer.getInt();
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public Op getOp() {
+        return mOp;
+    }
+
+    /**
+     * @return true if condition read from buffer can ever be met
+     */
+    public boolean isValid() {
+        return mOp != null && (Op.EQUAL_TO == mOp ? mCount >= 0 : mCount >= 1);
+    }
+
+    @Override
+    public int length() {
+        return Constants.INT_BYTES * 2;
+    }
+
+    /**
+     * @param memberCount Current member count
+     * @return true if member count meets this condition
+     */
+    public boolean matches(final int memberCount) {
+        switch (mOp) {
+            case AT_LEAST:
+                return memberCount >= mCount;
+            case EQUAL_TO:
+                return memberCount == mCount;
+            case LESS_THAN:
+                return memberCount < mCount;
+            default:
+                throw new IllegalStateException("Unsupported operation: " + mOp);
+        }
+    }
+
+    @Override
+    public void put(final ByteBuffer buffer) {
+        buffer.putInt(mOp.getCode());
+        buffer.putInt(mCount);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
+                mOp + "/" + mCount + "]";
+    }
+
+    public enum Op {
+        AT_LEAST(0),
+        EQUAL_TO(1),
+        LESS_THAN(2);
+
+        static final Map<Integer, Op> sIntMapping;
+
+        static {
+            HashMap<Integer, Op> intMapping = new HashMap<>();
+            for (Op result : Op.values()) {
+                intMapping.put(result.getCode(), result);
+            }
+            sIntMapping = Collections.unmodifiableMap(intMapping);
+        }
+
+        final int mCode;
+
+        Op(final int code) {
+            mCode = code;
+        }
+
+        public static Op valueOf(final int code) {
+            return sIntMapping.get(code);
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+    }
+}
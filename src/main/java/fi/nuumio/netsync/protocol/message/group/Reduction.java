@@ -0,0 +1,299 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.protocol.message.group;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import fi.nuumio.netsync.protocol.message.Bufferable;
+import fi.nuumio.netsync.protocol.message.MalformedMessageException;
+import fi.nuumio.netsync.util.Constants;
+
+/**
+ * Small typed value vector that is reduced (folded) by server as members arrive to a sync point.
+ * Reduced value is delivered to all members when sync point is released.
+ * <p>
+ * All members contributing to same sync point round must use same operation, value kind and
+ * vector size.
+ */
+public class Reduction implements Bufferable {
+    private Op mOp;
+    private Kind mKind;
+    private long[] mValues;
+
+    private Reduction(final Op op, final Kind kind, final long[] values) {
+        if (null == op || null == kind) {
+            throw new IllegalArgumentException("op and kind may not be null");
+        }
+        if (values.length < 1 || values.length > Constants.REDUCTION_MAX_VALUES) {
+            throw new IllegalArgumentException(
+                    "Value count must be [1," + Constants.REDUCTION_MAX_VALUES + "]");
+        }
+        if (Kind.DOUBLE == kind && Op.BIT_OR == op) {
+            throw new IllegalArgumentException("Bitwise operations need long values");
+        }
+        mOp = op;
+        mKind = kind;
+        mValues = values;
+    }
+
+    public Reduction(final ByteBuffer buffer) {
+        get(buffer);
+    }
+
+    /**
+     * Create reduction of long values.
+     *
+     * @param op     Reduce operation
+     * @param values Values of this member
+     * @return new Reduction
+     */
+    public static Reduction of(final Op op, final long... values) {
+        return new Reduction(op, Kind.LONG, Arrays.copyOf(values, values.length));
+    }
+
+    /**
+     * Create reduction of double values.
+     *
+     * @param op     Reduce operation
+     * @param values Values of this member
+     * @return new Reduction
+     */
+    public static Reduction of(final Op op, final double... values) {
+        final long[] bits = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bits[i] = Double.doubleToRawLongBits(values[i]);
+        }
+        return new Reduction(op, Kind.DOUBLE, bits);
+    }
+
+    public Reduction copy() {
+        return new Reduction(mOp, mKind, Arrays.copyOf(mValues, mValues.length));
+    }
+
+    /**
+     * Fold other reduction to this one.
+     *
+     * @param other Reduction to fold
+     */
+    public void fold(final Reduction other) {
+        if (!isCompatible(other)) {
+            throw new IllegalArgumentException("Incompatible reduction: " + other);
+        }
+        for (int i = 0; i < mValues.length; i++) {
+            if (Kind.LONG == mKind) {
+                mValues[i] = foldLong(mValues[i], other.mValues[i]);
+            } else {
+                mValues[i] = Double.doubleToRawLongBits(foldDouble(
+                        Double.longBitsToDouble(mValues[i]),
+                        Double.longBitsToDouble(other.mValues[i])));
+            }
+        }
+    }
+
+    @Override
+    public void get(final ByteBuffer buffer) {
+        mOp = Op.valueOf(buffer.getInt());
+        mKind = Kind.valueOf(buffer.getInt());
+        final int count = buffer.getInt();
+        if (count < 1 || count > Constants.REDUCTION_MAX_VALUES ||
+                count > buffer.remaining() / Constants.LONG_BYTES) {
+            throw new MalformedMessageException("Invalid reduction value count: " + count);
+        }
+        if (null == mValues || mValues.length != count) {
+            mValues = new long[count];
+        }
+        for (int i = 0; i < count; i++) {
+            mValues[i] = buffer.getLong();
+        }
+    }
+
+    public double getDouble(final int index) {
+        if (mKind != Kind.DOUBLE) {
+            throw new IllegalStateException("Not a double reduction");
+        }
+        return Double.longBitsToDouble(mValues[index]);
+    }
+
+    public Kind getKind() {
+        return mKind;
+    }
+
+    public long getLong(final int index) {
+        if (mKind != Kind.LONG) {
+            throw new IllegalStateException("Not a long reduction");
+        }
+        return mValues[index];
+    }
+
+    public Op getOp() {
+        return mOp;
+    }
+
+    public boolean isCompatible(final Reduction other) {
+        return other != null && mOp == other.mOp && mKind == other.mKind &&
+                mValues.length == other.mValues.length;
+    }
+
+    /**
+     * @return true if reduction read from buffer has sane operation, kind and size
+     */
+    public boolean isValid() {
+        return mOp != null && mKind != null &&
+                mValues.length >= 1 && mValues.length <= Constants.REDUCTION_MAX_VALUES &&
+                !(Kind.DOUBLE == mKind && Op.BIT_OR == mOp);
+    }
+
+    /**
+     * Set this reduction to same values as other. Used to reuse reduction objects.
+     *
+     * @param other Reduction to copy values from
+     */
+    public void set(final Reduction other) {
+        mOp = other.mOp;
+        mKind = other.mKind;
+        if (mValues.length != other.mValues.length) {
+            mValues = new long[other.mValues.length];
+        }
+        System.arraycopy(other.mValues, 0, mValues, 0, mValues.length);
+    }
+
+    @Override
+    public int length() {
+        return Constants.INT_BYTES * 3 + Constants.LONG_BYTES * mValues.length;
+    }
+
+    @Override
+    public void put(final ByteBuffer buffer) {
+        buffer.putInt(mOp.getCode());
+        buffer.putInt(mKind.getCode());
+        buffer.putInt(mValues.length);
+        for (final long value : mValues) {
+            buffer.putLong(value);
+        }
+    }
+
+    public int size() {
+        return mValues.length;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mValues.length; i++) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append(Kind.LONG == mKind ?
+                    String.valueOf(mValues[i]) :
+                    String.valueOf(Double.longBitsToDouble(mValues[i])));
+        }
+        return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
+                mOp + "/" + mKind + "/" + sb.toString() + "]";
+    }
+
+    private double foldDouble(final double a, final double b) {
+        switch (mOp) {
+            case SUM:
+                return a + b;
+            case MIN:
+                return Math.min(a, b);
+            case MAX:
+                return Math.max(a, b);
+            default:
+                throw new IllegalStateException("Unsupported double operation: " + mOp);
+        }
+    }
+
+    private long foldLong(final long a, final long b) {
+        switch (mOp) {
+            case SUM:
+                return a + b;
+            case MIN:
+                return Math.min(a, b);
+            case MAX:
+                return Math.max(a, b);
+            case BIT_OR:
+                return a | b;
+            default:
+                throw new IllegalStateException("Unsupported long operation: " + mOp);
+        }
+    }
+
+    public enum Op {
+        SUM(0),
+        MIN(1),
+        MAX(2),
+        BIT_OR(3);
+
+        static final Map<Integer, Op> sIntMapping;
+
+        static {
+            HashMap<Integer, Op> intMapping = new HashMap<>();
+            for (Op result : Op.values()) {
+                intMapping.put(result.getCode(), result);
+            }
+            sIntMapping = Collections.unmodifiableMap(intMapping);
+        }
+
+        final int mCode;
+
+        Op(final int code) {
+            mCode = code;
+        }
+
+        public static Op valueOf(final int code) {
+            return sIntMapping.get(code);
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+    }
+
+    public enum Kind {
+        LONG(0),
+        DOUBLE(1);
+
+        static final Map<Integer, Kind> sIntMapping;
+
+        static {
+            HashMap<Integer, Kind> intMapping = new HashMap<>();
+            for (Kind result : Kind.values()) {
+                intMapping.put(result.getCode(), result);
+            }
+            sIntMapping = Collections.unmodifiableMap(intMapping);
+        }
+
+        final int mCode;
+
+        Kind(final int code) {
+            mCode = code;
+        }
+
+        public static Kind valueOf(final int code) {
+            return sIntMapping.get(code);
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+    }
+}
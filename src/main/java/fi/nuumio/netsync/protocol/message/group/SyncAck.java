@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.protocol.message.group;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import fi.nuumio.netsync.protocol.message.MessageId;
+import fi.nuumio.netsync.util.Constants;
+
+/**
+ * One-way message from member to server about metronome ticks and schedule phases. Server does
+ * not respond to acks.
+ */
+public class SyncAck extends BaseSyncMessage {
+    private Code mCode;
+    private int mTick;
+
+    public SyncAck() {
+        // Used via reflection
+        super();
+        mCode = null;
+    }
+
+    @Override
+    public void get(final ByteBuffer buffer) {
+        super.get(buffer);
+        mCode = Code.valueOf(buffer.getInt());
+        mTick = buffer.getInt();
+    }
+
+    public Code getCode() {
+        return mCode;
+    }
+
+    public void setCode(final Code code) {
+        mCode = code;
+    }
+
+    @Override
+    public MessageId getMessageId() {
+        return MessageId.SYNC_ACK;
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return Constants.PROTOCOL_VERSION_1;
+    }
+
+    /**
+     * @return number of acknowledged tick
+     */
+    public int getTick() {
+        return mTick;
+    }
+
+    public void setTick(final int tick) {
+        mTick = tick;
+    }
+
+    @Override
+    public int length() {
+        return super.length() + Constants.INT_BYTES * 2;
+    }
+
+    @Override
+    public void put(final ByteBuffer buffer) {
+        super.put(buffer);
+        buffer.putInt(mCode.getCode());
+        buffer.putInt(mTick);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
+                mCode + "#" + mTick + "]";
+    }
+
+    public enum Code {
+        /**
+         * Member has finished the step started by tick
+         */
+        ACK(0),
+        /**
+         * Member stops following metronome or schedule
+         */
+        LEAVE(1),
+        /**
+         * Member has arrived to schedule phase given as tick
+         */
+        ARRIVE(2);
+
+        static final Map<Integer, Code> sIntMapping;
+
+        static {
+            HashMap<Integer, Code> intMapping = new HashMap<>();
+            for (Code result : Code.values()) {
+                intMapping.put(result.getCode(), result);
+            }
+            sIntMapping = Collections.unmodifiableMap(intMapping);
+        }
+
+        final int mCode;
+
+        Code(final int code) {
+            mCode = code;
+        }
+
+        public static Code valueOf(final int code) {
+            return sIntMapping.get(code);
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+    }
+}
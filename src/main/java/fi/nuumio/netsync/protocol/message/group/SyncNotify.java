@@ -21,18 +21,29 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+import fi.nuumio.netsync.protocol.message.MalformedMessageException;
 import fi.nuumio.netsync.protocol.message.MessageId;
 import fi.nuumio.netsync.util.Constants;
 import fi.nuumio.netsync.util.NodeId;
 
 public class SyncNotify extends GroupNotify {
+    public static final long NO_RELEASE_TIME = Long.MIN_VALUE;
     private NodeId mSyncPoint;
     private Code mCode;
+    private int mGeneration;
+    private Reduction mReduction;
+    private byte[][] mGathered;
+    private long mReleaseTime;
+    private long mTriggerTime;
+    private long[] mWaitTimes;
 
     public SyncNotify() {
         // Used via reflection
         super();
         mCode = null;
+        mReleaseTime = NO_RELEASE_TIME;
+        mTriggerTime = NO_RELEASE_TIME;
+        mWaitTimes = null;
     }
 
     @Override
@@ -43,6 +54,102 @@ public class SyncNotify extends GroupNotify {
         } else {
             mSyncPoint.get(buffer);
         }
+        mGeneration = buffer.getInt();
+        mReleaseTime = buffer.getLong();
+        mReduction = buffer.getInt() != 0 ? new Reduction(buffer) : null;
+        final int gatheredCount = buffer.getInt();
+        if (gatheredCount < 0) {
+            mGathered = null;
+        } else if (gatheredCount > buffer.remaining() / Constants.INT_BYTES) {
+            // Each gathered item takes at least its length
+            throw new MalformedMessageException("Invalid gathered count: " + gatheredCount);
+        } else {
+            mGathered = new byte[gatheredCount][];
+            for (int i = 0; i < gatheredCount; i++) {
+                mGathered[i] = GatherCodec.getBytes(buffer);
+            }
+        }
+        mTriggerTime = buffer.getLong();
+        final int waitCount = buffer.getInt();
+        if (waitCount < 0) {
+            mWaitTimes = null;
+        } else {
+            mWaitTimes = new long[waitCount];
+            for (int i = 0; i < waitCount; i++) {
+                mWaitTimes[i] = buffer.getLong();
+            }
+        }
+    }
+
+    /**
+     * @return data gathered from members (with SUCCESS) or null if members didn't share any.
+     * Data is in same order as {@link #getMembers()}, null for members that didn't share any.
+     */
+    public byte[][] getGathered() {
+        return mGathered;
+    }
+
+    public void setGathered(final byte[][] gathered) {
+        mGathered = gathered;
+    }
+
+    /**
+     * @return generation (round) of the sync point this notify is about
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    public void setGeneration(final int generation) {
+        mGeneration = generation;
+    }
+
+    /**
+     * @return reduced value of sync point (with SUCCESS) or null if members didn't contribute any
+     */
+    public Reduction getReduction() {
+        return mReduction;
+    }
+
+    public void setReduction(final Reduction reduction) {
+        mReduction = reduction;
+    }
+
+    /**
+     * @return server's monotonic time in ns when members should be released (with SUCCESS) or
+     * {@link #NO_RELEASE_TIME} if they should be released immediately
+     */
+    public long getReleaseTime() {
+        return mReleaseTime;
+    }
+
+    public void setReleaseTime(final long releaseTime) {
+        mReleaseTime = releaseTime;
+    }
+
+    /**
+     * @return server's monotonic time in ns when sync point was triggered (with SUCCESS) or
+     * {@link #NO_RELEASE_TIME} if not known
+     */
+    public long getTriggerTime() {
+        return mTriggerTime;
+    }
+
+    public void setTriggerTime(final long triggerTime) {
+        mTriggerTime = triggerTime;
+    }
+
+    /**
+     * @return time in ns each member waited in server from its arrival until sync point was
+     * triggered (with SUCCESS) or null if not known. Times are in same order as
+     * {@link #getMembers()}.
+     */
+    public long[] getWaitTimes() {
+        return mWaitTimes;
+    }
+
+    public void setWaitTimes(final long[] waitTimes) {
+        mWaitTimes = waitTimes;
     }
 
     @Override
@@ -73,18 +180,54 @@ public class SyncNotify extends GroupNotify {
 
     @Override
     public int length() {
-        return super.length() + (mSyncPoint != null ? mSyncPoint.length() : 0);
+        int length = super.length() + (mSyncPoint != null ? mSyncPoint.length() : 0) +
+                Constants.INT_BYTES * 4 + Constants.LONG_BYTES * 2 +
+                (mReduction != null ? mReduction.length() : 0);
+        if (mGathered != null) {
+            for (final byte[] data : mGathered) {
+                length += GatherCodec.length(data);
+            }
+        }
+        if (mWaitTimes != null) {
+            length += Constants.LONG_BYTES * mWaitTimes.length;
+        }
+        return length;
     }
 
     @Override
     public void put(ByteBuffer buffer) {
         super.put(buffer);
         mSyncPoint.put(buffer);
+        buffer.putInt(mGeneration);
+        buffer.putLong(mReleaseTime);
+        if (mReduction != null) {
+            buffer.putInt(1);
+            mReduction.put(buffer);
+        } else {
+            buffer.putInt(0);
+        }
+        if (mGathered != null) {
+            buffer.putInt(mGathered.length);
+            for (final byte[] data : mGathered) {
+                GatherCodec.putBytes(buffer, data);
+            }
+        } else {
+            buffer.putInt(-1);
+        }
+        buffer.putLong(mTriggerTime);
+        if (mWaitTimes != null) {
+            buffer.putInt(mWaitTimes.length);
+            for (final long waitTime : mWaitTimes) {
+                buffer.putLong(waitTime);
+            }
+        } else {
+            buffer.putInt(-1);
+        }
     }
 
     @Override
     String codeToString() {
-        return "" + mCode;
+        return mCode + "#" + mGeneration;
     }
 
     @Override
@@ -101,7 +244,12 @@ public class SyncNotify extends GroupNotify {
         SUCCESS(0),
         JOIN(1),
         LEAVE(2),
-        TIMEOUT(3);
+        TIMEOUT(3),
+        TICK(4),
+        PHASE(5),
+        PHASE_TIMEOUT(6),
+        MEMBERS(7),
+        MEMBERS_TIMEOUT(8);
 
         static final Map<Integer, Code> sIntMapping;
 
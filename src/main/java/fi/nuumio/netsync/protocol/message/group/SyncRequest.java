@@ -25,6 +25,9 @@ import fi.nuumio.netsync.util.Token;
 
 public class SyncRequest extends BaseSyncMessage implements Request<SyncResponse> {
     private SyncType mType;
+    private MemberCondition mCondition;
+    private Reduction mReduction;
+    private byte[] mGatherData;
 
     public SyncRequest() {
         // Used via reflection
@@ -43,6 +46,31 @@ public class SyncRequest extends BaseSyncMessage implements Request<SyncResponse
     public void get(final ByteBuffer buffer) {
         super.get(buffer);
         mType = SyncType.valueOf(buffer.getInt());
+        mReduction = buffer.getInt() != 0 ? new Reduction(buffer) : null;
+        mGatherData = GatherCodec.getBytes(buffer);
+        mCondition = SyncType.MEMBERS == mType ? new MemberCondition(buffer) : null;
+    }
+
+    /**
+     * @return member count condition of {@link SyncType#MEMBERS} request, null for other types
+     */
+    public MemberCondition getCondition() {
+        return mCondition;
+    }
+
+    public void setCondition(final MemberCondition condition) {
+        mCondition = condition;
+    }
+
+    /**
+     * @return data this member shares with others at sync point or null if none
+     */
+    public byte[] getGatherData() {
+        return mGatherData;
+    }
+
+    public void setGatherData(final byte[] gatherData) {
+        mGatherData = gatherData;
     }
 
     @Override
@@ -55,6 +83,17 @@ public class SyncRequest extends BaseSyncMessage implements Request<SyncResponse
         return Constants.PROTOCOL_VERSION_1;
     }
 
+    /**
+     * @return this member's contribution to sync point reduction or null if none
+     */
+    public Reduction getReduction() {
+        return mReduction;
+    }
+
+    public void setReduction(final Reduction reduction) {
+        mReduction = reduction;
+    }
+
     public SyncType getType() {
         return mType;
     }
@@ -65,13 +104,26 @@ public class SyncRequest extends BaseSyncMessage implements Request<SyncResponse
 
     @Override
     public int length() {
-        return super.length() + Constants.INT_BYTES;
+        return super.length() + Constants.INT_BYTES * 2 +
+                (mReduction != null ? mReduction.length() : 0) +
+                GatherCodec.length(mGatherData) +
+                (SyncType.MEMBERS == mType ? mCondition.length() : 0);
     }
 
     @Override
     public void put(final ByteBuffer buffer) {
         super.put(buffer);
         buffer.putInt(mType.getCode());
+        if (mReduction != null) {
+            buffer.putInt(1);
+            mReduction.put(buffer);
+        } else {
+            buffer.putInt(0);
+        }
+        GatherCodec.putBytes(buffer, mGatherData);
+        if (SyncType.MEMBERS == mType) {
+            mCondition.put(buffer);
+        }
     }
 
 }
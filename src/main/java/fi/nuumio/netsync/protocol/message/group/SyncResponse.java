@@ -30,6 +30,7 @@ import fi.nuumio.netsync.util.Token;
 public class SyncResponse extends BaseSyncMessage implements Response<SyncRequest> {
     private final StringBuilder mSb;
     private Code mCode;
+    private int mGeneration;
     private SyncRequest mRequest;
 
     public SyncResponse() {
@@ -50,6 +51,7 @@ public class SyncResponse extends BaseSyncMessage implements Response<SyncReques
     public void get(ByteBuffer buffer) {
         super.get(buffer);
         mCode = Code.valueOf(buffer.getInt());
+        mGeneration = buffer.getInt();
     }
 
     public Code getCode() {
@@ -60,6 +62,17 @@ public class SyncResponse extends BaseSyncMessage implements Response<SyncReques
         mCode = code;
     }
 
+    /**
+     * @return generation (round) of the sync point client joined to
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    public void setGeneration(final int generation) {
+        mGeneration = generation;
+    }
+
     @Override
     public MessageId getMessageId() {
         return MessageId.SYNC_RESPONSE;
@@ -82,13 +95,14 @@ public class SyncResponse extends BaseSyncMessage implements Response<SyncReques
 
     @Override
     public int length() {
-        return super.length() + Constants.INT_BYTES;
+        return super.length() + Constants.INT_BYTES * 2;
     }
 
     @Override
     public void put(ByteBuffer buffer) {
         super.put(buffer);
         buffer.putInt(mCode.getCode());
+        buffer.putInt(mGeneration);
     }
 
     @Override
@@ -109,7 +123,7 @@ public class SyncResponse extends BaseSyncMessage implements Response<SyncReques
                 mSb.append("[null]");
             }
             return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
-                    mCode + " / " + mSb.toString() + "]";
+                    mCode + "#" + mGeneration + " / " + mSb.toString() + "]";
         }
     }
 
@@ -117,7 +131,9 @@ public class SyncResponse extends BaseSyncMessage implements Response<SyncReques
         CREATED(0),
         JOINED(1),
         EXPIRED(2),
-        FAIL_AUTHENTICATION_FAILURE(3);
+        FAIL_AUTHENTICATION_FAILURE(3),
+        FAIL_INVALID_REQUEST(4),
+        MATCHED(5);
 
         static final Map<Integer, Code> sIntMapping;
 
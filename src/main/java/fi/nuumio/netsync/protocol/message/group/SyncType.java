@@ -24,7 +24,22 @@ public enum SyncType {
     /**
      * Wait until all SyncGroup members arrive to same sync point
      */
-    ALL(0);
+    ALL(0),
+    /**
+     * Join metronome that ticks all joined members at fixed rate. Sync timeout is the tick
+     * period.
+     */
+    TICK(1),
+    /**
+     * Join barrier schedule. Sync request members are the phases of the schedule in order and
+     * sync timeout is the time each phase may take.
+     */
+    SCHEDULE(2),
+    /**
+     * Wait until member count of group meets request's {@link MemberCondition}. Sync point is
+     * the id of the wait and sync timeout is the max time to wait.
+     */
+    MEMBERS(3);
 
     static final Map<Integer, SyncType> sIntMapping;
 
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.protocol.message.service;
+
+import java.nio.ByteBuffer;
+
+import fi.nuumio.netsync.protocol.message.Message;
+import fi.nuumio.netsync.protocol.message.MessageId;
+import fi.nuumio.netsync.protocol.message.Request;
+import fi.nuumio.netsync.util.Constants;
+import fi.nuumio.netsync.util.Token;
+
+/**
+ * NTP style ping used by client to estimate its clock offset to server.
+ */
+public class ClockSyncRequest extends Message implements Request<ClockSyncResponse> {
+    private long mClientSendTime;
+
+    public ClockSyncRequest() {
+        // Used via reflection
+        super();
+    }
+
+    @Override
+    public ClockSyncResponse createResponse(final Token sourceToken) {
+        final ClockSyncResponse response = new ClockSyncResponse(sourceToken);
+        response.setClientSendTime(mClientSendTime);
+        return response;
+    }
+
+    @Override
+    public void get(final ByteBuffer buffer) {
+        super.get(buffer);
+        mClientSendTime = buffer.getLong();
+    }
+
+    /**
+     * @return client's monotonic time in ns when request was sent
+     */
+    public long getClientSendTime() {
+        return mClientSendTime;
+    }
+
+    public void setClientSendTime(final long clientSendTime) {
+        mClientSendTime = clientSendTime;
+    }
+
+    @Override
+    public MessageId getMessageId() {
+        return MessageId.CLOCK_SYNC_REQUEST;
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return Constants.PROTOCOL_VERSION_1;
+    }
+
+    @Override
+    public int length() {
+        return super.length() + Constants.LONG_BYTES;
+    }
+
+    @Override
+    public void put(final ByteBuffer buffer) {
+        super.put(buffer);
+        buffer.putLong(mClientSendTime);
+    }
+}
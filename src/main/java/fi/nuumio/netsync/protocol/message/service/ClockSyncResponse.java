@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.protocol.message.service;
+
+import java.nio.ByteBuffer;
+
+import fi.nuumio.netsync.protocol.message.Message;
+import fi.nuumio.netsync.protocol.message.MessageId;
+import fi.nuumio.netsync.protocol.message.Response;
+import fi.nuumio.netsync.util.Constants;
+import fi.nuumio.netsync.util.Token;
+
+/**
+ * Response to {@link ClockSyncRequest}. Carries client's send time back with server's receive
+ * and send times. All times are monotonic times in ns.
+ */
+public class ClockSyncResponse extends Message implements Response<ClockSyncRequest> {
+    private long mClientSendTime;
+    private long mServerReceiveTime;
+    private long mServerSendTime;
+    private ClockSyncRequest mRequest;
+
+    public ClockSyncResponse() {
+        // Used via reflection
+        super();
+        mRequest = null;
+    }
+
+    ClockSyncResponse(final Token sourceToken) {
+        super(sourceToken);
+        mRequest = null;
+    }
+
+    @Override
+    public void get(final ByteBuffer buffer) {
+        super.get(buffer);
+        mClientSendTime = buffer.getLong();
+        mServerReceiveTime = buffer.getLong();
+        mServerSendTime = buffer.getLong();
+    }
+
+    public long getClientSendTime() {
+        return mClientSendTime;
+    }
+
+    public void setClientSendTime(final long clientSendTime) {
+        mClientSendTime = clientSendTime;
+    }
+
+    @Override
+    public MessageId getMessageId() {
+        return MessageId.CLOCK_SYNC_RESPONSE;
+    }
+
+    @Override
+    public ClockSyncRequest getOriginalRequest() {
+        return mRequest;
+    }
+
+    @Override
+    public void setOriginalRequest(final ClockSyncRequest request) {
+        mRequest = request;
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return Constants.PROTOCOL_VERSION_1;
+    }
+
+    public long getServerReceiveTime() {
+        return mServerReceiveTime;
+    }
+
+    public void setServerReceiveTime(final long serverReceiveTime) {
+        mServerReceiveTime = serverReceiveTime;
+    }
+
+    public long getServerSendTime() {
+        return mServerSendTime;
+    }
+
+    public void setServerSendTime(final long serverSendTime) {
+        mServerSendTime = serverSendTime;
+    }
+
+    @Override
+    public int length() {
+        return super.length() + Constants.LONG_BYTES * 3;
+    }
+
+    @Override
+    public void put(final ByteBuffer buffer) {
+        super.put(buffer);
+        buffer.putLong(mClientSendTime);
+        buffer.putLong(mServerReceiveTime);
+        buffer.putLong(mServerSendTime);
+    }
+}
@@ -26,11 +26,19 @@ import fi.nuumio.netsync.util.NodeId;
 import fi.nuumio.netsync.util.Token;
 
 public class RegisterRequest extends Message implements Request<RegisterResponse> {
+    private static final NodeId[] NO_GROUP_IDS = new NodeId[0];
+    private static final Token[] NO_GROUP_TOKENS = new Token[0];
     private NodeId mClientId;
+    private Token mResumeToken;
+    private NodeId[] mGroupIds;
+    private Token[] mGroupTokens;
 
     public RegisterRequest() {
         // Used via reflection
         super();
+        mResumeToken = Token.NULL_TOKEN;
+        mGroupIds = NO_GROUP_IDS;
+        mGroupTokens = NO_GROUP_TOKENS;
     }
 
     @Override
@@ -46,6 +54,14 @@ public class RegisterRequest extends Message implements Request<RegisterResponse
         } else {
             mClientId.get(buffer);
         }
+        mResumeToken = new Token(buffer);
+        final int groupCount = buffer.getInt();
+        mGroupIds = new NodeId[groupCount];
+        mGroupTokens = new Token[groupCount];
+        for (int i = 0; i < groupCount; i++) {
+            mGroupIds[i] = new NodeId(buffer);
+            mGroupTokens[i] = new Token(buffer);
+        }
     }
 
     public NodeId getClientId() {
@@ -56,11 +72,51 @@ public class RegisterRequest extends Message implements Request<RegisterResponse
         mClientId = clientId;
     }
 
+    /**
+     * @return groups client joins while registering, empty if none
+     */
+    public NodeId[] getGroupIds() {
+        return mGroupIds;
+    }
+
+    /**
+     * @return tokens of groups in same order as {@link #getGroupIds()}
+     */
+    public Token[] getGroupTokens() {
+        return mGroupTokens;
+    }
+
+    /**
+     * Set groups to join in same round trip as registration.
+     *
+     * @param groupIds    Group ids
+     * @param groupTokens Group tokens in same order as ids
+     */
+    public void setGroups(final NodeId[] groupIds, final Token[] groupTokens) {
+        if (groupIds.length != groupTokens.length) {
+            throw new IllegalArgumentException("Each group must have a token");
+        }
+        mGroupIds = groupIds;
+        mGroupTokens = groupTokens;
+    }
+
     @Override
     public MessageId getMessageId() {
         return MessageId.REGISTER_REQUEST;
     }
 
+    /**
+     * @return resume token from previous registration or {@link Token#NULL_TOKEN} for new
+     * registration
+     */
+    public Token getResumeToken() {
+        return mResumeToken;
+    }
+
+    public void setResumeToken(final Token resumeToken) {
+        mResumeToken = resumeToken;
+    }
+
     @Override
     public int getProtocolVersion() {
         return Constants.PROTOCOL_VERSION_1;
@@ -68,12 +124,23 @@ public class RegisterRequest extends Message implements Request<RegisterResponse
 
     @Override
     public int length() {
-        return super.length() + (mClientId != null ? mClientId.length() : 0);
+        int length = super.length() + (mClientId != null ? mClientId.length() : 0) +
+                mResumeToken.length() + Constants.INT_BYTES;
+        for (int i = 0; i < mGroupIds.length; i++) {
+            length += mGroupIds[i].length() + mGroupTokens[i].length();
+        }
+        return length;
     }
 
     @Override
     public void put(final ByteBuffer buffer) {
         super.put(buffer);
         mClientId.put(buffer);
+        mResumeToken.put(buffer);
+        buffer.putInt(mGroupIds.length);
+        for (int i = 0; i < mGroupIds.length; i++) {
+            mGroupIds[i].put(buffer);
+            mGroupTokens[i].put(buffer);
+        }
     }
 }
@@ -24,23 +24,43 @@ import java.util.Map;
 import fi.nuumio.netsync.protocol.message.Message;
 import fi.nuumio.netsync.protocol.message.MessageId;
 import fi.nuumio.netsync.protocol.message.Response;
+import fi.nuumio.netsync.protocol.message.group.JoinResponse;
 import fi.nuumio.netsync.util.Constants;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.StringUtil;
 import fi.nuumio.netsync.util.Token;
 
 public class RegisterResponse extends Message implements Response<RegisterRequest> {
+    private static final JoinResponse.Code[] NO_JOIN_CODES = new JoinResponse.Code[0];
+    private static final NodeId[][] NO_MEMBERS = new NodeId[0][];
     private Token mClientToken;
+    private Token mResumeToken;
     private Code mCode;
+    private JoinResponse.Code[] mJoinCodes;
+    private NodeId[][] mMembers;
+    private long mRetryAfter;
+    private byte[] mAlternateServer;
     private RegisterRequest mRequest;
 
     public RegisterResponse() {
         // Used via reflection
         super();
         mRequest = null;
+        mResumeToken = Token.NULL_TOKEN;
+        mJoinCodes = NO_JOIN_CODES;
+        mMembers = NO_MEMBERS;
+        mRetryAfter = 0;
+        mAlternateServer = new byte[0];
     }
 
     RegisterResponse(final Token sourceToken) {
         super(sourceToken);
         mRequest = null;
+        mResumeToken = Token.NULL_TOKEN;
+        mJoinCodes = NO_JOIN_CODES;
+        mMembers = NO_MEMBERS;
+        mRetryAfter = 0;
+        mAlternateServer = new byte[0];
     }
 
     @Override
@@ -51,7 +71,32 @@ public class RegisterResponse extends Message implements Response<RegisterReques
         } else {
             mClientToken.get(buffer);
         }
+        mResumeToken = new Token(buffer);
         mCode = Code.valueOf(buffer.getInt());
+        final int groupCount = buffer.getInt();
+        mJoinCodes = new JoinResponse.Code[groupCount];
+        mMembers = new NodeId[groupCount][];
+        for (int i = 0; i < groupCount; i++) {
+            mJoinCodes[i] = JoinResponse.Code.valueOf(buffer.getInt());
+            mMembers[i] = new NodeId[buffer.getInt()];
+            for (int j = 0; j < mMembers[i].length; j++) {
+                mMembers[i][j] = new NodeId(buffer);
+            }
+        }
+        mRetryAfter = buffer.getLong();
+        mAlternateServer = new byte[buffer.getInt()];
+        buffer.get(mAlternateServer);
+    }
+
+    /**
+     * @return server address client turned away is told to try instead, empty if none
+     */
+    public String getAlternateServer() {
+        return StringUtil.fromBytes(mAlternateServer);
+    }
+
+    public void setAlternateServer(final String alternateServer) {
+        mAlternateServer = StringUtil.getBytes(alternateServer);
     }
 
     public Token getClientToken() {
@@ -70,6 +115,30 @@ public class RegisterResponse extends Message implements Response<RegisterReques
         mCode = code;
     }
 
+    /**
+     * @return results of joining groups given in request in same order, empty if none
+     */
+    public JoinResponse.Code[] getJoinCodes() {
+        return mJoinCodes;
+    }
+
+    /**
+     * @return members of groups given in request in same order, empty array for groups that
+     * could not be joined
+     */
+    public NodeId[][] getMembers() {
+        return mMembers;
+    }
+
+    /**
+     * @param joinCodes Results of joining groups given in request
+     * @param members   Members of joined groups in same order
+     */
+    public void setGroups(final JoinResponse.Code[] joinCodes, final NodeId[][] members) {
+        mJoinCodes = joinCodes;
+        mMembers = members;
+    }
+
     @Override
     public MessageId getMessageId() {
         return MessageId.REGISTER_RESPONSE;
@@ -85,6 +154,29 @@ public class RegisterResponse extends Message implements Response<RegisterReques
         mRequest = request;
     }
 
+    /**
+     * @return time in ms client turned away is told to wait before registering again, 0 if
+     * not given
+     */
+    public long getRetryAfter() {
+        return mRetryAfter;
+    }
+
+    public void setRetryAfter(final long retryAfter) {
+        mRetryAfter = retryAfter;
+    }
+
+    /**
+     * @return token client presents when registering again to resume this registration
+     */
+    public Token getResumeToken() {
+        return mResumeToken;
+    }
+
+    public void setResumeToken(final Token resumeToken) {
+        mResumeToken = resumeToken;
+    }
+
     @Override
     public int getProtocolVersion() {
         return Constants.PROTOCOL_VERSION_1;
@@ -92,21 +184,42 @@ public class RegisterResponse extends Message implements Response<RegisterReques
 
     @Override
     public int length() {
-        return super.length() +
-                (mClientToken != null ? mClientToken.length() : 0) + Constants.INT_BYTES;
+        int length = super.length() +
+                (mClientToken != null ? mClientToken.length() : 0) + mResumeToken.length() +
+                Constants.INT_BYTES * 2;
+        for (final NodeId[] members : mMembers) {
+            length += Constants.INT_BYTES * 2;
+            for (final NodeId member : members) {
+                length += member.length();
+            }
+        }
+        return length + Constants.LONG_BYTES + Constants.INT_BYTES + mAlternateServer.length;
     }
 
     @Override
     public void put(final ByteBuffer buffer) {
         super.put(buffer);
         mClientToken.put(buffer);
+        mResumeToken.put(buffer);
         buffer.putInt(mCode.getCode());
+        buffer.putInt(mJoinCodes.length);
+        for (int i = 0; i < mJoinCodes.length; i++) {
+            buffer.putInt(mJoinCodes[i].getCode());
+            buffer.putInt(mMembers[i].length);
+            for (final NodeId member : mMembers[i]) {
+                member.put(buffer);
+            }
+        }
+        buffer.putLong(mRetryAfter);
+        buffer.putInt(mAlternateServer.length);
+        buffer.put(mAlternateServer);
     }
 
     public enum Code {
         ACCEPTED(0),
         SERVER_FULL(1),
-        FAIL_AUTHENTICATION_FAILURE(2);
+        FAIL_AUTHENTICATION_FAILURE(2),
+        RESUMED(3);
 
         static final Map<Integer, Code> sIntMapping;
 
@@ -16,11 +16,10 @@
 
 package fi.nuumio.netsync.server;
 
-import java.io.IOException;
-import java.nio.channels.SocketChannel;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
-import fi.nuumio.netsync.protocol.MessageHandler;
-import fi.nuumio.netsync.protocol.Messenger;
 import fi.nuumio.netsync.protocol.message.Message;
 import fi.nuumio.netsync.protocol.message.Packet;
 import fi.nuumio.netsync.protocol.message.group.JoinRequest;
@@ -35,54 +34,56 @@ import fi.nuumio.netsync.util.Log;
 import fi.nuumio.netsync.util.NodeId;
 import fi.nuumio.netsync.util.Token;
 
+/**
+ * Client registered to server. Client sends and receives its messages over a {@link Connection}
+ * that it may share with other clients.
+ * <p>
+ * Client whose connection is lost is detached: it keeps its groups and arrivals for a grace
+ * period and messages to it are buffered until it resumes over a new connection.
+ */
 class ClientConnection {
-    private final Token mClientToken;
-    private final Messenger<? extends Message> mMessenger;
     private final SyncServer mServer;
+    private final List<Packet<? extends Message>> mBuffered;
+    private Connection mConnection;
+    private SyncServer.Event mGraceEvent;
     private NodeId mClientId;
+    private Token mClientToken;
+    private Token mResumeToken;
 
-    ClientConnection(final SyncServer server, final SocketChannel channel) {
-        mClientToken = server.generateClientToken();
+    ClientConnection(final SyncServer server, final Connection connection) {
+        // Tokens are random and costly to make so only accepted client gets them
+        mClientToken = Token.NULL_TOKEN;
+        mResumeToken = Token.NULL_TOKEN;
         mServer = server;
-        mMessenger = new Messenger<>(channel);
-        mMessenger.setHandler(new MessageHandler<RegisterRequest>(RegisterRequest.class) {
-            @Override
-            public void handleMessage(final Packet<RegisterRequest> request) {
-                handleRegisterRequest(request);
-            }
-        });
-        mMessenger.setHandler(new MessageHandler<JoinRequest>(JoinRequest.class) {
-            @Override
-            public void handleMessage(final Packet<JoinRequest> request) {
-                handleJoinRequest(request);
-            }
-        });
-        mMessenger.setHandler(new MessageHandler<LeaveRequest>(LeaveRequest.class) {
-            @Override
-            public void handleMessage(final Packet<LeaveRequest> request) {
-                handleLeaveRequest(request);
-            }
-        });
-        mMessenger.setHandler(new MessageHandler<SyncRequest>(SyncRequest.class) {
-            @Override
-            public void handleMessage(final Packet<SyncRequest> request) {
-                handleSyncRequest(request);
-            }
-        });
+        mBuffered = new ArrayList<>();
+        mConnection = connection;
+        mGraceEvent = null;
     }
 
     @Override
     public String toString() {
         return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
-                mClientId + "@" + mMessenger + "]";
+                mClientId + "@" + mConnection + "]";
     }
 
     void close() {
-        mMessenger.close();
+        if (mConnection != null) {
+            mConnection.close();
+        }
+    }
+
+    /**
+     * Detach client from its lost connection for grace period.
+     *
+     * @param graceEvent Event that removes client when grace period ends
+     */
+    void detach(final SyncServer.Event graceEvent) {
+        mConnection = null;
+        mGraceEvent = graceEvent;
     }
 
     String getAddress() {
-        return mMessenger.getRemoteAddressString();
+        return null == mConnection ? "detached" : mConnection.getAddress();
     }
 
     NodeId getClientId() {
@@ -93,22 +94,40 @@ class ClientConnection {
         this.mClientId = mClientId;
     }
 
-    Messenger.ReadMessageResult read() throws IOException {
-        Log.v("Reading from client: " + this);
-        final Messenger.ReadMessageResult result = mMessenger.read();
-        Log.v("Result of reading: " + result);
-        return result;
+    /**
+     * @return connection of client or null if client is detached
+     */
+    Connection getConnection() {
+        return mConnection;
     }
 
-    void send(final Packet<? extends Message> packet) {
-        try {
-            mMessenger.send(packet);
-        } catch (final IOException e) {
-            Log.e("Message send failed: " + packet + "->" + this, e);
-        }
+    /**
+     * Move client to new connection when it resumes its registration.
+     */
+    void setConnection(final Connection connection) {
+        mConnection = connection;
+        mGraceEvent = null;
+    }
+
+    /**
+     * @return event ending grace period of detached client, null if client is not detached
+     */
+    SyncServer.Event getGraceEvent() {
+        return mGraceEvent;
     }
 
-    private void handleJoinRequest(final Packet<JoinRequest> request) {
+    /**
+     * @return token client presents to resume its registration over a new connection
+     */
+    Token getResumeToken() {
+        return mResumeToken;
+    }
+
+    Token getToken() {
+        return mClientToken;
+    }
+
+    void handleJoinRequest(final Packet<JoinRequest> request) {
         final JoinResponse.Code result =
                 mServer.handleGroupJoin(ClientConnection.this, request.getMessage());
         final Packet<JoinResponse> packet = new Packet<>(request, mServer.getToken());
@@ -117,7 +136,7 @@ class ClientConnection {
         send(packet);
     }
 
-    private void handleLeaveRequest(final Packet<LeaveRequest> request) {
+    void handleLeaveRequest(final Packet<LeaveRequest> request) {
         mServer.handleGroupLeave(ClientConnection.this, request.getMessage());
         final Packet<LeaveResponse> packet = new Packet<>(request, mServer.getToken());
         final LeaveResponse response = packet.getMessage();
@@ -125,23 +144,88 @@ class ClientConnection {
         send(packet);
     }
 
-    private void handleRegisterRequest(final Packet<RegisterRequest> request) {
+    RegisterResponse.Code handleRegisterRequest(final Packet<RegisterRequest> request) {
+        final RegisterRequest message = request.getMessage();
         final RegisterResponse.Code code =
-                mServer.handleClientRegister(ClientConnection.this, request.getMessage());
-        final Packet<RegisterResponse> packet = new Packet<>(request, mServer.getToken());
-        final RegisterResponse response = packet.getMessage();
-        response.setClientToken(mClientToken);
-        response.setCode(code);
-        send(packet);
+                mServer.handleClientRegister(ClientConnection.this, message);
+        if (RegisterResponse.Code.ACCEPTED == code) {
+            mClientToken = mServer.generateClientToken();
+            mResumeToken = mServer.generateClientToken();
+        }
+        if (code != RegisterResponse.Code.ACCEPTED || 0 == message.getGroupIds().length) {
+            sendRegisterResponse(request, code, null, null);
+            return code;
+        }
+        final NodeId[][] members = new NodeId[message.getGroupIds().length][];
+        final JoinResponse.Code[] joinCodes =
+                mServer.handleBootstrapJoins(ClientConnection.this, message, members);
+        sendRegisterResponse(request, code, joinCodes, members);
+        // Client learns its groups from response so notify others only after it
+        mServer.notifyBootstrapJoins(ClientConnection.this, message, joinCodes);
+        return code;
     }
 
-    private void handleSyncRequest(final Packet<SyncRequest> request) {
+    void handleResumeRequest(final Packet<RegisterRequest> request) {
+        sendRegisterResponse(request, RegisterResponse.Code.RESUMED, null, null);
+        if (!mBuffered.isEmpty()) {
+            Log.d("Sending " + mBuffered.size() + " buffered messages to " + this);
+            for (final Packet<? extends Message> packet : mBuffered) {
+                mConnection.send(packet);
+            }
+            mBuffered.clear();
+        }
+    }
+
+    boolean isDetached() {
+        return null == mConnection;
+    }
+
+    void handleSyncRequest(final Packet<SyncRequest> request) {
         SyncServer.ServerSyncResult result =
                 mServer.handleSyncRequest(ClientConnection.this, request.getMessage());
         final Packet<SyncResponse> packet = new Packet<>(request, mServer.getToken());
         final SyncResponse response = packet.getMessage();
         response.setCode(result.mCode);
         response.setTimeout(result.mTimeLeft);
+        response.setGeneration(result.mGeneration);
+        send(packet);
+    }
+
+    void send(final Packet<? extends Message> packet) {
+        if (isDetached() || !mConnection.isOpen()) {
+            // Lost connection, client is detached soon
+            mBuffered.add(packet);
+        } else {
+            mConnection.send(packet);
+        }
+    }
+
+    void send(final Packet<? extends Message> packet, final ByteBuffer encoded) {
+        if (isDetached() || !mConnection.isOpen()) {
+            // Lost connection, client is detached soon
+            mBuffered.add(packet);
+        } else {
+            mConnection.send(packet, encoded);
+        }
+    }
+
+    private void sendRegisterResponse(final Packet<RegisterRequest> request,
+                                      final RegisterResponse.Code code,
+                                      final JoinResponse.Code[] joinCodes,
+                                      final NodeId[][] members) {
+        final Packet<RegisterResponse> packet = new Packet<>(request, mServer.getToken());
+        final RegisterResponse response = packet.getMessage();
+        response.setClientToken(mClientToken);
+        response.setResumeToken(mResumeToken);
+        response.setCode(code);
+        if (joinCodes != null) {
+            response.setGroups(joinCodes, members);
+        }
+        if (RegisterResponse.Code.SERVER_FULL == code) {
+            // Spread retries of turned away clients, possibly to another server
+            response.setRetryAfter(mServer.getSettings().getRegisterRetryAfter());
+            response.setAlternateServer(mServer.getSettings().getAlternateServer());
+        }
         send(packet);
     }
 }
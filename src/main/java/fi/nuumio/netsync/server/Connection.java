@@ -0,0 +1,284 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import fi.nuumio.netsync.protocol.MessageHandler;
+import fi.nuumio.netsync.protocol.Messenger;
+import fi.nuumio.netsync.protocol.message.Message;
+import fi.nuumio.netsync.protocol.message.Packet;
+import fi.nuumio.netsync.protocol.message.group.JoinRequest;
+import fi.nuumio.netsync.protocol.message.group.LeaveRequest;
+import fi.nuumio.netsync.protocol.message.group.SyncAck;
+import fi.nuumio.netsync.protocol.message.group.SyncRequest;
+import fi.nuumio.netsync.protocol.message.service.ClockSyncRequest;
+import fi.nuumio.netsync.protocol.message.service.ClockSyncResponse;
+import fi.nuumio.netsync.protocol.message.service.RegisterRequest;
+import fi.nuumio.netsync.protocol.message.service.RegisterResponse;
+import fi.nuumio.netsync.protocol.message.service.Unregister;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.Token;
+
+/**
+ * Connection from client host. Any number of clients may register over one connection. Their
+ * messages are routed to them by source token.
+ */
+class Connection {
+    private final Messenger<? extends Message> mMessenger;
+    private final SyncServer mServer;
+    private final HashMap<Token, ClientConnection> mClients;
+    private final SelectionKey mKey;
+    private boolean mPending;
+    private SyncServer.Event mRegisterTimeout;
+
+    Connection(final SyncServer server, final SocketChannel channel, final SelectionKey key) {
+        mServer = server;
+        mKey = key;
+        mMessenger = new Messenger<>(channel);
+        mClients = new HashMap<>();
+        mPending = true;
+        mMessenger.setHandler(new MessageHandler<RegisterRequest>(RegisterRequest.class) {
+            @Override
+            public void handleMessage(final Packet<RegisterRequest> request) {
+                handleRegisterRequest(request);
+            }
+        });
+        mMessenger.setHandler(new MessageHandler<Unregister>(Unregister.class) {
+            @Override
+            public void handleMessage(final Packet<Unregister> message) {
+                handleUnregister(message);
+            }
+        });
+        mMessenger.setHandler(new MessageHandler<JoinRequest>(JoinRequest.class) {
+            @Override
+            public void handleMessage(final Packet<JoinRequest> request) {
+                final ClientConnection client = getClient(request);
+                if (client != null) {
+                    client.handleJoinRequest(request);
+                }
+            }
+        });
+        mMessenger.setHandler(new MessageHandler<LeaveRequest>(LeaveRequest.class) {
+            @Override
+            public void handleMessage(final Packet<LeaveRequest> request) {
+                final ClientConnection client = getClient(request);
+                if (client != null) {
+                    client.handleLeaveRequest(request);
+                }
+            }
+        });
+        mMessenger.setHandler(new MessageHandler<SyncRequest>(SyncRequest.class) {
+            @Override
+            public void handleMessage(final Packet<SyncRequest> request) {
+                final ClientConnection client = getClient(request);
+                if (client != null) {
+                    client.handleSyncRequest(request);
+                }
+            }
+        });
+        mMessenger.setHandler(new MessageHandler<SyncAck>(SyncAck.class) {
+            @Override
+            public void handleMessage(final Packet<SyncAck> ack) {
+                final ClientConnection client = getClient(ack);
+                if (client != null) {
+                    mServer.handleSyncAck(client, ack.getMessage());
+                }
+            }
+        });
+        mMessenger.setHandler(new MessageHandler<ClockSyncRequest>(ClockSyncRequest.class) {
+            @Override
+            public void handleMessage(final Packet<ClockSyncRequest> request) {
+                handleClockSyncRequest(request);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
+                mClients.size() + "@" + mMessenger + "]";
+    }
+
+    void close() {
+        clearPending();
+        mMessenger.close();
+        mKey.cancel();
+    }
+
+    /**
+     * Write data that channel didn't take earlier. Called when channel is writable.
+     */
+    void flush() {
+        try {
+            if (mMessenger.flush()) {
+                mKey.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (final IOException e) {
+            Log.e("Flushing failed, dropping connection: " + this, e);
+            mServer.connectionLost(this);
+        }
+    }
+
+    String getAddress() {
+        return mMessenger.getRemoteAddressString();
+    }
+
+    /**
+     * @return clients registered over this connection
+     */
+    List<ClientConnection> getClients() {
+        return new ArrayList<>(mClients.values());
+    }
+
+    /**
+     * @return false once connection is closed
+     */
+    boolean isOpen() {
+        return mKey.isValid();
+    }
+
+    /**
+     * @return true until first client registers or resumes over this connection
+     */
+    boolean isPending() {
+        return mPending;
+    }
+
+    /**
+     * Forget client that resumed its registration over another connection.
+     */
+    void removeClient(final ClientConnection client) {
+        mClients.remove(client.getToken());
+    }
+
+    Messenger.ReadMessageResult read() throws IOException {
+        Log.v("Reading from connection: " + this);
+        final Messenger.ReadMessageResult result = mMessenger.read();
+        Log.v("Result of reading: " + result);
+        return result;
+    }
+
+    void send(final Packet<? extends Message> packet) {
+        if (!isOpen()) {
+            Log.v("Message to closed connection dropped: " + packet);
+            return;
+        }
+        try {
+            mMessenger.send(packet);
+        } catch (final IOException e) {
+            // Peer that doesn't read can't be helped by dropping single messages
+            Log.e("Message send failed, dropping connection: " + packet + "->" + this, e);
+            mServer.connectionLost(this);
+            return;
+        }
+        updateInterest();
+    }
+
+    void send(final Packet<? extends Message> packet, final ByteBuffer encoded) {
+        if (!isOpen()) {
+            Log.v("Message to closed connection dropped: " + packet);
+            return;
+        }
+        try {
+            mMessenger.send(packet, encoded);
+        } catch (final IOException e) {
+            // Peer that doesn't read can't be helped by dropping single messages
+            Log.e("Message send failed, dropping connection: " + packet + "->" + this, e);
+            mServer.connectionLost(this);
+            return;
+        }
+        updateInterest();
+    }
+
+    /**
+     * @param registerTimeout Event that closes connection unless a client registers in time.
+     *                        Cancelled once connection is no longer pending.
+     */
+    void setRegisterTimeout(final SyncServer.Event registerTimeout) {
+        mRegisterTimeout = registerTimeout;
+    }
+
+    private ClientConnection getClient(final Packet<? extends Message> packet) {
+        final ClientConnection client = mClients.get(packet.getMessage().getSourceToken());
+        if (null == client) {
+            Log.w("Message from unregistered client dropped: " + packet + " from " + this);
+        }
+        return client;
+    }
+
+    /**
+     * Stop counting connection as pending once it has a client or is closed.
+     */
+    private void clearPending() {
+        if (mPending) {
+            mPending = false;
+            if (mRegisterTimeout != null) {
+                mServer.cancelEvent(mRegisterTimeout);
+                mRegisterTimeout = null;
+            }
+            mServer.pendingDone();
+        }
+    }
+
+    private void handleClockSyncRequest(final Packet<ClockSyncRequest> request) {
+        final long receiveTime = System.nanoTime();
+        final Packet<ClockSyncResponse> packet = new Packet<>(request, mServer.getToken());
+        final ClockSyncResponse response = packet.getMessage();
+        response.setServerReceiveTime(receiveTime);
+        response.setServerSendTime(System.nanoTime());
+        send(packet);
+    }
+
+    private void handleRegisterRequest(final Packet<RegisterRequest> request) {
+        final ClientConnection resumed = mServer.handleClientResume(this, request.getMessage());
+        if (resumed != null) {
+            mClients.put(resumed.getToken(), resumed);
+            clearPending();
+            resumed.handleResumeRequest(request);
+            return;
+        }
+        final ClientConnection client = new ClientConnection(mServer, this);
+        if (RegisterResponse.Code.ACCEPTED == client.handleRegisterRequest(request)) {
+            mClients.put(client.getToken(), client);
+            clearPending();
+        }
+    }
+
+    private void handleUnregister(final Packet<Unregister> message) {
+        final ClientConnection client = mClients.remove(message.getMessage().getSourceToken());
+        if (client != null) {
+            mServer.removeClientConnection(client);
+        }
+    }
+
+    /**
+     * Wait for channel to become writable if sent data didn't fit to it.
+     */
+    private void updateInterest() {
+        if (mKey.isValid() && mMessenger.hasPendingWrites()) {
+            mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.server;
+
+import fi.nuumio.netsync.protocol.message.group.MemberCondition;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+
+/**
+ * Member waiting until member count of its group meets a condition. Group evaluates waits when
+ * its membership changes so waiting members get one notify instead of every change.
+ */
+class MemberWait {
+    private final ClientConnection mClient;
+    private final NodeId mId;
+    private final MemberCondition mCondition;
+    private final SyncServer mServer;
+    private final SyncServer.Event mTimeoutEvent;
+
+    MemberWait(final SyncServer server, final SyncGroup group, final ClientConnection client,
+               final NodeId id, final MemberCondition condition, final long timeout) {
+        mServer = server;
+        mClient = client;
+        mId = id;
+        mCondition = condition;
+        mTimeoutEvent = mServer.addEvent(timeout, new SyncServer.EventHandler() {
+            @Override
+            public void handle(final SyncServer.Event event) {
+                Log.d("Member wait timed out: " + MemberWait.this);
+                group.memberWaitExpired(MemberWait.this);
+            }
+        }, false);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
+                mId.asString() + "/" + mCondition + "@" + mClient.getClientId() + "]";
+    }
+
+    void close() {
+        mServer.cancelEvent(mTimeoutEvent);
+    }
+
+    ClientConnection getClient() {
+        return mClient;
+    }
+
+    NodeId getId() {
+        return mId;
+    }
+
+    boolean matches(final int memberCount) {
+        return mCondition.matches(memberCount);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+
+/**
+ * Server side metronome. Ticks joined members at fixed rate so that they can progress in
+ * lockstep without a sync round trip per step. Each tick reports the members that
+ * acknowledged the previous tick.
+ */
+class Metronome {
+    private final StringBuilder mSb;
+    private final List<ClientConnection> mClients = new ArrayList<>();
+    private final List<ClientConnection> mAcked = new ArrayList<>();
+    private final NodeId mId;
+    private final SyncServer mServer;
+    private final SyncGroup mGroup;
+    private final long mPeriod;
+    private final SyncServer.Event mTickEvent;
+    private int mTick;
+
+    Metronome(final SyncServer server, final SyncGroup group, final NodeId id,
+              final long period) {
+        mServer = server;
+        mGroup = group;
+        mId = id;
+        mPeriod = period;
+        mTick = 0;
+        mSb = new StringBuilder();
+        mTickEvent = mServer.addFixedRateEvent(period, new SyncServer.EventHandler() {
+            @Override
+            public void handle(final SyncServer.Event event) {
+                Metronome.this.tick();
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mSb) {
+            mSb.setLength(0);
+            mSb.append("[");
+            for (int i = 0; i < mClients.size(); i++) {
+                if (i > 0) {
+                    mSb.append(",");
+                }
+                mSb.append(mClients.get(i).getClientId());
+            }
+            mSb.append("]");
+            return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
+                    mId.asString() + "#" + mTick + "/" + mPeriod + "ms" + mSb.toString() + "]";
+        }
+    }
+
+    /**
+     * @param client Acknowledging client
+     * @param tick   Acknowledged tick
+     * @return true if ack was accepted, false if it's late, duplicate or from non-member
+     */
+    boolean ack(final ClientConnection client, final int tick) {
+        if (tick != mTick || !mClients.contains(client) || mAcked.contains(client)) {
+            Log.v("Ack of tick " + tick + " dropped: " + this);
+            return false;
+        }
+        mAcked.add(client);
+        return true;
+    }
+
+    void close() {
+        mServer.cancelEvent(mTickEvent);
+        mClients.clear();
+        mAcked.clear();
+    }
+
+    /**
+     * @return members that acknowledged latest tick so far
+     */
+    List<ClientConnection> getAcked() {
+        return mAcked;
+    }
+
+    List<ClientConnection> getClients() {
+        return mClients;
+    }
+
+    NodeId getId() {
+        return mId;
+    }
+
+    long getPeriod() {
+        return mPeriod;
+    }
+
+    int getTick() {
+        return mTick;
+    }
+
+    boolean isEmpty() {
+        return mClients.isEmpty();
+    }
+
+    /**
+     * @param client Client to join
+     * @return false if client was already following this metronome
+     */
+    boolean join(final ClientConnection client) {
+        if (mClients.contains(client)) {
+            return false;
+        }
+        mClients.add(client);
+        Log.d("Client added to metronome: " + this);
+        return true;
+    }
+
+    boolean leave(final ClientConnection client) {
+        Log.d("Metronome client leave: " + client);
+        mAcked.remove(client);
+        return mClients.remove(client);
+    }
+
+    private void tick() {
+        mTick++;
+        // Members are told who acked the previous tick, collect acks for this one from scratch
+        mGroup.metronomeTicked(this);
+        mAcked.clear();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+
+/**
+ * Server side barrier schedule. Members declare an ordered list of phases once and then only
+ * tell when they arrive to a phase. Phase is released when all group members have arrived to it.
+ * Timeout of each phase is armed when previous phase is released so that members don't need to
+ * send it. Schedule ends when its last phase is released or a phase times out.
+ */
+class Schedule {
+    private final StringBuilder mSb;
+    private final List<ClientConnection> mClients = new ArrayList<>();
+    private final List<ClientConnection> mArrived = new ArrayList<>();
+    private final NodeId mId;
+    private final NodeId[] mPhases;
+    private final SyncServer mServer;
+    private final SyncGroup mGroup;
+    private final long mPhaseTimeout;
+    private final SyncServer.Event mTimeoutEvent;
+    private int mPhase;
+
+    Schedule(final SyncServer server, final SyncGroup group, final NodeId id,
+             final NodeId[] phases, final long phaseTimeout) {
+        mServer = server;
+        mGroup = group;
+        mId = id;
+        mPhases = phases;
+        mPhaseTimeout = phaseTimeout;
+        mPhase = 0;
+        mSb = new StringBuilder();
+        mTimeoutEvent = mServer.addEvent(phaseTimeout, new SyncServer.EventHandler() {
+            @Override
+            public void handle(final SyncServer.Event event) {
+                Log.d("Schedule phase timed out: " + Schedule.this);
+                Schedule.this.mGroup.schedulePhaseExpired(Schedule.this);
+            }
+        }, false);
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mSb) {
+            mSb.setLength(0);
+            mSb.append("[");
+            for (int i = 0; i < mClients.size(); i++) {
+                if (i > 0) {
+                    mSb.append(",");
+                }
+                mSb.append(mClients.get(i).getClientId());
+            }
+            mSb.append("]");
+            return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
+                    mId.asString() + "#" + mPhase + "/" + mPhases.length + mSb.toString() + "]";
+        }
+    }
+
+    /**
+     * @param client Arriving client
+     * @param phase  Index of phase client arrives to
+     * @return true if arrival was accepted, false if it's for another phase, duplicate or from
+     * non-member
+     */
+    boolean arrive(final ClientConnection client, final int phase) {
+        if (phase != mPhase || !mClients.contains(client) || mArrived.contains(client)) {
+            Log.v("Arrival to phase " + phase + " dropped: " + this);
+            return false;
+        }
+        mArrived.add(client);
+        return true;
+    }
+
+    void close() {
+        mServer.cancelEvent(mTimeoutEvent);
+        mClients.clear();
+        mArrived.clear();
+    }
+
+    List<ClientConnection> getClients() {
+        return mClients;
+    }
+
+    NodeId getId() {
+        return mId;
+    }
+
+    /**
+     * @return index of phase members are currently arriving to
+     */
+    int getPhase() {
+        return mPhase;
+    }
+
+    long getPhaseTimeout() {
+        return mPhaseTimeout;
+    }
+
+    boolean hasPhases(final NodeId[] phases) {
+        return Arrays.equals(mPhases, phases);
+    }
+
+    boolean isEmpty() {
+        return mClients.isEmpty();
+    }
+
+    /**
+     * @return true if last phase has been released
+     */
+    boolean isFinished() {
+        return mPhase >= mPhases.length;
+    }
+
+    /**
+     * @return true if all group members have arrived to current phase
+     */
+    boolean isReady() {
+        return !isFinished() && mGroup.hasSameClients(mArrived);
+    }
+
+    /**
+     * @param client Client to join
+     * @return false if client was already following this schedule
+     */
+    boolean join(final ClientConnection client) {
+        if (mClients.contains(client)) {
+            return false;
+        }
+        mClients.add(client);
+        Log.d("Client added to schedule: " + this);
+        return true;
+    }
+
+    boolean leave(final ClientConnection client) {
+        Log.d("Schedule client leave: " + client);
+        mArrived.remove(client);
+        return mClients.remove(client);
+    }
+
+    /**
+     * Move to next phase and arm its timeout.
+     */
+    void release() {
+        mPhase++;
+        mArrived.clear();
+        if (isFinished()) {
+            mServer.cancelEvent(mTimeoutEvent);
+        } else {
+            mServer.rescheduleEvent(mTimeoutEvent, mPhaseTimeout);
+        }
+    }
+}
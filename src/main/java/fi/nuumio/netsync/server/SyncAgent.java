@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.server;
+
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+
+import fi.nuumio.netsync.client.ClientStartFailedException;
+import fi.nuumio.netsync.client.GroupSyncException;
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.client.SyncFuture;
+import fi.nuumio.netsync.client.SyncHandle;
+import fi.nuumio.netsync.protocol.message.group.Reduction;
+import fi.nuumio.netsync.protocol.message.group.SyncType;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.Token;
+
+/**
+ * Per-host sync agent. Processes of the host use agent's local {@link SyncServer} and agent takes
+ * part in upstream server's groups as one client. When all local members of a group have arrived
+ * to a sync point agent arrives upstream on their behalf and local members are released when the
+ * upstream sync finishes, so upstream server sees one connection and one member per host.
+ * <p>
+ * Reductions are folded locally and again upstream. Gathered data is shared between local members
+ * only.
+ */
+public class SyncAgent {
+    private final SyncServer mServer;
+    private final SyncClient mClient;
+    private final HashMap<NodeId, fi.nuumio.netsync.client.SyncGroup> mGroups;
+    private final HashMap<NodeId, SyncFuture<Void>> mJoins;
+
+    /**
+     * @param localServer    Server for local processes, not started yet
+     * @param upstreamClient Client connecting to upstream server, not started yet
+     */
+    public SyncAgent(final SyncServer localServer, final SyncClient upstreamClient) {
+        if (localServer.isRunning()) {
+            throw new IllegalStateException("Local server already running");
+        }
+        mServer = localServer;
+        mClient = upstreamClient;
+        mGroups = new HashMap<>();
+        mJoins = new HashMap<>();
+        mServer.setUpstream(new SyncServer.Upstream() {
+            @Override
+            public void arrive(final NodeId groupId, final SyncPoint syncPoint,
+                               final long timeout) {
+                arriveUpstream(groupId, syncPoint, timeout);
+            }
+
+            @Override
+            public void groupClosed(final NodeId groupId) {
+                leaveUpstream(groupId);
+            }
+
+            @Override
+            public void groupOpened(final NodeId groupId, final Token groupToken) {
+                joinUpstream(groupId, groupToken);
+            }
+        });
+    }
+
+    public boolean isRunning() {
+        return mServer.isRunning() && mClient.isRegistered();
+    }
+
+    /**
+     * Register to upstream server and start local server.
+     *
+     * @throws ClientStartFailedException if registering to upstream failed
+     * @throws ServerStartException       if local server could not be started
+     */
+    public void start() throws ClientStartFailedException, ServerStartException {
+        mClient.start();
+        try {
+            mServer.start();
+        } catch (final ServerStartException e) {
+            mClient.stop();
+            throw e;
+        }
+        Log.d("Started agent " + this);
+    }
+
+    public void stop() {
+        mServer.stop();
+        mClient.stop();
+        Log.d("Stopped agent " + this);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
+                mClient.getId() + "]";
+    }
+
+    private void arriveUpstream(final NodeId groupId, final SyncPoint syncPoint,
+                                final long timeout) {
+        final fi.nuumio.netsync.client.SyncGroup group = mGroups.get(groupId);
+        final SyncFuture<Void> join = mJoins.get(groupId);
+        final String syncPointId = syncPoint.getId().asString();
+        final int generation = syncPoint.getGeneration();
+        // Sync point reuses its reduction, arrival may be sent after it's gone
+        final Reduction local = syncPoint.getReduction();
+        final Reduction contribution = null == local ? null : local.copy();
+        if (null == group || null == join) {
+            Log.e("Sync to group not joined upstream: " + groupId);
+            release(syncPoint, generation, false, null);
+            return;
+        }
+        // Local members may arrive before agent has joined upstream
+        join.addListener(new SyncFuture.Listener<Void>() {
+            @Override
+            public void onComplete(final SyncFuture<Void> joined) {
+                if (!joined.isSuccess()) {
+                    Log.w("Upstream join failed, sync failed: " + syncPoint);
+                    release(syncPoint, generation, false, null);
+                    return;
+                }
+                final SyncFuture<SyncHandle> sync;
+                try {
+                    sync = group.syncAsync(syncPointId, SyncType.ALL, timeout, contribution,
+                            null);
+                } catch (final GroupSyncException e) {
+                    Log.w("Upstream arrival failed: " + syncPoint, e);
+                    release(syncPoint, generation, false, null);
+                    return;
+                }
+                sync.addListener(new SyncFuture.Listener<SyncHandle>() {
+                    @Override
+                    public void onComplete(final SyncFuture<SyncHandle> synced) {
+                        final SyncHandle handle = synced.isSuccess() ? getHandle(synced) : null;
+                        if (handle != null && handle.isSuccess()) {
+                            release(syncPoint, generation, true, handle.getReduction());
+                        } else {
+                            release(syncPoint, generation, false, null);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private static SyncHandle getHandle(final SyncFuture<SyncHandle> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException | ExecutionException e) {
+            // Future is done and successful, can't happen
+            Log.e("Failed to get sync result", e);
+            return null;
+        }
+    }
+
+    private void joinUpstream(final NodeId groupId, final Token groupToken) {
+        final fi.nuumio.netsync.client.SyncGroup group = mClient.createGroup(groupId, groupToken);
+        mGroups.put(groupId, group);
+        mJoins.put(groupId, group.joinAsync());
+        Log.d("Joining upstream group: " + groupId);
+    }
+
+    private void leaveUpstream(final NodeId groupId) {
+        final fi.nuumio.netsync.client.SyncGroup group = mGroups.remove(groupId);
+        mJoins.remove(groupId);
+        if (group != null) {
+            Log.d("Leaving upstream group: " + groupId);
+            group.leaveAsync();
+        }
+    }
+
+    /**
+     * Hand upstream result over to local server's thread.
+     */
+    private void release(final SyncPoint syncPoint, final int generation, final boolean success,
+                         final Reduction reduction) {
+        mServer.post(new Runnable() {
+            @Override
+            public void run() {
+                syncPoint.upstreamDone(generation, success, reduction);
+            }
+        });
+    }
+}
@@ -16,12 +16,23 @@
 
 package fi.nuumio.netsync.server;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import fi.nuumio.netsync.protocol.message.Message;
 import fi.nuumio.netsync.protocol.message.Packet;
 import fi.nuumio.netsync.protocol.message.group.GroupNotify;
+import fi.nuumio.netsync.protocol.message.group.MemberCondition;
+import fi.nuumio.netsync.protocol.message.group.Reduction;
+import fi.nuumio.netsync.protocol.message.group.SyncAck;
 import fi.nuumio.netsync.protocol.message.group.SyncNotify;
 import fi.nuumio.netsync.protocol.message.group.SyncResponse;
 import fi.nuumio.netsync.protocol.message.group.SyncType;
@@ -39,6 +50,9 @@ class SyncGroup {
     private final StringBuilder mSb;
     private final List<ClientConnection> mClients = new ArrayList<>();
     private final HashMap<NodeId, SyncPoint> mSyncPoints = new HashMap<>();
+    private final HashMap<NodeId, Metronome> mMetronomes = new HashMap<>();
+    private final HashMap<NodeId, Schedule> mSchedules = new HashMap<>();
+    private final List<MemberWait> mMemberWaits = new ArrayList<>();
     private final NodeId mGroupId;
     private final Token mGroupToken;
     private final ServerSettings mSettings;
@@ -75,6 +89,34 @@ class SyncGroup {
         }
     }
 
+    void ack(final ClientConnection client, final Token groupToken, final NodeId syncPointId,
+             final SyncAck.Code code, final int tick) throws TokenVerificationFailureException {
+        mGroupToken.verify(groupToken);
+        final Schedule schedule = mSchedules.get(syncPointId);
+        if (SyncAck.Code.ARRIVE == code || (SyncAck.Code.LEAVE == code && schedule != null)) {
+            ackSchedule(client, schedule, code, tick);
+            return;
+        }
+        final Metronome metronome = mMetronomes.get(syncPointId);
+        if (null == metronome) {
+            Log.d("Ack to unknown metronome dropped: " + syncPointId);
+            return;
+        }
+        refresh();
+        if (SyncAck.Code.LEAVE == code) {
+            metronome.leave(client);
+            if (metronome.isEmpty()) {
+                metronome.close();
+                mMetronomes.remove(syncPointId);
+            }
+        } else {
+            metronome.ack(client, tick);
+        }
+    }
+
+    /**
+     * Add client to group. Members are not notified until {@link #notifyJoin()}.
+     */
     void add(final ClientConnection client, final Token groupToken)
             throws GroupFullException, TokenVerificationFailureException {
         mGroupToken.verify(groupToken);
@@ -85,12 +127,47 @@ class SyncGroup {
             mClients.add(client);
         }
         refresh();
-        notifyMembers(GroupNotify.Code.JOIN);
     }
 
     void close() {
-        notifyMembers(GroupNotify.Code.CLOSE);
+        final SyncServer.Upstream upstream = mServer.getUpstream();
+        if (upstream != null) {
+            upstream.groupClosed(mGroupId);
+        }
+        notifyMembers(GroupNotify.Code.CLOSE, new NodeId[0], mClients);
         mClients.clear();
+        for (final SyncPoint syncPoint : mSyncPoints.values()) {
+            syncPoint.close();
+        }
+        mSyncPoints.clear();
+        for (final Metronome metronome : mMetronomes.values()) {
+            metronome.close();
+        }
+        mMetronomes.clear();
+        for (final Schedule schedule : mSchedules.values()) {
+            schedule.close();
+        }
+        mSchedules.clear();
+        // Members see the close and stop their waits on their own
+        for (final MemberWait wait : mMemberWaits) {
+            wait.close();
+        }
+        mMemberWaits.clear();
+    }
+
+    NodeId getId() {
+        return mGroupId;
+    }
+
+    /**
+     * @return ids of members in their slot (join) order
+     */
+    NodeId[] getMemberIds() {
+        final NodeId[] members = new NodeId[mClients.size()];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = mClients.get(i).getClientId();
+        }
+        return members;
     }
 
     boolean hasSameClients(final List<ClientConnection> clients) {
@@ -108,80 +185,285 @@ class SyncGroup {
         return mClients.isEmpty();
     }
 
+    void memberWaitExpired(final MemberWait wait) {
+        if (mMemberWaits.remove(wait)) {
+            notifyMemberWait(wait, SyncNotify.Code.MEMBERS_TIMEOUT);
+        }
+    }
+
+    void metronomeTicked(final Metronome metronome) {
+        final Packet<SyncNotify> packet = new Packet<>(SyncNotify.class, mServer.getToken());
+        final SyncNotify notify = packet.getMessage();
+        notify.setGroupId(mGroupId);
+        notify.setGroupToken(mGroupToken);
+        notify.setSyncCode(SyncNotify.Code.TICK);
+        notify.setSyncPoint(metronome.getId());
+        notify.setGeneration(metronome.getTick());
+        notify.setReleaseTime(releaseTime());
+        final List<ClientConnection> acked = inSlotOrder(metronome.getAcked());
+        final NodeId[] members = new NodeId[acked.size()];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = acked.get(i).getClientId();
+        }
+        notify.setMembers(members);
+        broadcast(packet, metronome.getClients());
+    }
+
+    /**
+     * Tell others only who joined so that notifying members doesn't grow with group size.
+     * Joined client gets full membership with {@link #sendMembers}.
+     */
+    void notifyJoin(final ClientConnection client) {
+        final List<ClientConnection> others = new ArrayList<>(mClients);
+        others.remove(client);
+        notifyMembers(GroupNotify.Code.JOIN, new NodeId[]{client.getClientId()}, others);
+        releaseMemberWaits();
+    }
+
     void remove(final ClientConnection clientConnection) {
         final boolean removed = mClients.remove(clientConnection);
         if (removed) {
-            notifyMembers(GroupNotify.Code.LEAVE);
+            notifyMembers(GroupNotify.Code.LEAVE, new NodeId[]{clientConnection.getClientId()},
+                    mClients);
+            final Iterator<MemberWait> waits = mMemberWaits.iterator();
+            while (waits.hasNext()) {
+                final MemberWait wait = waits.next();
+                if (wait.getClient() == clientConnection) {
+                    wait.close();
+                    waits.remove();
+                }
+            }
+            releaseMemberWaits();
             for (final SyncPoint syncPoint : mSyncPoints.values()) {
                 if (syncPoint.leave(clientConnection)) {
                     notifySyncMembers(syncPoint, SyncNotify.Code.LEAVE);
                 }
             }
+            final Iterator<Metronome> metronomes = mMetronomes.values().iterator();
+            while (metronomes.hasNext()) {
+                final Metronome metronome = metronomes.next();
+                if (metronome.leave(clientConnection) && metronome.isEmpty()) {
+                    metronome.close();
+                    metronomes.remove();
+                }
+            }
+            // Phases that were only waiting for leaving member are released
+            final Iterator<Schedule> schedules = mSchedules.values().iterator();
+            while (schedules.hasNext()) {
+                final Schedule schedule = schedules.next();
+                schedule.leave(clientConnection);
+                if (!releaseIfReady(schedule)) {
+                    schedules.remove();
+                }
+            }
             refresh();
         }
     }
 
+    void schedulePhaseExpired(final Schedule schedule) {
+        notifySchedule(schedule, SyncNotify.Code.PHASE_TIMEOUT);
+        schedule.close();
+        mSchedules.remove(schedule.getId());
+    }
+
+    /**
+     * Send full membership to client that joined with a join request.
+     */
+    void sendMembers(final ClientConnection client) {
+        notifyMembers(GroupNotify.Code.MEMBERS, getMemberIds(),
+                Collections.singletonList(client));
+    }
+
     SyncServer.ServerSyncResult sync(final ClientConnection client,
                                      final Token requestedGroupToken,
                                      final NodeId syncPointId,
                                      final SyncType type,
-                                     final long timeout)
+                                     final long timeout,
+                                     final Reduction contribution,
+                                     final byte[] gatherData,
+                                     final NodeId[] phases,
+                                     final MemberCondition condition)
             throws TokenVerificationFailureException {
         mGroupToken.verify(requestedGroupToken);
         if (!mClients.contains(client)) {
             return new SyncServer.ServerSyncResult(
                     SyncResponse.Code.FAIL_AUTHENTICATION_FAILURE, 0);
         }
-        final SyncPoint syncPoint;
-        final SyncResponse.Code response;
-        if (!mSyncPoints.containsKey(syncPointId)) {
-            syncPoint = new SyncPoint(mServer, this, syncPointId, timeout);
-            response = SyncResponse.Code.CREATED;
+        if (SyncType.TICK == type) {
+            return joinMetronome(client, syncPointId, timeout);
+        }
+        if (SyncType.SCHEDULE == type) {
+            return joinSchedule(client, syncPointId, phases, timeout);
+        }
+        if (SyncType.MEMBERS == type) {
+            return waitMembers(client, syncPointId, condition, timeout);
+        }
+        SyncPoint syncPoint = mSyncPoints.get(syncPointId);
+        if (null == syncPoint) {
+            syncPoint = new SyncPoint(mServer, this, syncPointId);
             mSyncPoints.put(syncPointId, syncPoint);
-        } else {
-            syncPoint = mSyncPoints.get(syncPointId);
-            response = SyncResponse.Code.JOINED;
         }
-        final boolean joinOk = syncPoint.join(client);
-        if (joinOk) {
+        final SyncResponse.Code response =
+                syncPoint.join(client, timeout, contribution, gatherData);
+        if (SyncResponse.Code.CREATED == response || SyncResponse.Code.JOINED == response) {
             refresh();
             notifySyncMembers(syncPoint, SyncNotify.Code.JOIN);
-        } else {
-            Log.d("Sync group already expired");
         }
-        return new SyncServer.ServerSyncResult(!joinOk ? SyncResponse.Code.EXPIRED : response,
-                syncPoint.timeLeft());
+        return new SyncServer.ServerSyncResult(response, syncPoint.timeLeft(),
+                syncPoint.getGeneration());
     }
 
     void syncPointExpired(final SyncPoint syncPoint) {
         notifySyncMembers(syncPoint, SyncNotify.Code.TIMEOUT);
-        mSyncPoints.remove(syncPoint.getId());
     }
 
     void syncPointTriggered(final SyncPoint syncPoint) {
         notifySyncMembers(syncPoint, SyncNotify.Code.SUCCESS);
-        mSyncPoints.remove(syncPoint.getId());
     }
 
-    private void notifyMembers(final GroupNotify.Code code) {
+    /**
+     * @param clients Subset of group members
+     * @return given clients ordered by their slot (join order) in this group
+     */
+    private List<ClientConnection> inSlotOrder(final List<ClientConnection> clients) {
+        final List<ClientConnection> ordered = new ArrayList<>(clients.size());
+        for (final ClientConnection client : mClients) {
+            if (clients.contains(client)) {
+                ordered.add(client);
+            }
+        }
+        // Sync point members should always be group members but don't lose anyone
+        for (final ClientConnection client : clients) {
+            if (!ordered.contains(client)) {
+                ordered.add(client);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Send packet to clients. Packet is encoded once and sent once per connection as clients
+     * sharing a connection pick notifies that concern them on their own.
+     */
+    private static void broadcast(final Packet<? extends Message> packet,
+                                  final Collection<ClientConnection> clients) {
+        final ByteBuffer encoded = packet.encode();
+        final Set<Connection> connections = new HashSet<>();
+        for (final ClientConnection client : clients) {
+            // Detached clients buffer their own copies
+            if (client.isDetached() || connections.add(client.getConnection())) {
+                client.send(packet, encoded);
+            }
+        }
+    }
+
+    private void ackSchedule(final ClientConnection client, final Schedule schedule,
+                             final SyncAck.Code code, final int phase) {
+        if (null == schedule) {
+            Log.d("Arrival to unknown schedule dropped");
+            return;
+        }
+        refresh();
+        if (SyncAck.Code.LEAVE == code) {
+            schedule.leave(client);
+        } else if (!schedule.arrive(client, phase)) {
+            return;
+        }
+        if (!releaseIfReady(schedule)) {
+            mSchedules.remove(schedule.getId());
+        }
+    }
+
+    private SyncServer.ServerSyncResult joinMetronome(final ClientConnection client,
+                                                      final NodeId metronomeId,
+                                                      final long period) {
+        Metronome metronome = mMetronomes.get(metronomeId);
+        final SyncResponse.Code code;
+        if (null == metronome) {
+            if (period < 1) {
+                Log.w("Rejected metronome with period " + period + " ms: " + metronomeId);
+                return new SyncServer.ServerSyncResult(SyncResponse.Code.FAIL_INVALID_REQUEST, 0);
+            }
+            metronome = new Metronome(mServer, this, metronomeId, period);
+            mMetronomes.put(metronomeId, metronome);
+            code = SyncResponse.Code.CREATED;
+        } else if (metronome.getPeriod() != period) {
+            Log.w("Rejected metronome period " + period + " ms: " + metronome);
+            return new SyncServer.ServerSyncResult(SyncResponse.Code.FAIL_INVALID_REQUEST, 0);
+        } else {
+            code = SyncResponse.Code.JOINED;
+        }
+        metronome.join(client);
+        refresh();
+        return new SyncServer.ServerSyncResult(code, period, metronome.getTick());
+    }
+
+    private SyncServer.ServerSyncResult joinSchedule(final ClientConnection client,
+                                                     final NodeId scheduleId,
+                                                     final NodeId[] phases,
+                                                     final long phaseTimeout) {
+        Schedule schedule = mSchedules.get(scheduleId);
+        final SyncResponse.Code code;
+        if (null == schedule) {
+            if (phaseTimeout < 1 || 0 == phases.length) {
+                Log.w("Rejected schedule with " + phases.length + " phases and timeout " +
+                        phaseTimeout + " ms: " + scheduleId);
+                return new SyncServer.ServerSyncResult(SyncResponse.Code.FAIL_INVALID_REQUEST, 0);
+            }
+            schedule = new Schedule(mServer, this, scheduleId, phases, phaseTimeout);
+            mSchedules.put(scheduleId, schedule);
+            code = SyncResponse.Code.CREATED;
+        } else if (!schedule.hasPhases(phases) || schedule.getPhaseTimeout() != phaseTimeout) {
+            Log.w("Rejected schedule that doesn't match: " + schedule);
+            return new SyncServer.ServerSyncResult(SyncResponse.Code.FAIL_INVALID_REQUEST, 0);
+        } else {
+            code = SyncResponse.Code.JOINED;
+        }
+        schedule.join(client);
+        refresh();
+        return new SyncServer.ServerSyncResult(code, phaseTimeout, schedule.getPhase());
+    }
+
+    private void notifyMembers(final GroupNotify.Code code, final NodeId[] members,
+                               final Collection<ClientConnection> clients) {
         Packet<GroupNotify> packet = new Packet<>(GroupNotify.class, mServer.getToken());
         GroupNotify notify = packet.getMessage();
         notify.setGroupId(mGroupId);
         notify.setGroupToken(mGroupToken);
         notify.setNotifyCode(code);
-        final NodeId[] members;
-        if (GroupNotify.Code.CLOSE == code) {
-            members = new NodeId[0];
-        } else {
-            members = new NodeId[mClients.size()];
-            for (int i = 0; i < members.length; i++) {
-                members[i] = mClients.get(i).getClientId();
-            }
-        }
         notify.setMembers(members);
-        for (final ClientConnection client : mClients) {
-            client.send(packet);
+        broadcast(packet, clients);
+    }
+
+    private void notifyMemberWait(final MemberWait wait, final SyncNotify.Code code) {
+        final Packet<SyncNotify> packet = new Packet<>(SyncNotify.class, mServer.getToken());
+        final SyncNotify notify = packet.getMessage();
+        notify.setGroupId(mGroupId);
+        notify.setGroupToken(mGroupToken);
+        notify.setSyncCode(code);
+        notify.setSyncPoint(wait.getId());
+        notify.setMembers(getMemberIds());
+        wait.getClient().send(packet);
+    }
+
+    private void notifySchedule(final Schedule schedule, final SyncNotify.Code code) {
+        final Packet<SyncNotify> packet = new Packet<>(SyncNotify.class, mServer.getToken());
+        final SyncNotify notify = packet.getMessage();
+        notify.setGroupId(mGroupId);
+        notify.setGroupToken(mGroupToken);
+        notify.setSyncCode(code);
+        notify.setSyncPoint(schedule.getId());
+        notify.setGeneration(schedule.getPhase());
+        if (SyncNotify.Code.PHASE == code) {
+            notify.setReleaseTime(releaseTime());
+        }
+        final List<ClientConnection> clients = inSlotOrder(schedule.getClients());
+        final NodeId[] members = new NodeId[clients.size()];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = clients.get(i).getClientId();
         }
+        notify.setMembers(members);
+        broadcast(packet, clients);
     }
 
     private void notifySyncMembers(final SyncPoint syncPoint, final SyncNotify.Code code) {
@@ -191,18 +473,108 @@ class SyncGroup {
         notify.setGroupToken(mGroupToken);
         notify.setSyncCode(code);
         notify.setSyncPoint(syncPoint.getId());
-        final List<ClientConnection> clients = syncPoint.getClients();
+        notify.setGeneration(syncPoint.getGeneration());
+        final List<ClientConnection> clients = inSlotOrder(syncPoint.getClients());
         final NodeId[] members = new NodeId[clients.size()];
         for (int i = 0; i < members.length; i++) {
             members[i] = clients.get(i).getClientId();
         }
         notify.setMembers(members);
-        for (final ClientConnection client : clients) {
-            client.send(packet);
+        if (SyncNotify.Code.SUCCESS == code) {
+            final long triggerTime = System.nanoTime();
+            final long[] waitTimes = new long[clients.size()];
+            for (int i = 0; i < waitTimes.length; i++) {
+                waitTimes[i] = triggerTime - syncPoint.getArrivalTime(clients.get(i));
+            }
+            notify.setTriggerTime(triggerTime);
+            notify.setWaitTimes(waitTimes);
+            notify.setReleaseTime(releaseTime());
+            notify.setReduction(syncPoint.getReduction());
+            if (syncPoint.hasGatherData()) {
+                final byte[][] gathered = new byte[clients.size()][];
+                for (int i = 0; i < gathered.length; i++) {
+                    gathered[i] = syncPoint.getGatherData(clients.get(i));
+                }
+                notify.setGathered(gathered);
+            }
         }
+        broadcast(packet, clients);
     }
 
     private void refresh() {
         lastActivity = TimeUtils.msTime();
     }
+
+    /**
+     * Notify and drop waits whose condition is met by current member count.
+     */
+    private void releaseMemberWaits() {
+        final Iterator<MemberWait> waits = mMemberWaits.iterator();
+        while (waits.hasNext()) {
+            final MemberWait wait = waits.next();
+            if (wait.matches(mClients.size())) {
+                Log.d("Member wait matched: " + wait);
+                wait.close();
+                waits.remove();
+                notifyMemberWait(wait, SyncNotify.Code.MEMBERS);
+            }
+        }
+    }
+
+    /**
+     * Release current phase of schedule if all group members have arrived to it.
+     *
+     * @return false if schedule has ended and must be removed
+     */
+    private boolean releaseIfReady(final Schedule schedule) {
+        if (schedule.isReady()) {
+            Log.d("Schedule phase released: " + schedule);
+            notifySchedule(schedule, SyncNotify.Code.PHASE);
+            schedule.release();
+        }
+        if (schedule.isFinished() || schedule.isEmpty()) {
+            schedule.close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return release time for members being notified now or SyncNotify.NO_RELEASE_TIME if
+     * members should be released immediately
+     */
+    private long releaseTime() {
+        final long releaseDelay = mSettings.getSyncReleaseDelay();
+        if (releaseDelay > 0) {
+            return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(releaseDelay);
+        }
+        return SyncNotify.NO_RELEASE_TIME;
+    }
+
+    private SyncServer.ServerSyncResult waitMembers(final ClientConnection client,
+                                                    final NodeId waitId,
+                                                    final MemberCondition condition,
+                                                    final long timeout) {
+        if (null == condition || !condition.isValid()) {
+            Log.w("Rejected member wait " + condition + ": " + waitId);
+            return new SyncServer.ServerSyncResult(SyncResponse.Code.FAIL_INVALID_REQUEST, 0);
+        }
+        refresh();
+        if (condition.matches(mClients.size())) {
+            return new SyncServer.ServerSyncResult(SyncResponse.Code.MATCHED, 0);
+        }
+        if (timeout < 1) {
+            return new SyncServer.ServerSyncResult(SyncResponse.Code.EXPIRED, 0);
+        }
+        final Iterator<MemberWait> waits = mMemberWaits.iterator();
+        while (waits.hasNext()) {
+            final MemberWait wait = waits.next();
+            if (wait.getClient() == client && wait.getId().equals(waitId)) {
+                wait.close();
+                waits.remove();
+            }
+        }
+        mMemberWaits.add(new MemberWait(mServer, this, client, waitId, condition, timeout));
+        return new SyncServer.ServerSyncResult(SyncResponse.Code.CREATED, timeout);
+    }
 }
@@ -17,40 +17,69 @@
 package fi.nuumio.netsync.server;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import fi.nuumio.netsync.protocol.message.group.Reduction;
+import fi.nuumio.netsync.protocol.message.group.SyncResponse;
 import fi.nuumio.netsync.util.Log;
 import fi.nuumio.netsync.util.NodeId;
 import fi.nuumio.netsync.util.TimeUtils;
 
+/**
+ * Server side sync point. Sync points are cyclic: when all group members have arrived (or the
+ * sync point times out) members are notified, generation is advanced and the same instance is
+ * used for the next round.
+ */
 class SyncPoint {
     private final StringBuilder mSb;
     private final List<ClientConnection> mClients = new ArrayList<>();
+    private final Map<ClientConnection, byte[]> mGatherData = new HashMap<>();
+    private final Map<ClientConnection, Reduction> mContributions = new HashMap<>();
+    private final Map<ClientConnection, Long> mArrivalTimes = new HashMap<>();
     private final NodeId mId;
     private final SyncServer mServer;
     private final SyncGroup mGroup;
-    private final long mTimeout;
-    private final SyncServer.Event mTimeoutEvent;
-    private final TimeUtils.StopWatch mWatch;
-    private boolean mExpired;
-
-    SyncPoint(final SyncServer server, final SyncGroup group, final NodeId id,
-              final long timeout) {
-        mExpired = false;
+    private final SyncServer.EventHandler mTimeoutHandler;
+    private final SyncServer.EventHandler mTriggerHandler;
+    private SyncServer.Event mTimeoutEvent;
+    private SyncServer.Event mTriggerEvent;
+    private Reduction mReduction;
+    private boolean mHasReduction;
+    private int mGeneration;
+    private long mTimeout;
+    private long mRoundStart;
+    private boolean mTriggering;
+
+    SyncPoint(final SyncServer server, final SyncGroup group, final NodeId id) {
         mServer = server;
         mGroup = group;
         mId = id;
-        mTimeout = timeout;
-        mTimeoutEvent = mServer.addEvent(timeout, new SyncServer.EventHandler() {
+        mGeneration = 0;
+        mTimeout = 0;
+        mRoundStart = 0;
+        mTriggering = false;
+        mTimeoutEvent = null;
+        mTriggerEvent = null;
+        mReduction = null;
+        mHasReduction = false;
+        mTimeoutHandler = new SyncServer.EventHandler() {
             @Override
             public void handle(final SyncServer.Event event) {
-                Log.d("Sync timed out");
+                Log.d("Sync timed out: " + SyncPoint.this);
                 SyncPoint.this.mGroup.syncPointExpired(SyncPoint.this);
-                SyncPoint.this.mClients.clear();
-                SyncPoint.this.mExpired = true;
+                SyncPoint.this.nextRound();
             }
-        }, false);
-        mWatch = new TimeUtils.StopWatch();
+        };
+        mTriggerHandler = new SyncServer.EventHandler() {
+            @Override
+            public void handle(final SyncServer.Event event) {
+                Log.d("Sync triggered: " + SyncPoint.this);
+                SyncPoint.this.mGroup.syncPointTriggered(SyncPoint.this);
+                SyncPoint.this.nextRound();
+            }
+        };
         mSb = new StringBuilder();
     }
 
@@ -67,52 +96,211 @@ class SyncPoint {
             }
             mSb.append("]");
             return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" +
-                    mSb.toString() + "]";
+                    mId.asString() + "#" + mGeneration + mSb.toString() + "]";
+        }
+    }
+
+    void close() {
+        if (mTimeoutEvent != null) {
+            mServer.cancelEvent(mTimeoutEvent);
         }
+        if (mTriggerEvent != null) {
+            mServer.cancelEvent(mTriggerEvent);
+        }
+        mClients.clear();
+        mGatherData.clear();
+        mContributions.clear();
+        mArrivalTimes.clear();
+        mTriggering = false;
+        mHasReduction = false;
     }
 
     List<ClientConnection> getClients() {
         return mClients;
     }
 
+    /**
+     * @param client Member of current round
+     * @return server's System.nanoTime() when client arrived in current round
+     */
+    long getArrivalTime(final ClientConnection client) {
+        final Long arrivalTime = mArrivalTimes.get(client);
+        return null == arrivalTime ? System.nanoTime() : arrivalTime;
+    }
+
+    /**
+     * @param client Member of current round
+     * @return data shared by client in current round or null if none
+     */
+    byte[] getGatherData(final ClientConnection client) {
+        return mGatherData.get(client);
+    }
+
+    /**
+     * @return reduced value of current round or null if no member has contributed
+     */
+    Reduction getReduction() {
+        return mHasReduction ? mReduction : null;
+    }
+
+    int getGeneration() {
+        return mGeneration;
+    }
+
     NodeId getId() {
         return mId;
     }
 
-    boolean join(final ClientConnection client) {
+    /**
+     * @return true if any member of current round has shared data
+     */
+    boolean hasGatherData() {
+        return !mGatherData.isEmpty();
+    }
+
+    /**
+     * @return true if no round is in progress, i.e. next join starts a new generation
+     */
+    boolean isIdle() {
+        return mClients.isEmpty() && !mTriggering;
+    }
+
+    SyncResponse.Code join(final ClientConnection client, final long timeout,
+                           final Reduction contribution, final byte[] gatherData) {
         // Currently only "wait all" is supported
-        if (!mClients.contains(client)) {
-            if (mExpired) {
-                return false;
-            }
-            mClients.add(client);
-            Log.d("Client added to sync group: " + this);
-            if (mGroup.hasSameClients(mClients)) {
-                // Cancel timeout event and add trigger event
+        if (mClients.contains(client)) {
+            Log.d("Client already in sync point: " + this);
+            return SyncResponse.Code.JOINED;
+        }
+        if (contribution != null && !canFold(contribution)) {
+            Log.w("Rejected incompatible reduction " + contribution + " to " + this);
+            return SyncResponse.Code.FAIL_INVALID_REQUEST;
+        }
+        if (gatherData != null &&
+                gatherData.length > mServer.getSettings().getSyncGatherMaxBytes()) {
+            Log.w("Rejected too large gather data (" + gatherData.length + " bytes) to " + this);
+            return SyncResponse.Code.FAIL_INVALID_REQUEST;
+        }
+        final boolean created = isIdle();
+        if (created) {
+            startRound(timeout);
+        }
+        mClients.add(client);
+        mArrivalTimes.put(client, System.nanoTime());
+        if (contribution != null) {
+            mContributions.put(client, contribution);
+            fold(contribution);
+        }
+        if (gatherData != null) {
+            mGatherData.put(client, gatherData);
+        }
+        Log.d("Client added to sync point: " + this);
+        if (!mTriggering && mGroup.hasSameClients(mClients)) {
+            // Cancel timeout event and add trigger event
+            mServer.cancelEvent(mTimeoutEvent);
+            mTriggering = true;
+            final SyncServer.Upstream upstream = mServer.getUpstream();
+            if (upstream != null) {
+                // Upstream decides how round ends
+                Log.d("Arriving upstream: " + this);
+                upstream.arrive(mGroup.getId(), this, timeLeft());
+            } else if (null == mTriggerEvent) {
+                Log.d("Adding sync trigger event");
+                mTriggerEvent = mServer.addEvent(0, mTriggerHandler, false);
+            } else {
                 Log.d("Adding sync trigger event");
-                mServer.cancelEvent(mTimeoutEvent);
-                mServer.addEvent(0, new SyncServer.EventHandler() {
-                    @Override
-                    public void handle(final SyncServer.Event event) {
-                        Log.d("Sync triggered");
-                        SyncPoint.this.mGroup.syncPointTriggered(SyncPoint.this);
-                        SyncPoint.this.mClients.clear();
-                        SyncPoint.this.mExpired = true;
-                    }
-                }, false);
+                mServer.rescheduleEvent(mTriggerEvent, 0);
             }
-        } else {
-            Log.d("Client already in sync group: " + this);
         }
-        return true;
+        return created ? SyncResponse.Code.CREATED : SyncResponse.Code.JOINED;
     }
 
     boolean leave(final ClientConnection client) {
         Log.d("Sync client leave: " + client);
-        return mClients.remove(client);
+        mGatherData.remove(client);
+        mArrivalTimes.remove(client);
+        final boolean removed = mClients.remove(client);
+        if (mContributions.remove(client) != null) {
+            // Result must have only values of members, fold again what's left
+            mHasReduction = false;
+            for (final ClientConnection member : mClients) {
+                final Reduction contribution = mContributions.get(member);
+                if (contribution != null) {
+                    fold(contribution);
+                }
+            }
+        }
+        return removed;
     }
 
     long timeLeft() {
-        return Math.max(0, mTimeout - mWatch.elapsed());
+        return Math.max(0, mTimeout - (TimeUtils.msTime() - mRoundStart));
+    }
+
+    /**
+     * End round that was forwarded upstream. Run in server's thread.
+     *
+     * @param generation Generation that was forwarded
+     * @param success    true if upstream sync succeeded
+     * @param reduction  Reduced value of all upstream members or null
+     */
+    void upstreamDone(final int generation, final boolean success, final Reduction reduction) {
+        if (!mTriggering || generation != mGeneration) {
+            Log.d("Upstream result to closed round scrapped: " + this);
+            return;
+        }
+        if (success) {
+            if (reduction != null && mHasReduction) {
+                mReduction.set(reduction);
+            }
+            Log.d("Sync triggered upstream: " + this);
+            mGroup.syncPointTriggered(this);
+        } else {
+            Log.d("Sync failed upstream: " + this);
+            mGroup.syncPointExpired(this);
+        }
+        nextRound();
+    }
+
+    private boolean canFold(final Reduction contribution) {
+        if (!contribution.isValid()) {
+            return false;
+        }
+        // Round in progress with reduction must get compatible contributions
+        return !mHasReduction || mReduction.isCompatible(contribution);
+    }
+
+    private void fold(final Reduction contribution) {
+        if (!mHasReduction) {
+            // Reduction object is reused across rounds
+            if (null == mReduction) {
+                mReduction = contribution.copy();
+            } else {
+                mReduction.set(contribution);
+            }
+            mHasReduction = true;
+        } else {
+            mReduction.fold(contribution);
+        }
+    }
+
+    private void nextRound() {
+        mClients.clear();
+        mGatherData.clear();
+        mContributions.clear();
+        mArrivalTimes.clear();
+        mHasReduction = false;
+        mTriggering = false;
+        mGeneration++;
+    }
+
+    private void startRound(final long timeout) {
+        mTimeout = timeout;
+        mRoundStart = TimeUtils.msTime();
+        if (null == mTimeoutEvent) {
+            mTimeoutEvent = mServer.addEvent(timeout, mTimeoutHandler, false);
+        } else {
+            mServer.rescheduleEvent(mTimeoutEvent, timeout);
+        }
     }
 }
@@ -22,8 +22,10 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.PriorityQueue;
@@ -32,6 +34,7 @@ import fi.nuumio.netsync.protocol.Messenger;
 import fi.nuumio.netsync.protocol.message.group.JoinRequest;
 import fi.nuumio.netsync.protocol.message.group.JoinResponse;
 import fi.nuumio.netsync.protocol.message.group.LeaveRequest;
+import fi.nuumio.netsync.protocol.message.group.SyncAck;
 import fi.nuumio.netsync.protocol.message.group.SyncRequest;
 import fi.nuumio.netsync.protocol.message.group.SyncResponse;
 import fi.nuumio.netsync.protocol.message.group.SyncType;
@@ -51,12 +54,18 @@ public class SyncServer {
     private final HashMap<NodeId, ClientConnection> mClients;
     private final ServerSettings mSettings;
     private final PriorityQueue<Event> mEventQueue;
+    private final ArrayDeque<Runnable> mPosted;
     private final Token mToken;
+    private final TokenBucket mAdmission;
     private final LoggableThread mThread;
     private volatile boolean mRunning;
     private volatile boolean mStopping;
     private volatile boolean mFinished;
+    private volatile Selector mSelector;
+    private volatile Upstream mUpstream;
     private Exception mStoredException;
+    private int mPendingConnections;
+    private int mDetachedClients;
 
     /**
      * Create new {@link SyncServer}.
@@ -73,6 +82,13 @@ public class SyncServer {
         mFinished = false;
         mToken = new Token();
         mEventQueue = new PriorityQueue<>();
+        mPosted = new ArrayDeque<>();
+        mAdmission = new TokenBucket(mSettings.getAdmissionRate(), mSettings.getAdmissionBurst(),
+                TimeUtils.msTime());
+        mPendingConnections = 0;
+        mDetachedClients = 0;
+        mSelector = null;
+        mUpstream = null;
         mThread = new LoggableThread(new Runnable() {
             @Override
             public void run() {
@@ -145,7 +161,25 @@ public class SyncServer {
         if (delayMs < 0) {
             throw new IllegalArgumentException("Event delay must be > 0");
         }
-        final Event e = new Event(delayMs, event, recurring);
+        final Event e = new Event(delayMs, event, recurring, false);
+        mEventQueue.add(e);
+        return e;
+    }
+
+    /**
+     * Add recurring event that is triggered at fixed rate, i.e. next trigger time is counted
+     * from previous trigger time instead of handling time. Triggers missed because of server
+     * being late are skipped.
+     *
+     * @param periodMs Period in ms
+     * @param event    Event handler
+     * @return added event
+     */
+    Event addFixedRateEvent(final long periodMs, final EventHandler event) {
+        if (periodMs < 1) {
+            throw new IllegalArgumentException("Event period must be >= 1");
+        }
+        final Event e = new Event(periodMs, event, true, true);
         mEventQueue.add(e);
         return e;
     }
@@ -154,6 +188,40 @@ public class SyncServer {
         mEventQueue.remove(event);
     }
 
+    /**
+     * Close lost connection and detach its clients. Connection may be lost while sending to a
+     * group so clients are detached once current work is done.
+     */
+    void connectionLost(final Connection connection) {
+        if (!connection.isOpen()) {
+            return;
+        }
+        connection.close();
+        final List<ClientConnection> clients = connection.getClients();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                for (final ClientConnection client : clients) {
+                    // Client may have resumed over a new connection already
+                    if (client.getConnection() == connection) {
+                        clientDisconnected(client);
+                    }
+                }
+            }
+        });
+    }
+
+    void rescheduleEvent(final Event event, final long delayMs) {
+        if (delayMs < 0) {
+            throw new IllegalArgumentException("Event delay must be > 0");
+        }
+        // Remove before changing trigger time as it's part of event's identity in queue
+        mEventQueue.remove(event);
+        event.mDelayMs = delayMs;
+        event.schedule();
+        mEventQueue.add(event);
+    }
+
     Token generateClientToken() {
         return new Token();
     }
@@ -166,8 +234,20 @@ public class SyncServer {
         return mToken;
     }
 
+    Upstream getUpstream() {
+        return mUpstream;
+    }
+
     RegisterResponse.Code handleClientRegister(ClientConnection client, RegisterRequest request) {
         final NodeId clientId = request.getClientId();
+        final ClientConnection previous = mClients.get(clientId);
+        if (previous != null && previous.isDetached()) {
+            // Client restarted instead of resuming
+            Log.d("Dropping detached client for new registration: " + previous);
+            cancelEvent(previous.getGraceEvent());
+            removeClientConnection(previous);
+        }
+        // Resumes don't get here, their seats are kept through grace period
         if (mClients.size() >= mSettings.getServerMaxClients()) {
             Log.w("Server full: " + mClients.size() + " / " + mSettings.getServerMaxClients());
             return RegisterResponse.Code.SERVER_FULL;
@@ -183,34 +263,72 @@ public class SyncServer {
         return RegisterResponse.Code.FAIL_AUTHENTICATION_FAILURE;
     }
 
-    JoinResponse.Code handleGroupJoin(final ClientConnection client,
-                                      final JoinRequest request) {
-        final SyncGroup group;
-        final String requestedGroupId = request.getGroupId().asString();
-        final Token requestedGroupToken = request.getGroupToken();
-        if (mGroups.containsKey(requestedGroupId)) {
-            group = mGroups.get(requestedGroupId);
-            Log.d("Existing group: " + group);
-        } else {
-            try {
-                group = new SyncGroup(request.getGroupId(), requestedGroupToken, this);
-                mGroups.put(requestedGroupId, group);
-                Log.d("New group: " + group);
-            } catch (final InvalidTokenException e) {
-                Log.e("Invalid group token", e);
-                return JoinResponse.Code.FAIL_AUTHENTICATION_FAILURE;
+    /**
+     * Move registered client to given connection if request carries client's resume token.
+     * Client keeps its token, groups and arrivals. Previous connection is closed if no other
+     * clients use it.
+     *
+     * @return resumed client or null if request does not resume a registration
+     */
+    ClientConnection handleClientResume(final Connection connection,
+                                        final RegisterRequest request) {
+        final Token resumeToken = request.getResumeToken();
+        if (Token.NULL_TOKEN.equals(resumeToken)) {
+            return null;
+        }
+        final ClientConnection client = mClients.get(request.getClientId());
+        if (null == client || !client.getResumeToken().equals(resumeToken)) {
+            return null;
+        }
+        final Connection previous = client.getConnection();
+        if (client.isDetached()) {
+            cancelEvent(client.getGraceEvent());
+            mDetachedClients--;
+        } else if (previous != connection) {
+            previous.removeClient(client);
+            if (previous.getClients().isEmpty()) {
+                // Half-open connection client gave up on
+                previous.close();
             }
         }
-        try {
-            group.add(client, requestedGroupToken);
-        } catch (final GroupFullException e) {
-            Log.i("Group full", e);
-            return JoinResponse.Code.FAIL_GROUP_FULL;
-        } catch (final TokenVerificationFailureException e) {
-            Log.w("Group token verification failure", e);
-            return JoinResponse.Code.FAIL_AUTHENTICATION_FAILURE;
-        }
-        return JoinResponse.Code.ACCEPTED;
+        client.setConnection(connection);
+        Log.d("Client resumed: " + client);
+        return client;
+    }
+
+    /**
+     * Join groups newly registered client asked to join in its register request. Members of
+     * joined groups are not notified, see {@link #notifyBootstrapJoins}.
+     *
+     * @param client  Registered client
+     * @param request Register request
+     * @param members Array for members of each joined group
+     * @return result of each join in same order as request's groups
+     */
+    JoinResponse.Code[] handleBootstrapJoins(final ClientConnection client,
+                                             final RegisterRequest request,
+                                             final NodeId[][] members) {
+        final NodeId[] groupIds = request.getGroupIds();
+        final Token[] groupTokens = request.getGroupTokens();
+        final JoinResponse.Code[] codes = new JoinResponse.Code[groupIds.length];
+        for (int i = 0; i < groupIds.length; i++) {
+            codes[i] = joinGroup(client, groupIds[i], groupTokens[i]);
+            members[i] = JoinResponse.Code.ACCEPTED == codes[i] ?
+                    mGroups.get(groupIds[i].asString()).getMemberIds() : new NodeId[0];
+        }
+        return codes;
+    }
+
+    JoinResponse.Code handleGroupJoin(final ClientConnection client,
+                                      final JoinRequest request) {
+        final JoinResponse.Code code =
+                joinGroup(client, request.getGroupId(), request.getGroupToken());
+        if (JoinResponse.Code.ACCEPTED == code) {
+            final SyncGroup group = mGroups.get(request.getGroupId().asString());
+            group.sendMembers(client);
+            group.notifyJoin(client);
+        }
+        return code;
     }
 
     void handleGroupLeave(final ClientConnection client, final LeaveRequest request) {
@@ -225,6 +343,20 @@ public class SyncServer {
         }
     }
 
+    void handleSyncAck(final ClientConnection client, final SyncAck ack) {
+        final String requestedGroupId = ack.getGroupId().asString();
+        if (!mGroups.containsKey(requestedGroupId)) {
+            Log.d("Ack to unknown group dropped: " + ack);
+            return;
+        }
+        try {
+            mGroups.get(requestedGroupId).ack(client, ack.getGroupToken(), ack.getSyncPoint(),
+                    ack.getCode(), ack.getTick());
+        } catch (final TokenVerificationFailureException e) {
+            Log.w("Group ack failed in token verification", e);
+        }
+    }
+
     ServerSyncResult handleSyncRequest(final ClientConnection client,
                                        final SyncRequest request) {
         final String requestedGroupId = request.getGroupId().asString();
@@ -237,40 +369,166 @@ public class SyncServer {
         final SyncType type = request.getType();
         final long timeout = request.getTimeout();
         try {
-            return group.sync(client, requestedGroupToken, syncPoint, type, timeout);
+            return group.sync(client, requestedGroupToken, syncPoint, type, timeout,
+                    request.getReduction(), request.getGatherData(), request.getMembers(),
+                    request.getCondition());
         } catch (final TokenVerificationFailureException e) {
             Log.w("Group sync failed in token verification", e);
             return new ServerSyncResult(SyncResponse.Code.FAIL_AUTHENTICATION_FAILURE, 0);
         }
     }
 
+    /**
+     * Notify members of groups that were joined by {@link #handleBootstrapJoins}.
+     *
+     * @param client  Joined client
+     * @param request Register request
+     * @param codes   Results of joins
+     */
+    void notifyBootstrapJoins(final ClientConnection client, final RegisterRequest request,
+                              final JoinResponse.Code[] codes) {
+        final NodeId[] groupIds = request.getGroupIds();
+        for (int i = 0; i < codes.length; i++) {
+            if (JoinResponse.Code.ACCEPTED == codes[i]) {
+                mGroups.get(groupIds[i].asString()).notifyJoin(client);
+            }
+        }
+    }
+
+    /**
+     * Run task in server's thread. May be called from any thread.
+     *
+     * @param task Task to run
+     */
+    void post(final Runnable task) {
+        synchronized (mPosted) {
+            mPosted.add(task);
+        }
+        final Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Called by connection when it gets its first client or is closed before that.
+     */
+    void pendingDone() {
+        mPendingConnections--;
+    }
+
+    /**
+     * Remove client from server and all groups it's in.
+     */
+    void removeClientConnection(final ClientConnection clientConnection) {
+        final NodeId clientId = clientConnection.getClientId();
+        if (mClients.containsKey(clientId)) {
+            if (clientConnection.isDetached()) {
+                mDetachedClients--;
+            }
+            Iterator<Map.Entry<String, SyncGroup>> iterator = mGroups.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, SyncGroup> entry = iterator.next();
+                final SyncGroup group = entry.getValue();
+                group.remove(clientConnection);
+                if (group.isEmpty()) {
+                    group.close();
+                    iterator.remove();
+                }
+            }
+            mClients.remove(clientId);
+            Log.d("Client removed: " + clientConnection);
+        }
+    }
+
+    /**
+     * Forward completed local sync points to upstream instead of releasing them locally. Must be
+     * set before server is started.
+     */
+    void setUpstream(final Upstream upstream) {
+        mUpstream = upstream;
+    }
+
+    /**
+     * Accept pending connections up to accept budget. Connections that are not admitted are
+     * closed before anything is allocated for them.
+     */
     private void accept(final SelectionKey key) {
         final ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
-        final SocketChannel clientChannel;
-        SelectionKey clientKey;
-        try {
-            clientChannel = serverChannel.accept();
-            clientChannel.configureBlocking(false);
-            clientKey = clientChannel.register(key.selector(), SelectionKey.OP_READ);
-        } catch (final IOException e) {
-            Log.e("Failed to accept/register connection", e);
-            key.cancel();
-            return;
-        }
-        if (mClients.size() < mSettings.getServerMaxClients()) {
-            ClientConnection clientConnection = new ClientConnection(this, clientChannel);
-            clientKey.attach(clientConnection);
-            Log.d("New connection from " + clientConnection.getAddress() +
-                    ". Client count is now " + mClients.size() +
-                    " / " + mSettings.getServerMaxClients());
-        } else {
-            Log.w("Client max count of " + mSettings.getServerMaxClients() +
-                    " reached, not accepting new client");
+        final int budget = mSettings.getAcceptBudget();
+        for (int i = 0; i < budget; i++) {
+            final SocketChannel clientChannel;
+            try {
+                clientChannel = serverChannel.accept();
+            } catch (final IOException e) {
+                Log.e("Failed to accept connection", e);
+                key.cancel();
+                return;
+            }
+            if (null == clientChannel) {
+                // Backlog drained
+                return;
+            }
+            if (!admit()) {
+                closeChannel(clientChannel);
+                continue;
+            }
+            final SelectionKey clientKey;
             try {
-                clientChannel.close();
+                clientChannel.configureBlocking(false);
+                clientKey = clientChannel.register(key.selector(), SelectionKey.OP_READ);
             } catch (final IOException e) {
-                Log.w("Failed to close rejected client's channel", e);
+                Log.e("Failed to register connection", e);
+                closeChannel(clientChannel);
+                continue;
             }
+            final Connection connection = new Connection(this, clientChannel, clientKey);
+            clientKey.attach(connection);
+            mPendingConnections++;
+            final long registerTimeout = mSettings.getRegisterTimeout();
+            connection.setRegisterTimeout(addEvent(registerTimeout, new EventHandler() {
+                @Override
+                public void handle(final Event event) {
+                    if (connection.isPending()) {
+                        Log.w("No registration in time, closing " + connection);
+                        connectionLost(connection);
+                    }
+                }
+            }, false));
+            Log.d("New connection from " + connection.getAddress() +
+                    ". Client count is now " + mClients.size() +
+                    " / " + mSettings.getServerMaxClients() + ", pending connections " +
+                    mPendingConnections);
+        }
+    }
+
+    /**
+     * @return true if new connection may be taken in
+     */
+    private boolean admit() {
+        // Detached clients must get in to resume, registrations are checked for full server
+        if (mClients.size() - mDetachedClients >= mSettings.getServerMaxClients()) {
+            Log.w("Client max count of " + mSettings.getServerMaxClients() +
+                    " reached, not accepting new client");
+            return false;
+        }
+        if (mPendingConnections >= mSettings.getMaxPendingRegistrations()) {
+            Log.w("Max of " + mSettings.getMaxPendingRegistrations() +
+                    " pending registrations reached, not accepting new client");
+            return false;
+        }
+        if (!mAdmission.tryAcquire(TimeUtils.msTime())) {
+            Log.w("Admission rate exceeded, not accepting new client");
+            return false;
+        }
+        return true;
+    }
+
+    private static void closeChannel(final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            Log.w("Failed to close rejected client's channel", e);
         }
     }
 
@@ -285,12 +543,40 @@ public class SyncServer {
         mClients.clear();
     }
 
+    /**
+     * Detach client whose connection was lost. Client keeps its groups and arrivals for grace
+     * period so that it can resume, then it's removed. Client is removed at once if grace
+     * period is 0.
+     */
+    private void clientDisconnected(final ClientConnection client) {
+        final long gracePeriod = mSettings.getClientGracePeriod();
+        if (gracePeriod <= 0 || mStopping) {
+            removeClientConnection(client);
+            return;
+        }
+        client.detach(addEvent(gracePeriod, new EventHandler() {
+            @Override
+            public void handle(final Event event) {
+                if (client.isDetached()) {
+                    Log.d("Grace period ended for client: " + client);
+                    removeClientConnection(client);
+                }
+            }
+        }, false));
+        mDetachedClients++;
+        Log.d("Client disconnected, keeping it for " + gracePeriod + " ms: " + client);
+    }
+
     private void doEventHandling() {
         while (true) {
             final Event event = mEventQueue.peek();
-            if (event.mTriggerTime <= TimeUtils.msTime()) {
+            final long now = TimeUtils.msTime();
+            if (event.mTriggerTime <= now) {
                 mEventQueue.remove(event);
-                if (event.mRecurring) {
+                if (event.mFixedRate) {
+                    event.advance(now);
+                    mEventQueue.add(event);
+                } else if (event.mRecurring) {
                     event.schedule();
                     mEventQueue.add(event);
                 }
@@ -320,8 +606,9 @@ public class SyncServer {
     }
 
     private boolean doSelect(final Selector selector) {
-        final long nextEventTimeout = mEventQueue.isEmpty() ?
-                Long.MAX_VALUE : mEventQueue.peek().mTriggerTime;
+        // Select timeout of 0 would block forever so wait at least 1 ms
+        final long nextEventTimeout = mEventQueue.isEmpty() ? Long.MAX_VALUE :
+                Math.max(1, mEventQueue.peek().mTriggerTime - TimeUtils.msTime());
         final long selectTimeout = Math.min(nextEventTimeout, mSettings.getServerSelectTimeout());
         try {
             selector.select(selectTimeout);
@@ -338,44 +625,59 @@ public class SyncServer {
             if (key.isAcceptable()) {
                 accept(key);
             }
-            if (key.isReadable()) {
+            if (key.isValid() && key.isWritable()) {
+                ((Connection) key.attachment()).flush();
+            }
+            if (key.isValid() && key.isReadable()) {
                 read(key);
             }
         }
         return true;
     }
 
+    private JoinResponse.Code joinGroup(final ClientConnection client, final NodeId groupId,
+                                        final Token groupToken) {
+        final SyncGroup group;
+        final String requestedGroupId = groupId.asString();
+        if (mGroups.containsKey(requestedGroupId)) {
+            group = mGroups.get(requestedGroupId);
+            Log.d("Existing group: " + group);
+        } else {
+            try {
+                group = new SyncGroup(groupId, groupToken, this);
+                mGroups.put(requestedGroupId, group);
+                Log.d("New group: " + group);
+                if (mUpstream != null) {
+                    mUpstream.groupOpened(groupId, groupToken);
+                }
+            } catch (final InvalidTokenException e) {
+                Log.e("Invalid group token", e);
+                return JoinResponse.Code.FAIL_AUTHENTICATION_FAILURE;
+            }
+        }
+        try {
+            group.add(client, groupToken);
+        } catch (final GroupFullException e) {
+            Log.i("Group full", e);
+            return JoinResponse.Code.FAIL_GROUP_FULL;
+        } catch (final TokenVerificationFailureException e) {
+            Log.w("Group token verification failure", e);
+            return JoinResponse.Code.FAIL_AUTHENTICATION_FAILURE;
+        }
+        return JoinResponse.Code.ACCEPTED;
+    }
+
     private void read(final SelectionKey key) {
-        final ClientConnection clientConnection = (ClientConnection) key.attachment();
+        final Connection connection = (Connection) key.attachment();
         Messenger.ReadMessageResult readResult;
         try {
-            readResult = clientConnection.read();
+            readResult = connection.read();
         } catch (final IOException e) {
             Log.e("Failed to read from client", e);
             readResult = Messenger.ReadMessageResult.CLOSE;
         }
         if (Messenger.ReadMessageResult.CLOSE == readResult) {
-            clientConnection.close();
-            key.cancel();
-            removeClientConnection(clientConnection);
-        }
-    }
-
-    private void removeClientConnection(ClientConnection clientConnection) {
-        final NodeId clientId = clientConnection.getClientId();
-        if (mClients.containsKey(clientId)) {
-            Iterator<Map.Entry<String, SyncGroup>> iterator = mGroups.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry<String, SyncGroup> entry = iterator.next();
-                final SyncGroup group = entry.getValue();
-                group.remove(clientConnection);
-                if (group.isEmpty()) {
-                    group.close();
-                    iterator.remove();
-                }
-            }
-            mClients.remove(clientId);
-            Log.d("Client removed: " + clientConnection);
+            connectionLost(connection);
         }
     }
 
@@ -387,6 +689,7 @@ public class SyncServer {
             serverChannel.socket().bind(new InetSocketAddress(mPort));
             serverChannel.configureBlocking(false);
             serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            mSelector = selector;
 
             addEvent(mSettings.getHousekeepingInterval(), new EventHandler() {
                 @Override
@@ -404,12 +707,14 @@ public class SyncServer {
                 if (!doSelect(selector)) {
                     mStopping = true;
                 }
+                runPosted();
                 doEventHandling();
             }
         } catch (final IOException e) {
             mStoredException = e;
             Log.e("Server run failed", e);
         } finally {
+            mSelector = null;
             clearEvents();
             closeClients();
             mRunning = false;
@@ -420,30 +725,76 @@ public class SyncServer {
         }
     }
 
+    private void runPosted() {
+        while (true) {
+            final Runnable task;
+            synchronized (mPosted) {
+                task = mPosted.poll();
+            }
+            if (null == task) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (final RuntimeException e) {
+                Log.e("Posted task failed", e);
+            }
+        }
+    }
+
     public interface EventHandler {
         void handle(Event event);
     }
 
+    /**
+     * Upstream server that local groups are part of. Methods are called in server's thread.
+     */
+    interface Upstream {
+        /**
+         * All local members have arrived to sync point. Upstream must complete the round with
+         * {@link SyncPoint#upstreamDone} in server's thread.
+         *
+         * @param groupId   Group of sync point
+         * @param syncPoint Sync point
+         * @param timeout   Time left for sync point in ms
+         */
+        void arrive(NodeId groupId, SyncPoint syncPoint, long timeout);
+
+        void groupClosed(NodeId groupId);
+
+        void groupOpened(NodeId groupId, Token groupToken);
+    }
+
     static class ServerSyncResult {
         final SyncResponse.Code mCode;
         final long mTimeLeft;
+        final int mGeneration;
 
         ServerSyncResult(final SyncResponse.Code code, final long timeLeft) {
+            this(code, timeLeft, 0);
+        }
+
+        ServerSyncResult(final SyncResponse.Code code, final long timeLeft,
+                         final int generation) {
             mCode = code;
             mTimeLeft = timeLeft;
+            mGeneration = generation;
         }
     }
 
     class Event implements Comparable<Event> {
-        private final long mDelayMs;
+        private long mDelayMs;
         private final EventHandler mEvent;
         private final boolean mRecurring;
+        private final boolean mFixedRate;
         private long mTriggerTime;
 
-        private Event(final long delayMs, final EventHandler event, final boolean recurring) {
+        private Event(final long delayMs, final EventHandler event, final boolean recurring,
+                      final boolean fixedRate) {
             mDelayMs = delayMs;
             mEvent = event;
             mRecurring = recurring;
+            mFixedRate = fixedRate;
             schedule();
         }
 
@@ -486,6 +837,12 @@ public class SyncServer {
                     + "]";
         }
 
+        private void advance(final long now) {
+            do {
+                mTriggerTime += mDelayMs;
+            } while (mTriggerTime <= now);
+        }
+
         private void schedule() {
             mTriggerTime = TimeUtils.msTime() + mDelayMs;
         }
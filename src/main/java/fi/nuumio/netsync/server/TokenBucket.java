@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.server;
+
+/**
+ * Token bucket rate limiter. Bucket holds up to burst tokens and refills at given rate. Each
+ * admitted action takes one token.
+ */
+class TokenBucket {
+    private final double mRate;
+    private final double mBurst;
+    private double mTokens;
+    private long mLastRefill;
+
+    /**
+     * @param rate  Tokens added per second, 0 or less for no limit
+     * @param burst Max tokens in bucket
+     * @param now   Current time in ms
+     */
+    TokenBucket(final double rate, final int burst, final long now) {
+        if (rate > 0 && burst < 1) {
+            throw new IllegalArgumentException("Limited bucket needs burst of at least 1");
+        }
+        mRate = rate;
+        mBurst = burst;
+        mTokens = burst;
+        mLastRefill = now;
+    }
+
+    /**
+     * @param now Current time in ms
+     * @return true if token was taken, false if bucket is empty
+     */
+    boolean tryAcquire(final long now) {
+        if (mRate <= 0) {
+            return true;
+        }
+        if (now > mLastRefill) {
+            mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * mRate / 1000);
+            mLastRefill = now;
+        }
+        if (mTokens < 1) {
+            return false;
+        }
+        mTokens--;
+        return true;
+    }
+}
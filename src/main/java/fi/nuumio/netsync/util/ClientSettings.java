@@ -16,15 +16,28 @@
 
 package fi.nuumio.netsync.util;
 
+import fi.nuumio.netsync.client.WaitStrategy;
+
 /**
  * Settings for SyncClient.
  */
 public class ClientSettings extends Settings {
+    private static final String KEY_CLIENT_CLOCK_SYNC_INTERVAL = "clientClockSyncInterval";
+    private static final String KEY_CLIENT_CLOCK_SYNC_SAMPLES = "clientClockSyncSamples";
+    private static final String KEY_CLIENT_CONNECT_ATTEMPT_DELAY = "clientConnectAttemptDelay";
     private static final String KEY_CLIENT_CONNECT_TIMEOUT = "clientConnectTimeout";
     private static final String KEY_CLIENT_GROUP_MESSAGE_TIMEOUT = "clientGroupMessageTimeout";
+    private static final String KEY_CLIENT_RECONNECT_DELAY = "clientReconnectDelay";
+    private static final String KEY_CLIENT_RECONNECT_TIMEOUT = "clientReconnectTimeout";
     private static final String KEY_CLIENT_REGISTER_TIMEOUT = "clientRegisterTimeout";
     private static final String KEY_CLIENT_SELECT_TIMEOUT = "clientSelectTimeout";
+    private static final String KEY_CLIENT_SHUFFLE_SERVERS = "clientShuffleServers";
+    private static final String KEY_CLIENT_START_RETRY_BASE_DELAY = "clientStartRetryBaseDelay";
+    private static final String KEY_CLIENT_START_RETRY_MAX_DELAY = "clientStartRetryMaxDelay";
+    private static final String KEY_CLIENT_START_RETRY_TIMEOUT = "clientStartRetryTimeout";
     private static final String KEY_CLIENT_SYNC_EXTRA_LATENCY = "clientSyncExtraLatency";
+    private static final String KEY_CLIENT_WAIT_SPIN_TIME = "clientWaitSpinTime";
+    private static final String KEY_CLIENT_WAIT_STRATEGY = "clientWaitStrategy";
 
     /**
      * Create default SyncClient settings.
@@ -42,6 +55,29 @@ public class ClientSettings extends Settings {
         super(resourcePath);
     }
 
+    /**
+     * @return interval in ms between clock offset estimations, 0 to estimate only once
+     */
+    public long getClientClockSyncInterval() {
+        return Long.parseLong(mSettings.getProperty(KEY_CLIENT_CLOCK_SYNC_INTERVAL));
+    }
+
+    /**
+     * @return number of pings used to estimate clock offset to server, 0 to disable scheduled
+     * sync release
+     */
+    public int getClientClockSyncSamples() {
+        return Integer.parseInt(mSettings.getProperty(KEY_CLIENT_CLOCK_SYNC_SAMPLES));
+    }
+
+    /**
+     * @return delay in ms before connecting to next server address while earlier attempts are
+     * still pending
+     */
+    public long getClientConnectAttemptDelay() {
+        return Long.parseLong(mSettings.getProperty(KEY_CLIENT_CONNECT_ATTEMPT_DELAY));
+    }
+
     public long getClientConnectTimeout() {
         return Long.parseLong(mSettings.getProperty(KEY_CLIENT_CONNECT_TIMEOUT));
     }
@@ -50,6 +86,20 @@ public class ClientSettings extends Settings {
         return Long.parseLong(mSettings.getProperty(KEY_CLIENT_GROUP_MESSAGE_TIMEOUT));
     }
 
+    /**
+     * @return delay in ms before first reconnect attempt, doubled after each failed attempt
+     */
+    public long getClientReconnectDelay() {
+        return Long.parseLong(mSettings.getProperty(KEY_CLIENT_RECONNECT_DELAY));
+    }
+
+    /**
+     * @return max time in ms to try reconnecting lost connection, 0 to disable reconnect
+     */
+    public long getClientReconnectTimeout() {
+        return Long.parseLong(mSettings.getProperty(KEY_CLIENT_RECONNECT_TIMEOUT));
+    }
+
     public long getClientRegisterTimeout() {
         return Long.parseLong(mSettings.getProperty(KEY_CLIENT_REGISTER_TIMEOUT));
     }
@@ -58,6 +108,53 @@ public class ClientSettings extends Settings {
         return Long.parseLong(mSettings.getProperty(KEY_CLIENT_SELECT_TIMEOUT));
     }
 
+    /**
+     * @return true to try server addresses in random order so that clients spread over servers
+     */
+    public boolean getClientShuffleServers() {
+        return Boolean.parseBoolean(mSettings.getProperty(KEY_CLIENT_SHUFFLE_SERVERS).trim());
+    }
+
+    /**
+     * @return smallest delay in ms between start attempts
+     */
+    public long getClientStartRetryBaseDelay() {
+        return Long.parseLong(mSettings.getProperty(KEY_CLIENT_START_RETRY_BASE_DELAY));
+    }
+
+    /**
+     * @return largest delay in ms between start attempts
+     */
+    public long getClientStartRetryMaxDelay() {
+        return Long.parseLong(mSettings.getProperty(KEY_CLIENT_START_RETRY_MAX_DELAY));
+    }
+
+    /**
+     * @return max time in ms to retry start when server is full or can't be reached, 0 to not
+     * retry
+     */
+    public long getClientStartRetryTimeout() {
+        return Long.parseLong(mSettings.getProperty(KEY_CLIENT_START_RETRY_TIMEOUT));
+    }
+
+    /**
+     * @return time in µs that {@link WaitStrategy#YIELDING} polls before blocking
+     */
+    public long getClientWaitSpinTime() {
+        return Long.parseLong(mSettings.getProperty(KEY_CLIENT_WAIT_SPIN_TIME));
+    }
+
+    /**
+     * @return how application threads wait for syncs to complete
+     */
+    public WaitStrategy getClientWaitStrategy() {
+        return WaitStrategy.valueOf(mSettings.getProperty(KEY_CLIENT_WAIT_STRATEGY).trim());
+    }
+
+    public void setClientWaitStrategy(final WaitStrategy strategy) {
+        mSettings.setProperty(KEY_CLIENT_WAIT_STRATEGY, strategy.name());
+    }
+
     public long getSyncExtraLatency() {
         return Long.parseLong(mSettings.getProperty(KEY_CLIENT_SYNC_EXTRA_LATENCY));
     }
@@ -19,10 +19,14 @@ package fi.nuumio.netsync.util;
 public final class Constants {
     public static final int PROTOCOL_VERSION_1 = 1;
     public static final int INT_BYTES = Integer.SIZE / Byte.SIZE;
+    public static final int LONG_BYTES = Long.SIZE / Byte.SIZE;
     // TOKEN_SIZE = SHA-256 Size
     public static final int TOKEN_SIZE = 32;
     public static final int NODE_ID_SIZE = 32;
     public static final int MESSAGE_BUFFER_SIZE = 1024;
+    // Message buffers grow on demand up to this size
+    public static final int MESSAGE_MAX_SIZE = 64 * 1024;
+    public static final int REDUCTION_MAX_VALUES = 16;
 
     private Constants() {
         // Not to be created
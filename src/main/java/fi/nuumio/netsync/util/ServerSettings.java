@@ -17,13 +17,24 @@
 package fi.nuumio.netsync.util;
 
 public class ServerSettings extends Settings {
+    private static final String KEY_SERVER_ACCEPT_BUDGET = "serverAcceptBudget";
+    private static final String KEY_SERVER_ADMISSION_BURST = "serverAdmissionBurst";
+    private static final String KEY_SERVER_ADMISSION_RATE = "serverAdmissionRate";
+    private static final String KEY_SERVER_ALTERNATE_SERVER = "serverAlternateServer";
+    private static final String KEY_SERVER_CLIENT_GRACE_PERIOD = "serverClientGracePeriod";
     private static final String KEY_SERVER_GROUP_MAX_SIZE = "serverGroupMaxSize";
     private static final String KEY_SERVER_GROUP_TIMEOUT = "serverGroupTimeout";
     private static final String KEY_SERVER_HOUSEKEEPING_INTERVAL = "serverHouseKeepingInterval";
     private static final String KEY_SERVER_MAX_CLIENTS = "serverMaxClients";
+    private static final String KEY_SERVER_MAX_PENDING_REGISTRATIONS =
+            "serverMaxPendingRegistrations";
+    private static final String KEY_SERVER_REGISTER_RETRY_AFTER = "serverRegisterRetryAfter";
+    private static final String KEY_SERVER_REGISTER_TIMEOUT = "serverRegisterTimeout";
     private static final String KEY_SERVER_SELECT_TIMEOUT = "serverSelectTimeout";
     private static final String KEY_SERVER_START_TIMEOUT = "serverStartTimeout";
     private static final String KEY_SERVER_STOP_TIMEOUT = "serverStopTimeout";
+    private static final String KEY_SERVER_SYNC_GATHER_MAX_BYTES = "serverSyncGatherMaxBytes";
+    private static final String KEY_SERVER_SYNC_RELEASE_DELAY = "serverSyncReleaseDelay";
 
     public ServerSettings() {
         super();
@@ -33,6 +44,44 @@ public class ServerSettings extends Settings {
         super(resourcePath);
     }
 
+    /**
+     * @return max number of connections accepted per select wakeup, rest are left for next
+     * wakeup so that established clients get served in between
+     */
+    public int getAcceptBudget() {
+        return Integer.parseInt(mSettings.getProperty(KEY_SERVER_ACCEPT_BUDGET));
+    }
+
+    /**
+     * @return max number of new connections admitted at once when admission rate is limited
+     */
+    public int getAdmissionBurst() {
+        return Integer.parseInt(mSettings.getProperty(KEY_SERVER_ADMISSION_BURST));
+    }
+
+    /**
+     * @return new connections admitted per second on average, 0 for no limit
+     */
+    public double getAdmissionRate() {
+        return Double.parseDouble(mSettings.getProperty(KEY_SERVER_ADMISSION_RATE));
+    }
+
+    /**
+     * @return server address clients turned away as server is full are told to try, empty if
+     * none
+     */
+    public String getAlternateServer() {
+        return mSettings.getProperty(KEY_SERVER_ALTERNATE_SERVER).trim();
+    }
+
+    /**
+     * @return time in ms disconnected client keeps its groups and arrivals waiting for it to
+     * resume, 0 to remove disconnected clients at once
+     */
+    public long getClientGracePeriod() {
+        return Long.parseLong(mSettings.getProperty(KEY_SERVER_CLIENT_GRACE_PERIOD));
+    }
+
     public int getGroupMaxSize() {
         return Integer.parseInt(mSettings.getProperty(KEY_SERVER_GROUP_MAX_SIZE));
     }
@@ -45,10 +94,32 @@ public class ServerSettings extends Settings {
         return Long.parseLong(mSettings.getProperty(KEY_SERVER_HOUSEKEEPING_INTERVAL));
     }
 
+    /**
+     * @return max number of connections accepted but not yet having a registered client
+     */
+    public int getMaxPendingRegistrations() {
+        return Integer.parseInt(mSettings.getProperty(KEY_SERVER_MAX_PENDING_REGISTRATIONS));
+    }
+
     public int getServerMaxClients() {
         return Integer.parseInt(mSettings.getProperty(KEY_SERVER_MAX_CLIENTS));
     }
 
+    /**
+     * @return time in ms clients turned away as server is full are told to wait before trying
+     * again
+     */
+    public long getRegisterRetryAfter() {
+        return Long.parseLong(mSettings.getProperty(KEY_SERVER_REGISTER_RETRY_AFTER));
+    }
+
+    /**
+     * @return time in ms new connection has for registering a client before it's closed
+     */
+    public long getRegisterTimeout() {
+        return Long.parseLong(mSettings.getProperty(KEY_SERVER_REGISTER_TIMEOUT));
+    }
+
     public long getServerSelectTimeout() {
         return Long.parseLong(mSettings.getProperty(KEY_SERVER_SELECT_TIMEOUT));
     }
@@ -60,4 +131,16 @@ public class ServerSettings extends Settings {
     public long getServerStopTimeout() {
         return Long.parseLong(mSettings.getProperty(KEY_SERVER_STOP_TIMEOUT));
     }
+
+    public int getSyncGatherMaxBytes() {
+        return Integer.parseInt(mSettings.getProperty(KEY_SERVER_SYNC_GATHER_MAX_BYTES));
+    }
+
+    /**
+     * @return delay in ms from sync point trigger to release time given to members, 0 to release
+     * members immediately when they get notified
+     */
+    public long getSyncReleaseDelay() {
+        return Long.parseLong(mSettings.getProperty(KEY_SERVER_SYNC_RELEASE_DELAY));
+    }
 }
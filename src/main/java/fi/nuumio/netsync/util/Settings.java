@@ -39,7 +39,7 @@ public class Settings {
     }
 
     public void setServerPort(final int serverPort) {
-        mSettings.put(KEY_SERVER_PORT, serverPort);
+        mSettings.setProperty(KEY_SERVER_PORT, Integer.toString(serverPort));
     }
 
     private void loadPropertiesFromResource(final String resource) {
@@ -16,8 +16,12 @@
 
 package fi.nuumio.netsync.util;
 
+import java.util.concurrent.locks.LockSupport;
+
 public class TimeUtils {
     private static final long NANOS_TO_MILLIS = 1000000L;
+    // Parking is not accurate enough for the last part of waiting
+    private static final long SPIN_THRESHOLD_NANOS = 200000L;
 
     private TimeUtils() {
         // Not to be constructed
@@ -27,6 +31,22 @@ public class TimeUtils {
         return System.nanoTime() / NANOS_TO_MILLIS;
     }
 
+    /**
+     * Wait until System.nanoTime() reaches given deadline. Parks while deadline is far and spins
+     * for the last moments to get accurate wake up.
+     *
+     * @param deadline Deadline in System.nanoTime() time
+     */
+    public static void waitUntilNanos(final long deadline) {
+        long left = deadline - System.nanoTime();
+        while (left > 0) {
+            if (left > SPIN_THRESHOLD_NANOS) {
+                LockSupport.parkNanos(left - SPIN_THRESHOLD_NANOS);
+            }
+            left = deadline - System.nanoTime();
+        }
+    }
+
     public static class StopWatch {
         private final long mStart = msTime();
 
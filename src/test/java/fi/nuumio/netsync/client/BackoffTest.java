@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.client;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+public class BackoffTest {
+    private static final long BASE_DELAY = 100;
+    private static final long MAX_DELAY = 2000;
+    private static final int ROUNDS = 1000;
+
+    @Test
+    public void delaysWithinBounds() throws Exception {
+        final Backoff backoff = new Backoff(BASE_DELAY, MAX_DELAY, new Random(1));
+        long max = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            final long delay = backoff.next(0);
+            assertTrue("Delay below base: " + delay, delay >= BASE_DELAY);
+            assertTrue("Delay above max: " + delay, delay <= MAX_DELAY);
+            max = Math.max(max, delay);
+        }
+        // Delays grow from base delay
+        assertTrue(max > BASE_DELAY * 3);
+    }
+
+    @Test
+    public void delaysDiffer() throws Exception {
+        final Backoff backoff1 = new Backoff(BASE_DELAY, MAX_DELAY, new Random(1));
+        final Backoff backoff2 = new Backoff(BASE_DELAY, MAX_DELAY, new Random(2));
+        boolean differ = false;
+        for (int i = 0; i < 10; i++) {
+            differ = differ || backoff1.next(0) != backoff2.next(0);
+        }
+        assertTrue(differ);
+    }
+
+    @Test
+    public void minDelayHonored() throws Exception {
+        final Backoff backoff = new Backoff(BASE_DELAY, MAX_DELAY, new Random(1));
+        for (int i = 0; i < ROUNDS; i++) {
+            assertTrue(backoff.next(500) >= 500);
+        }
+        // Server's hint wins over max delay
+        assertTrue(backoff.next(MAX_DELAY * 2) >= MAX_DELAY * 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidDelays() throws Exception {
+        new Backoff(BASE_DELAY, BASE_DELAY - 1, new Random());
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.client;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.nuumio.netsync.util.Log;
+
+import static org.junit.Assert.assertEquals;
+
+public class ClockSyncTest {
+    private ClockSync mClockSync;
+
+    @Before
+    public void setUp() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        // Samples are fed directly so no client is needed
+        mClockSync = new ClockSync(null, 3, 0);
+    }
+
+    @Test
+    public void symmetricDelay() throws Exception {
+        // Server is 1000 ahead, 50 each way, 10 processing in server
+        mClockSync.addSample(100, 1150, 1160, 210);
+        assertEquals(1000, mClockSync.getBestOffset());
+    }
+
+    @Test
+    public void smallestRoundTripWins() throws Exception {
+        mClockSync.addSample(100, 1150, 1160, 210);
+        // Queued on the way back, would give offset 800
+        mClockSync.addSample(300, 1350, 1350, 800);
+        assertEquals(1000, mClockSync.getBestOffset());
+        // Faster round trip with a bit different offset replaces earlier
+        mClockSync.addSample(1000, 2010, 2010, 1030);
+        assertEquals(995, mClockSync.getBestOffset());
+    }
+
+    @Test
+    public void negativeRoundTripIgnored() throws Exception {
+        mClockSync.addSample(100, 1150, 1160, 210);
+        mClockSync.addSample(500, 1500, 1700, 600);
+        assertEquals(1000, mClockSync.getBestOffset());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+import fi.nuumio.netsync.protocol.message.group.SyncNotify;
+import fi.nuumio.netsync.protocol.message.group.SyncType;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.Token;
+
+import static fi.nuumio.netsync.client.SyncGroup.MemberCount.atLeast;
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static fi.nuumio.netsync.integration.util.TestUtil.sleep;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rounds of one sync point. Lives in client package to feed notifies to group directly.
+ */
+@RunWith(JUnit4.class)
+public class CyclicSyncIntegration {
+    private static final String GROUP_NAME = "Group_1";
+    private static final String GROUP_TOKEN = "GroupToken";
+    private static final String SYNC_POINT_1 = "SP_1";
+    private static final int ROUNDS = 5;
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettings.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettings.properties");
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    private SyncServer mServer;
+    private SyncClient mClient1;
+    private SyncClient mClient2;
+    private SyncGroup mGroup1;
+    private SyncGroup mGroup2;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+        mClient1 = new SyncClient("localhost", new NodeId("Client_1"), sClientSettings);
+        mClient2 = new SyncClient("localhost", new NodeId("Client_2"), sClientSettings);
+        mGroup1 = mClient1.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mGroup2 = mClient2.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mClient1.startAndJoin(mGroup1);
+        mClient2.startAndJoin(mGroup2);
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        assertTrue(mGroup1.waitMembers(atLeast(mGroup1, 2), timeout));
+        assertTrue(mGroup2.waitMembers(atLeast(mGroup2, 2), timeout));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mClient1.stop();
+        mClient2.stop();
+        mServer.stop();
+    }
+
+    @Test
+    public void generationAdvances() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        int previous = -1;
+        for (int i = 0; i < ROUNDS; i++) {
+            final SyncHandle handle1 = mGroup1.arrive(SYNC_POINT_1, SyncType.ALL, timeout);
+            final SyncHandle handle2 = mGroup2.arrive(SYNC_POINT_1, SyncType.ALL, timeout);
+            assertTrue(mGroup1.await(handle1, timeout));
+            assertTrue(mGroup2.await(handle2, timeout));
+            final int generation = handle1.getResult().getGeneration();
+            assertEquals(generation, handle2.getResult().getGeneration());
+            if (previous >= 0) {
+                assertEquals(previous + 1, generation);
+            }
+            previous = generation;
+        }
+    }
+
+    @Test
+    public void staleNotifyIgnored() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        final SyncHandle first1 = mGroup1.arrive(SYNC_POINT_1, SyncType.ALL, timeout);
+        final SyncHandle first2 = mGroup2.arrive(SYNC_POINT_1, SyncType.ALL, timeout);
+        assertTrue(mGroup1.await(first1, timeout));
+        assertTrue(mGroup2.await(first2, timeout));
+        final int stale = first1.getResult().getGeneration();
+
+        final SyncHandle handle1 = mGroup1.arrive(SYNC_POINT_1, SyncType.ALL, timeout * 2);
+        while (!handle1.isJoined()) {
+            sleep(1);
+        }
+        assertEquals(stale + 1, handle1.getGeneration());
+        // Success notify of the previous round arriving late must not release this round
+        final SyncNotify notify = new SyncNotify();
+        notify.setSyncPoint(new NodeId(SYNC_POINT_1));
+        notify.setSyncCode(SyncNotify.Code.SUCCESS);
+        notify.setGeneration(stale);
+        mGroup1.handleSyncPointNotify(notify);
+        assertFalse(handle1.isDone());
+
+        final SyncHandle handle2 = mGroup2.arrive(SYNC_POINT_1, SyncType.ALL, timeout);
+        assertTrue(mGroup1.await(handle1, timeout));
+        assertTrue(mGroup2.await(handle2, timeout));
+        assertEquals(stale + 1, handle1.getResult().getGeneration());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.client;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.nuumio.netsync.util.Log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SyncFutureTest {
+    private SyncFuture<String> mFuture;
+    private AtomicInteger mCalls;
+    private SyncFuture.Listener<String> mListener;
+
+    @Before
+    public void setUp() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mFuture = new SyncFuture<>();
+        mCalls = new AtomicInteger();
+        mListener = new SyncFuture.Listener<String>() {
+            @Override
+            public void onComplete(final SyncFuture<String> future) {
+                mCalls.incrementAndGet();
+            }
+        };
+    }
+
+    @Test
+    public void completeOnce() throws Exception {
+        mFuture.addListener(mListener);
+        assertEquals(0, mCalls.get());
+        assertTrue(mFuture.complete("a"));
+        assertFalse(mFuture.complete("b"));
+        assertFalse(mFuture.fail(new Exception()));
+        assertEquals(1, mCalls.get());
+        assertTrue(mFuture.isSuccess());
+        assertEquals("a", mFuture.get());
+        // Listener added after completion is called immediately
+        mFuture.addListener(mListener);
+        assertEquals(2, mCalls.get());
+    }
+
+    @Test
+    public void failure() throws Exception {
+        final Exception error = new GroupSyncException("fail");
+        mFuture.addListener(mListener);
+        assertTrue(mFuture.fail(error));
+        assertEquals(1, mCalls.get());
+        assertFalse(mFuture.isSuccess());
+        assertSame(error, mFuture.getError());
+        try {
+            mFuture.get();
+            throw new AssertionError("get() should have thrown");
+        } catch (final ExecutionException e) {
+            assertSame(error, e.getCause());
+        }
+    }
+
+    @Test(expected = CancellationException.class)
+    public void cancel() throws Exception {
+        mFuture.addListener(mListener);
+        assertTrue(mFuture.cancel(false));
+        assertFalse(mFuture.complete("a"));
+        assertEquals(1, mCalls.get());
+        assertTrue(mFuture.isCancelled());
+        mFuture.get();
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void getTimeout() throws Exception {
+        mFuture.get(10, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import fi.nuumio.netsync.client.ClientStartFailedException;
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static fi.nuumio.netsync.integration.util.TestUtil.sleep;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class AdmissionIntegration {
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettingsAdmission.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettingsAdmission.properties");
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    private SyncServer mServer;
+    private List<SyncClient> mClients;
+    private List<Socket> mSockets;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        mClients = new ArrayList<>();
+        mSockets = new ArrayList<>();
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (final SyncClient client : mClients) {
+            client.stop();
+        }
+        for (final Socket socket : mSockets) {
+            socket.close();
+        }
+        mServer.stop();
+    }
+
+    @Test
+    public void admissionRateLimited() throws Exception {
+        final int burst = sServerSettings.getAdmissionBurst();
+        for (int i = 0; i < burst; i++) {
+            newClient("Client_" + i).start();
+        }
+        final SyncClient client = newClient("Client_" + burst);
+        assertStartFails(client);
+        // Bucket refills while client waits
+        sleep((long) (1000 / sServerSettings.getAdmissionRate()) + 100);
+        client.start();
+        assertTrue(client.isRegistered());
+    }
+
+    @Test
+    public void pendingRegistrationsLimited() throws Exception {
+        final int maxPending = sServerSettings.getMaxPendingRegistrations();
+        for (int i = 0; i < maxPending; i++) {
+            mSockets.add(connect());
+        }
+        final SyncClient client = newClient("Client_1");
+        assertStartFails(client);
+        // Connections that don't register are closed
+        for (final Socket socket : mSockets) {
+            socket.setSoTimeout((int) sServerSettings.getRegisterTimeout() * 2);
+            assertEquals(-1, socket.getInputStream().read());
+        }
+        client.start();
+        assertTrue(client.isRegistered());
+    }
+
+    private static void assertStartFails(final SyncClient client) {
+        try {
+            client.start();
+            fail("Start should have failed");
+        } catch (final ClientStartFailedException e) {
+            // Closed connection is worth retrying
+            assertTrue(e.isRetryable());
+        }
+        assertFalse(client.isRegistered());
+    }
+
+    private static Socket connect() throws Exception {
+        return new Socket("localhost", sServerSettings.getServerPort());
+    }
+
+    private SyncClient newClient(final String id) {
+        final SyncClient client = new SyncClient("localhost", new NodeId(id), sClientSettings);
+        mClients.add(client);
+        return client;
+    }
+}
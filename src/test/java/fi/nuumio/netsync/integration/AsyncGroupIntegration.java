@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.client.SyncFuture;
+import fi.nuumio.netsync.client.SyncGroup;
+import fi.nuumio.netsync.client.SyncHandle;
+import fi.nuumio.netsync.protocol.message.group.SyncType;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.Token;
+
+import static fi.nuumio.netsync.client.SyncGroup.MemberCount.atLeast;
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class AsyncGroupIntegration {
+    private static final String GROUP_NAME = "Group_1";
+    private static final String GROUP_TOKEN = "GroupToken";
+    private static final String SYNC_POINT_1 = "SP_1";
+    private static final long WAIT_TIMEOUT = 1000;
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettingsQuickClientGroupTimeout.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettingsQuickClientGroupTimeout.properties");
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    private SyncServer mServer;
+    private SyncClient mClient1;
+    private SyncClient mClient2;
+    private SyncGroup mGroup1;
+    private SyncGroup mGroup2;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        mClient1 = new SyncClient("localhost", new NodeId("Client_1"), sClientSettings);
+        mClient2 = new SyncClient("localhost", new NodeId("Client_2"), sClientSettings);
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+        mClient1.start();
+        mClient2.start();
+        mGroup1 = mClient1.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mGroup2 = mClient2.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mGroup1.leave();
+        mGroup2.leave();
+        mClient1.stop();
+        mClient2.stop();
+        mServer.stop();
+    }
+
+    @Test
+    public void asyncJoinSyncLeave() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        final SyncFuture<Void> join1 = mGroup1.joinAsync();
+        final SyncFuture<Void> join2 = mGroup2.joinAsync();
+        join1.get(timeout, TimeUnit.MILLISECONDS);
+        join2.get(timeout, TimeUnit.MILLISECONDS);
+        assertTrue(mGroup1.isJoined());
+        assertTrue(mGroup2.isJoined());
+        assertTrue(mGroup1.awaitMembersAsync(atLeast(mGroup1, 2), timeout)
+                .get(timeout, TimeUnit.MILLISECONDS));
+        assertTrue(mGroup2.awaitMembersAsync(atLeast(mGroup2, 2), timeout)
+                .get(timeout, TimeUnit.MILLISECONDS));
+
+        final CountDownLatch synced = new CountDownLatch(2);
+        final SyncFuture.Listener<SyncHandle> listener = new SyncFuture.Listener<SyncHandle>() {
+            @Override
+            public void onComplete(final SyncFuture<SyncHandle> future) {
+                if (future.isSuccess()) {
+                    synced.countDown();
+                }
+            }
+        };
+        final SyncFuture<SyncHandle> sync1 = mGroup1.syncAsync(SYNC_POINT_1, SyncType.ALL, timeout);
+        final SyncFuture<SyncHandle> sync2 = mGroup2.syncAsync(SYNC_POINT_1, SyncType.ALL, timeout);
+        sync1.addListener(listener);
+        sync2.addListener(listener);
+        assertTrue(synced.await(timeout * 2, TimeUnit.MILLISECONDS));
+        assertTrue(sync1.get().isSuccess());
+        assertTrue(sync2.get().isSuccess());
+
+        mGroup1.leaveAsync().get(timeout, TimeUnit.MILLISECONDS);
+        mGroup2.leaveAsync().get(timeout, TimeUnit.MILLISECONDS);
+        assertFalse(mGroup1.isJoined());
+        assertFalse(mGroup2.isJoined());
+    }
+
+    @Test
+    public void asyncTimeouts() throws Exception {
+        final long timeout = 100;
+        mGroup1.joinAsync().get(WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+        mGroup2.joinAsync().get(WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(mGroup1.awaitMembersAsync(atLeast(mGroup1, 2), WAIT_TIMEOUT)
+                .get(WAIT_TIMEOUT, TimeUnit.MILLISECONDS));
+        // Third member never joins
+        assertFalse(mGroup1.awaitMembersAsync(atLeast(mGroup1, 3), timeout)
+                .get(WAIT_TIMEOUT, TimeUnit.MILLISECONDS));
+        // Other member never arrives
+        final SyncFuture<SyncHandle> sync = mGroup1.syncAsync(SYNC_POINT_1, SyncType.ALL, timeout);
+        assertFalse(sync.get(WAIT_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        // Finished arrival doesn't block next one
+        final SyncFuture<SyncHandle> cancelled =
+                mGroup1.syncAsync(SYNC_POINT_1, SyncType.ALL, WAIT_TIMEOUT);
+        assertTrue(cancelled.cancel(false));
+        assertFalse(mGroup1.syncAsync(SYNC_POINT_1, SyncType.ALL, timeout)
+                .get(WAIT_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+import fi.nuumio.netsync.client.BarrierSchedule;
+import fi.nuumio.netsync.client.GroupSyncException;
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.client.SyncGroup;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.Token;
+
+import static fi.nuumio.netsync.client.SyncGroup.MemberCount.atLeast;
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class BarrierScheduleIntegration {
+    private static final String GROUP_NAME = "Group_1";
+    private static final String GROUP_TOKEN = "GroupToken";
+    private static final String SCHEDULE_1 = "SC_1";
+    private static final String[] PHASES = {"load", "warm", "run-1", "run-2", "teardown"};
+    private static final long PHASE_TIMEOUT = 500;
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettingsQuickClientGroupTimeout.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettingsQuickClientGroupTimeout.properties");
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    private SyncServer mServer;
+    private SyncClient mClient1;
+    private SyncClient mClient2;
+    private SyncGroup mGroup1;
+    private SyncGroup mGroup2;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        mClient1 = new SyncClient("localhost", new NodeId("Client_1"), sClientSettings);
+        mClient2 = new SyncClient("localhost", new NodeId("Client_2"), sClientSettings);
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+        mClient1.start();
+        mClient2.start();
+        mGroup1 = mClient1.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mGroup2 = mClient2.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mGroup1.join();
+        mGroup2.join();
+        mGroup1.waitMembers(atLeast(mGroup1, 2), sClientSettings.getClientGroupMessageTimeout());
+        mGroup2.waitMembers(atLeast(mGroup2, 2), sClientSettings.getClientGroupMessageTimeout());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mGroup1.leave();
+        mGroup2.leave();
+        mClient1.stop();
+        mClient2.stop();
+        mServer.stop();
+    }
+
+    @Test
+    public void schedulePhases() throws Exception {
+        final BarrierSchedule schedule1 = mGroup1.startSchedule(SCHEDULE_1, PHASES, PHASE_TIMEOUT);
+        final BarrierSchedule schedule2 = mGroup2.startSchedule(SCHEDULE_1, PHASES, PHASE_TIMEOUT);
+        for (int i = 0; i < PHASES.length; i++) {
+            assertEquals(new NodeId(PHASES[i]), schedule1.getPhaseId());
+            schedule2.arrive();
+            assertEquals(i, schedule1.awaitPhase(PHASE_TIMEOUT));
+            assertEquals(i, schedule2.awaitPhase(PHASE_TIMEOUT));
+        }
+        assertTrue(schedule1.isDone());
+        assertTrue(schedule2.isDone());
+        assertNull(schedule1.getPhaseId());
+        assertFalse(schedule1.hasTimedOut());
+        assertEquals(BarrierSchedule.NO_PHASE, schedule1.awaitPhase(PHASE_TIMEOUT));
+        // Finished schedule can be started again
+        final BarrierSchedule again = mGroup1.startSchedule(SCHEDULE_1, PHASES, PHASE_TIMEOUT);
+        assertEquals(0, again.getPhase());
+        again.stop();
+    }
+
+    @Test
+    public void schedulePhaseTimeout() throws Exception {
+        final BarrierSchedule schedule1 = mGroup1.startSchedule(SCHEDULE_1, PHASES, PHASE_TIMEOUT);
+        final BarrierSchedule schedule2 = mGroup2.startSchedule(SCHEDULE_1, PHASES, PHASE_TIMEOUT);
+        schedule2.arrive();
+        assertEquals(0, schedule1.awaitPhase(PHASE_TIMEOUT));
+        assertEquals(0, schedule2.awaitPhase(PHASE_TIMEOUT));
+        // Second member never arrives to next phase
+        assertEquals(BarrierSchedule.NO_PHASE, schedule1.awaitPhase(PHASE_TIMEOUT * 2));
+        assertTrue(schedule1.hasTimedOut());
+        assertEquals(1, schedule1.getPhase());
+    }
+
+    @Test
+    public void scheduleMemberStops() throws Exception {
+        final BarrierSchedule schedule1 = mGroup1.startSchedule(SCHEDULE_1, PHASES, PHASE_TIMEOUT);
+        final BarrierSchedule schedule2 = mGroup2.startSchedule(SCHEDULE_1, PHASES, PHASE_TIMEOUT);
+        schedule1.arrive();
+        // Second member leaving the group releases phase only first one was waiting
+        schedule2.stop();
+        assertTrue(schedule2.isStopped());
+        mGroup2.leave();
+        assertEquals(0, schedule1.awaitPhase(PHASE_TIMEOUT));
+        assertEquals(1, schedule1.awaitPhase(PHASE_TIMEOUT));
+        schedule1.stop();
+        mGroup2.join();
+    }
+
+    @Test
+    public void schedulePhasesMismatch() throws Exception {
+        final BarrierSchedule schedule1 = mGroup1.startSchedule(SCHEDULE_1, PHASES, PHASE_TIMEOUT);
+        boolean failed = false;
+        try {
+            mGroup2.startSchedule(SCHEDULE_1, new String[]{"load", "run-1"}, PHASE_TIMEOUT);
+        } catch (final GroupSyncException e) {
+            failed = true;
+        }
+        assertTrue(failed);
+        assertFalse(schedule1.isStopped());
+        schedule1.stop();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+import fi.nuumio.netsync.client.GroupJoinException;
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.client.SyncGroup;
+import fi.nuumio.netsync.client.SyncHandle;
+import fi.nuumio.netsync.integration.util.TestUtil;
+import fi.nuumio.netsync.protocol.message.group.SyncType;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.Token;
+
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class BootstrapIntegration {
+    private static final String GROUP_1 = "Group_1";
+    private static final String GROUP_2 = "Group_2";
+    private static final String GROUP_TOKEN = "GroupToken";
+    private static final String WRONG_GROUP_TOKEN = "Open Sesame";
+    private static final String SYNC_POINT_1 = "SP_1";
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettingsQuickClientGroupTimeout.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettingsQuickClientGroupTimeout.properties");
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    private SyncServer mServer;
+    private SyncClient mClient1;
+    private SyncClient mClient2;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        mClient1 = new SyncClient("localhost", new NodeId("Client_1"), sClientSettings);
+        mClient2 = new SyncClient("localhost", new NodeId("Client_2"), sClientSettings);
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+        mClient1.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mClient1.stop();
+        mClient2.stop();
+        mServer.stop();
+    }
+
+    @Test
+    public void bootstrapJoins() throws Exception {
+        final SyncGroup group1 = mClient1.createGroup(new NodeId(GROUP_1), new Token(GROUP_TOKEN));
+        group1.join();
+        final SyncGroup group21 =
+                mClient2.createGroup(new NodeId(GROUP_1), new Token(GROUP_TOKEN));
+        final SyncGroup group22 =
+                mClient2.createGroup(new NodeId(GROUP_2), new Token(GROUP_TOKEN));
+        mClient2.startAndJoin(group21, group22);
+        assertTrue(mClient2.isRegistered());
+        assertTrue(group21.isJoined());
+        assertTrue(group22.isJoined());
+        // Members are known without waiting for notifies
+        assertTrue(group21.contains(mClient1.getId()));
+        assertTrue(group21.contains(mClient2.getId()));
+        assertTrue(group22.contains(mClient2.getId()));
+        TestUtil.waitMemberCount(2, group1);
+        assertTrue(group1.contains(mClient2.getId()));
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        final SyncHandle handle = group21.arrive(SYNC_POINT_1, SyncType.ALL, timeout);
+        assertTrue(group1.waitSync(SYNC_POINT_1, SyncType.ALL, timeout));
+        assertTrue(group21.await(handle, timeout));
+        group21.leave();
+        group22.leave();
+        group1.leave();
+    }
+
+    @Test
+    public void bootstrapJoinWrongToken() throws Exception {
+        final SyncGroup group1 = mClient1.createGroup(new NodeId(GROUP_1), new Token(GROUP_TOKEN));
+        group1.join();
+        final SyncGroup group2 =
+                mClient2.createGroup(new NodeId(GROUP_1), new Token(WRONG_GROUP_TOKEN));
+        GroupJoinException expected = null;
+        try {
+            mClient2.startAndJoin(group2);
+        } catch (final GroupJoinException e) {
+            expected = e;
+        }
+        assertNotNull(expected);
+        assertEquals(GroupJoinException.ErrorCode.GROUP_AUTHENTICATION_ERROR,
+                expected.getErrorCode());
+        // Registration stays even if joins fail
+        assertTrue(mClient2.isRegistered());
+        assertFalse(group2.isJoined());
+        assertTrue(group2.hasJoinError());
+        group1.leave();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.nuumio.netsync.client.CombiningSync;
+import fi.nuumio.netsync.client.GroupSyncException;
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.client.SyncFuture;
+import fi.nuumio.netsync.client.SyncGroup;
+import fi.nuumio.netsync.client.SyncHandle;
+import fi.nuumio.netsync.protocol.message.group.SyncType;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.Token;
+
+import static fi.nuumio.netsync.client.SyncGroup.MemberCount.atLeast;
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class CombiningSyncIntegration {
+    private static final String GROUP_NAME = "Group_1";
+    private static final String GROUP_TOKEN = "GroupToken";
+    private static final String SYNC_POINT_1 = "SP_1";
+    private static final int PARTIES = 3;
+    private static final long WAIT_TIMEOUT = 1000;
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettingsQuickClientGroupTimeout.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettingsQuickClientGroupTimeout.properties");
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    private SyncServer mServer;
+    private SyncClient mClient1;
+    private SyncClient mClient2;
+    private SyncGroup mGroup1;
+    private SyncGroup mGroup2;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+        mClient1 = new SyncClient("localhost", new NodeId("Client_1"), sClientSettings);
+        mClient2 = new SyncClient("localhost", new NodeId("Client_2"), sClientSettings);
+        mClient1.start();
+        mClient2.start();
+        mGroup1 = mClient1.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mGroup2 = mClient2.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mGroup1.join();
+        mGroup2.join();
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        assertTrue(mGroup1.waitMembers(atLeast(mGroup1, 2), timeout));
+        assertTrue(mGroup2.waitMembers(atLeast(mGroup2, 2), timeout));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mGroup1.leave();
+        mGroup2.leave();
+        mClient1.stop();
+        mClient2.stop();
+        mServer.stop();
+    }
+
+    @Test
+    public void localPartiesCombined() throws Exception {
+        final CombiningSync combining1 = new CombiningSync(mGroup1, PARTIES);
+        final CombiningSync combining2 = new CombiningSync(mGroup2, PARTIES);
+        final AtomicInteger synced = new AtomicInteger();
+        final Thread[] threads = new Thread[PARTIES * 2];
+        for (int i = 0; i < threads.length; i++) {
+            final CombiningSync combining = i % 2 == 0 ? combining1 : combining2;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (combining.waitSync(SYNC_POINT_1, SyncType.ALL, WAIT_TIMEOUT)) {
+                            synced.incrementAndGet();
+                        }
+                    } catch (final GroupSyncException e) {
+                        Log.e("Combined sync failed", e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(PARTIES * 2, synced.get());
+    }
+
+    @Test
+    public void localPartiesShareHandle() throws Exception {
+        final CombiningSync combining1 = new CombiningSync(mGroup1, PARTIES);
+        final SyncFuture<SyncHandle> other =
+                mGroup2.syncAsync(SYNC_POINT_1, SyncType.ALL, WAIT_TIMEOUT);
+        final List<SyncFuture<SyncHandle>> futures = new ArrayList<>();
+        for (int i = 0; i < PARTIES; i++) {
+            futures.add(combining1.arriveAsync(SYNC_POINT_1, SyncType.ALL, WAIT_TIMEOUT));
+        }
+        // Server saw just two members arriving
+        assertTrue(other.get(WAIT_TIMEOUT * 2, TimeUnit.MILLISECONDS).isSuccess());
+        final SyncHandle handle = futures.get(0).get(WAIT_TIMEOUT * 2, TimeUnit.MILLISECONDS);
+        assertTrue(handle.isSuccess());
+        for (int i = 1; i < PARTIES; i++) {
+            assertSame(handle, futures.get(i).get(WAIT_TIMEOUT * 2, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void localPartyMissing() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        final CombiningSync combining1 = new CombiningSync(mGroup1, PARTIES);
+        final SyncFuture<SyncHandle> future =
+                combining1.arriveAsync(SYNC_POINT_1, SyncType.ALL, timeout);
+        combining1.arriveAsync(SYNC_POINT_1, SyncType.ALL, timeout);
+        try {
+            future.get(WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("Sync with missing local party must fail");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof GroupSyncException);
+        }
+        // Next round starts from scratch
+        assertFalse(combining1.waitSync(SYNC_POINT_1, SyncType.ALL, timeout));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.client.SyncGroup;
+import fi.nuumio.netsync.client.SyncHandle;
+import fi.nuumio.netsync.protocol.message.group.SyncType;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.Token;
+
+import static fi.nuumio.netsync.client.SyncGroup.MemberCount.atLeast;
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Two sync points of one group in flight at the same time.
+ */
+@RunWith(JUnit4.class)
+public class ConcurrentSyncPointsIntegration {
+    private static final String GROUP_NAME = "Group_1";
+    private static final String GROUP_TOKEN = "GroupToken";
+    private static final String SYNC_POINT_1 = "SP_1";
+    private static final String SYNC_POINT_2 = "SP_2";
+    private static final long SYNC_TIMEOUT = 1000;
+    private static final long NO_RELEASE_WAIT = 100;
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettings.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettings.properties");
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    private SyncServer mServer;
+    private SyncClient mClient1;
+    private SyncClient mClient2;
+    private SyncClient mClient3;
+    private SyncGroup mGroup1;
+    private SyncGroup mGroup2;
+    private SyncGroup mGroup3;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+        mClient1 = new SyncClient("localhost", new NodeId("Client_1"), sClientSettings);
+        mClient2 = new SyncClient("localhost", new NodeId("Client_2"), sClientSettings);
+        mClient3 = new SyncClient("localhost", new NodeId("Client_3"), sClientSettings);
+        mGroup1 = mClient1.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mGroup2 = mClient2.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mGroup3 = mClient3.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mClient1.startAndJoin(mGroup1);
+        mClient2.startAndJoin(mGroup2);
+        mClient3.startAndJoin(mGroup3);
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        assertTrue(mGroup1.waitMembers(atLeast(mGroup1, 3), timeout));
+        assertTrue(mGroup2.waitMembers(atLeast(mGroup2, 3), timeout));
+        assertTrue(mGroup3.waitMembers(atLeast(mGroup3, 3), timeout));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mClient1.stop();
+        mClient2.stop();
+        mClient3.stop();
+        mServer.stop();
+    }
+
+    @Test
+    public void arrivalsCountedPerSyncPoint() throws Exception {
+        final SyncHandle point1 = mGroup1.arrive(SYNC_POINT_1, SyncType.ALL, SYNC_TIMEOUT);
+        final SyncHandle point2 = mGroup1.arrive(SYNC_POINT_2, SyncType.ALL, SYNC_TIMEOUT);
+        final SyncHandle point1Client2 = mGroup2.arrive(SYNC_POINT_1, SyncType.ALL, SYNC_TIMEOUT);
+        final SyncHandle point2Client3 = mGroup3.arrive(SYNC_POINT_2, SyncType.ALL, SYNC_TIMEOUT);
+        // Three arrivals to the group but only two to each sync point
+        assertFalse(mGroup1.await(point1, NO_RELEASE_WAIT));
+        assertFalse(point1.isDone());
+        assertFalse(point2.isDone());
+        assertFalse(point1Client2.isDone());
+        assertFalse(point2Client3.isDone());
+
+        final SyncHandle point1Client3 = mGroup3.arrive(SYNC_POINT_1, SyncType.ALL, SYNC_TIMEOUT);
+        assertTrue(mGroup1.await(point1, SYNC_TIMEOUT));
+        assertTrue(mGroup2.await(point1Client2, SYNC_TIMEOUT));
+        assertTrue(mGroup3.await(point1Client3, SYNC_TIMEOUT));
+        assertEquals(new NodeId(SYNC_POINT_1), point1.getResult().getSyncPoint());
+        // Release of sync point 1 leaves sync point 2 waiting
+        assertFalse(mGroup1.await(point2, NO_RELEASE_WAIT));
+        assertFalse(point2.isDone());
+        assertFalse(point2Client3.isDone());
+
+        final SyncHandle point2Client2 = mGroup2.arrive(SYNC_POINT_2, SyncType.ALL, SYNC_TIMEOUT);
+        assertTrue(mGroup1.await(point2, SYNC_TIMEOUT));
+        assertTrue(mGroup2.await(point2Client2, SYNC_TIMEOUT));
+        assertTrue(mGroup3.await(point2Client3, SYNC_TIMEOUT));
+        assertEquals(new NodeId(SYNC_POINT_2), point2.getResult().getSyncPoint());
+    }
+
+    @Test
+    public void timeoutOfOneSyncPoint() throws Exception {
+        final long shortTimeout = SYNC_TIMEOUT / 4;
+        final SyncHandle point1 = mGroup1.arrive(SYNC_POINT_1, SyncType.ALL, shortTimeout);
+        final SyncHandle point2 = mGroup1.arrive(SYNC_POINT_2, SyncType.ALL, SYNC_TIMEOUT);
+        assertFalse(mGroup1.await(point1, SYNC_TIMEOUT));
+        assertTrue(point1.isDone());
+        assertFalse(point1.isSuccess());
+        // Timeout of sync point 1 doesn't end sync point 2
+        assertFalse(point2.isDone());
+        final SyncHandle point2Client2 = mGroup2.arrive(SYNC_POINT_2, SyncType.ALL, SYNC_TIMEOUT);
+        final SyncHandle point2Client3 = mGroup3.arrive(SYNC_POINT_2, SyncType.ALL, SYNC_TIMEOUT);
+        assertTrue(mGroup1.await(point2, SYNC_TIMEOUT));
+        assertTrue(mGroup2.await(point2Client2, SYNC_TIMEOUT));
+        assertTrue(mGroup3.await(point2Client3, SYNC_TIMEOUT));
+    }
+}
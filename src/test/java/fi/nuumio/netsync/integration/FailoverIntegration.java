@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+import fi.nuumio.netsync.client.ClientStartFailedException;
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.TimeUtils;
+
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class FailoverIntegration {
+    // TEST-NET-1 address (RFC 5737) that nobody answers from
+    private static final String DEAD_SERVER = "192.0.2.1";
+    private static final String UNKNOWN_SERVER = "server.invalid";
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettingsFailover.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettingsFailover.properties");
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    private SyncServer mServer;
+    private SyncClient mClient;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mClient != null) {
+            mClient.stop();
+        }
+        mServer.stop();
+    }
+
+    @Test
+    public void failoverToSecondServer() throws Exception {
+        mClient = new SyncClient(new String[]{DEAD_SERVER, "localhost"}, new NodeId("Client_1"),
+                sClientSettings, null);
+        final TimeUtils.StopWatch watch = new TimeUtils.StopWatch();
+        mClient.start();
+        assertTrue(mClient.isRegistered());
+        assertTrue(watch.hasTimeLeft(sClientSettings.getClientConnectTimeout() / 2));
+    }
+
+    @Test
+    public void unknownServerSkipped() throws Exception {
+        mClient = new SyncClient(new String[]{UNKNOWN_SERVER, "localhost"},
+                new NodeId("Client_1"), sClientSettings, null);
+        mClient.start();
+        assertTrue(mClient.isRegistered());
+    }
+
+    @Test(expected = ClientStartFailedException.class)
+    public void noServerAnswers() throws Exception {
+        mClient = new SyncClient(new String[]{UNKNOWN_SERVER}, new NodeId("Client_1"),
+                sClientSettings, null);
+        mClient.start();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.client.SyncGroup;
+import fi.nuumio.netsync.client.SyncHandle;
+import fi.nuumio.netsync.integration.util.TcpProxy;
+import fi.nuumio.netsync.integration.util.TestUtil;
+import fi.nuumio.netsync.protocol.message.group.SyncType;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.Token;
+
+import static fi.nuumio.netsync.client.SyncGroup.MemberCount.equalTo;
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class GracePeriodIntegration {
+    private static final String GROUP_NAME = "Group_1";
+    private static final String GROUP_TOKEN = "GroupToken";
+    private static final String SYNC_POINT_1 = "SP_1";
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettingsReconnect.properties");
+    private static final ClientSettings sProxiedSettings =
+            new ClientSettings("/TestSettingsReconnect.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettingsReconnect.properties");
+    private static final int PROXY_PORT = sServerSettings.getServerPort() + 2;
+
+    static {
+        sProxiedSettings.setServerPort(PROXY_PORT);
+    }
+
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    private SyncServer mServer;
+    private TcpProxy mProxy;
+    private SyncClient mProxiedClient;
+    private SyncClient mClient;
+    private SyncGroup mProxiedGroup;
+    private SyncGroup mGroup;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+        mProxy = new TcpProxy(PROXY_PORT, sServerSettings.getServerPort());
+        mProxiedClient = new SyncClient("localhost", new NodeId("Client_0"), sProxiedSettings);
+        mProxiedClient.start();
+        mClient = new SyncClient("localhost", new NodeId("Client_1"), sClientSettings);
+        mClient.start();
+        mProxiedGroup = mProxiedClient.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mProxiedGroup.join();
+        mGroup = mClient.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mGroup.join();
+        assertTrue(mGroup.waitMembers(equalTo(mGroup, 2),
+                sClientSettings.getClientGroupMessageTimeout()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mProxiedClient.stop();
+        mClient.stop();
+        mProxy.close();
+        mServer.stop();
+    }
+
+    @Test
+    public void disconnectedClientResumes() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        final SyncHandle handle = mProxiedGroup.arrive(SYNC_POINT_1, SyncType.ALL, timeout * 4);
+        // Let arrival reach server and keep proxied client away while the other one completes
+        // sync
+        TestUtil.sleep(50);
+        mProxy.close();
+        assertTrue(mGroup.waitSync(SYNC_POINT_1, SyncType.ALL, timeout * 2));
+        assertTrue(mGroup.contains(mProxiedClient.getId()));
+        mProxy = new TcpProxy(PROXY_PORT, sServerSettings.getServerPort());
+        // Result was buffered for disconnected client
+        assertTrue(mProxiedGroup.await(handle, timeout * 4));
+        assertTrue(mProxiedClient.isRegistered());
+        assertTrue(mProxiedGroup.contains(mClient.getId()));
+    }
+
+    @Test
+    public void graceExpiryRemovesClient() throws Exception {
+        final long gracePeriod = sServerSettings.getClientGracePeriod();
+        mProxy.close();
+        assertTrue(mGroup.waitMembers(equalTo(mGroup, 1), gracePeriod * 3));
+        mProxy = new TcpProxy(PROXY_PORT, sServerSettings.getServerPort());
+    }
+}
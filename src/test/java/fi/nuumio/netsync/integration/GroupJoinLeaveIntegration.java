@@ -29,6 +29,7 @@ import java.util.concurrent.TimeUnit;
 import fi.nuumio.netsync.client.GroupJoinException;
 import fi.nuumio.netsync.client.GroupSyncException;
 import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.client.SyncFuture;
 import fi.nuumio.netsync.client.SyncGroup;
 import fi.nuumio.netsync.client.SyncGroup.MemberCount;
 import fi.nuumio.netsync.integration.util.BlockingReturn;
@@ -308,6 +309,24 @@ public class GroupJoinLeaveIntegration {
         assertFalse(group2.isJoined());
     }
 
+    @Test
+    public void waitMemberCountLeave() throws Exception {
+        final SyncGroup group1 = mClient1.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        group1.join();
+        final SyncFuture<Boolean> future = group1.awaitMembersAsync(
+                MemberCount.atLeast(group1, 2), sClientSettings.getClientGroupMessageTimeout() * 2);
+        group1.leave();
+        assertFalse(future.get());
+    }
+
+    @Test
+    public void waitMemberCountNoTimeout() throws Exception {
+        final SyncGroup group1 = mClient1.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        group1.join();
+        assertTrue(group1.waitMembers(MemberCount.equalTo(group1, 1), 0));
+        assertFalse(group1.waitMembers(MemberCount.atLeast(group1, 2), 0));
+    }
+
     @Test
     public void wrongGroupSecret() throws Exception {
         SyncGroup group1 = mClient1.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
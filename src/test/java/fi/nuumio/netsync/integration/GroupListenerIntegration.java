@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import fi.nuumio.netsync.client.GroupListener;
+import fi.nuumio.netsync.client.MembershipSnapshot;
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.client.SyncGroup;
+import fi.nuumio.netsync.client.SyncResult;
+import fi.nuumio.netsync.integration.util.TestUtil;
+import fi.nuumio.netsync.protocol.message.group.SyncType;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.Token;
+
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class GroupListenerIntegration {
+    private static final String GROUP_1 = "Group_1";
+    private static final String GROUP_TOKEN = "GroupToken";
+    private static final String SYNC_POINT_1 = "SP_1";
+    private static final long EVENT_TIMEOUT = 1000;
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettingsQuickClientGroupTimeout.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettingsQuickClientGroupTimeout.properties");
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    private SyncServer mServer;
+    private SyncClient mClient1;
+    private SyncClient mClient2;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        mClient1 = new SyncClient("localhost", new NodeId("Client_1"), sClientSettings);
+        mClient2 = new SyncClient("localhost", new NodeId("Client_2"), sClientSettings);
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+        mClient1.start();
+        mClient2.start();
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        mClient1.stop();
+        mClient2.stop();
+        mServer.stop();
+    }
+
+    @Test
+    public void memberEvents() throws Exception {
+        final SyncGroup group1 = mClient1.createGroup(new NodeId(GROUP_1), new Token(GROUP_TOKEN));
+        final RecordingListener listener = new RecordingListener();
+        group1.addListener(listener, mExecutor);
+        group1.join();
+        assertEquals("joined " + mClient1.getId(), listener.next());
+        final long joinEpoch = group1.getMembership().getEpoch();
+
+        final SyncGroup group2 = mClient2.createGroup(new NodeId(GROUP_1), new Token(GROUP_TOKEN));
+        group2.join();
+        assertEquals("joined " + mClient2.getId(), listener.next());
+        final MembershipSnapshot membership = group1.getMembership();
+        assertTrue(membership.getEpoch() > joinEpoch);
+        assertEquals(2, membership.size());
+        assertTrue(membership.contains(mClient2.getId()));
+
+        group2.leave();
+        assertEquals("left " + mClient2.getId(), listener.next());
+        // Old snapshot is not changed by leave
+        assertTrue(membership.contains(mClient2.getId()));
+        assertFalse(group1.getMembership().contains(mClient2.getId()));
+
+        group1.leave();
+        assertEquals("closed", listener.next());
+        assertEquals(0, group1.getMembership().size());
+
+        group1.removeListener(listener);
+        group1.join();
+        group1.leave();
+        assertEquals(null, listener.mEvents.poll(EVENT_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void syncEvent() throws Exception {
+        final SyncGroup group1 = mClient1.createGroup(new NodeId(GROUP_1), new Token(GROUP_TOKEN));
+        final SyncGroup group2 = mClient2.createGroup(new NodeId(GROUP_1), new Token(GROUP_TOKEN));
+        group1.join();
+        group2.join();
+        TestUtil.waitMemberCount(2, group1);
+        final RecordingListener listener = new RecordingListener();
+        group1.addListener(listener, mExecutor);
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        group1.arrive(SYNC_POINT_1, SyncType.ALL, timeout);
+        assertTrue(group2.waitSync(SYNC_POINT_1, SyncType.ALL, timeout));
+        assertEquals("sync " + SYNC_POINT_1, listener.next());
+        assertNotNull(listener.mResult);
+        assertTrue(listener.mResult.isSuccess());
+        assertSame(group1, listener.mGroup);
+        group2.leave();
+        group1.leave();
+    }
+
+    private static class RecordingListener extends GroupListener {
+        private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<>();
+        private volatile SyncGroup mGroup;
+        private volatile SyncResult mResult;
+
+        @Override
+        public void onClosed(final SyncGroup group) {
+            mEvents.add("closed");
+        }
+
+        @Override
+        public void onMemberJoined(final SyncGroup group, final NodeId member,
+                                   final MembershipSnapshot membership) {
+            mEvents.add("joined " + member);
+        }
+
+        @Override
+        public void onMemberLeft(final SyncGroup group, final NodeId member,
+                                 final MembershipSnapshot membership) {
+            mEvents.add("left " + member);
+        }
+
+        @Override
+        public void onSync(final SyncGroup group, final SyncResult result) {
+            mGroup = group;
+            mResult = result;
+            mEvents.add("sync " + result.getSyncPoint().asString());
+        }
+
+        private String next() throws InterruptedException {
+            return mEvents.poll(EVENT_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -24,12 +24,17 @@ import org.junit.rules.Timeout;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
+import fi.nuumio.netsync.client.PreparedSync;
 import fi.nuumio.netsync.client.SyncClient;
 import fi.nuumio.netsync.client.SyncGroup;
+import fi.nuumio.netsync.client.SyncHandle;
+import fi.nuumio.netsync.client.SyncResult;
 import fi.nuumio.netsync.integration.util.BlockingReturn;
 import fi.nuumio.netsync.integration.util.BlockingReturn.Blocker;
+import fi.nuumio.netsync.protocol.message.group.Reduction;
 import fi.nuumio.netsync.protocol.message.group.SyncType;
 import fi.nuumio.netsync.server.SyncServer;
 import fi.nuumio.netsync.util.ClientSettings;
@@ -40,14 +45,21 @@ import fi.nuumio.netsync.util.Token;
 
 import static fi.nuumio.netsync.client.SyncGroup.MemberCount.atLeast;
 import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(JUnit4.class)
 public class GroupSyncIntegration {
     private static final String GROUP_NAME = "Group_1";
     private static final String GROUP_TOKEN = "GroupToken";
     private static final String SYNC_POINT_1 = "SP_1";
+    private static final String SYNC_POINT_2 = "SP_2";
+    private static final int SYNC_ROUNDS = 5;
+    private static final long STRAGGLER_DELAY = 50;
     private static final ClientSettings sClientSettings =
             new ClientSettings("/TestSettingsQuickClientGroupTimeout.properties");
     private static final ServerSettings sServerSettings =
@@ -156,4 +168,232 @@ public class GroupSyncIntegration {
         assertTrue(result);
         assertTrue(ret1.get());
     }
+
+    @Test
+    public void syncPointTwoMembersRepeated() throws Exception {
+        // Same sync point is reused for each round
+        for (int i = 0; i < SYNC_ROUNDS; i++) {
+            BlockingReturn<Boolean> ret1 = new BlockingReturn<>(new Blocker<Boolean>() {
+                @Override
+                public Boolean getValue() throws Throwable {
+                    return mGroup1.waitSync(SYNC_POINT_1, SyncType.ALL,
+                            sClientSettings.getClientGroupMessageTimeout());
+                }
+            });
+            ret1.start();
+            final boolean result = mGroup2.waitSync(
+                    SYNC_POINT_1, SyncType.ALL, sClientSettings.getClientGroupMessageTimeout());
+            assertTrue(result);
+            assertTrue(ret1.get());
+        }
+    }
+
+    @Test
+    public void syncPointPrepared() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        final PreparedSync prepared1 = mGroup1.prepare(SYNC_POINT_1, SyncType.ALL, timeout);
+        final PreparedSync prepared2 = mGroup2.prepare(SYNC_POINT_1, SyncType.ALL, timeout);
+        for (int i = 0; i < SYNC_ROUNDS; i++) {
+            final SyncHandle handle1 = prepared1.arrive();
+            final SyncHandle handle2 = prepared2.arrive();
+            assertTrue(mGroup1.await(handle1, timeout));
+            assertTrue(mGroup2.await(handle2, timeout));
+        }
+        // Prepared and normal arrivals mix
+        final SyncHandle handle1 = prepared1.arrive();
+        assertTrue(mGroup2.waitSync(SYNC_POINT_1, SyncType.ALL, timeout));
+        assertTrue(mGroup1.await(handle1, timeout));
+    }
+
+    @Test
+    public void syncPointPreparedAlreadyPending() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        final PreparedSync prepared1 = mGroup1.prepare(SYNC_POINT_1, SyncType.ALL, timeout);
+        final SyncHandle handle1 = prepared1.arrive();
+        try {
+            prepared1.arrive();
+            fail("Second arrival must be rejected while first is pending");
+        } catch (final IllegalStateException e) {
+            // Expected
+        }
+        // Rejected arrival didn't disturb pending one
+        assertTrue(mGroup2.waitSync(SYNC_POINT_1, SyncType.ALL, timeout));
+        assertTrue(mGroup1.await(handle1, timeout));
+        final SyncHandle handle2 = prepared1.arrive();
+        assertTrue(mGroup2.waitSync(SYNC_POINT_1, SyncType.ALL, timeout));
+        assertTrue(mGroup1.await(handle2, timeout));
+    }
+
+    @Test
+    public void syncPointSplitPhase() throws Exception {
+        // Both members arrive from same thread, no blocking needed before await
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        final SyncHandle handle1 = mGroup1.arrive(SYNC_POINT_1, SyncType.ALL, timeout);
+        final SyncHandle handle2 = mGroup2.arrive(SYNC_POINT_1, SyncType.ALL, timeout);
+        assertTrue(mGroup1.await(handle1, timeout));
+        assertTrue(mGroup2.await(handle2, timeout));
+        assertTrue(handle1.isDone());
+        assertTrue(handle2.isSuccess());
+    }
+
+    @Test
+    public void syncPointsConcurrent() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        // Second thread of member 1 waits on another sync point of same group
+        BlockingReturn<Boolean> ret1 = new BlockingReturn<>(new Blocker<Boolean>() {
+            @Override
+            public Boolean getValue() throws Throwable {
+                return mGroup1.waitSync(SYNC_POINT_2, SyncType.ALL, timeout * 2);
+            }
+        });
+        final SyncHandle handle1 = mGroup1.arrive(SYNC_POINT_1, SyncType.ALL, timeout * 2);
+        ret1.start();
+        final SyncHandle handle2 = mGroup2.arrive(SYNC_POINT_2, SyncType.ALL, timeout * 2);
+        final SyncHandle handle3 = mGroup2.arrive(SYNC_POINT_1, SyncType.ALL, timeout * 2);
+        assertTrue(mGroup1.await(handle1, timeout * 2));
+        assertTrue(mGroup2.await(handle2, timeout * 2));
+        assertTrue(mGroup2.await(handle3, timeout * 2));
+        assertTrue(ret1.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void syncPointAlreadyPending() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        mGroup1.arrive(SYNC_POINT_1, SyncType.ALL, timeout);
+        mGroup1.arrive(SYNC_POINT_1, SyncType.ALL, timeout);
+    }
+
+    @Test
+    public void syncPointSplitPhaseTimeout() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        final SyncHandle handle1 = mGroup1.arrive(SYNC_POINT_1, SyncType.ALL, timeout);
+        assertFalse(mGroup1.await(handle1, timeout * 2));
+        assertTrue(handle1.isDone());
+        assertFalse(handle1.isSuccess());
+    }
+
+    @Test
+    public void syncPointResult() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        final SyncHandle handle1 = mGroup1.arrive(SYNC_POINT_1, SyncType.ALL, timeout);
+        Thread.sleep(STRAGGLER_DELAY);
+        final SyncResult result2 = mGroup2.waitSyncResult(SYNC_POINT_1, SyncType.ALL, timeout);
+        assertTrue(mGroup1.await(handle1, timeout));
+        final SyncResult result1 = handle1.getResult();
+        assertTrue(result1.isSuccess());
+        assertTrue(result2.isSuccess());
+        assertEquals(result1.getGeneration(), result2.getGeneration());
+        assertArrayEquals(new NodeId[]{mClient1.getId(), mClient2.getId()},
+                result2.getArrivalOrder());
+        assertEquals(mClient2.getId(), result1.getLastArrival());
+        // First member waited for the straggler in server, straggler didn't
+        assertTrue(result1.getServerWaitTime() >=
+                TimeUnit.MILLISECONDS.toNanos(STRAGGLER_DELAY));
+        assertTrue(result2.getServerWaitTime() < result1.getServerWaitTime());
+        assertEquals(result1.getServerWaitTime(), result2.getWaitTime(mClient1.getId()));
+        assertTrue(result1.getElapsedTime() >= result1.getServerWaitTime());
+    }
+
+    @Test
+    public void syncPointResultTimeout() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        final SyncResult result = mGroup1.waitSyncResult(SYNC_POINT_1, SyncType.ALL, timeout);
+        assertEquals(SyncResult.Outcome.TIMEOUT, result.getOutcome());
+        assertNull(result.getArrivalOrder());
+        assertNull(result.getLastArrival());
+        assertEquals(SyncResult.NOT_AVAILABLE, result.getServerWaitTime());
+        assertEquals(SyncResult.NOT_AVAILABLE, result.getWakeLatency());
+    }
+
+    @Test
+    public void syncPointReduction() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        final SyncHandle handle1 = mGroup1.arrive(SYNC_POINT_1, SyncType.ALL, timeout,
+                Reduction.of(Reduction.Op.SUM, 3L, 10L));
+        final SyncHandle handle2 = mGroup2.arrive(SYNC_POINT_1, SyncType.ALL, timeout,
+                Reduction.of(Reduction.Op.SUM, 4L, -1L));
+        assertTrue(mGroup1.await(handle1, timeout));
+        assertTrue(mGroup2.await(handle2, timeout));
+        assertEquals(7L, handle1.getReduction().getLong(0));
+        assertEquals(9L, handle1.getReduction().getLong(1));
+        assertEquals(7L, handle2.getReduction().getLong(0));
+        assertEquals(9L, handle2.getReduction().getLong(1));
+
+        // Next round of same sync point starts from scratch
+        final SyncHandle handle3 = mGroup1.arrive(SYNC_POINT_1, SyncType.ALL, timeout,
+                Reduction.of(Reduction.Op.MAX, 1.5));
+        final SyncHandle handle4 = mGroup2.arrive(SYNC_POINT_1, SyncType.ALL, timeout,
+                Reduction.of(Reduction.Op.MAX, 2.5));
+        assertTrue(mGroup1.await(handle3, timeout));
+        assertTrue(mGroup2.await(handle4, timeout));
+        assertEquals(2.5, handle3.getReduction().getDouble(0), 0.0);
+        assertEquals(2.5, handle4.getReduction().getDouble(0), 0.0);
+    }
+
+    @Test
+    public void syncPointReductionContributorLeaves() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        mGroup3.join();
+        mGroup1.waitMembers(atLeast(mGroup1, 3), timeout);
+        final SyncHandle handle1 = mGroup1.arrive(SYNC_POINT_1, SyncType.ALL, timeout,
+                Reduction.of(Reduction.Op.SUM, 3L));
+        mGroup3.arrive(SYNC_POINT_1, SyncType.ALL, timeout, Reduction.of(Reduction.Op.SUM, 100L));
+        Thread.sleep(STRAGGLER_DELAY);
+        mGroup3.leave();
+        // Value of member that left isn't part of the result
+        final SyncHandle handle2 = mGroup2.arrive(SYNC_POINT_1, SyncType.ALL, timeout,
+                Reduction.of(Reduction.Op.SUM, 4L));
+        assertTrue(mGroup1.await(handle1, timeout));
+        assertTrue(mGroup2.await(handle2, timeout));
+        assertEquals(7L, handle1.getReduction().getLong(0));
+        assertEquals(7L, handle2.getReduction().getLong(0));
+    }
+
+    @Test
+    public void syncPointReductionMismatch() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        final SyncHandle handle1 = mGroup1.arrive(SYNC_POINT_1, SyncType.ALL, timeout,
+                Reduction.of(Reduction.Op.SUM, 3L));
+        final SyncHandle handle2 = mGroup2.arrive(SYNC_POINT_1, SyncType.ALL, timeout,
+                Reduction.of(Reduction.Op.MIN, 4L));
+        // Whichever arrives last is rejected, the other one times out waiting alone
+        assertFalse(mGroup1.await(handle1, timeout * 2));
+        assertFalse(mGroup2.await(handle2, timeout * 2));
+        assertTrue(handle1.isDone());
+        assertTrue(handle2.isDone());
+        assertNull(handle1.getReduction());
+        assertNull(handle2.getReduction());
+    }
+
+    @Test
+    public void syncPointGather() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        // Max size data from both makes messages larger than initial message buffers
+        final byte[] data1 = new byte[sServerSettings.getSyncGatherMaxBytes()];
+        final byte[] data2 = new byte[sServerSettings.getSyncGatherMaxBytes()];
+        Arrays.fill(data1, (byte) 1);
+        Arrays.fill(data2, (byte) 2);
+        final SyncHandle handle2 = mGroup2.arrive(SYNC_POINT_1, SyncType.ALL, timeout, null, data2);
+        final SyncHandle handle1 = mGroup1.arrive(SYNC_POINT_1, SyncType.ALL, timeout, null, data1);
+        assertTrue(mGroup1.await(handle1, timeout));
+        assertTrue(mGroup2.await(handle2, timeout));
+        for (final SyncHandle handle : Arrays.asList(handle1, handle2)) {
+            // Ordered by group slot, not by arrival
+            assertEquals(2, handle.getMembers().length);
+            assertEquals(mClient1.getId(), handle.getMembers()[0]);
+            assertEquals(mClient2.getId(), handle.getMembers()[1]);
+            assertArrayEquals(data1, handle.getGathered()[0]);
+            assertArrayEquals(data2, handle.getGathered()[1]);
+        }
+    }
+
+    @Test
+    public void syncPointGatherTooLarge() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        final byte[] data = new byte[sServerSettings.getSyncGatherMaxBytes() + 1];
+        final SyncHandle handle = mGroup1.arrive(SYNC_POINT_1, SyncType.ALL, timeout, null, data);
+        assertFalse(mGroup1.await(handle, timeout));
+        assertTrue(handle.isDone());
+        assertNull(handle.getGathered());
+    }
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.protocol.message.Packet;
+import fi.nuumio.netsync.protocol.message.group.Reduction;
+import fi.nuumio.netsync.protocol.message.group.SyncRequest;
+import fi.nuumio.netsync.protocol.message.group.SyncType;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.Token;
+
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Server must survive messages with bogus lengths.
+ */
+@RunWith(JUnit4.class)
+public class MalformedMessageIntegration {
+    private static final long GATHER_MARKER = 0x0FEDCBA987654321L;
+    private static final long MARKER = 0x0123456789ABCDEFL;
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettings.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettings.properties");
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    private SyncServer mServer;
+    private SyncClient mClient;
+    private Socket mSocket;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+        mSocket = new Socket("localhost", sServerSettings.getServerPort());
+        mClient = new SyncClient("localhost", new NodeId("Client_1"), sClientSettings);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mClient.stop();
+        mSocket.close();
+        mServer.stop();
+    }
+
+    @Test
+    public void gatherLengthHuge() throws Exception {
+        sendGatherWithLength(Integer.MAX_VALUE);
+        assertServerServes();
+    }
+
+    @Test
+    public void gatherLengthNegative() throws Exception {
+        sendGatherWithLength(-2);
+        assertServerServes();
+    }
+
+    @Test
+    public void reductionCountHuge() throws Exception {
+        sendReductionWithCount(Integer.MAX_VALUE);
+        assertServerServes();
+    }
+
+    @Test
+    public void reductionCountNegative() throws Exception {
+        sendReductionWithCount(-1);
+        assertServerServes();
+    }
+
+    private static ByteBuffer createSyncRequest() {
+        final Packet<SyncRequest> packet = new Packet<>(SyncRequest.class, Token.NULL_TOKEN);
+        final SyncRequest request = packet.getMessage();
+        request.setGroupId(new NodeId("Group_1"));
+        request.setGroupToken(new Token("GroupToken"));
+        request.setSyncPoint(new NodeId("SP_1"));
+        request.setTimeout(1000);
+        request.setType(SyncType.ALL);
+        request.setReduction(Reduction.of(Reduction.Op.SUM, MARKER));
+        request.setGatherData(ByteBuffer.allocate(8).putLong(GATHER_MARKER).array());
+        return packet.encode();
+    }
+
+    /**
+     * @return position of first long in buffer that equals marker
+     */
+    private static int findMarker(final ByteBuffer buffer, final long marker) {
+        for (int i = 0; i + 8 <= buffer.limit(); i++) {
+            if (buffer.getLong(i) == marker) {
+                return i;
+            }
+        }
+        throw new AssertionError("Marker not found");
+    }
+
+    private void assertServerServes() throws Exception {
+        // Connection that sent malformed message is still served too
+        final ByteBuffer valid = createSyncRequest();
+        send(valid);
+        mClient.start();
+        assertTrue(mClient.isRegistered());
+        assertTrue(mServer.isRunning());
+    }
+
+    private void send(final ByteBuffer buffer) throws Exception {
+        final OutputStream out = mSocket.getOutputStream();
+        out.write(buffer.array(), buffer.position(), buffer.remaining());
+        out.flush();
+    }
+
+    private void sendGatherWithLength(final int length) throws Exception {
+        final ByteBuffer buffer = createSyncRequest();
+        // Data length is written right before data
+        buffer.putInt(findMarker(buffer, GATHER_MARKER) - 4, length);
+        send(buffer);
+    }
+
+    private void sendReductionWithCount(final int count) throws Exception {
+        final ByteBuffer buffer = createSyncRequest();
+        // Value count is written right before values
+        buffer.putInt(findMarker(buffer, MARKER) - 4, count);
+        send(buffer);
+    }
+}
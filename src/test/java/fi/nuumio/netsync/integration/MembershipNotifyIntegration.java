@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.client.SyncGroup;
+import fi.nuumio.netsync.integration.util.TestUtil;
+import fi.nuumio.netsync.protocol.message.Header;
+import fi.nuumio.netsync.protocol.message.Message;
+import fi.nuumio.netsync.protocol.message.MessageId;
+import fi.nuumio.netsync.protocol.message.Packet;
+import fi.nuumio.netsync.protocol.message.group.GroupNotify;
+import fi.nuumio.netsync.protocol.message.service.RegisterRequest;
+import fi.nuumio.netsync.protocol.message.service.RegisterResponse;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.Token;
+
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Members are told only who joined or left instead of full membership.
+ */
+@RunWith(JUnit4.class)
+public class MembershipNotifyIntegration {
+    private static final int CLIENT_COUNT = 6;
+    private static final String GROUP_NAME = "Group_1";
+    private static final String GROUP_TOKEN = "GroupToken";
+    private static final NodeId OBSERVER_ID = new NodeId("Observer");
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettingsSharedRuntime.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettingsSharedRuntime.properties");
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT * 2, TimeUnit.MILLISECONDS);
+    private final SyncClient[] mClients = new SyncClient[CLIENT_COUNT];
+    private final SyncGroup[] mGroups = new SyncGroup[CLIENT_COUNT];
+    private SyncServer mServer;
+    private Socket mObserver;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+        mObserver = new Socket("localhost", sServerSettings.getServerPort());
+        mObserver.setSoTimeout(DEFAULT_TIMEOUT);
+        for (int i = 0; i < CLIENT_COUNT; i++) {
+            mClients[i] = new SyncClient("localhost", new NodeId("Client_" + (i + 1)),
+                    sClientSettings);
+            mClients[i].start();
+            mGroups[i] = mClients[i].createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (final SyncClient client : mClients) {
+            client.stop();
+        }
+        mObserver.close();
+        mServer.stop();
+    }
+
+    @Test
+    public void joinAndLeaveSentAsDeltas() throws Exception {
+        registerObserver();
+        for (int i = 0; i < CLIENT_COUNT; i++) {
+            mGroups[i].join();
+            // Observer is told about every join with a notify having only the joined client
+            final GroupNotify notify = readMessage(MessageId.GROUP_NOTIFY, new GroupNotify());
+            assertEquals(GroupNotify.Code.JOIN, notify.getNotifyCode());
+            assertArrayEquals(new NodeId[]{mClients[i].getId()}, notify.getMembers());
+        }
+        // Full membership is still known by everyone
+        assertTrue(TestUtil.waitMemberCount(CLIENT_COUNT + 1, mGroups));
+        for (final SyncGroup group : mGroups) {
+            assertTrue(group.contains(OBSERVER_ID));
+        }
+        mGroups[0].leave();
+        final GroupNotify notify = readMessage(MessageId.GROUP_NOTIFY, new GroupNotify());
+        assertEquals(GroupNotify.Code.LEAVE, notify.getNotifyCode());
+        assertArrayEquals(new NodeId[]{mClients[0].getId()}, notify.getMembers());
+        for (int i = 1; i < CLIENT_COUNT; i++) {
+            assertTrue(TestUtil.waitMemberCount(CLIENT_COUNT, mGroups[i]));
+            assertFalse(mGroups[i].contains(mClients[0].getId()));
+        }
+    }
+
+    /**
+     * Read messages from observer's socket until one with given id arrives.
+     */
+    private <M extends Message> M readMessage(final MessageId messageId, final M message)
+            throws Exception {
+        final DataInputStream in = new DataInputStream(mObserver.getInputStream());
+        while (true) {
+            final Header header = new Header();
+            final byte[] headerBytes = new byte[header.length()];
+            in.readFully(headerBytes);
+            header.get(ByteBuffer.wrap(headerBytes));
+            final byte[] messageBytes = new byte[header.getMessageLength()];
+            in.readFully(messageBytes);
+            if (messageId == header.getMessageId()) {
+                final Packet<M> packet = new Packet<>(header, message);
+                packet.get(ByteBuffer.wrap(messageBytes), true);
+                return packet.getMessage();
+            }
+        }
+    }
+
+    private void registerObserver() throws Exception {
+        final Packet<RegisterRequest> packet =
+                new Packet<>(RegisterRequest.class, Token.NULL_TOKEN);
+        final RegisterRequest request = packet.getMessage();
+        request.setClientId(OBSERVER_ID);
+        request.setResumeToken(Token.NULL_TOKEN);
+        request.setGroups(new NodeId[]{new NodeId(GROUP_NAME)},
+                new Token[]{new Token(GROUP_TOKEN)});
+        final ByteBuffer buffer = packet.encode();
+        final OutputStream out = mObserver.getOutputStream();
+        out.write(buffer.array(), buffer.position(), buffer.remaining());
+        out.flush();
+        // Joins of others must come after observer's
+        final RegisterResponse response =
+                readMessage(MessageId.REGISTER_RESPONSE, new RegisterResponse());
+        assertEquals(RegisterResponse.Code.ACCEPTED, response.getCode());
+    }
+}
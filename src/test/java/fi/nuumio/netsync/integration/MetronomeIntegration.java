@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import fi.nuumio.netsync.client.GroupSyncException;
+import fi.nuumio.netsync.client.Metronome;
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.client.SyncGroup;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.Token;
+
+import static fi.nuumio.netsync.client.SyncGroup.MemberCount.atLeast;
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class MetronomeIntegration {
+    private static final String GROUP_NAME = "Group_1";
+    private static final String GROUP_TOKEN = "GroupToken";
+    private static final String METRONOME_1 = "MN_1";
+    private static final long PERIOD = 100;
+    private static final int TICKS = 5;
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettingsQuickClientGroupTimeout.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettingsQuickClientGroupTimeout.properties");
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    private SyncServer mServer;
+    private SyncClient mClient1;
+    private SyncClient mClient2;
+    private SyncGroup mGroup1;
+    private SyncGroup mGroup2;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        mClient1 = new SyncClient("localhost", new NodeId("Client_1"), sClientSettings);
+        mClient2 = new SyncClient("localhost", new NodeId("Client_2"), sClientSettings);
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+        mClient1.start();
+        mClient2.start();
+        mGroup1 = mClient1.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mGroup2 = mClient2.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mGroup1.join();
+        mGroup2.join();
+        mGroup1.waitMembers(atLeast(mGroup1, 2), sClientSettings.getClientGroupMessageTimeout());
+        mGroup2.waitMembers(atLeast(mGroup2, 2), sClientSettings.getClientGroupMessageTimeout());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mGroup1.leave();
+        mGroup2.leave();
+        mClient1.stop();
+        mClient2.stop();
+        mServer.stop();
+    }
+
+    @Test
+    public void metronomeTicks() throws Exception {
+        final Metronome metronome1 = mGroup1.startMetronome(METRONOME_1, PERIOD);
+        final Metronome metronome2 = mGroup2.startMetronome(METRONOME_1, PERIOD);
+        int previous = Metronome.NO_TICK;
+        for (int i = 0; i < TICKS; i++) {
+            metronome1.ack();
+            metronome2.ack();
+            final int tick1 = metronome1.awaitTick(PERIOD * 2);
+            final int tick2 = metronome2.awaitTick(PERIOD * 2);
+            assertNotEquals(Metronome.NO_TICK, tick1);
+            assertEquals(tick1, tick2);
+            if (previous != Metronome.NO_TICK) {
+                assertEquals(previous + 1, tick1);
+                // Both acknowledged previous tick right after getting it
+                final NodeId[] acked = metronome1.getAckedMembers();
+                assertEquals(2, acked.length);
+                assertTrue(Arrays.asList(acked).contains(mClient1.getId()));
+                assertTrue(Arrays.asList(acked).contains(mClient2.getId()));
+            }
+            previous = tick1;
+        }
+        metronome1.stop();
+        assertTrue(metronome1.isStopped());
+        assertEquals(Metronome.NO_TICK, metronome1.awaitTick(PERIOD * 2));
+        // Other member keeps ticking and sees only itself acknowledging
+        metronome2.ack();
+        metronome2.awaitTick(PERIOD * 2);
+        metronome2.ack();
+        assertNotEquals(Metronome.NO_TICK, metronome2.awaitTick(PERIOD * 2));
+        assertEquals(1, metronome2.getAckedMembers().length);
+        metronome2.stop();
+    }
+
+    @Test
+    public void metronomePeriodMismatch() throws Exception {
+        final Metronome metronome1 = mGroup1.startMetronome(METRONOME_1, PERIOD);
+        boolean failed = false;
+        try {
+            mGroup2.startMetronome(METRONOME_1, PERIOD * 2);
+        } catch (final GroupSyncException e) {
+            failed = true;
+        }
+        assertTrue(failed);
+        assertFalse(metronome1.isStopped());
+        assertNotEquals(Metronome.NO_TICK, metronome1.awaitTick(PERIOD * 2));
+        metronome1.stop();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+import fi.nuumio.netsync.client.GroupSyncException;
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.client.SyncConnection;
+import fi.nuumio.netsync.client.SyncGroup;
+import fi.nuumio.netsync.client.SyncHandle;
+import fi.nuumio.netsync.protocol.message.group.SyncType;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.Token;
+
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class ReconnectIntegration {
+    private static final String GROUP_NAME = "Group_1";
+    private static final String GROUP_TOKEN = "GroupToken";
+    private static final String SYNC_POINT_1 = "SP_1";
+    private static final int CLIENTS = 2;
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettingsReconnect.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettingsReconnect.properties");
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    private SyncServer mServer;
+    private SyncConnection mConnection;
+    private SyncClient[] mClients;
+    private SyncGroup[] mGroups;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        startServer();
+        mConnection = new SyncConnection("localhost", sClientSettings);
+        mClients = new SyncClient[CLIENTS];
+        mGroups = new SyncGroup[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            mClients[i] = new SyncClient(new NodeId("Client_" + i), mConnection);
+            mClients[i].start();
+            mGroups[i] = mClients[i].createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+            mGroups[i].join();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (int i = 0; i < CLIENTS; i++) {
+            mClients[i].stop();
+        }
+        mServer.stop();
+    }
+
+    @Test
+    public void pendingArrivalReplayed() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        final SyncHandle first = mGroups[0].arrive(SYNC_POINT_1, SyncType.ALL, timeout * 4);
+        restartServer();
+        // Arrivals fail until connection is up again
+        SyncHandle second = null;
+        while (null == second) {
+            try {
+                second = mGroups[1].arrive(SYNC_POINT_1, SyncType.ALL, timeout * 2);
+            } catch (final GroupSyncException e) {
+                Thread.sleep(20);
+            }
+        }
+        assertTrue(mGroups[1].await(second, timeout * 3));
+        assertTrue(mGroups[0].await(first, timeout));
+        assertEquals(CLIENTS, mConnection.getClientCount());
+        assertTrue(mClients[0].isRegistered());
+        assertTrue(mClients[1].isRegistered());
+    }
+
+    @Test
+    public void reconnectTimesOut() throws Exception {
+        mServer.stop();
+        final long reconnectTimeout = sClientSettings.getClientReconnectTimeout();
+        final long deadline = System.currentTimeMillis() + reconnectTimeout * 2;
+        while (mConnection.getClientCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, mConnection.getClientCount());
+        // Start server again for tear down
+        startServer();
+    }
+
+    private void restartServer() throws Exception {
+        mServer.stop();
+        startServer();
+    }
+
+    private void startServer() throws Exception {
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.client.SyncConnection;
+import fi.nuumio.netsync.client.SyncGroup;
+import fi.nuumio.netsync.client.SyncHandle;
+import fi.nuumio.netsync.protocol.message.group.SyncType;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.Token;
+
+import static fi.nuumio.netsync.client.SyncGroup.MemberCount.atLeast;
+import static fi.nuumio.netsync.client.SyncGroup.MemberCount.equalTo;
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class SharedConnectionIntegration {
+    private static final String GROUP_NAME = "Group_1";
+    private static final String GROUP_TOKEN = "GroupToken";
+    private static final String SYNC_POINT_1 = "SP_1";
+    private static final int CLIENTS = 8;
+    private static final int ROUNDS = 5;
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettingsSharedRuntime.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettingsSharedRuntime.properties");
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    private SyncServer mServer;
+    private SyncConnection mConnection;
+    private SyncClient[] mClients;
+    private SyncGroup[] mGroups;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+        mConnection = new SyncConnection("localhost", sClientSettings);
+        mClients = new SyncClient[CLIENTS];
+        mGroups = new SyncGroup[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            mClients[i] = new SyncClient(new NodeId("Client_" + i), mConnection);
+            mClients[i].start();
+            mGroups[i] = mClients[i].createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+            mGroups[i].join();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (int i = 0; i < CLIENTS; i++) {
+            if (mGroups[i].isJoined()) {
+                mGroups[i].leave();
+            }
+            mClients[i].stop();
+        }
+        mServer.stop();
+    }
+
+    @Test
+    public void clientsShareConnection() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        assertEquals(CLIENTS, mConnection.getClientCount());
+        assertTrue(mConnection.isClockSynced());
+        for (int i = 0; i < CLIENTS; i++) {
+            assertTrue(mClients[i].isRegistered());
+            assertTrue(mGroups[i].waitMembers(atLeast(mGroups[i], CLIENTS), timeout));
+        }
+        final SyncHandle[] handles = new SyncHandle[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            handles[i] = mGroups[i].arrive(SYNC_POINT_1, SyncType.ALL, timeout * 2);
+        }
+        for (int i = 0; i < CLIENTS; i++) {
+            assertTrue(mGroups[i].await(handles[i], timeout * 2));
+        }
+    }
+
+    @Test
+    public void concurrentArrivals() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        for (int i = 0; i < CLIENTS; i++) {
+            assertTrue(mGroups[i].waitMembers(atLeast(mGroups[i], CLIENTS), timeout));
+        }
+        // Every client arrives from its own thread at the same time
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger synced = new AtomicInteger(0);
+        final Thread[] threads = new Thread[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            final SyncGroup group = mGroups[i];
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int round = 0; round < ROUNDS; round++) {
+                            final SyncHandle handle =
+                                    group.arrive(SYNC_POINT_1, SyncType.ALL, timeout * 2);
+                            if (group.await(handle, timeout * 2)) {
+                                synced.incrementAndGet();
+                            }
+                        }
+                    } catch (final Exception e) {
+                        Log.e("Concurrent arrival failed", e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(CLIENTS * ROUNDS, synced.get());
+    }
+
+    @Test
+    public void duplicateIdRejected() throws Exception {
+        final SyncClient client = new SyncClient(new NodeId("Client_0"), mConnection);
+        try {
+            client.start();
+        } catch (final Exception e) {
+            Log.d("Got expected start failure: " + e.getMessage());
+        }
+        assertFalse(client.isRegistered());
+        // Rejected client doesn't take connection down with it
+        assertEquals(CLIENTS, mConnection.getClientCount());
+        assertTrue(mClients[0].isRegistered());
+    }
+
+    @Test
+    public void stopUnregistersClient() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        // Stop without leaving, server drops client from group when it unregisters
+        mClients[0].stop();
+        assertEquals(CLIENTS - 1, mConnection.getClientCount());
+        assertTrue(mGroups[1].waitMembers(equalTo(mGroups[1], CLIENTS - 1), timeout));
+        final SyncHandle[] handles = new SyncHandle[CLIENTS];
+        for (int i = 1; i < CLIENTS; i++) {
+            handles[i] = mGroups[i].arrive(SYNC_POINT_1, SyncType.ALL, timeout * 2);
+        }
+        for (int i = 1; i < CLIENTS; i++) {
+            assertTrue(mGroups[i].await(handles[i], timeout * 2));
+        }
+        // Same id can register again
+        mClients[0].start();
+        assertTrue(mClients[0].isRegistered());
+        assertEquals(CLIENTS, mConnection.getClientCount());
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.client.SyncClientRuntime;
+import fi.nuumio.netsync.client.SyncGroup;
+import fi.nuumio.netsync.client.SyncHandle;
+import fi.nuumio.netsync.protocol.message.group.SyncType;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.Token;
+
+import static fi.nuumio.netsync.client.SyncGroup.MemberCount.atLeast;
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class SharedRuntimeIntegration {
+    private static final String GROUP_NAME = "Group_1";
+    private static final String GROUP_TOKEN = "GroupToken";
+    private static final String SYNC_POINT_1 = "SP_1";
+    private static final int CLIENTS = 12;
+    private static final int THREADS = 2;
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettingsSharedRuntime.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettingsSharedRuntime.properties");
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    private SyncServer mServer;
+    private SyncClientRuntime mRuntime;
+    private SyncClient[] mClients;
+    private SyncGroup[] mGroups;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+        mRuntime = new SyncClientRuntime(THREADS);
+        mClients = new SyncClient[CLIENTS];
+        mGroups = new SyncGroup[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            mClients[i] = new SyncClient(
+                    "localhost", new NodeId("Client_" + i), sClientSettings, mRuntime);
+            mClients[i].start();
+            mGroups[i] = mClients[i].createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+            mGroups[i].join();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (int i = 0; i < CLIENTS; i++) {
+            mGroups[i].leave();
+            mClients[i].stop();
+        }
+        mRuntime.stop();
+        mServer.stop();
+    }
+
+    @Test
+    public void clientsShareThreads() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        assertEquals(THREADS, mRuntime.getThreadCount());
+        assertEquals(CLIENTS, mRuntime.getClientCount());
+        for (int i = 0; i < CLIENTS; i++) {
+            assertTrue(mClients[i].isRegistered());
+            assertTrue(mGroups[i].waitMembers(atLeast(mGroups[i], CLIENTS), timeout));
+        }
+        // All members arrive from one thread, runtime threads do all I/O
+        final SyncHandle[] handles = new SyncHandle[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            handles[i] = mGroups[i].arrive(SYNC_POINT_1, SyncType.ALL, timeout * 2);
+        }
+        for (int i = 0; i < CLIENTS; i++) {
+            assertTrue(mGroups[i].await(handles[i], timeout * 2));
+        }
+    }
+
+    @Test
+    public void clientStopKeepsRuntime() throws Exception {
+        mGroups[0].leave();
+        mClients[0].stop();
+        assertEquals(CLIENTS - 1, mRuntime.getClientCount());
+        // Others keep running in same threads
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        assertTrue(mGroups[1].waitMembers(
+                SyncGroup.MemberCount.equalTo(mGroups[1], CLIENTS - 1), timeout));
+        final SyncHandle handle1 = mGroups[1].arrive(SYNC_POINT_1, SyncType.ALL, timeout * 2);
+        final SyncHandle[] handles = new SyncHandle[CLIENTS];
+        for (int i = 2; i < CLIENTS; i++) {
+            handles[i] = mGroups[i].arrive(SYNC_POINT_1, SyncType.ALL, timeout * 2);
+        }
+        assertTrue(mGroups[1].await(handle1, timeout * 2));
+        for (int i = 2; i < CLIENTS; i++) {
+            assertTrue(mGroups[i].await(handles[i], timeout * 2));
+        }
+    }
+}
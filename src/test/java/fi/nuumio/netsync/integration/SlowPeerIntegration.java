@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.protocol.message.Packet;
+import fi.nuumio.netsync.protocol.message.service.ClockSyncRequest;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.Token;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Server drops peer that doesn't read what server sends.
+ */
+@RunWith(JUnit4.class)
+public class SlowPeerIntegration {
+    // Enough requests to fill socket buffers and server's send backlog many times over
+    private static final int MAX_REQUESTS = 2000000;
+    private static final int BATCH = 1000;
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettings.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettings.properties");
+    @Rule
+    public Timeout globalTimeout = new Timeout(20000, TimeUnit.MILLISECONDS);
+    private SyncServer mServer;
+    private SyncClient mClient;
+    private Socket mSocket;
+
+    @Before
+    public void setup() throws Exception {
+        // Verbose logging of every clock sync would slow test down a lot
+        Log.setLevel(Log.DEBUG);
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+        mSocket = new Socket();
+        mSocket.setReceiveBufferSize(4096);
+        mSocket.connect(new InetSocketAddress("localhost", sServerSettings.getServerPort()));
+        mClient = new SyncClient("localhost", new NodeId("Client_1"), sClientSettings);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mClient.stop();
+        mSocket.close();
+        mServer.stop();
+    }
+
+    @Test
+    public void peerNotReadingDropped() throws Exception {
+        final ByteBuffer request =
+                new Packet<>(ClockSyncRequest.class, Token.NULL_TOKEN).encode();
+        final byte[] batch = new byte[request.remaining() * BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            System.arraycopy(request.array(), 0, batch, i * request.remaining(),
+                    request.remaining());
+        }
+        final OutputStream out = mSocket.getOutputStream();
+        final long start = System.currentTimeMillis();
+        try {
+            // Never read responses
+            for (int sent = 0; sent < MAX_REQUESTS; sent += BATCH) {
+                out.write(batch);
+            }
+            fail("Server didn't drop peer that doesn't read");
+        } catch (final IOException e) {
+            Log.d("Dropped by server as expected: " + e);
+        }
+        // Not just closed because of missing registration
+        final long dropTime = System.currentTimeMillis() - start;
+        assertTrue("Dropped too late: " + dropTime + " ms",
+                dropTime < sServerSettings.getRegisterTimeout());
+        // Others are still served
+        mClient.start();
+        assertTrue(mClient.isRegistered());
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+import fi.nuumio.netsync.client.ClientStartFailedException;
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.client.SyncConnection;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.TimeUtils;
+
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static fi.nuumio.netsync.integration.util.TestUtil.sleep;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class StartRetryIntegration {
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettingsStartRetry.properties");
+    // Same timeouts but start is not retried
+    private static final ClientSettings sNoRetryClientSettings =
+            new ClientSettings("/TestSettings.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettingsStartRetry.properties");
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    private SyncServer mServer;
+    private SyncClient mClient1;
+    private SyncClient mClient2;
+    private SyncClient mClient3;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mClient3 != null) {
+            mClient3.stop();
+        }
+        mClient2.stop();
+        mClient1.stop();
+        mServer.stop();
+    }
+
+    @Test
+    public void serverFullRetryAfter() throws Exception {
+        // Shared connection gets past accept so that server answers with SERVER_FULL
+        startClients(new SyncConnection("localhost", sNoRetryClientSettings));
+        try {
+            mClient3.start();
+            fail("Start should have failed");
+        } catch (final ClientStartFailedException e) {
+            assertTrue(e.isRetryable());
+            assertEquals(sServerSettings.getRegisterRetryAfter(), e.getRetryAfter());
+        }
+        assertFalse(mClient3.isRegistered());
+    }
+
+    @Test
+    public void startRetriedAfterConnectionClosed() throws Exception {
+        mClient1 = new SyncClient("localhost", new NodeId("Client_1"), sClientSettings);
+        mClient2 = new SyncClient("localhost", new NodeId("Client_2"), sClientSettings);
+        mClient3 = new SyncClient("localhost", new NodeId("Client_3"), sClientSettings);
+        mClient1.start();
+        mClient2.start();
+        // Full server closes new connections right away
+        assertStartedAfterStop(mClient2);
+    }
+
+    @Test
+    public void startRetriedUntilRoom() throws Exception {
+        startClients(new SyncConnection("localhost", sClientSettings));
+        assertStartedAfterStop(mClient2);
+    }
+
+    @Test
+    public void startRetryTimeout() throws Exception {
+        startClients(new SyncConnection("localhost", sClientSettings));
+        final TimeUtils.StopWatch watch = new TimeUtils.StopWatch();
+        try {
+            mClient3.start();
+            fail("Start should have failed");
+        } catch (final ClientStartFailedException e) {
+            assertTrue(e.isRetryable());
+        }
+        // Server asks to wait so there's time for a few attempts only
+        assertTrue(watch.elapsed() >= sServerSettings.getRegisterRetryAfter());
+        assertTrue(watch.elapsed() < sClientSettings.getClientStartRetryTimeout() +
+                sClientSettings.getClientRegisterTimeout());
+        assertFalse(mClient3.isRegistered());
+    }
+
+    private void assertStartedAfterStop(final SyncClient stopped) throws Exception {
+        final Thread stopper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sleep(300);
+                stopped.stop();
+            }
+        });
+        stopper.start();
+        final TimeUtils.StopWatch watch = new TimeUtils.StopWatch();
+        mClient3.start();
+        stopper.join();
+        assertTrue(mClient3.isRegistered());
+        assertTrue(watch.elapsed() >= 300);
+    }
+
+    private void startClients(final SyncConnection connection) throws Exception {
+        mClient1 = new SyncClient(new NodeId("Client_1"), connection);
+        mClient2 = new SyncClient(new NodeId("Client_2"), connection);
+        mClient3 = new SyncClient(new NodeId("Client_3"), connection);
+        mClient1.start();
+        mClient2.start();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.client.SyncFuture;
+import fi.nuumio.netsync.client.SyncGroup;
+import fi.nuumio.netsync.client.SyncHandle;
+import fi.nuumio.netsync.protocol.message.group.Reduction;
+import fi.nuumio.netsync.protocol.message.group.SyncType;
+import fi.nuumio.netsync.server.SyncAgent;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.Token;
+
+import static fi.nuumio.netsync.client.SyncGroup.MemberCount.atLeast;
+import static fi.nuumio.netsync.client.SyncGroup.MemberCount.equalTo;
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class SyncAgentIntegration {
+    private static final String GROUP_NAME = "Group_1";
+    private static final String GROUP_TOKEN = "GroupToken";
+    private static final String SYNC_POINT_1 = "SP_1";
+    private static final long WAIT_TIMEOUT = 1000;
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    private final ClientSettings mClientSettings = new ClientSettings("/TestSettings.properties");
+    private final ClientSettings mLocalSettings = new ClientSettings("/TestSettings.properties");
+    private SyncServer mServer;
+    private SyncAgent mAgent;
+    private SyncClient mDirect;
+    private SyncClient mLocal1;
+    private SyncClient mLocal2;
+    private SyncGroup mDirectGroup;
+    private SyncGroup mLocalGroup1;
+    private SyncGroup mLocalGroup2;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        final ServerSettings serverSettings = new ServerSettings("/TestSettings.properties");
+        mServer = new SyncServer(serverSettings);
+        mServer.start();
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+        final ServerSettings agentSettings = new ServerSettings("/TestSettings.properties");
+        agentSettings.setServerPort(serverSettings.getServerPort() + 1);
+        mLocalSettings.setServerPort(agentSettings.getServerPort());
+        mAgent = new SyncAgent(new SyncServer(agentSettings),
+                new SyncClient("localhost", new NodeId("Agent_1"), mClientSettings));
+        mAgent.start();
+        assertTrue(mAgent.isRunning());
+
+        mDirect = new SyncClient("localhost", new NodeId("Client_D"), mClientSettings);
+        mLocal1 = new SyncClient("localhost", new NodeId("Client_L1"), mLocalSettings);
+        mLocal2 = new SyncClient("localhost", new NodeId("Client_L2"), mLocalSettings);
+        mDirect.start();
+        mLocal1.start();
+        mLocal2.start();
+        mDirectGroup = mDirect.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mLocalGroup1 = mLocal1.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mLocalGroup2 = mLocal2.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mDirectGroup.join();
+        mLocalGroup1.join();
+        mLocalGroup2.join();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mLocalGroup1.leave();
+        mLocalGroup2.leave();
+        mDirectGroup.leave();
+        mLocal1.stop();
+        mLocal2.stop();
+        mDirect.stop();
+        mAgent.stop();
+        mServer.stop();
+    }
+
+    @Test
+    public void agentArrivesForLocalMembers() throws Exception {
+        final long timeout = mClientSettings.getClientGroupMessageTimeout();
+        // Upstream sees agent as the only member for local clients
+        assertTrue(mDirectGroup.waitMembers(equalTo(mDirectGroup, 2), timeout));
+        assertTrue(mDirectGroup.contains(new NodeId("Agent_1")));
+        assertTrue(mLocalGroup1.waitMembers(atLeast(mLocalGroup1, 2), timeout));
+
+        final SyncFuture<SyncHandle> direct = mDirectGroup.syncAsync(SYNC_POINT_1, SyncType.ALL,
+                WAIT_TIMEOUT, Reduction.of(Reduction.Op.SUM, 1L), null);
+        final SyncFuture<SyncHandle> local1 = mLocalGroup1.syncAsync(SYNC_POINT_1, SyncType.ALL,
+                WAIT_TIMEOUT, Reduction.of(Reduction.Op.SUM, 10L), null);
+        // Upstream can't finish before last local member arrives
+        Thread.sleep(timeout);
+        assertFalse(direct.isDone());
+        final SyncFuture<SyncHandle> local2 = mLocalGroup2.syncAsync(SYNC_POINT_1, SyncType.ALL,
+                WAIT_TIMEOUT, Reduction.of(Reduction.Op.SUM, 100L), null);
+
+        final SyncHandle directHandle = direct.get(WAIT_TIMEOUT * 2, TimeUnit.MILLISECONDS);
+        final SyncHandle localHandle1 = local1.get(WAIT_TIMEOUT * 2, TimeUnit.MILLISECONDS);
+        final SyncHandle localHandle2 = local2.get(WAIT_TIMEOUT * 2, TimeUnit.MILLISECONDS);
+        assertTrue(directHandle.isSuccess());
+        assertTrue(localHandle1.isSuccess());
+        assertTrue(localHandle2.isSuccess());
+        assertEquals(111L, directHandle.getReduction().getLong(0));
+        assertEquals(111L, localHandle1.getReduction().getLong(0));
+        assertEquals(111L, localHandle2.getReduction().getLong(0));
+    }
+
+    @Test
+    public void upstreamTimeoutReleasesLocalMembers() throws Exception {
+        final long timeout = mClientSettings.getClientGroupMessageTimeout();
+        assertTrue(mDirectGroup.waitMembers(equalTo(mDirectGroup, 2), timeout));
+        // Direct member never arrives so upstream sync point times out
+        final SyncFuture<SyncHandle> local1 =
+                mLocalGroup1.syncAsync(SYNC_POINT_1, SyncType.ALL, timeout);
+        final SyncFuture<SyncHandle> local2 =
+                mLocalGroup2.syncAsync(SYNC_POINT_1, SyncType.ALL, timeout);
+        assertFalse(local1.get(WAIT_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        assertFalse(local2.get(WAIT_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+import fi.nuumio.netsync.client.SyncClient;
+import fi.nuumio.netsync.client.SyncGroup;
+import fi.nuumio.netsync.client.SyncHandle;
+import fi.nuumio.netsync.protocol.message.group.SyncType;
+import fi.nuumio.netsync.server.SyncServer;
+import fi.nuumio.netsync.util.ClientSettings;
+import fi.nuumio.netsync.util.Log;
+import fi.nuumio.netsync.util.NodeId;
+import fi.nuumio.netsync.util.ServerSettings;
+import fi.nuumio.netsync.util.Token;
+
+import static fi.nuumio.netsync.client.SyncGroup.MemberCount.atLeast;
+import static fi.nuumio.netsync.integration.util.TestUtil.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class SyncReleaseIntegration {
+    private static final String GROUP_NAME = "Group_1";
+    private static final String GROUP_TOKEN = "GroupToken";
+    private static final String SYNC_POINT_1 = "SP_1";
+    // Client and server run in same JVM so clocks should match closely
+    private static final long MAX_CLOCK_OFFSET_NS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final ClientSettings sClientSettings =
+            new ClientSettings("/TestSettingsSyncRelease.properties");
+    private static final ServerSettings sServerSettings =
+            new ServerSettings("/TestSettingsSyncRelease.properties");
+    @Rule
+    public Timeout globalTimeout = new Timeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    private SyncServer mServer;
+    private SyncClient mClient1;
+    private SyncClient mClient2;
+    private SyncGroup mGroup1;
+    private SyncGroup mGroup2;
+
+    @Before
+    public void setup() throws Exception {
+        Log.setLevel(Log.VERBOSE);
+        mServer = new SyncServer(sServerSettings);
+        mServer.start();
+        mClient1 = new SyncClient("localhost", new NodeId("Client_1"), sClientSettings);
+        mClient2 = new SyncClient("localhost", new NodeId("Client_2"), sClientSettings);
+        if (!mServer.isRunning()) {
+            throw new IllegalStateException("Server not started");
+        }
+        mClient1.start();
+        mClient2.start();
+        mGroup1 = mClient1.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mGroup2 = mClient2.createGroup(new NodeId(GROUP_NAME), new Token(GROUP_TOKEN));
+        mGroup1.join();
+        mGroup2.join();
+        mGroup1.waitMembers(atLeast(mGroup1, 2), sClientSettings.getClientGroupMessageTimeout());
+        mGroup2.waitMembers(atLeast(mGroup2, 2), sClientSettings.getClientGroupMessageTimeout());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mGroup1.leave();
+        mGroup2.leave();
+        mClient1.stop();
+        mClient2.stop();
+        mServer.stop();
+    }
+
+    @Test
+    public void clockSynced() throws Exception {
+        assertTrue(mClient1.isClockSynced());
+        assertTrue(mClient2.isClockSynced());
+        assertTrue(Math.abs(mClient1.getClockOffset()) < MAX_CLOCK_OFFSET_NS);
+        assertTrue(Math.abs(mClient2.getClockOffset()) < MAX_CLOCK_OFFSET_NS);
+    }
+
+    @Test
+    public void releasedAtScheduledTime() throws Exception {
+        final long timeout = sClientSettings.getClientGroupMessageTimeout();
+        final long releaseDelay = TimeUnit.MILLISECONDS.toNanos(
+                sServerSettings.getSyncReleaseDelay());
+        final SyncHandle handle1 = mGroup1.arrive(SYNC_POINT_1, SyncType.ALL, timeout);
+        final long lastArrival = System.nanoTime();
+        final SyncHandle handle2 = mGroup2.arrive(SYNC_POINT_1, SyncType.ALL, timeout);
+        assertTrue(mGroup1.await(handle1, timeout));
+        final long released1 = System.nanoTime();
+        assertTrue(mGroup2.await(handle2, timeout));
+        final long released2 = System.nanoTime();
+        // Notifies arrive long before release time, both wait for it
+        assertTrue(released1 - lastArrival >= releaseDelay);
+        assertTrue(released2 - released1 < releaseDelay);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.integration.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Relays TCP connections from local port to server so that tests can cut connections that
+ * neither side closes itself.
+ */
+public class TcpProxy {
+    private final ServerSocket mServerSocket;
+    private final int mTargetPort;
+    private final List<Socket> mSockets;
+    private final Thread mAcceptThread;
+
+    public TcpProxy(final int port, final int targetPort) throws IOException {
+        mServerSocket = new ServerSocket();
+        mServerSocket.setReuseAddress(true);
+        mServerSocket.bind(new InetSocketAddress("localhost", port));
+        mTargetPort = targetPort;
+        mSockets = new ArrayList<>();
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+        mAcceptThread.start();
+    }
+
+    /**
+     * Stop accepting connections and cut current ones.
+     */
+    public void close() throws IOException {
+        mServerSocket.close();
+        dropConnections();
+        try {
+            mAcceptThread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Cut current connections from both ends. New connections are still accepted.
+     */
+    public void dropConnections() {
+        final List<Socket> sockets;
+        synchronized (mSockets) {
+            sockets = new ArrayList<>(mSockets);
+            mSockets.clear();
+        }
+        for (final Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(final Socket socket) {
+        try {
+            socket.close();
+        } catch (final IOException e) {
+            // Already closed
+        }
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket client = mServerSocket.accept();
+                final Socket server = new Socket("localhost", mTargetPort);
+                synchronized (mSockets) {
+                    mSockets.add(client);
+                    mSockets.add(server);
+                }
+                pump(client, server);
+                pump(server, client);
+            } catch (final IOException e) {
+                // Closed
+            }
+        }
+    }
+
+    private void pump(final Socket from, final Socket to) throws IOException {
+        final InputStream in = from.getInputStream();
+        final OutputStream out = to.getOutputStream();
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] buffer = new byte[4096];
+                try {
+                    int count;
+                    while ((count = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, count);
+                        out.flush();
+                    }
+                } catch (final IOException e) {
+                    // Dropped
+                }
+                closeQuietly(from);
+                closeQuietly(to);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
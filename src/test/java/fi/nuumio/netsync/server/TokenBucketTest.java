@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 Jari Hämäläinen / https://github.com/nuumio
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.nuumio.netsync.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+    @Test
+    public void burstThenEmpty() throws Exception {
+        final TokenBucket bucket = new TokenBucket(10, 3, 0);
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        assertFalse(bucket.tryAcquire(0));
+        assertFalse(bucket.tryAcquire(50));
+    }
+
+    @Test
+    public void refill() throws Exception {
+        final TokenBucket bucket = new TokenBucket(10, 2, 0);
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        // One token per 100 ms
+        assertTrue(bucket.tryAcquire(100));
+        assertFalse(bucket.tryAcquire(150));
+        assertTrue(bucket.tryAcquire(200));
+        // Bucket doesn't fill over burst
+        assertTrue(bucket.tryAcquire(10000));
+        assertTrue(bucket.tryAcquire(10000));
+        assertFalse(bucket.tryAcquire(10000));
+    }
+
+    @Test
+    public void unlimited() throws Exception {
+        final TokenBucket bucket = new TokenBucket(0, 0, 0);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(bucket.tryAcquire(0));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void limitedWithoutBurst() throws Exception {
+        new TokenBucket(10, 0, 0);
+    }
+}